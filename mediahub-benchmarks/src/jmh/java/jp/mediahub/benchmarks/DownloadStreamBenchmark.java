@@ -0,0 +1,58 @@
+package jp.mediahub.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import jp.mediahub.stream.container.DownloadStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reads a whole media through {@link DownloadStream#readChunk(byte[], int, int)}, as the downloads do, to isolate the
+ * cost of the stream from the building of the messages.
+ *
+ * @author Renato Raeffray
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class DownloadStreamBenchmark {
+
+  @Param({"65536", "256000", "1048576"})
+  public int bufferSize;
+
+  @Param({"1048576", "67108864"})
+  public int fileSize;
+
+  private byte[] content;
+
+  private byte[] buffer;
+
+  @Setup
+  public void setUp() {
+    content = new byte[fileSize];
+    new Random(fileSize).nextBytes(content);
+    buffer = new byte[bufferSize];
+  }
+
+  @Benchmark
+  public long readChunks(Blackhole blackhole) throws IOException {
+    long total = 0;
+    try (DownloadStream stream = new DownloadStream(new ByteArrayInputStream(content), (long) content.length)) {
+      int bytesRead;
+      while ((bytesRead = stream.readChunk(buffer, 0, bufferSize)) > 0) {
+        blackhole.consume(buffer);
+        total += bytesRead;
+      }
+    }
+    return total;
+  }
+}
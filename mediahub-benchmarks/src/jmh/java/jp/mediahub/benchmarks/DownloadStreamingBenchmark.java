@@ -0,0 +1,75 @@
+package jp.mediahub.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import jp.mediahub.benchmarks.support.BenchmarkCallObserver;
+import jp.mediahub.benchmarks.support.InMemoryMediaContainer;
+import jp.mediahub.messages.GetMediaRequest;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.metrics.MediaMetrics;
+import jp.mediahub.stream.ChunkSizing;
+import jp.mediahub.stream.MediaDownloadStreaming;
+import jp.mediahub.stream.buffer.MemoryBudget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Whole downloads through {@link MediaDownloadStreaming}, from an in-memory container to an always ready transport.
+ * <p>
+ * Measures the chunking and the building and serialization of the outgoing messages, for several buffer sizes
+ * (<code>app.media.buffer.size</code>) and media sizes. The buffers are pooled, as in the service. Run with several
+ * threads to measure concurrent downloads.
+ *
+ * @author Renato Raeffray
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DownloadStreamingBenchmark {
+
+  private static final String MEDIA_NAME = "media";
+
+  @State(Scope.Benchmark)
+  public static class Container {
+
+    @Param({"65536", "256000", "1048576"})
+    public int bufferSize;
+
+    @Param({"1048576", "67108864"})
+    public int fileSize;
+
+    public InMemoryMediaContainer container;
+
+    @Setup
+    public void setUp() {
+      final byte[] content = new byte[fileSize];
+      new Random(fileSize).nextBytes(content);
+      container = new InMemoryMediaContainer();
+      container.put(MEDIA_NAME, content);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Call {
+
+    public final BenchmarkCallObserver<MediaChunk> observer = new BenchmarkCallObserver<>();
+
+    public final GetMediaRequest request = GetMediaRequest.newBuilder().setOriginalName(MEDIA_NAME).build();
+  }
+
+  @Benchmark
+  public long download(Container container, Call call) {
+    call.observer.reset();
+    final MediaDownloadStreaming streaming = new MediaDownloadStreaming(call.observer, container.container,
+        ChunkSizing.fixed(container.bufferSize), MediaMetrics.noop(), MemoryBudget.Reservation.NONE);
+    streaming.start(call.request);
+    // the transport is always ready, the first onReady call sends the whole media
+    streaming.run();
+    return call.observer.completedBytes();
+  }
+}
@@ -0,0 +1,69 @@
+package jp.mediahub.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import jp.mediahub.messages.MediaChunk;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building, serializing and parsing a single {@link MediaChunk}, for several chunk sizes.
+ * <p>
+ * <code>buildCopied</code> copies the buffer as the downloads do, their buffer being reused for the next chunk,
+ * <code>buildWrapped</code> wraps it, which is only safe once the transport serializes the message before onNext
+ * returns.
+ *
+ * @author Renato Raeffray
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class MediaChunkCodecBenchmark {
+
+  @Param({"65536", "256000", "1048576"})
+  public int bufferSize;
+
+  private byte[] buffer;
+
+  private byte[] serialized;
+
+  @Setup
+  public void setUp() {
+    buffer = new byte[bufferSize];
+    new Random(bufferSize).nextBytes(buffer);
+    serialized = build(UnsafeByteOperations.unsafeWrap(buffer)).toByteArray();
+  }
+
+  @Benchmark
+  public byte[] buildWrapped() {
+    return build(UnsafeByteOperations.unsafeWrap(buffer)).toByteArray();
+  }
+
+  @Benchmark
+  public byte[] buildCopied() {
+    return build(ByteString.copyFrom(buffer)).toByteArray();
+  }
+
+  @Benchmark
+  public MediaChunk parse() throws InvalidProtocolBufferException {
+    return MediaChunk.parseFrom(serialized);
+  }
+
+  private MediaChunk build(ByteString content) {
+    return MediaChunk.newBuilder()
+        .setContent(content)
+        .setOriginalName("media")
+        .setTotalSize(bufferSize)
+        .setOffset(0)
+        .build();
+  }
+}
@@ -0,0 +1,131 @@
+package jp.mediahub.benchmarks;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import jp.mediahub.benchmarks.support.InMemoryMediaContainer;
+import jp.mediahub.messages.GetMediaRequest;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.metrics.MediaMetrics;
+import jp.mediahub.server.CallExecutorMode;
+import jp.mediahub.server.GrpcServerFactory;
+import jp.mediahub.server.GrpcServerSettings;
+import jp.mediahub.services.MediaServiceGrpc;
+import jp.mediahub.services.MediaServiceGrpc.MediaServiceImplBase;
+import jp.mediahub.stream.ChunkSizing;
+import jp.mediahub.stream.MediaDownloadStreaming;
+import jp.mediahub.stream.buffer.MemoryBudget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Whole downloads through a gRPC server on the loopback, for each {@link CallExecutorMode} of
+ * <code>app.grpc.executor.mode</code>.
+ * <p>
+ * Opening a media blocks for <code>storageLatencyMicros</code>, as the lookup of its files document in GridFS does,
+ * which is what makes the executors differ. Run with many threads to reproduce a download storm, e.g.
+ * <code>-PjmhIncludes=ServerExecutor -PjmhThreads=128</code>; the peak number of threads of the JVM is printed at the
+ * end of each trial. The virtual mode fails on runtimes without virtual threads, rather than measuring bounded again.
+ *
+ * @author Renato Raeffray
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ServerExecutorBenchmark {
+
+  private static final String MEDIA_NAME = "media";
+
+  private static final int BUFFER_SIZE = 256000;
+
+  @State(Scope.Benchmark)
+  public static class Service {
+
+    @Param({"cached", "bounded", "virtual", "direct"})
+    public String executorMode;
+
+    @Param({"0", "2000"})
+    public long storageLatencyMicros;
+
+    @Param({"1048576"})
+    public int fileSize;
+
+    private GrpcServerFactory serverFactory;
+
+    private Server server;
+
+    private ManagedChannel channel;
+
+    @Setup
+    public void setUp() throws IOException {
+      final byte[] content = new byte[fileSize];
+      new Random(fileSize).nextBytes(content);
+      final InMemoryMediaContainer container = new InMemoryMediaContainer();
+      container.put(MEDIA_NAME, content);
+      container.setOpenLatencyMicros(storageLatencyMicros);
+
+      final CallExecutorMode mode = CallExecutorMode.valueOf(executorMode.toUpperCase());
+      // the server would fall back to bounded, measuring it a second time
+      if (mode == CallExecutorMode.VIRTUAL && !GrpcServerFactory.virtualThreadsAvailable()) {
+        throw new IllegalStateException("Virtual threads need Java 21, the virtual executor mode is not measured");
+      }
+      final GrpcServerSettings defaults = GrpcServerSettings.defaults();
+      serverFactory = new GrpcServerFactory(defaults.withExecutor(mode, defaults.executorThreads()),
+          MediaMetrics.noop());
+      server = serverFactory.newServerBuilder(0).addService(new DownloadService(container)).build().start();
+      channel = ManagedChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build();
+      ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+      System.out.printf("%nPeak threads [%s]: %d%n", executorMode,
+          ManagementFactory.getThreadMXBean().getPeakThreadCount());
+      channel.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+      server.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+      serverFactory.shutdown();
+    }
+  }
+
+  @Benchmark
+  public long download(Service service) {
+    final Iterator<MediaChunk> chunks = MediaServiceGrpc.newBlockingStub(service.channel)
+        .getStreamMedia(GetMediaRequest.newBuilder().setOriginalName(MEDIA_NAME).build());
+    long bytesReceived = 0;
+    while (chunks.hasNext()) {
+      bytesReceived += chunks.next().getContent().size();
+    }
+    return bytesReceived;
+  }
+
+  // the download RPC alone, as GRPCMediaServiceAPI serves it
+  private static class DownloadService extends MediaServiceImplBase {
+
+    private final InMemoryMediaContainer container;
+
+    private final MediaMetrics metrics = MediaMetrics.noop();
+
+    DownloadService(InMemoryMediaContainer container) {
+      this.container = container;
+    }
+
+    @Override
+    public void getStreamMedia(GetMediaRequest request, StreamObserver<MediaChunk> responseObserver) {
+      new MediaDownloadStreaming((ServerCallStreamObserver<MediaChunk>) responseObserver, container,
+          ChunkSizing.fixed(BUFFER_SIZE), metrics, MemoryBudget.Reservation.NONE).start(request);
+    }
+  }
+}
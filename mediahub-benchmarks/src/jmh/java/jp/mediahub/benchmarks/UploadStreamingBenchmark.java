@@ -0,0 +1,100 @@
+package jp.mediahub.benchmarks;
+
+import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jp.mediahub.benchmarks.support.BenchmarkCallObserver;
+import jp.mediahub.benchmarks.support.InMemoryMediaContainer;
+import jp.mediahub.benchmarks.support.InMemoryMediaRepository;
+import jp.mediahub.messages.CreateMediaResponse;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.metrics.MediaMetrics;
+import jp.mediahub.repository.impl.MediaChangeLog;
+import jp.mediahub.stream.MediaUploadStreaming;
+import jp.mediahub.stream.buffer.MemoryBudget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Whole uploads through {@link MediaUploadStreaming}, the chunks being received from a simulated client and written to
+ * an in-memory container.
+ * <p>
+ * The writer runs on the calling thread, so the benchmark measures the queueing, the hashing and the writing of the
+ * chunks, not the hand-off between threads. The chunks are parsed upfront, as gRPC does before calling
+ * {@link MediaUploadStreaming#onNext(Object)}.
+ *
+ * @author Renato Raeffray
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UploadStreamingBenchmark {
+
+  private static final Executor CALLER_RUNS = Runnable::run;
+
+  @State(Scope.Benchmark)
+  public static class Upload {
+
+    @Param({"65536", "256000", "1048576"})
+    public int bufferSize;
+
+    @Param({"1048576", "67108864"})
+    public int fileSize;
+
+    @Param({"16"})
+    public int queueSize;
+
+    public final InMemoryMediaContainer container = new InMemoryMediaContainer();
+
+    public final InMemoryMediaRepository repository = new InMemoryMediaRepository();
+
+    public final AtomicLong uploads = new AtomicLong();
+
+    public List<MediaChunk> chunks;
+
+    @Setup
+    public void setUp() {
+      final byte[] content = new byte[fileSize];
+      new Random(fileSize).nextBytes(content);
+      chunks = new ArrayList<>();
+      for (int offset = 0; offset < fileSize; offset += bufferSize) {
+        chunks.add(MediaChunk.newBuilder()
+            .setContent(ByteString.copyFrom(content, offset, Math.min(bufferSize, fileSize - offset)))
+            .setTotalSize(fileSize)
+            .build());
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Call {
+
+    public final BenchmarkCallObserver<CreateMediaResponse> observer = new BenchmarkCallObserver<>();
+  }
+
+  @Benchmark
+  public long upload(Upload upload, Call call) {
+    call.observer.reset();
+    final String mediaName = "media-" + upload.uploads.incrementAndGet();
+    final MediaUploadStreaming streaming = new MediaUploadStreaming(call.observer, upload.container,
+        upload.repository, MediaChangeLog.noop(), CALLER_RUNS, upload.queueSize, MediaMetrics.noop(),
+        MemoryBudget.Reservation.NONE);
+    streaming.start();
+    streaming.onNext(upload.chunks.get(0).toBuilder().setOriginalName(mediaName).build());
+    for (int i = 1; i < upload.chunks.size(); i++) {
+      streaming.onNext(upload.chunks.get(i));
+    }
+    streaming.onCompleted();
+    call.observer.completedBytes();
+    return upload.container.removeUpload(mediaName);
+  }
+}
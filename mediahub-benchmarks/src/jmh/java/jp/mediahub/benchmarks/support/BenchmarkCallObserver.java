@@ -0,0 +1,111 @@
+package jp.mediahub.benchmarks.support;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * {@link ServerCallStreamObserver} standing in for the gRPC transport: it is always ready, and serializes every
+ * message sent, as the transport does before {@link #onNext(Object)} returns, counting the bytes.
+ *
+ * @param <V> the type of the messages sent
+ * @author Renato Raeffray
+ */
+public class BenchmarkCallObserver<V extends MessageLite> extends ServerCallStreamObserver<V> {
+
+  private final OutputStream transport = OutputStream.nullOutputStream();
+
+  private long bytesSent;
+
+  private long requested;
+
+  private boolean completed;
+
+  private Throwable error;
+
+  public void reset() {
+    bytesSent = 0;
+    requested = 0;
+    completed = false;
+    error = null;
+  }
+
+  /**
+   * @return the bytes serialized since the last reset
+   * @throws IllegalStateException if the call failed or did not complete
+   */
+  public long completedBytes() {
+    if (error != null) {
+      throw new IllegalStateException("The call failed", error);
+    }
+    if (!completed) {
+      throw new IllegalStateException("The call did not complete");
+    }
+    return bytesSent;
+  }
+
+  public long getRequested() {
+    return requested;
+  }
+
+  @Override
+  public void onNext(V value) {
+    try {
+      value.writeTo(transport);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    bytesSent += value.getSerializedSize();
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    this.error = t;
+  }
+
+  @Override
+  public void onCompleted() {
+    this.completed = true;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return false;
+  }
+
+  @Override
+  public void setOnCancelHandler(Runnable onCancelHandler) {
+  }
+
+  @Override
+  public void setCompression(String compression) {
+  }
+
+  @Override
+  public boolean isReady() {
+    return true;
+  }
+
+  @Override
+  public void setOnReadyHandler(Runnable onReadyHandler) {
+  }
+
+  @Override
+  public void disableAutoInboundFlowControl() {
+  }
+
+  @Override
+  public void disableAutoRequest() {
+  }
+
+  @Override
+  public void request(int count) {
+    requested += count;
+  }
+
+  @Override
+  public void setMessageCompression(boolean enable) {
+  }
+}
@@ -0,0 +1,68 @@
+package jp.mediahub.benchmarks.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.stream.container.DownloadStream;
+import jp.mediahub.stream.container.MediaContainer;
+import jp.mediahub.stream.container.UploadStream;
+
+/**
+ * {@link MediaContainer} holding the media in memory, so the benchmarks measure the streaming code alone.
+ * <p>
+ * The media downloaded are registered upfront with {@link #put(String, byte[])}. Uploads are consumed and discarded,
+ * only their length being kept, so the allocations measured are the ones of the service and not of an in-memory copy.
+ * <p>
+ * Opening a download may be made to block for a while, as a lookup in the database does.
+ *
+ * @author Renato Raeffray
+ */
+public class InMemoryMediaContainer implements MediaContainer {
+
+  private final Map<String, byte[]> medias = new ConcurrentHashMap<>();
+
+  private final Map<String, Long> uploadedLengths = new ConcurrentHashMap<>();
+
+  private long openLatencyMicros;
+
+  public void put(String mediaName, byte[] content) {
+    medias.put(mediaName, content);
+  }
+
+  public void setOpenLatencyMicros(long openLatencyMicros) {
+    this.openLatencyMicros = openLatencyMicros;
+  }
+
+  /**
+   * @return the length of an upload committed, which is forgotten
+   */
+  public Long removeUpload(String mediaName) {
+    return uploadedLengths.remove(mediaName);
+  }
+
+  @Override
+  public UploadStream openStreamForUpload(MediaChunk media) {
+    return new UploadStream(OutputStream.nullOutputStream(), media.getHash(), () -> {
+    }, uploadStream -> uploadedLengths.put(media.getOriginalName(), uploadStream.getLength()));
+  }
+
+  @Override
+  public DownloadStream openStreamForDownload(String mediaName, long offset) {
+    final byte[] content = medias.get(mediaName);
+    if (content == null) {
+      throw new IllegalArgumentException(String.format("No media [%s]", mediaName));
+    }
+    if (openLatencyMicros > 0) {
+      try {
+        TimeUnit.MICROSECONDS.sleep(openLatencyMicros);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    final int start = (int) Math.min(offset, content.length);
+    return new DownloadStream(new ByteArrayInputStream(content, start, content.length - start), (long) content.length);
+  }
+}
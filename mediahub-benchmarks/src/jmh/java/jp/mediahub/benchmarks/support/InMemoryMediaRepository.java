@@ -0,0 +1,55 @@
+package jp.mediahub.benchmarks.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import jp.mediahub.messages.Media;
+import jp.mediahub.repository.MediaPage;
+import jp.mediahub.repository.MediaRepository;
+
+/**
+ * {@link MediaRepository} holding the media metadata in memory, ordered by name.
+ *
+ * @author Renato Raeffray
+ */
+public class InMemoryMediaRepository implements MediaRepository {
+
+  private final ConcurrentSkipListMap<String, Media> medias = new ConcurrentSkipListMap<>();
+
+  public void put(Media media) {
+    medias.put(media.getOriginalName(), media);
+  }
+
+  @Override
+  public Optional<List<Media>> getAllMedias() {
+    return medias.isEmpty() ? Optional.empty() : Optional.of(new ArrayList<>(medias.values()));
+  }
+
+  @Override
+  public Optional<Media> findMedia(String fileName) {
+    return Optional.ofNullable(medias.get(fileName));
+  }
+
+  // the page token is simply the name of the last media of the previous page
+  @Override
+  public MediaPage findMediaPage(String resourceOwnerId, String pageToken, int pageSize) {
+    final List<Media> page = (pageToken.isEmpty() ? medias : medias.tailMap(pageToken, false)).values().stream()
+        .limit(pageSize + 1L)
+        .toList();
+    return page.size() > pageSize
+        ? new MediaPage(page.subList(0, pageSize), page.get(pageSize - 1).getOriginalName())
+        : new MediaPage(page, "");
+  }
+
+  @Override
+  public Stream<Media> streamMedias(String resourceOwnerId) {
+    return medias.values().stream();
+  }
+
+  @Override
+  public void deleteMedia(String fileName) {
+    medias.remove(fileName);
+  }
+}
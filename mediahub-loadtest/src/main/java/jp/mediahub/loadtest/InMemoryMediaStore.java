@@ -0,0 +1,91 @@
+package jp.mediahub.loadtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import jp.mediahub.messages.Media;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.repository.MediaPage;
+import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.stream.container.DownloadStream;
+import jp.mediahub.stream.container.MediaContainer;
+import jp.mediahub.stream.container.UploadStream;
+
+/**
+ * Stores the media in memory, acting both as {@link MediaContainer} and {@link MediaRepository}, so the service can be
+ * loaded without a database. The media are held on the heap, the sizes of the scenario must fit in it.
+ *
+ * @author Renato Raeffray
+ */
+public class InMemoryMediaStore implements MediaContainer, MediaRepository {
+
+  private final ConcurrentSkipListMap<String, StoredMedia> medias = new ConcurrentSkipListMap<>();
+
+  @Override
+  public UploadStream openStreamForUpload(MediaChunk media) {
+    final ByteArrayOutputStream content = new ByteArrayOutputStream((int) Math.min(media.getTotalSize(),
+        Integer.MAX_VALUE - 8));
+    return new UploadStream(content, media.getHash(), () -> {
+    }, uploadStream -> medias.put(media.getOriginalName(), new StoredMedia(content.toByteArray(),
+        uploadStream.getContentHash())));
+  }
+
+  @Override
+  public DownloadStream openStreamForDownload(String mediaName, long offset) {
+    final StoredMedia media = medias.get(mediaName);
+    if (media == null) {
+      throw new IllegalArgumentException(String.format("No file found with the filename: %s", mediaName));
+    }
+    final int start = (int) Math.min(offset, media.content().length);
+    return new DownloadStream(new ByteArrayInputStream(media.content(), start, media.content().length - start),
+        (long) media.content().length);
+  }
+
+  @Override
+  public Optional<List<Media>> getAllMedias() {
+    return medias.isEmpty() ? Optional.empty() : Optional.of(streamMedias("").toList());
+  }
+
+  @Override
+  public Optional<Media> findMedia(String fileName) {
+    return Optional.ofNullable(medias.get(fileName)).map(media -> toMedia(fileName, media));
+  }
+
+  // the page token is simply the name of the last media of the previous page
+  @Override
+  public MediaPage findMediaPage(String resourceOwnerId, String pageToken, int pageSize) {
+    final List<Media> page = new ArrayList<>(pageSize);
+    for (var entry : (pageToken.isEmpty() ? medias : medias.tailMap(pageToken, false)).entrySet()) {
+      if (page.size() == pageSize) {
+        return new MediaPage(page, page.get(pageSize - 1).getOriginalName());
+      }
+      page.add(toMedia(entry.getKey(), entry.getValue()));
+    }
+    return new MediaPage(page, "");
+  }
+
+  @Override
+  public Stream<Media> streamMedias(String resourceOwnerId) {
+    return medias.entrySet().stream().map(entry -> toMedia(entry.getKey(), entry.getValue()));
+  }
+
+  @Override
+  public void deleteMedia(String fileName) {
+    medias.remove(fileName);
+  }
+
+  private static Media toMedia(String fileName, StoredMedia media) {
+    return Media.newBuilder()
+        .setOriginalName(fileName)
+        .setSize(media.content().length)
+        .setHash(media.contentHash())
+        .build();
+  }
+
+  private record StoredMedia(byte[] content, String contentHash) {
+  }
+}
@@ -0,0 +1,33 @@
+package jp.mediahub.loadtest;
+
+import jp.mediahub.configuration.GrpcServerConfiguration;
+import jp.mediahub.configuration.MetricsConfiguration;
+import jp.mediahub.configuration.StreamingConfiguration;
+import jp.mediahub.repository.impl.MediaChangeLog;
+import jp.mediahub.service.GRPCMediaServiceAPI;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+/**
+ * The service over an {@link InMemoryMediaStore}, without the MongoDB configurations. Upload sessions, which need
+ * GridFS, are not available, nor are the media changes, which are not recorded.
+ *
+ * @author Renato Raeffray
+ */
+@Configuration
+@Import({StreamingConfiguration.class, MetricsConfiguration.class, GrpcServerConfiguration.class,
+    GRPCMediaServiceAPI.class})
+public class InMemoryStorageConfiguration {
+
+  @Bean
+  public InMemoryMediaStore inMemoryMediaStore() {
+    return new InMemoryMediaStore();
+  }
+
+  @Bean
+  public MediaChangeLog mediaChangeLog() {
+    return MediaChangeLog.noop();
+  }
+
+}
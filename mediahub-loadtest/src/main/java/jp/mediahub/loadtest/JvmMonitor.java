@@ -0,0 +1,108 @@
+package jp.mediahub.loadtest;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Measures the impact of a run on the heap and the garbage collector of this JVM.
+ * <p>
+ * The bytes reclaimed by the collections approximate the allocations made during the run. When the service runs in
+ * this JVM, the figures include both the client and the server.
+ *
+ * @author Renato Raeffray
+ */
+public class JvmMonitor {
+
+  private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+
+  private final List<MemoryPoolMXBean> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+      .filter(pool -> pool.getType() == MemoryType.HEAP)
+      .toList();
+
+  private final Map<String, long[]> startCounts = new LinkedHashMap<>();
+
+  private final AtomicLong reclaimedBytes = new AtomicLong();
+
+  private final NotificationListener listener = (notification, handback) -> {
+    if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+      return;
+    }
+    final GarbageCollectionNotificationInfo info =
+        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+    long reclaimed = 0;
+    for (Map.Entry<String, MemoryUsage> before : info.getGcInfo().getMemoryUsageBeforeGc().entrySet()) {
+      final MemoryUsage after = info.getGcInfo().getMemoryUsageAfterGc().get(before.getKey());
+      reclaimed += Math.max(0, before.getValue().getUsed() - (after == null ? 0 : after.getUsed()));
+    }
+    reclaimedBytes.addAndGet(reclaimed);
+  };
+
+  private boolean started;
+
+  public void start() {
+    for (GarbageCollectorMXBean collector : collectors) {
+      startCounts.put(collector.getName(), new long[]{collector.getCollectionCount(), collector.getCollectionTime()});
+      if (collector instanceof NotificationEmitter emitter) {
+        emitter.addNotificationListener(listener, null, null);
+      }
+    }
+    heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+    reclaimedBytes.set(0);
+    started = true;
+  }
+
+  public void stop() {
+    if (!started) {
+      return;
+    }
+    for (GarbageCollectorMXBean collector : collectors) {
+      if (collector instanceof NotificationEmitter emitter) {
+        try {
+          emitter.removeNotificationListener(listener);
+        } catch (ListenerNotFoundException ignored) {
+          // not registered
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the count and time, in milliseconds, of the collections of each collector since the start
+   */
+  public Map<String, long[]> getCollections() {
+    final Map<String, long[]> collections = new LinkedHashMap<>();
+    for (GarbageCollectorMXBean collector : collectors) {
+      final long[] start = startCounts.getOrDefault(collector.getName(), new long[2]);
+      collections.put(collector.getName(), new long[]{collector.getCollectionCount() - start[0],
+          collector.getCollectionTime() - start[1]});
+    }
+    return collections;
+  }
+
+  public long getReclaimedBytes() {
+    return reclaimedBytes.get();
+  }
+
+  /**
+   * @return the sum of the peak usage of the heap pools since the start, an upper bound of the peak heap usage
+   */
+  public long getPeakHeapBytes() {
+    return heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+  }
+
+  public long getMaxHeapBytes() {
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax();
+  }
+}
@@ -0,0 +1,242 @@
+package jp.mediahub.loadtest;
+
+import io.grpc.Status;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.random.RandomGenerator;
+
+/**
+ * Load generator driving the MediaService end to end, as described by a {@link Scenario}.
+ * <p>
+ * Without a trace, the run is closed loop: as many workers as the concurrency of the scenario send calls one after the
+ * other, picking each call from the weighted mix. With a trace, the run is open loop: every call of the trace is sent
+ * at its offset from the start, and its latency is measured from that offset, so a server falling behind shows in the
+ * latencies instead of slowing the load down.
+ * <p>
+ * The calls of the warmup are not measured. The report gives, per call, the throughput, the bytes transferred, the
+ * latency percentiles and the errors, and the impact of the run on the heap and the garbage collector.
+ * <p>
+ * Usage: <code>LoadTest &lt;scenario&gt;</code>, the scenario being a properties file or a resource such as
+ * <code>scenarios/mixed.properties</code>.
+ *
+ * @author Renato Raeffray
+ */
+public class LoadTest {
+
+  private final Scenario scenario;
+
+  private final MediaClient client;
+
+  private final MediaPool pool = new MediaPool();
+
+  private final Map<Rpc, RpcStats> stats = new EnumMap<>(Rpc.class);
+
+  private final JvmMonitor jvmMonitor = new JvmMonitor();
+
+  private volatile boolean measuring;
+
+  public LoadTest(Scenario scenario, MediaClient client) {
+    this.scenario = scenario;
+    this.client = client;
+    for (Rpc rpc : Rpc.values()) {
+      stats.put(rpc, new RpcStats());
+    }
+  }
+
+  public static void main(String... args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: LoadTest <scenario.properties> [name=value ...]");
+      System.exit(2);
+    }
+    final Scenario scenario = Scenario.load(args[0]);
+    for (int i = 1; i < args.length; i++) {
+      scenario.override(args[i]);
+    }
+    try (LoadTestServer server = LoadTestServer.start(scenario)) {
+      new LoadTest(scenario, new MediaClient(server.getChannel(), scenario.getChunkSize(),
+          scenario.getListPageSize())).run();
+    }
+    System.exit(0);
+  }
+
+  public void run() throws Exception {
+    preload();
+    final long measuredNanos = scenario.hasTrace() ? replay() : runMix();
+    jvmMonitor.stop();
+    report(measuredNanos);
+  }
+
+  private void preload() throws Exception {
+    final RandomGenerator random = ThreadLocalRandom.current();
+    for (int i = 0; i < scenario.getPreload(); i++) {
+      final String name = client.nextMediaName();
+      client.upload(name, scenario.getSizes().next(random));
+      pool.add(name);
+    }
+    System.out.printf("Preloaded %d media%n", pool.size());
+  }
+
+  private long runMix() throws InterruptedException {
+    final Map<Rpc, Integer> mix = scenario.getMix();
+    final int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+    if (totalWeight <= 0) {
+      throw new IllegalArgumentException("The mix of the scenario has no positive weight");
+    }
+    final long start = System.nanoTime();
+    final long measureFrom = start + scenario.getWarmup().toNanos();
+    final long end = measureFrom + scenario.getDuration().toNanos();
+
+    final ExecutorService workers = Executors.newFixedThreadPool(scenario.getConcurrency());
+    for (int i = 0; i < scenario.getConcurrency(); i++) {
+      workers.execute(() -> {
+        final RandomGenerator random = ThreadLocalRandom.current();
+        while (System.nanoTime() < end) {
+          call(pick(mix, totalWeight, random), scenario.getSizes().next(random), System.nanoTime(), random);
+        }
+      });
+    }
+    awaitMeasurement(measureFrom);
+    workers.shutdown();
+    workers.awaitTermination(1, TimeUnit.HOURS);
+    return end - measureFrom;
+  }
+
+  private long replay() throws IOException, InterruptedException {
+    final List<TraceEntry> entries = readTrace();
+    final long start = System.nanoTime();
+    final long measureFrom = start + scenario.getWarmup().toNanos();
+
+    final ExecutorService workers = Executors.newFixedThreadPool(scenario.getConcurrency());
+    final Thread starter = new Thread(() -> {
+      try {
+        awaitMeasurement(measureFrom);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    starter.start();
+    for (TraceEntry entry : entries) {
+      final long scheduled = start + TimeUnit.MILLISECONDS.toNanos(entry.offsetMillis());
+      final long delay = scheduled - System.nanoTime();
+      if (delay > 0) {
+        TimeUnit.NANOSECONDS.sleep(delay);
+      }
+      workers.execute(() -> call(entry.rpc(), entry.size(), scheduled, ThreadLocalRandom.current()));
+    }
+    workers.shutdown();
+    workers.awaitTermination(1, TimeUnit.HOURS);
+    starter.join();
+    return Math.max(1, System.nanoTime() - measureFrom);
+  }
+
+  private void awaitMeasurement(long measureFrom) throws InterruptedException {
+    final long delay = measureFrom - System.nanoTime();
+    if (delay > 0) {
+      TimeUnit.NANOSECONDS.sleep(delay);
+    }
+    jvmMonitor.start();
+    measuring = true;
+  }
+
+  /**
+   * Sends a call, downloads and deletes falling back to an upload when no media is left.
+   *
+   * @param scheduled the time the call is due, its latency is measured from it
+   */
+  private void call(Rpc rpc, long size, long scheduled, RandomGenerator random) {
+    final String name = switch (rpc) {
+      case DOWNLOAD -> pool.pick(random);
+      case DELETE -> pool.take(random);
+      default -> null;
+    };
+    final Rpc actual = (rpc == Rpc.DOWNLOAD || rpc == Rpc.DELETE) && name == null ? Rpc.UPLOAD : rpc;
+    final boolean measured = measuring;
+    try {
+      final long bytes = switch (actual) {
+        case UPLOAD -> {
+          final String uploaded = client.nextMediaName();
+          final long sent = client.upload(uploaded, size);
+          pool.add(uploaded);
+          yield sent;
+        }
+        case DOWNLOAD -> client.download(name);
+        case LIST -> client.list();
+        case DELETE -> client.delete(name);
+      };
+      if (measured) {
+        stats.get(actual).recordSuccess(System.nanoTime() - scheduled, bytes);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      if (measured) {
+        stats.get(actual).recordError(Status.fromThrowable(e).getCode());
+      }
+    }
+  }
+
+  private static Rpc pick(Map<Rpc, Integer> mix, int totalWeight, RandomGenerator random) {
+    int pick = random.nextInt(totalWeight);
+    for (Map.Entry<Rpc, Integer> entry : mix.entrySet()) {
+      pick -= entry.getValue();
+      if (pick < 0) {
+        return entry.getKey();
+      }
+    }
+    return Rpc.UPLOAD;
+  }
+
+  // offset millis,rpc,size - lines starting with # are comments
+  private List<TraceEntry> readTrace() throws IOException {
+    final List<TraceEntry> entries = new ArrayList<>();
+    try (BufferedReader reader = scenario.openTrace()) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        final String[] fields = line.split(",");
+        entries.add(new TraceEntry(Long.parseLong(fields[0].trim()),
+            Rpc.valueOf(fields[1].trim().toUpperCase(Locale.ROOT)),
+            fields.length > 2 && !fields[2].isBlank() ? SizeDistribution.parseSize(fields[2]) : 0));
+      }
+    }
+    entries.sort((a, b) -> Long.compare(a.offsetMillis(), b.offsetMillis()));
+    return entries;
+  }
+
+  private void report(long measuredNanos) {
+    final double seconds = measuredNanos / 1e9;
+    System.out.printf("%nMeasured %.1f s, %s storage, concurrency %d%n", seconds,
+        scenario.getStorage().name().toLowerCase(), scenario.getConcurrency());
+    System.out.printf("%-18s %9s %8s %10s %10s %10s %10s %10s %10s%n", "rpc", "calls", "errors", "ops/s", "MB/s",
+        "p50 ms", "p99 ms", "p999 ms", "max ms");
+    for (Map.Entry<Rpc, RpcStats> entry : stats.entrySet()) {
+      final RpcStats rpcStats = entry.getValue();
+      System.out.printf("%-18s %9d %8d %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+          entry.getKey().getMethodName(),
+          rpcStats.getCalls(), rpcStats.getErrorCount(), rpcStats.getCalls() / seconds,
+          rpcStats.getBytes() / seconds / (1 << 20), rpcStats.getLatencyMillis(50), rpcStats.getLatencyMillis(99),
+          rpcStats.getLatencyMillis(99.9), rpcStats.getMaxLatencyMillis());
+      rpcStats.getErrors().forEach((code, count) -> System.out.printf("%20s %s: %d%n", "", code, count.sum()));
+    }
+    System.out.printf("%nHeap: peak %d MB of %d MB, reclaimed by GC %.1f MB/s%n",
+        jvmMonitor.getPeakHeapBytes() >> 20, jvmMonitor.getMaxHeapBytes() >> 20,
+        jvmMonitor.getReclaimedBytes() / seconds / (1 << 20));
+    jvmMonitor.getCollections().forEach((collector, counts) ->
+        System.out.printf("GC %s: %d collections, %d ms%n", collector, counts[0], counts[1]));
+  }
+
+  private record TraceEntry(long offsetMillis, Rpc rpc, long size) {
+  }
+}
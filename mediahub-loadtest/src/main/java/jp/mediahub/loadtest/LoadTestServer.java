@@ -0,0 +1,140 @@
+package jp.mediahub.loadtest;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import jp.mediahub.messages.ListMediaPageRequest;
+import jp.mediahub.metrics.MetricsServerInterceptor;
+import jp.mediahub.server.GrpcServerFactory;
+import jp.mediahub.server.MediaHubServer;
+import jp.mediahub.service.GRPCMediaServiceAPI;
+import jp.mediahub.services.MediaServiceGrpc;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.env.YamlPropertySourceLoader;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.PropertySource;
+import org.springframework.core.io.ClassPathResource;
+
+/**
+ * The server under test, and the channel the load is sent through.
+ * <p>
+ * With the memory storage, the service is built in this JVM over an {@link InMemoryMediaStore}, configured by the
+ * <code>application.yaml</code> of mediahub-service and the server properties of the scenario, and served through the
+ * in-process transport or a loopback port. With the mongo storage the whole {@link MediaHubServer} is started in this
+ * JVM, on its <code>server.port</code>. The remote storage only connects to the target of the scenario.
+ *
+ * @author Renato Raeffray
+ */
+public class LoadTestServer implements AutoCloseable {
+
+  private static final long STARTUP_TIMEOUT_MILLIS = 60_000;
+
+  private final ManagedChannel channel;
+
+  private final Server server;
+
+  private final ConfigurableApplicationContext context;
+
+  private LoadTestServer(ManagedChannel channel, Server server, ConfigurableApplicationContext context) {
+    this.channel = channel;
+    this.server = server;
+    this.context = context;
+  }
+
+  public static LoadTestServer start(Scenario scenario) throws IOException, InterruptedException {
+    return switch (scenario.getStorage()) {
+      case MEMORY -> startInMemory(scenario);
+      case MONGO -> startMongo(scenario);
+      case REMOTE -> new LoadTestServer(
+          ManagedChannelBuilder.forTarget(scenario.getTarget()).usePlaintext().build(), null, null);
+    };
+  }
+
+  public ManagedChannel getChannel() {
+    return channel;
+  }
+
+  private static LoadTestServer startInMemory(Scenario scenario) throws IOException {
+    final AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+    context.getEnvironment().getPropertySources()
+        .addFirst(new MapPropertySource("scenario", scenario.getServerProperties()));
+    for (PropertySource<?> source : new YamlPropertySourceLoader()
+        .load("application.yaml", new ClassPathResource("application.yaml"))) {
+      context.getEnvironment().getPropertySources().addLast(source);
+    }
+    context.register(InMemoryStorageConfiguration.class);
+    context.refresh();
+    final ServerServiceDefinition service = ServerInterceptors.intercept(context.getBean(GRPCMediaServiceAPI.class),
+        context.getBean(MetricsServerInterceptor.class));
+
+    // the servers run the calls as the service does, see app.grpc
+    final GrpcServerFactory serverFactory = context.getBean(GrpcServerFactory.class);
+
+    if (scenario.getTransport() == Scenario.Transport.INPROCESS) {
+      final String name = "mediahub-loadtest-" + UUID.randomUUID();
+      final Server server = serverFactory.configureExecutor(InProcessServerBuilder.forName(name))
+          .addService(service).build().start();
+      return new LoadTestServer(InProcessChannelBuilder.forName(name).build(), server, context);
+    }
+    final Server server = serverFactory.newServerBuilder(0).addService(service).build().start();
+    return new LoadTestServer(
+        ManagedChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build(), server, context);
+  }
+
+  private static LoadTestServer startMongo(Scenario scenario) throws InterruptedException {
+    final Map<String, Object> properties = new HashMap<>(scenario.getServerProperties());
+    final int port = Integer.parseInt(properties.getOrDefault("server.port", "50060").toString());
+    properties.put("server.port", port);
+    // the server blocks the thread starting it until it terminates, it is stopped with the JVM
+    final Thread serverThread = new Thread(() -> new SpringApplicationBuilder(MediaHubServer.class)
+        .web(WebApplicationType.NONE)
+        .properties(properties)
+        .run(), "mediahub-server");
+    serverThread.setDaemon(true);
+    serverThread.start();
+
+    final ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", port).usePlaintext().build();
+    awaitServer(channel);
+    return new LoadTestServer(channel, null, null);
+  }
+
+  private static void awaitServer(ManagedChannel channel) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+    while (true) {
+      try {
+        MediaServiceGrpc.newBlockingStub(channel).withDeadlineAfter(1, TimeUnit.SECONDS)
+            .listMediaPage(ListMediaPageRequest.newBuilder().setPageSize(1).build());
+        return;
+      } catch (StatusRuntimeException e) {
+        if (System.currentTimeMillis() > deadline) {
+          throw new IllegalStateException("The server did not start", e);
+        }
+        Thread.sleep(500);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    channel.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+    if (server != null) {
+      server.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+    }
+    if (context != null) {
+      context.close();
+    }
+  }
+}
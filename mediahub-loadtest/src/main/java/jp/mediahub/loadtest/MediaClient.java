@@ -0,0 +1,199 @@
+package jp.mediahub.loadtest;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Channel;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import jp.mediahub.messages.CreateMediaResponse;
+import jp.mediahub.messages.DeleteMediaRequest;
+import jp.mediahub.messages.GetMediaRequest;
+import jp.mediahub.messages.ListMediaPageRequest;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.services.MediaServiceGrpc;
+import jp.mediahub.services.MediaServiceGrpc.MediaServiceBlockingStub;
+import jp.mediahub.services.MediaServiceGrpc.MediaServiceStub;
+
+/**
+ * Sends the calls of the load test, each method blocking until its call is done and returning the bytes transferred.
+ * <p>
+ * Uploads honour the flow control of the server, a chunk is only sent while the call is ready, as well-behaved clients
+ * do. The content of the media is synthetic: slices of a random block shared by all the uploads, every media starting
+ * with a unique counter so no two are identical. The downloads of the media uploaded by this client are verified
+ * against that content, a corrupted or truncated one failing with DATA_LOSS, so it is never counted as a success.
+ *
+ * @author Renato Raeffray
+ */
+public class MediaClient {
+
+  private static final long CALL_TIMEOUT_MINUTES = 10;
+
+  private final MediaServiceStub asyncStub;
+
+  private final MediaServiceBlockingStub blockingStub;
+
+  private final int chunkSize;
+
+  private final int listPageSize;
+
+  private final byte[] block;
+
+  private final AtomicLong uploads = new AtomicLong();
+
+  // the media uploaded, to verify their downloads
+  private final Map<String, UploadedMedia> uploadedMedias = new ConcurrentHashMap<>();
+
+  public MediaClient(Channel channel, int chunkSize, int listPageSize) {
+    this.asyncStub = MediaServiceGrpc.newStub(channel);
+    this.blockingStub = MediaServiceGrpc.newBlockingStub(channel);
+    this.chunkSize = chunkSize;
+    this.listPageSize = listPageSize;
+    this.block = new byte[chunkSize];
+    new Random(chunkSize).nextBytes(block);
+  }
+
+  public String nextMediaName() {
+    return "loadtest-" + ProcessHandle.current().pid() + "-" + uploads.incrementAndGet();
+  }
+
+  public long upload(String name, long size) throws InterruptedException, ExecutionException, TimeoutException {
+    final CompletableFuture<Void> result = new CompletableFuture<>();
+    final Object readyLock = new Object();
+    final ClientCallStreamObserver<MediaChunk> requestStream = (ClientCallStreamObserver<MediaChunk>) asyncStub
+        .createStreamMedia(new ClientResponseObserver<MediaChunk, CreateMediaResponse>() {
+          @Override
+          public void beforeStart(ClientCallStreamObserver<MediaChunk> stream) {
+            stream.setOnReadyHandler(() -> {
+              synchronized (readyLock) {
+                readyLock.notifyAll();
+              }
+            });
+          }
+
+          @Override
+          public void onNext(CreateMediaResponse response) {
+          }
+
+          @Override
+          public void onError(Throwable t) {
+            result.completeExceptionally(t);
+            synchronized (readyLock) {
+              readyLock.notifyAll();
+            }
+          }
+
+          @Override
+          public void onCompleted() {
+            result.complete(null);
+          }
+        });
+
+    final long unique = uploads.incrementAndGet() ^ System.nanoTime();
+    long offset = 0;
+    do {
+      synchronized (readyLock) {
+        while (!requestStream.isReady() && !result.isDone()) {
+          readyLock.wait(100);
+        }
+      }
+      if (result.isDone()) {
+        break;
+      }
+      final int length = (int) Math.min(chunkSize, size - offset);
+      requestStream.onNext(MediaChunk.newBuilder()
+          .setOriginalName(name)
+          .setTotalSize(size)
+          .setContent(offset == 0 ? uniqueFirstChunk(unique, length) : UnsafeByteOperations.unsafeWrap(block, 0, length))
+          .build());
+      offset += length;
+    } while (offset < size);
+    if (!result.isDone()) {
+      requestStream.onCompleted();
+    }
+    result.get(CALL_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+    uploadedMedias.put(name, new UploadedMedia(unique, size));
+    return size;
+  }
+
+  public long download(String name) {
+    final UploadedMedia media = uploadedMedias.get(name);
+    long bytes = 0;
+    final Iterator<MediaChunk> chunks = blockingStub.withDeadlineAfter(CALL_TIMEOUT_MINUTES, TimeUnit.MINUTES)
+        .getStreamMedia(GetMediaRequest.newBuilder().setOriginalName(name).build());
+    while (chunks.hasNext()) {
+      final MediaChunk chunk = chunks.next();
+      if (media != null && !media.matches(chunk.getOffset(), chunk.getContent(), block)) {
+        throw Status.DATA_LOSS
+            .withDescription(String.format("Download of [%s] corrupted at [%d]", name, chunk.getOffset()))
+            .asRuntimeException();
+      }
+      bytes += chunk.getContent().size();
+    }
+    if (media != null && bytes != media.size()) {
+      throw Status.DATA_LOSS
+          .withDescription(String.format("Download of [%s] has [%d] of [%d] bytes", name, bytes, media.size()))
+          .asRuntimeException();
+    }
+    return bytes;
+  }
+
+  public long list() {
+    return blockingStub.withDeadlineAfter(CALL_TIMEOUT_MINUTES, TimeUnit.MINUTES)
+        .listMediaPage(ListMediaPageRequest.newBuilder().setPageSize(listPageSize).build())
+        .getSerializedSize();
+  }
+
+  public long delete(String name) {
+    uploadedMedias.remove(name);
+    blockingStub.withDeadlineAfter(CALL_TIMEOUT_MINUTES, TimeUnit.MINUTES)
+        .deleteMedia(DeleteMediaRequest.newBuilder().setOriginalName(name).build());
+    return 0;
+  }
+
+  private ByteString uniqueFirstChunk(long unique, int length) {
+    final byte[] first = block.clone();
+    for (int i = 0; i < Math.min(Long.BYTES, length); i++) {
+      first[i] = (byte) (unique >>> (8 * i));
+    }
+    return UnsafeByteOperations.unsafeWrap(first, 0, length);
+  }
+
+  /**
+   * A media uploaded: its byte at a position is the one of the block at that position modulo the block length, but
+   * for the unique counter it starts with.
+   */
+  private record UploadedMedia(long unique, long size) {
+
+    boolean matches(long offset, ByteString content, byte[] block) {
+      final ByteBuffer received = content.asReadOnlyByteBuffer();
+      while (received.hasRemaining()) {
+        final long position = offset + received.position();
+        if (position < Long.BYTES) {
+          if (received.get() != (byte) (unique >>> (8 * position))) {
+            return false;
+          }
+          continue;
+        }
+        final int blockOffset = (int) (position % block.length);
+        final int length = Math.min(received.remaining(), block.length - blockOffset);
+        final ByteBuffer slice = received.slice().limit(length);
+        if (slice.mismatch(ByteBuffer.wrap(block, blockOffset, length).slice()) >= 0) {
+          return false;
+        }
+        received.position(received.position() + length);
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package jp.mediahub.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.random.RandomGenerator;
+
+/**
+ * The media uploaded by the load test and not deleted yet, from which the downloads and deletes pick.
+ *
+ * @author Renato Raeffray
+ */
+public class MediaPool {
+
+  private final List<String> names = new ArrayList<>();
+
+  public synchronized void add(String name) {
+    names.add(name);
+  }
+
+  /**
+   * @return a random media, or null if there is none
+   */
+  public synchronized String pick(RandomGenerator random) {
+    return names.isEmpty() ? null : names.get(random.nextInt(names.size()));
+  }
+
+  /**
+   * Removes a random media, so no other call picks it.
+   *
+   * @return the media removed, or null if there is none
+   */
+  public synchronized String take(RandomGenerator random) {
+    if (names.isEmpty()) {
+      return null;
+    }
+    final int index = random.nextInt(names.size());
+    final String name = names.get(index);
+    names.set(index, names.get(names.size() - 1));
+    names.remove(names.size() - 1);
+    return name;
+  }
+
+  public synchronized int size() {
+    return names.size();
+  }
+}
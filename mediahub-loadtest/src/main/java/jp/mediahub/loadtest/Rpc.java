@@ -0,0 +1,24 @@
+package jp.mediahub.loadtest;
+
+/**
+ * The calls of the MediaService driven by the load test.
+ *
+ * @author Renato Raeffray
+ */
+public enum Rpc {
+
+  UPLOAD("createStreamMedia"),
+  DOWNLOAD("getStreamMedia"),
+  LIST("listMediaPage"),
+  DELETE("deleteMedia");
+
+  private final String methodName;
+
+  Rpc(String methodName) {
+    this.methodName = methodName;
+  }
+
+  public String getMethodName() {
+    return methodName;
+  }
+}
@@ -0,0 +1,63 @@
+package jp.mediahub.loadtest;
+
+import io.grpc.Status;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Latency histogram, throughput and errors of one kind of call.
+ *
+ * @author Renato Raeffray
+ */
+public class RpcStats {
+
+  // microseconds, up to an hour, 3 significant digits
+  private final Histogram latencies = new ConcurrentHistogram(TimeUnit.HOURS.toMicros(1), 3);
+
+  private final LongAdder calls = new LongAdder();
+
+  private final LongAdder bytes = new LongAdder();
+
+  private final Map<Status.Code, LongAdder> errors = new ConcurrentHashMap<>();
+
+  public void recordSuccess(long latencyNanos, long byteCount) {
+    latencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(latencyNanos), latencies.getHighestTrackableValue()));
+    calls.increment();
+    bytes.add(byteCount);
+  }
+
+  public void recordError(Status.Code code) {
+    errors.computeIfAbsent(code, c -> new LongAdder()).increment();
+  }
+
+  public long getCalls() {
+    return calls.sum();
+  }
+
+  public long getBytes() {
+    return bytes.sum();
+  }
+
+  public long getErrorCount() {
+    return errors.values().stream().mapToLong(LongAdder::sum).sum();
+  }
+
+  public Map<Status.Code, LongAdder> getErrors() {
+    return errors;
+  }
+
+  /**
+   * @return the latency at the percentile, in milliseconds
+   */
+  public double getLatencyMillis(double percentile) {
+    return latencies.getValueAtPercentile(percentile) / 1000.0;
+  }
+
+  public double getMaxLatencyMillis() {
+    return latencies.getMaxValue() / 1000.0;
+  }
+}
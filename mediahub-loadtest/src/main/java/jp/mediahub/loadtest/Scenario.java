@@ -0,0 +1,176 @@
+package jp.mediahub.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A load test scenario, read from a properties file:
+ * <pre>
+ * duration-seconds=60         # measured run, after the warmup
+ * warmup-seconds=10
+ * concurrency=16              # calls in flight
+ * preload=50                  # media uploaded before the run, for the downloads and deletes
+ * mix.upload=20               # relative weight of each call
+ * mix.download=60
+ * mix.list=15
+ * mix.delete=5
+ * sizes=64KB:60,1MB:30,32MB:10 # media sizes and their weight
+ * chunk-size=256000           # bytes per uploaded chunk
+ * list.page-size=100
+ * storage=memory              # memory, mongo (application.yaml of mediahub-service), or remote
+ * transport=inprocess         # inprocess or loopback, for the memory storage
+ * target=localhost:50060      # the server, for the remote storage
+ * trace=                      # optional CSV replayed instead of the mix: offset millis,rpc,size
+ * </pre>
+ * The properties starting with <code>app.</code>, <code>spring.</code> or <code>server.</code> are passed to the
+ * server started for the scenario. Any property may be overridden on the command line, after the scenario.
+ *
+ * @author Renato Raeffray
+ */
+public class Scenario {
+
+  public enum Storage { MEMORY, MONGO, REMOTE }
+
+  public enum Transport { INPROCESS, LOOPBACK }
+
+  private final Properties properties;
+
+  private final Path baseDirectory;
+
+  private Scenario(Properties properties, Path baseDirectory) {
+    this.properties = properties;
+    this.baseDirectory = baseDirectory;
+  }
+
+  /**
+   * Reads a scenario from a file, or from the classpath when no such file exists (e.g. <code>scenarios/mixed.properties</code>).
+   */
+  public static Scenario load(String location) throws IOException {
+    final Properties properties = new Properties();
+    final Path path = Path.of(location);
+    if (Files.exists(path)) {
+      try (Reader reader = Files.newBufferedReader(path)) {
+        properties.load(reader);
+      }
+      return new Scenario(properties, path.toAbsolutePath().getParent());
+    }
+    try (InputStream stream = Scenario.class.getClassLoader().getResourceAsStream(location)) {
+      if (stream == null) {
+        throw new IllegalArgumentException(String.format("No scenario [%s]", location));
+      }
+      properties.load(stream);
+    }
+    return new Scenario(properties, Path.of("").toAbsolutePath());
+  }
+
+  /**
+   * Overrides a property of the scenario, e.g. to run it again with another server setting.
+   *
+   * @param assignment <code>name=value</code>
+   */
+  public void override(String assignment) {
+    final int separator = assignment.indexOf('=');
+    if (separator <= 0) {
+      throw new IllegalArgumentException(String.format("Not a name=value override [%s]", assignment));
+    }
+    properties.setProperty(assignment.substring(0, separator).trim(), assignment.substring(separator + 1).trim());
+  }
+
+  public Duration getDuration() {
+    return Duration.ofSeconds(getLong("duration-seconds", 60));
+  }
+
+  public Duration getWarmup() {
+    return Duration.ofSeconds(getLong("warmup-seconds", 10));
+  }
+
+  public int getConcurrency() {
+    return (int) getLong("concurrency", 16);
+  }
+
+  public int getPreload() {
+    return (int) getLong("preload", 50);
+  }
+
+  public Map<Rpc, Integer> getMix() {
+    final Map<Rpc, Integer> mix = new EnumMap<>(Rpc.class);
+    for (Rpc rpc : Rpc.values()) {
+      mix.put(rpc, (int) getLong("mix." + rpc.name().toLowerCase(), 0));
+    }
+    return mix;
+  }
+
+  public SizeDistribution getSizes() {
+    return SizeDistribution.parse(properties.getProperty("sizes", "1MB:1"));
+  }
+
+  public int getChunkSize() {
+    return (int) getLong("chunk-size", 256000);
+  }
+
+  public int getListPageSize() {
+    return (int) getLong("list.page-size", 100);
+  }
+
+  public Storage getStorage() {
+    return Storage.valueOf(properties.getProperty("storage", "memory").trim().toUpperCase());
+  }
+
+  public Transport getTransport() {
+    return Transport.valueOf(properties.getProperty("transport", "inprocess").trim().toUpperCase());
+  }
+
+  public String getTarget() {
+    return properties.getProperty("target", "localhost:50060").trim();
+  }
+
+  public boolean hasTrace() {
+    return !properties.getProperty("trace", "").isBlank();
+  }
+
+  /**
+   * Opens the trace replayed, resolved against the directory of the scenario, or from the classpath when no such file
+   * exists.
+   */
+  public BufferedReader openTrace() throws IOException {
+    final String trace = properties.getProperty("trace", "").trim();
+    final Path path = baseDirectory.resolve(trace);
+    if (Files.exists(path)) {
+      return Files.newBufferedReader(path);
+    }
+    final InputStream stream = Scenario.class.getClassLoader().getResourceAsStream(trace);
+    if (stream == null) {
+      throw new IllegalArgumentException(String.format("No trace [%s]", trace));
+    }
+    return new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @return the properties passed to the server started for the scenario
+   */
+  public Map<String, Object> getServerProperties() {
+    final Map<String, Object> serverProperties = new HashMap<>();
+    for (String name : properties.stringPropertyNames()) {
+      if (name.startsWith("app.") || name.startsWith("spring.") || name.startsWith("server.")) {
+        serverProperties.put(name, properties.getProperty(name).trim());
+      }
+    }
+    return serverProperties;
+  }
+
+  private long getLong(String name, long defaultValue) {
+    final String value = properties.getProperty(name);
+    return value == null || value.isBlank() ? defaultValue : Long.parseLong(value.trim());
+  }
+}
@@ -0,0 +1,69 @@
+package jp.mediahub.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.random.RandomGenerator;
+
+/**
+ * A discrete distribution of media sizes, e.g. <code>64KB:60,1MB:30,32MB:10</code>: each size followed by its relative
+ * weight.
+ *
+ * @author Renato Raeffray
+ */
+public class SizeDistribution {
+
+  private final List<Long> sizes;
+
+  private final long[] cumulativeWeights;
+
+  private SizeDistribution(List<Long> sizes, long[] cumulativeWeights) {
+    this.sizes = sizes;
+    this.cumulativeWeights = cumulativeWeights;
+  }
+
+  public static SizeDistribution parse(String specification) {
+    final List<Long> sizes = new ArrayList<>();
+    final List<Long> weights = new ArrayList<>();
+    for (String entry : specification.split(",")) {
+      final String[] parts = entry.trim().split(":");
+      sizes.add(parseSize(parts[0]));
+      weights.add(parts.length > 1 ? Long.parseLong(parts[1].trim()) : 1L);
+    }
+    final long[] cumulativeWeights = new long[weights.size()];
+    long total = 0;
+    for (int i = 0; i < weights.size(); i++) {
+      total += weights.get(i);
+      cumulativeWeights[i] = total;
+    }
+    if (total <= 0) {
+      throw new IllegalArgumentException(String.format("No positive weight in [%s]", specification));
+    }
+    return new SizeDistribution(sizes, cumulativeWeights);
+  }
+
+  /**
+   * Parses a size such as <code>512</code>, <code>64KB</code>, <code>1MB</code> or <code>2GB</code>.
+   */
+  public static long parseSize(String size) {
+    final String value = size.trim().toUpperCase(Locale.ROOT);
+    final long unit = value.endsWith("GB") ? 1L << 30 : value.endsWith("MB") ? 1L << 20 : value.endsWith("KB") ? 1L << 10
+        : 1L;
+    final String digits = unit == 1 ? value.replaceAll("B$", "") : value.substring(0, value.length() - 2);
+    return Long.parseLong(digits.trim()) * unit;
+  }
+
+  public long next(RandomGenerator random) {
+    final long pick = random.nextLong(cumulativeWeights[cumulativeWeights.length - 1]);
+    for (int i = 0; i < cumulativeWeights.length; i++) {
+      if (pick < cumulativeWeights[i]) {
+        return sizes.get(i);
+      }
+    }
+    return sizes.get(sizes.size() - 1);
+  }
+
+  public long getLargest() {
+    return sizes.stream().mapToLong(Long::longValue).max().orElse(0);
+  }
+}
@@ -0,0 +1,51 @@
+package jp.mediahub.configuration;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.stream.container.DiskCachingMediaContainer;
+import jp.mediahub.stream.container.MediaContainer;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+@Configuration
+@ConditionalOnProperty(name = "app.media.disk-cache.enabled", havingValue = "true")
+public class DiskCacheConfiguration {
+
+  @Value("${app.media.disk-cache.directory}")
+  private String directory;
+
+  @Value("${app.media.disk-cache.max-bytes}")
+  private long maxBytes;
+
+  @Value("${app.media.disk-cache.max-media-bytes}")
+  private long maxMediaBytes;
+
+  @Value("${app.media.disk-cache.fill-threads}")
+  private int fillThreads;
+
+  /**
+   * Executor copying the media missed by downloads to the disk, away from the gRPC threads.
+   */
+  @Bean(destroyMethod = "shutdownNow")
+  public ExecutorService diskCacheFillExecutor() {
+    return Executors.newFixedThreadPool(fillThreads, new CustomizableThreadFactory("media-disk-cache-fill-"));
+  }
+
+  @Bean
+  @Primary
+  public DiskCachingMediaContainer diskCachingMediaContainer(
+      @Qualifier("createMediaContainer") MediaContainer mediaContainer, MediaRepository mediaRepository,
+      @Qualifier("diskCacheFillExecutor") ExecutorService diskCacheFillExecutor) throws IOException {
+    return new DiskCachingMediaContainer(mediaContainer, mediaRepository, Path.of(directory), maxBytes, maxMediaBytes,
+        diskCacheFillExecutor);
+  }
+
+}
@@ -2,8 +2,13 @@ package jp.mediahub.configuration;
 
 
 import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.gridfs.GridFSBucket;
 import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.model.Indexes;
+import jp.mediahub.repository.MediaRepository;
+import org.bson.Document;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -16,7 +21,22 @@ public class GridFsConfiguration {
 
   @Bean
   public GridFSBucket gridFSBucket(MongoClient mongoClient) {
-    return GridFSBuckets.create(mongoClient.getDatabase(this.databaseName));
+    return createBucket(mongoClient.getDatabase(this.databaseName));
+  }
+
+  /**
+   * Creates the bucket of the media in the database, with the indexes of their file documents.
+   */
+  static GridFSBucket createBucket(MongoDatabase database) {
+    final GridFSBucket gridFSBucket = GridFSBuckets.create(database);
+    final MongoCollection<Document> filesCollection = database.getCollection(gridFSBucket.getBucketName() + ".files");
+    // uploads look up an existing copy of their content by hash
+    filesCollection.createIndex(Indexes.ascending(MediaRepository.CONTENT_HASH_PATH));
+    // listings are paginated by name, optionally for a single owner
+    filesCollection.createIndex(Indexes.ascending(MediaRepository.FILENAME_KEY, "_id"));
+    filesCollection.createIndex(
+        Indexes.ascending(MediaRepository.RESOURCE_OWNER_ID_PATH, MediaRepository.FILENAME_KEY, "_id"));
+    return gridFSBucket;
   }
 
 }
@@ -0,0 +1,61 @@
+package jp.mediahub.configuration;
+
+import jp.mediahub.metrics.MediaMetrics;
+import jp.mediahub.server.CallExecutorMode;
+import jp.mediahub.server.GrpcServerFactory;
+import jp.mediahub.server.GrpcServerSettings;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class GrpcServerConfiguration {
+
+  @Value("${app.grpc.executor.mode}")
+  private String executorMode;
+
+  @Value("${app.grpc.executor.threads}")
+  private int executorThreads;
+
+  @Value("${app.grpc.executor.queue-size}")
+  private int executorQueueSize;
+
+  @Value("${app.grpc.event-loop.boss-threads}")
+  private int bossThreads;
+
+  @Value("${app.grpc.event-loop.worker-threads}")
+  private int workerThreads;
+
+  @Value("${app.grpc.flow-control-window}")
+  private int flowControlWindow;
+
+  @Value("${app.grpc.max-inbound-message-size}")
+  private int maxInboundMessageSize;
+
+  @Value("${app.grpc.max-concurrent-calls-per-connection}")
+  private int maxConcurrentCallsPerConnection;
+
+  @Value("${app.grpc.keepalive.time-seconds}")
+  private long keepAliveTimeSeconds;
+
+  @Value("${app.grpc.keepalive.timeout-seconds}")
+  private long keepAliveTimeoutSeconds;
+
+  @Value("${app.grpc.keepalive.permit-time-seconds}")
+  private long permitKeepAliveTimeSeconds;
+
+  @Value("${app.grpc.keepalive.permit-without-calls}")
+  private boolean permitKeepAliveWithoutCalls;
+
+  /**
+   * Builds the gRPC servers, its executor and event loops are released once the application is stopped.
+   */
+  @Bean(destroyMethod = "shutdown")
+  public GrpcServerFactory grpcServerFactory(MediaMetrics mediaMetrics) {
+    return new GrpcServerFactory(new GrpcServerSettings(
+        CallExecutorMode.valueOf(executorMode.trim().toUpperCase()), executorThreads, executorQueueSize, bossThreads,
+        workerThreads, flowControlWindow, maxInboundMessageSize, maxConcurrentCallsPerConnection, keepAliveTimeSeconds,
+        keepAliveTimeoutSeconds, permitKeepAliveTimeSeconds, permitKeepAliveWithoutCalls), mediaMetrics);
+  }
+
+}
@@ -0,0 +1,45 @@
+package jp.mediahub.configuration;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.model.Indexes;
+import java.time.Duration;
+import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.repository.impl.DefaultMediaRepository;
+import jp.mediahub.repository.impl.MediaChangeLog;
+import jp.mediahub.shard.MediaShards;
+import jp.mediahub.shard.ShardedMediaRepository;
+import org.bson.Document;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+@Configuration
+public class MediaChangeConfiguration {
+
+  @Value("${app.media.changes.retention-seconds}")
+  private long retentionSeconds;
+
+  @Value("${app.media.changes.watch.poll-millis}")
+  private long pollMillis;
+
+  /**
+   * The changes are kept next to the bucket of the media, in the primary shard when they are sharded. The media
+   * stored are looked up without the cache, which may still hold the media as not found.
+   */
+  @Bean
+  public MediaChangeLog mediaChangeLog(GridFSBucket gridFSBucket, MongoTemplate mongoTemplate,
+      DefaultMediaRepository defaultMediaRepository, ObjectProvider<MediaShards> mediaShards) {
+    final MediaShards shards = mediaShards.getIfAvailable();
+    final MediaRepository mediaRepository =
+        shards == null ? defaultMediaRepository : new ShardedMediaRepository(shards);
+    final MongoCollection<Document> changesCollection =
+        mongoTemplate.getCollection(gridFSBucket.getBucketName() + ".changes");
+    // the changes older than the retention are pruned
+    changesCollection.createIndex(Indexes.ascending(MediaChangeLog.RECORDED_AT_KEY));
+    return new MediaChangeLog(changesCollection, mediaRepository, Duration.ofSeconds(retentionSeconds), pollMillis);
+  }
+
+}
@@ -1,17 +1,173 @@
 package jp.mediahub.configuration;
 
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.gridfs.GridFSBucket;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import jp.mediahub.metrics.MediaMetrics;
+import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.shard.MediaShard;
+import jp.mediahub.shard.MediaShards;
+import jp.mediahub.shard.ShardRebalancer;
+import jp.mediahub.shard.ShardedMediaContainer;
+import jp.mediahub.stream.buffer.MemoryBudget;
+import jp.mediahub.stream.container.CoalescingMediaContainer;
+import jp.mediahub.stream.container.CompressingMediaContainer;
+import jp.mediahub.stream.container.ContentCodec;
+import jp.mediahub.stream.container.FileSystemBlobStore;
+import jp.mediahub.stream.container.FileSystemMediaContainer;
+import jp.mediahub.stream.container.InlineContentStore;
 import jp.mediahub.stream.container.MediaContainer;
 import jp.mediahub.stream.container.MongoDbMediaContainer;
+import org.bson.Document;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 @Configuration
 public class MediaContainerConfiguration {
 
+  private static final String FILESYSTEM_BACKEND = "filesystem";
+
+  private static final String NO_COMPRESSION = "none";
+
+  @Value("${app.media.storage.filesystem.root}")
+  private String fileSystemRoot;
+
+  @Value("${app.media.storage.filesystem.max-media-bytes}")
+  private long fileSystemMaxMediaBytes;
+
+  @Value("${app.media.storage.inline.max-bytes}")
+  private int inlineMaxBytes;
+
+  @Value("${app.media.storage.compression.codec}")
+  private String compressionCodec;
+
+  @Value("${app.media.storage.compression.level}")
+  private int compressionLevel;
+
+  @Value("${app.media.storage.compression.types}")
+  private List<String> compressibleTypes;
+
+  @Value("${app.media.download.prefetch.depth}")
+  private int prefetchDepth;
+
+  @Value("${app.media.download.prefetch.threads}")
+  private int prefetchThreads;
+
+  @Value("${app.media.download.coalescing.enabled}")
+  private boolean coalescingEnabled;
+
+  @Value("${app.media.download.coalescing.window-bytes}")
+  private long coalescingWindowBytes;
+
+  @Value("${app.media.download.coalescing.max-flights}")
+  private int coalescingMaxFlights;
+
+  @Value("${app.media.storage.sharding.rebalance.interval-seconds}")
+  private long rebalanceIntervalSeconds;
+
+  /**
+   * Executor reading ahead the GridFS chunks of the downloads, while the chunks already read are sent.
+   */
+  @Bean(destroyMethod = "shutdownNow")
+  public ExecutorService downloadPrefetchExecutor(MediaMetrics mediaMetrics) {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(prefetchThreads, prefetchThreads, 0L,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new CustomizableThreadFactory("media-download-prefetch-"));
+    mediaMetrics.monitor("download-prefetch", executor);
+    return executor;
+  }
+
+  /**
+   * The media are stored in GridFS, unless <code>app.media.storage.backend</code> is <code>filesystem</code>. The
+   * GridFS container still serves the media it stored in the latter case. With
+   * <code>app.media.download.coalescing.enabled</code>, the concurrent downloads of a media share their reads. The
+   * media up to <code>app.media.storage.inline.max-bytes</code> are stored in their file document by either backend,
+   * and those of <code>app.media.storage.compression.types</code> compressed unless the codec is <code>none</code>.
+   * With <code>app.media.storage.sharding.enabled</code>, each shard stores its media through such a container, see
+   * {@link ShardingConfiguration}.
+   */
+  @Bean
+  public MediaContainer createMediaContainer(GridFSBucket gridFSBucket, MongoTemplate mongoTemplate,
+      ObjectProvider<FileSystemBlobStore> fileSystemBlobStore, ObjectProvider<MediaShards> mediaShards,
+      @Qualifier("downloadPrefetchExecutor") ExecutorService downloadPrefetchExecutor, MemoryBudget memoryBudget,
+      MediaRepository mediaRepository, MediaMetrics mediaMetrics) {
+    final MediaShards shards = mediaShards.getIfAvailable();
+    final MediaContainer contentContainer;
+    if (shards == null) {
+      contentContainer = contentContainer(gridFSBucket, mongoTemplate, fileSystemBlobStore.getIfAvailable(),
+          downloadPrefetchExecutor, memoryBudget);
+    } else {
+      final Map<String, MediaContainer> shardContainers = new HashMap<>();
+      for (MediaShard shard : shards.all()) {
+        shardContainers.put(shard.id(),
+            contentContainer(shard.gridFSBucket(), shard.mongoTemplate(), null, downloadPrefetchExecutor,
+                memoryBudget));
+      }
+      contentContainer = new ShardedMediaContainer(shards, shardContainers);
+    }
+    if (!coalescingEnabled) {
+      return contentContainer;
+    }
+    final CoalescingMediaContainer coalescingContainer = new CoalescingMediaContainer(contentContainer,
+        mediaRepository, coalescingWindowBytes, coalescingMaxFlights);
+    mediaMetrics.monitor(coalescingContainer);
+    return coalescingContainer;
+  }
+
+  /**
+   * Moves the media stored on a shard they do not belong to, checking every
+   * <code>app.media.storage.sharding.rebalance.interval-seconds</code> whether the ring changed. The version of the
+   * ring last rebalanced is kept next to the bucket of the primary shard.
+   */
+  @Bean
+  @ConditionalOnProperty(prefix = "app.media.storage.sharding", name = {"enabled", "rebalance.enabled"},
+      havingValue = "true")
+  public ShardRebalancer shardRebalancer(MediaShards mediaShards, MediaRepository mediaRepository) {
+    final MediaShard primary = mediaShards.primary();
+    return new ShardRebalancer(mediaShards, mediaRepository,
+        primary.mongoTemplate().getCollection(primary.gridFSBucket().getBucketName() + ".rebalance"),
+        rebalanceIntervalSeconds);
+  }
+
+  // the container of a bucket, storing inline, in chunks or in files, compressed or not
+  private MediaContainer contentContainer(GridFSBucket gridFSBucket, MongoTemplate mongoTemplate,
+      FileSystemBlobStore blobStore, ExecutorService downloadPrefetchExecutor, MemoryBudget memoryBudget) {
+    final MongoCollection<Document> filesCollection =
+        mongoTemplate.getCollection(gridFSBucket.getBucketName() + ".files");
+    final InlineContentStore inlineContentStore = inlineMaxBytes > 0
+        ? new InlineContentStore(filesCollection, inlineMaxBytes)
+        : null;
+    final MediaContainer gridFsContainer = new MongoDbMediaContainer(gridFSBucket, filesCollection,
+        mongoTemplate.getCollection(gridFSBucket.getBucketName() + ".chunks"), prefetchDepth,
+        downloadPrefetchExecutor, memoryBudget, inlineContentStore);
+    final MediaContainer storageContainer = blobStore == null
+        ? gridFsContainer
+        : new FileSystemMediaContainer(blobStore, filesCollection, gridFsContainer, inlineContentStore);
+    return NO_COMPRESSION.equals(compressionCodec)
+        ? storageContainer
+        : new CompressingMediaContainer(storageContainer, filesCollection, ContentCodec.of(compressionCodec),
+            compressionLevel, compressibleTypes);
+  }
+
   @Bean
-  public MediaContainer createMediaContainer(GridFSBucket gridFSBucket) {
-    return new MongoDbMediaContainer(gridFSBucket);
+  @ConditionalOnProperty(name = "app.media.storage.backend", havingValue = FILESYSTEM_BACKEND)
+  public FileSystemBlobStore fileSystemBlobStore(GridFSBucket gridFSBucket, MongoTemplate mongoTemplate)
+      throws IOException {
+    return new FileSystemBlobStore(Path.of(fileSystemRoot),
+        mongoTemplate.getCollection(gridFSBucket.getBucketName() + ".files"), fileSystemMaxMediaBytes);
   }
 
 }
@@ -0,0 +1,67 @@
+package jp.mediahub.configuration;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.GridFSBucket;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.repository.impl.CachingMediaRepository;
+import jp.mediahub.repository.impl.DefaultMediaRepository;
+import jp.mediahub.repository.impl.MediaCacheInvalidationListener;
+import jp.mediahub.shard.MediaShards;
+import jp.mediahub.shard.ShardedMediaRepository;
+import org.bson.Document;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+@Configuration
+@ConditionalOnProperty(name = "app.media.cache.enabled", havingValue = "true", matchIfMissing = true)
+public class MediaRepositoryConfiguration {
+
+  @Value("${app.media.cache.maximum-size}")
+  private long maximumSize;
+
+  @Value("${app.media.cache.ttl-seconds}")
+  private long ttlSeconds;
+
+  @Value("${app.media.cache.negative-ttl-seconds}")
+  private long negativeTtlSeconds;
+
+  /**
+   * The cache wraps the repository of every shard when the media are sharded, the one of the bucket otherwise.
+   */
+  @Bean
+  @Primary
+  public CachingMediaRepository cachingMediaRepository(DefaultMediaRepository defaultMediaRepository,
+      ObjectProvider<MediaShards> mediaShards) {
+    final MediaShards shards = mediaShards.getIfAvailable();
+    return new CachingMediaRepository(shards == null ? defaultMediaRepository : new ShardedMediaRepository(shards),
+        maximumSize, Duration.ofSeconds(ttlSeconds), Duration.ofSeconds(negativeTtlSeconds));
+  }
+
+  /**
+   * Watches the files collection of every shard when the media are sharded, the one of the bucket otherwise.
+   */
+  @Bean
+  @ConditionalOnProperty(name = "app.media.cache.change-stream.enabled", havingValue = "true")
+  public MediaCacheInvalidationListener mediaCacheInvalidationListener(GridFSBucket gridFSBucket,
+      MongoTemplate mongoTemplate, ObjectProvider<MediaShards> mediaShards,
+      CachingMediaRepository cachingMediaRepository) {
+    final MediaShards shards = mediaShards.getIfAvailable();
+    final Map<String, MongoCollection<Document>> filesCollections = new LinkedHashMap<>();
+    if (shards == null) {
+      filesCollections.put(gridFSBucket.getBucketName(),
+          mongoTemplate.getCollection(gridFSBucket.getBucketName() + ".files"));
+    } else {
+      shards.all().forEach(shard -> filesCollections.put(shard.id(), shard.filesCollection()));
+    }
+    return new MediaCacheInvalidationListener(filesCollections, cachingMediaRepository);
+  }
+
+}
@@ -0,0 +1,74 @@
+package jp.mediahub.configuration;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.jmx.JmxConfig;
+import io.micrometer.jmx.JmxMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import java.io.IOException;
+import java.util.List;
+import jp.mediahub.metrics.MediaMetrics;
+import jp.mediahub.metrics.MetricsScrapeServer;
+import jp.mediahub.metrics.MetricsServerInterceptor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class MetricsConfiguration {
+
+  private static final String JMX_DOMAIN = "jp.mediahub.metrics";
+
+  @Value("${app.metrics.scrape.port}")
+  private int scrapePort;
+
+  @Bean
+  public PrometheusMeterRegistry prometheusMeterRegistry() {
+    return new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+  }
+
+  @Bean(destroyMethod = "close")
+  public JmxMeterRegistry jmxMeterRegistry() {
+    return new JmxMeterRegistry(new JmxConfig() {
+      @Override
+      public String get(String key) {
+        return null;
+      }
+
+      @Override
+      public String domain() {
+        return JMX_DOMAIN;
+      }
+    }, Clock.SYSTEM);
+  }
+
+  /**
+   * The meters are recorded once, in a registry publishing to both Prometheus and JMX, along with the heap and GC
+   * meters of the JVM.
+   */
+  @Bean
+  public MediaMetrics mediaMetrics(PrometheusMeterRegistry prometheusMeterRegistry,
+      JmxMeterRegistry jmxMeterRegistry) {
+    final CompositeMeterRegistry registry = new CompositeMeterRegistry(Clock.SYSTEM,
+        List.of(prometheusMeterRegistry, jmxMeterRegistry));
+    new JvmMemoryMetrics().bindTo(registry);
+    new JvmGcMetrics().bindTo(registry);
+    return new MediaMetrics(registry);
+  }
+
+  @Bean
+  public MetricsServerInterceptor metricsServerInterceptor(MediaMetrics mediaMetrics) {
+    return new MetricsServerInterceptor(mediaMetrics);
+  }
+
+  @Bean(initMethod = "start", destroyMethod = "stop")
+  @ConditionalOnProperty(name = "app.metrics.scrape.enabled", havingValue = "true")
+  public MetricsScrapeServer metricsScrapeServer(PrometheusMeterRegistry prometheusMeterRegistry) throws IOException {
+    return new MetricsScrapeServer(prometheusMeterRegistry, scrapePort);
+  }
+
+}
@@ -0,0 +1,84 @@
+package jp.mediahub.configuration;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import com.mongodb.reactivestreams.client.gridfs.GridFSBucket;
+import com.mongodb.reactivestreams.client.gridfs.GridFSBuckets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import jp.mediahub.metrics.MediaMetrics;
+import jp.mediahub.stream.reactive.ReactiveGridFsStore;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.boot.autoconfigure.mongo.ReactiveMongoClientFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * The reactive streams driver, used by the transfers when <code>app.media.storage.driver</code> is
+ * <code>reactive</code>. Its client is configured from the same <code>spring.data.mongodb</code> properties as the
+ * blocking one, which keeps serving the other calls.
+ */
+@Configuration
+@ConditionalOnProperty(name = "app.media.storage.driver", havingValue = "reactive")
+public class ReactiveGridFsConfiguration {
+
+  private static final String FILESYSTEM_BACKEND = "filesystem";
+
+  private static final String NO_COMPRESSION = "none";
+
+  @Value("${spring.data.mongodb.database}")
+  private String databaseName;
+
+  @Value("${app.media.storage.backend}")
+  private String storageBackend;
+
+  @Value("${app.media.storage.inline.max-bytes}")
+  private int inlineMaxBytes;
+
+  @Value("${app.media.storage.compression.codec}")
+  private String compressionCodec;
+
+  @Value("${app.media.storage.sharding.enabled}")
+  private boolean shardingEnabled;
+
+  @Value("${app.media.storage.reactive.fallback-threads}")
+  private int fallbackThreads;
+
+  @Bean(destroyMethod = "close")
+  public MongoClient reactiveMongoClient(ObjectProvider<MongoClientSettingsBuilderCustomizer> builderCustomizers,
+      MongoClientSettings settings) {
+    return new ReactiveMongoClientFactory(builderCustomizers.orderedStream().toList()).createMongoClient(settings);
+  }
+
+  /**
+   * The uploads are stored through the reactive driver unless they are compressed, stored on the file system or spread
+   * across shards. With shards, only the media found in the primary bucket are downloaded through it.
+   */
+  @Bean
+  public ReactiveGridFsStore reactiveGridFsStore(MongoClient reactiveMongoClient) {
+    final MongoDatabase database = reactiveMongoClient.getDatabase(databaseName);
+    final GridFSBucket gridFSBucket = GridFSBuckets.create(database);
+    return new ReactiveGridFsStore(gridFSBucket, database.getCollection(gridFSBucket.getBucketName() + ".files"),
+        inlineMaxBytes, NO_COMPRESSION.equals(compressionCodec) && !FILESYSTEM_BACKEND.equals(storageBackend)
+            && !shardingEnabled, !shardingEnabled);
+  }
+
+  /**
+   * Executor running the downloads the reactive driver does not serve, e.g. ranges, on the blocking container.
+   */
+  @Bean(destroyMethod = "shutdownNow")
+  public ExecutorService reactiveFallbackExecutor(MediaMetrics mediaMetrics) {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(fallbackThreads, fallbackThreads, 0L,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new CustomizableThreadFactory("media-reactive-fallback-"));
+    mediaMetrics.monitor("reactive-fallback", executor);
+    return executor;
+  }
+
+}
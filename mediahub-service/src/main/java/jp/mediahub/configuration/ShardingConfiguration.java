@@ -0,0 +1,104 @@
+package jp.mediahub.configuration;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.gridfs.GridFSBucket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import jp.mediahub.repository.impl.DefaultMediaRepository;
+import jp.mediahub.shard.MediaShard;
+import jp.mediahub.shard.MediaShards;
+import jp.mediahub.shard.ShardedMediaRepository;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.SimpleMongoClientDatabaseFactory;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+
+/**
+ * The shards the media are spread across when <code>app.media.storage.sharding.enabled</code>: the bucket of
+ * <code>spring.data.mongodb</code>, the <code>primary</code> shard, and those of
+ * <code>app.media.storage.sharding.shards</code>, each a <code>id=uri</code> pair, the URI naming the database, e.g.
+ * <code>shard1=mongodb://mongo-1:27017/mediahub</code>.
+ */
+@Configuration
+@ConditionalOnProperty(name = "app.media.storage.sharding.enabled", havingValue = "true")
+public class ShardingConfiguration implements DisposableBean {
+
+  private static final String PRIMARY_SHARD = "primary";
+
+  private static final String FILESYSTEM_BACKEND = "filesystem";
+
+  @Value("${app.media.storage.sharding.shards}")
+  private List<String> shardUris;
+
+  @Value("${app.media.storage.sharding.virtual-nodes}")
+  private int virtualNodes;
+
+  @Value("${app.media.storage.backend}")
+  private String storageBackend;
+
+  private final List<MongoClient> shardClients = new ArrayList<>();
+
+  @Bean
+  public MediaShards mediaShards(GridFSBucket gridFSBucket, MongoTemplate mongoTemplate,
+      DefaultMediaRepository defaultMediaRepository) {
+    if (FILESYSTEM_BACKEND.equals(storageBackend)) {
+      throw new IllegalStateException("Sharding requires the gridfs storage backend");
+    }
+    final List<MediaShard> shards = new ArrayList<>();
+    shards.add(new MediaShard(PRIMARY_SHARD, gridFSBucket, mongoTemplate, defaultMediaRepository));
+    final Set<String> ids = new HashSet<>(Set.of(PRIMARY_SHARD));
+    for (String shardUri : shardUris) {
+      final int separator = shardUri.indexOf('=');
+      if (separator < 1) {
+        throw new IllegalStateException(String.format("Invalid shard [%s], expected id=uri", shardUri));
+      }
+      final String id = shardUri.substring(0, separator).trim();
+      if (!ids.add(id)) {
+        throw new IllegalStateException(String.format("Duplicate shard [%s]", id));
+      }
+      shards.add(createShard(id, new ConnectionString(shardUri.substring(separator + 1).trim())));
+    }
+    return new MediaShards(shards, virtualNodes);
+  }
+
+  /**
+   * Without the cache, the repository of the service. With it, the cache wraps it, see
+   * {@link MediaRepositoryConfiguration}.
+   */
+  @Bean
+  @Primary
+  @ConditionalOnProperty(name = "app.media.cache.enabled", havingValue = "false")
+  public ShardedMediaRepository shardedMediaRepository(MediaShards mediaShards) {
+    return new ShardedMediaRepository(mediaShards);
+  }
+
+  private MediaShard createShard(String id, ConnectionString connectionString) {
+    final String databaseName = connectionString.getDatabase();
+    if (databaseName == null) {
+      throw new IllegalStateException(String.format("The URI of shard [%s] names no database", id));
+    }
+    final MongoClient client = MongoClients.create(connectionString);
+    shardClients.add(client);
+    final MongoTemplate mongoTemplate = new MongoTemplate(client, databaseName);
+    final GridFsTemplate gridFsTemplate = new GridFsTemplate(
+        new SimpleMongoClientDatabaseFactory(client, databaseName), mongoTemplate.getConverter());
+    final GridFSBucket gridFSBucket = GridFsConfiguration.createBucket(client.getDatabase(databaseName));
+    return new MediaShard(id, gridFSBucket, mongoTemplate,
+        new DefaultMediaRepository(gridFsTemplate, gridFSBucket, mongoTemplate));
+  }
+
+  @Override
+  public void destroy() {
+    shardClients.forEach(MongoClient::close);
+  }
+
+}
@@ -0,0 +1,65 @@
+package jp.mediahub.configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import jp.mediahub.metrics.MediaMetrics;
+import jp.mediahub.stream.buffer.BufferPool;
+import jp.mediahub.stream.buffer.MemoryBudget;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+@Configuration
+public class StreamingConfiguration {
+
+  @Value("${app.media.upload.writer.threads}")
+  private int uploadWriterThreads;
+
+  @Value("${app.media.memory.budget-bytes}")
+  private long memoryBudgetBytes;
+
+  @Value("${app.media.memory.admission-wait-millis}")
+  private long admissionWaitMillis;
+
+  @Value("${app.media.memory.admission-max-waiting}")
+  private int admissionMaxWaiting;
+
+  @Value("${app.media.memory.pool.max-retained-bytes}")
+  private long poolMaxRetainedBytes;
+
+  /**
+   * Executor shared by all uploads to write the received chunks to the container, away from the gRPC threads. Its
+   * queue depth is exported as <code>mediahub.executor.queued</code>.
+   */
+  @Bean(destroyMethod = "shutdown")
+  public ExecutorService uploadWriterExecutor(MediaMetrics mediaMetrics) {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(uploadWriterThreads, uploadWriterThreads, 0L,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new CustomizableThreadFactory("media-upload-writer-"));
+    mediaMetrics.monitor("upload-writer", executor);
+    return executor;
+  }
+
+  /**
+   * Buffers shared by the downloads and the upload sessions.
+   */
+  @Bean
+  public BufferPool bufferPool(MediaMetrics mediaMetrics) {
+    final BufferPool bufferPool = new BufferPool(poolMaxRetainedBytes);
+    mediaMetrics.monitor(bufferPool);
+    return bufferPool;
+  }
+
+  /**
+   * Memory the transfers in flight may hold, over all the calls.
+   */
+  @Bean
+  public MemoryBudget memoryBudget(MediaMetrics mediaMetrics) {
+    final MemoryBudget memoryBudget = new MemoryBudget(memoryBudgetBytes, admissionWaitMillis, admissionMaxWaiting);
+    mediaMetrics.monitor(memoryBudget);
+    return memoryBudget;
+  }
+
+}
@@ -0,0 +1,42 @@
+package jp.mediahub.configuration;
+
+import com.mongodb.client.gridfs.GridFSBucket;
+import java.time.Duration;
+import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.repository.impl.MediaChangeLog;
+import jp.mediahub.stream.session.UploadSessionManager;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+@Configuration
+@EnableScheduling
+public class UploadSessionConfiguration {
+
+  @Value("${app.media.upload.session.ttl-seconds}")
+  private long sessionTtlSeconds;
+
+  @Value("${app.media.upload.multipart.part-size}")
+  private long multipartPartSize;
+
+  /**
+   * Sessions are kept next to the bucket their chunks are written to.
+   */
+  @Bean
+  public UploadSessionManager uploadSessionManager(GridFSBucket gridFSBucket, MongoTemplate mongoTemplate,
+      MediaRepository mediaRepository, MediaChangeLog mediaChangeLog) {
+    final String bucketName = gridFSBucket.getBucketName();
+    return new UploadSessionManager(
+        mongoTemplate.getCollection(bucketName + ".sessions"),
+        mongoTemplate.getCollection(bucketName + ".files"),
+        mongoTemplate.getCollection(bucketName + ".chunks"),
+        mediaRepository,
+        mediaChangeLog,
+        gridFSBucket.getChunkSizeBytes(),
+        multipartPartSize,
+        Duration.ofSeconds(sessionTtlSeconds));
+  }
+
+}
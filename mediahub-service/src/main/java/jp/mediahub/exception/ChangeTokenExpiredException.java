@@ -0,0 +1,9 @@
+package jp.mediahub.exception;
+
+public class ChangeTokenExpiredException extends RuntimeException {
+
+  public ChangeTokenExpiredException(String message) {
+    super(message);
+  }
+
+}
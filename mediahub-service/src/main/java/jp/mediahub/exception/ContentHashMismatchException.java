@@ -0,0 +1,9 @@
+package jp.mediahub.exception;
+
+public class ContentHashMismatchException extends RuntimeException {
+
+  public ContentHashMismatchException(String message) {
+    super(message);
+  }
+
+}
@@ -0,0 +1,9 @@
+package jp.mediahub.exception;
+
+public class InvalidRangeException extends RuntimeException {
+
+  public InvalidRangeException(String message) {
+    super(message);
+  }
+
+}
@@ -0,0 +1,247 @@
+package jp.mediahub.metrics;
+
+import io.grpc.Status;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import jp.mediahub.stream.buffer.BufferPool;
+import jp.mediahub.stream.buffer.MemoryBudget;
+import jp.mediahub.stream.container.CoalescingMediaContainer;
+
+/**
+ * The meters of the media service.
+ * <p>
+ * Every meter is registered once and kept, so recording on the hot path is a lock-free update of a meter already at
+ * hand, never a lookup in the registry. The meters of an RPC are created on its first call, and its latency timers on
+ * the first call ending with each status.
+ * <p>
+ * Meters:
+ * <ul>
+ *   <li><code>mediahub.rpc.latency</code> duration of the calls, by method and status</li>
+ *   <li><code>mediahub.rpc.first.message</code> time from the start of the call to its first response message</li>
+ *   <li><code>mediahub.rpc.bytes.received</code> / <code>mediahub.rpc.bytes.sent</code> serialized message bytes</li>
+ *   <li><code>mediahub.rpc.in.flight</code> calls started and not ended</li>
+ *   <li><code>mediahub.container.read</code> / <code>mediahub.container.write</code> latency of the storage</li>
+ *   <li><code>mediahub.download.chunk.size</code> size of the chunks sent by the downloads</li>
+ *   <li><code>mediahub.upload.queued</code> chunks received and not written yet, over all the uploads</li>
+ *   <li><code>mediahub.executor.queued</code> / <code>mediahub.executor.active</code> tasks of the executors</li>
+ *   <li><code>mediahub.buffer.pool.*</code> bytes retained and in use, hits and misses of the {@link BufferPool}</li>
+ *   <li><code>mediahub.memory.budget.*</code> bytes reserved, transfers waiting and rejected by the
+ *   {@link MemoryBudget}</li>
+ *   <li><code>mediahub.download.coalescing.*</code> shared reads in flight, downloads joining them, storage reads
+ *   made and saved, and downloads falling back to their own read, of the {@link CoalescingMediaContainer}</li>
+ * </ul>
+ *
+ * @author Renato Raeffray
+ */
+public class MediaMetrics {
+
+  private static final double[] PERCENTILES = {0.5, 0.99, 0.999};
+
+  private final MeterRegistry registry;
+
+  private final Map<String, RpcMetrics> rpcMetrics = new ConcurrentHashMap<>();
+
+  private final Timer containerRead;
+
+  private final Timer containerWrite;
+
+  private final DistributionSummary downloadChunkSize;
+
+  private final AtomicLong uploadQueued = new AtomicLong();
+
+  public MediaMetrics(MeterRegistry registry) {
+    this.registry = registry;
+    this.containerRead = timer("mediahub.container.read", "Latency of the reads from the media container")
+        .register(registry);
+    this.containerWrite = timer("mediahub.container.write", "Latency of the writes to the media container")
+        .register(registry);
+    this.downloadChunkSize = DistributionSummary.builder("mediahub.download.chunk.size")
+        .description("Size of the chunks sent by the downloads")
+        .baseUnit("bytes")
+        .publishPercentiles(PERCENTILES)
+        .publishPercentileHistogram()
+        .minimumExpectedValue(1024.0)
+        .maximumExpectedValue(16.0 * 1024 * 1024)
+        .register(registry);
+    Gauge.builder("mediahub.upload.queued", uploadQueued, AtomicLong::get)
+        .description("Chunks received and not written to the container yet")
+        .register(registry);
+  }
+
+  /**
+   * @return metrics recording nothing, for the code running without a registry
+   */
+  public static MediaMetrics noop() {
+    return new MediaMetrics(new CompositeMeterRegistry());
+  }
+
+  public RpcMetrics rpc(String fullMethodName) {
+    return rpcMetrics.computeIfAbsent(fullMethodName, RpcMetrics::new);
+  }
+
+  public Timer containerRead() {
+    return containerRead;
+  }
+
+  public Timer containerWrite() {
+    return containerWrite;
+  }
+
+  public DistributionSummary downloadChunkSize() {
+    return downloadChunkSize;
+  }
+
+  public void uploadQueued(int delta) {
+    uploadQueued.addAndGet(delta);
+  }
+
+  /**
+   * Exposes the queue depth and the active threads of an executor.
+   */
+  public void monitor(String executorName, ThreadPoolExecutor executor) {
+    Gauge.builder("mediahub.executor.queued", executor, e -> e.getQueue().size())
+        .tag("executor", executorName)
+        .description("Tasks waiting for a thread")
+        .register(registry);
+    Gauge.builder("mediahub.executor.active", executor, ThreadPoolExecutor::getActiveCount)
+        .tag("executor", executorName)
+        .description("Threads running a task")
+        .register(registry);
+  }
+
+  public void monitor(BufferPool bufferPool) {
+    Gauge.builder("mediahub.buffer.pool.retained", bufferPool, BufferPool::getRetainedBytes)
+        .description("Bytes of the buffers pooled, ready to be reused")
+        .baseUnit("bytes")
+        .register(registry);
+    Gauge.builder("mediahub.buffer.pool.in.use", bufferPool, BufferPool::getBytesInUse)
+        .description("Bytes of the buffers acquired by the transfers")
+        .baseUnit("bytes")
+        .register(registry);
+    FunctionCounter.builder("mediahub.buffer.pool.hits", bufferPool, BufferPool::getHits)
+        .description("Buffers reused from the pool")
+        .register(registry);
+    FunctionCounter.builder("mediahub.buffer.pool.misses", bufferPool, BufferPool::getMisses)
+        .description("Buffers allocated, the pool having none of the size")
+        .register(registry);
+  }
+
+  public void monitor(MemoryBudget memoryBudget) {
+    Gauge.builder("mediahub.memory.budget.reserved", memoryBudget, MemoryBudget::getReservedBytes)
+        .description("Bytes reserved by the transfers in flight")
+        .baseUnit("bytes")
+        .register(registry);
+    Gauge.builder("mediahub.memory.budget.waiting", memoryBudget, MemoryBudget::getWaiting)
+        .description("Transfers waiting for memory")
+        .register(registry);
+    FunctionCounter.builder("mediahub.memory.budget.rejections", memoryBudget, MemoryBudget::getRejections)
+        .description("Transfers rejected, the memory budget being used up")
+        .register(registry);
+  }
+
+  public void monitor(CoalescingMediaContainer container) {
+    Gauge.builder("mediahub.download.coalescing.flights", container, CoalescingMediaContainer::getFlights)
+        .description("Shared reads in progress")
+        .register(registry);
+    FunctionCounter.builder("mediahub.download.coalescing.readers", container,
+            CoalescingMediaContainer::getCoalescedReaders)
+        .description("Downloads that joined the shared read of another one")
+        .register(registry);
+    FunctionCounter.builder("mediahub.download.coalescing.storage.reads", container,
+            CoalescingMediaContainer::getStorageReads)
+        .description("Blocks read from the storage by the shared reads")
+        .register(registry);
+    FunctionCounter.builder("mediahub.download.coalescing.storage.reads.saved", container,
+            CoalescingMediaContainer::getStorageReadsSaved)
+        .description("Blocks served to a download from a read made by another one")
+        .register(registry);
+    FunctionCounter.builder("mediahub.download.coalescing.fallbacks", container,
+            CoalescingMediaContainer::getFallbacks)
+        .description("Downloads that left a shared read to read on their own")
+        .register(registry);
+  }
+
+  private static Timer.Builder timer(String name, String description) {
+    return Timer.builder(name)
+        .description(description)
+        .publishPercentiles(PERCENTILES)
+        .publishPercentileHistogram();
+  }
+
+  /**
+   * The meters of one RPC.
+   */
+  public class RpcMetrics {
+
+    private final String method;
+
+    private final Timer[] latencies = new Timer[Status.Code.values().length];
+
+    private final Timer firstMessage;
+
+    private final Counter bytesReceived;
+
+    private final Counter bytesSent;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private RpcMetrics(String fullMethodName) {
+      this.method = fullMethodName;
+      this.firstMessage = timer("mediahub.rpc.first.message", "Time from the start of a call to its first response")
+          .tag("method", method)
+          .register(registry);
+      this.bytesReceived = Counter.builder("mediahub.rpc.bytes.received")
+          .description("Bytes of the messages received")
+          .baseUnit("bytes")
+          .tag("method", method)
+          .register(registry);
+      this.bytesSent = Counter.builder("mediahub.rpc.bytes.sent")
+          .description("Bytes of the messages sent")
+          .baseUnit("bytes")
+          .tag("method", method)
+          .register(registry);
+      Gauge.builder("mediahub.rpc.in.flight", inFlight, AtomicInteger::get)
+          .description("Calls started and not ended")
+          .tag("method", method)
+          .register(registry);
+    }
+
+    public Timer latency(Status.Code code) {
+      Timer latency = latencies[code.ordinal()];
+      if (latency == null) {
+        // registering twice returns the same timer, the race is harmless
+        latency = timer("mediahub.rpc.latency", "Duration of the calls")
+            .tags("method", method, "status", code.name())
+            .register(registry);
+        latencies[code.ordinal()] = latency;
+      }
+      return latency;
+    }
+
+    public Timer firstMessage() {
+      return firstMessage;
+    }
+
+    public Counter bytesReceived() {
+      return bytesReceived;
+    }
+
+    public Counter bytesSent() {
+      return bytesSent;
+    }
+
+    public AtomicInteger inFlight() {
+      return inFlight;
+    }
+  }
+}
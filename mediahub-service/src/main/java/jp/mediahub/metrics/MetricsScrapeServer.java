@@ -0,0 +1,53 @@
+package jp.mediahub.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the meters of a {@link PrometheusMeterRegistry} in the Prometheus text format at <code>/metrics</code>.
+ * <p>
+ * The service has no HTTP stack of its own, so the endpoint is served by the HTTP server of the JDK, on one thread:
+ * scrapes are rare and only read the meters.
+ *
+ * @author Renato Raeffray
+ */
+public class MetricsScrapeServer {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MetricsScrapeServer.class);
+
+  public static final String PATH = "/metrics";
+
+  private final HttpServer server;
+
+  public MetricsScrapeServer(PrometheusMeterRegistry registry, int port) throws IOException {
+    this.server = HttpServer.create(new InetSocketAddress(port), 0);
+    this.server.createContext(PATH, exchange -> scrape(exchange, registry));
+  }
+
+  public void start() {
+    server.start();
+    LOGGER.info("Metrics served at [{}{}]", server.getAddress(), PATH);
+  }
+
+  public void stop() {
+    server.stop(0);
+  }
+
+  private static void scrape(HttpExchange exchange, PrometheusMeterRegistry registry) throws IOException {
+    try (exchange) {
+      final byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package jp.mediahub.metrics;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the {@link MediaMetrics} of every call, from its start to its end, streaming calls included: their duration,
+ * the time to their first response message, the bytes of their messages and the calls in flight.
+ * <p>
+ * A call ends either when it is closed, with its status, or when the client cancels it, recorded as CANCELLED.
+ *
+ * @author Renato Raeffray
+ */
+public class MetricsServerInterceptor implements ServerInterceptor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MetricsServerInterceptor.class);
+
+  private final MediaMetrics metrics;
+
+  public MetricsServerInterceptor(MediaMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public <Q, R> ServerCall.Listener<Q> interceptCall(ServerCall<Q, R> call, Metadata headers,
+      ServerCallHandler<Q, R> next) {
+    final MediaMetrics.RpcMetrics rpc = metrics.rpc(call.getMethodDescriptor().getFullMethodName());
+    final MeasuredCall<Q, R> measuredCall = new MeasuredCall<>(call, rpc);
+    rpc.inFlight().incrementAndGet();
+    return new SimpleForwardingServerCallListener<>(next.startCall(measuredCall, headers)) {
+      @Override
+      public void onMessage(Q message) {
+        rpc.bytesReceived().increment(serializedSize(message));
+        super.onMessage(message);
+      }
+
+      @Override
+      public void onComplete() {
+        try {
+          super.onComplete();
+        } finally {
+          measuredCall.end(Status.Code.OK);
+        }
+      }
+
+      @Override
+      public void onCancel() {
+        try {
+          super.onCancel();
+        } finally {
+          measuredCall.end(Status.Code.CANCELLED);
+        }
+      }
+    };
+  }
+
+  // the size of generated messages is memoized, it is computed once for serialization anyway
+  private static int serializedSize(Object message) {
+    return message instanceof MessageLite messageLite ? messageLite.getSerializedSize() : 0;
+  }
+
+  private static class MeasuredCall<Q, R> extends SimpleForwardingServerCall<Q, R> {
+
+    private final MediaMetrics.RpcMetrics rpc;
+
+    private final long start = System.nanoTime();
+
+    // messages may be sent, and the call closed, by the threads of the service
+    private volatile boolean firstMessageSent;
+
+    private volatile Status.Code closeStatus;
+
+    private boolean ended;
+
+    MeasuredCall(ServerCall<Q, R> call, MediaMetrics.RpcMetrics rpc) {
+      super(call);
+      this.rpc = rpc;
+    }
+
+    @Override
+    public void sendMessage(R message) {
+      if (!firstMessageSent) {
+        firstMessageSent = true;
+        rpc.firstMessage().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
+      rpc.bytesSent().increment(serializedSize(message));
+      super.sendMessage(message);
+    }
+
+    @Override
+    public void close(Status status, Metadata trailers) {
+      closeStatus = status.getCode();
+      super.close(status, trailers);
+    }
+
+    // called once by the listener, a call closed with an error still completes
+    void end(Status.Code listenerStatus) {
+      if (ended) {
+        return;
+      }
+      ended = true;
+      final long duration = System.nanoTime() - start;
+      final Status.Code code = closeStatus != null ? closeStatus : listenerStatus;
+      rpc.latency(code).record(duration, TimeUnit.NANOSECONDS);
+      rpc.inFlight().decrementAndGet();
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Execution Time of [{}]: [{}] ms, [{}]", getMethodDescriptor().getFullMethodName(),
+            TimeUnit.NANOSECONDS.toMillis(duration), code);
+      }
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package jp.mediahub.repository;
+
+import org.bson.Document;
+
+/**
+ * A store holding the content of media outside of GridFS, their file documents being kept in the files collection so
+ * they are found by the {@link MediaRepository} like any other media.
+ * <p>
+ * The repository only deletes the chunks of the files it deletes, it tells the store so it can release the content held
+ * for them.
+ *
+ * @author Renato Raeffray
+ */
+public interface MediaContentStore {
+
+  /**
+   * Called once the file document was deleted, the content is released if no other file document references it.
+   *
+   * @param file the file document deleted
+   */
+  void release(Document file);
+
+}
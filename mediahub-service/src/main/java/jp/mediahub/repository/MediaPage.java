@@ -0,0 +1,14 @@
+package jp.mediahub.repository;
+
+import java.util.List;
+import jp.mediahub.messages.Media;
+
+/**
+ * A page of {@link Media}, as returned by {@link MediaRepository#findMediaPage(String, String, int)}.
+ *
+ * @param medias the medias of this page, ordered by name
+ * @param nextPageToken the token to fetch the following page, or an empty string if this is the last page
+ */
+public record MediaPage(List<Media> medias, String nextPageToken) {
+
+}
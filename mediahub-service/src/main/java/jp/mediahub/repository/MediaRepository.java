@@ -1,17 +1,110 @@
 package jp.mediahub.repository;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 import jp.mediahub.messages.Media;
 
 public interface MediaRepository {
 
   String CONTENT_HASH_KEY = "contentHash";
   String FILENAME_KEY = "filename";
+  String BLOB_ID_KEY = "blobId";
+  String REF_COUNT_KEY = "refCount";
+  String RESOURCE_OWNER_ID_KEY = "resourceOwnerId";
+  String INLINE_CONTENT_KEY = "inlineContent";
+  String CONTENT_TYPE_KEY = "contentType";
+  String CONTENT_ENCODING_KEY = "contentEncoding";
+  String CONTENT_LENGTH_KEY = "contentLength";
+  String IDENTITY_HASH_KEY = "identityHash";
+  String PENDING_REFERENCES_KEY = "pendingReferences";
+  String DELETING_KEY = "deleting";
+
+  String CONTENT_HASH_PATH = "metadata." + CONTENT_HASH_KEY;
+  String BLOB_ID_PATH = "metadata." + BLOB_ID_KEY;
+  String REF_COUNT_PATH = "metadata." + REF_COUNT_KEY;
+  String RESOURCE_OWNER_ID_PATH = "metadata." + RESOURCE_OWNER_ID_KEY;
+  String INLINE_CONTENT_PATH = "metadata." + INLINE_CONTENT_KEY;
+  String CONTENT_ENCODING_PATH = "metadata." + CONTENT_ENCODING_KEY;
+  String CONTENT_LENGTH_PATH = "metadata." + CONTENT_LENGTH_KEY;
+  String IDENTITY_HASH_PATH = "metadata." + IDENTITY_HASH_KEY;
+  String PENDING_REFERENCES_PATH = "metadata." + PENDING_REFERENCES_KEY;
+  String DELETING_PATH = "metadata." + DELETING_KEY;
 
   Optional<List<Media>> getAllMedias();
 
   Optional<Media> findMedia(String fileName);
 
+  /**
+   * Finds a page of medias ordered by name, starting right after the position encoded in the page token.
+   *
+   * @param resourceOwnerId the owner of the medias, or an empty string for every owner
+   * @param pageToken the token returned with the previous page, or an empty string for the first page
+   * @param pageSize the maximum number of medias in the page
+   * @return the page found
+   * @throws IllegalArgumentException if the page token is not valid
+   */
+  MediaPage findMediaPage(String resourceOwnerId, String pageToken, int pageSize);
+
+  /**
+   * Streams the medias ordered by name, fetching them from the database as the stream is consumed. The stream must be
+   * closed once consumed.
+   *
+   * @param resourceOwnerId the owner of the medias, or an empty string for every owner
+   * @return a stream of medias backed by a database cursor
+   */
+  Stream<Media> streamMedias(String resourceOwnerId);
+
+  /**
+   * Deletes the revisions of the media with the given name.
+   *
+   * @param fileName the name of the media
+   * @throws io.grpc.StatusRuntimeException UNAVAILABLE if an upload referencing its content did not complete in time
+   */
   void deleteMedia(String fileName);
+
+  /**
+   * Finds the medias with the given names, one per name found. Implementations fetch them together, rather than one
+   * name at a time.
+   *
+   * @param fileNames the names of the medias
+   * @return the medias found, the names not found being left out
+   */
+  default List<Media> findMedias(Collection<String> fileNames) {
+    return new LinkedHashSet<>(fileNames).stream()
+        .map(this::findMedia)
+        .flatMap(Optional::stream)
+        .toList();
+  }
+
+  /**
+   * Deletes the medias with the given names. Implementations delete them together, rather than one name at a time.
+   *
+   * @param fileNames the names of the medias
+   * @return the names of the medias deleted, the others were not found
+   * @throws io.grpc.StatusRuntimeException UNAVAILABLE if an upload referencing the content of one of them did not
+   *     complete in time
+   */
+  default List<String> deleteMedias(Collection<String> fileNames) {
+    final List<String> deleted = new ArrayList<>();
+    for (String fileName : new LinkedHashSet<>(fileNames)) {
+      if (findMedia(fileName).isPresent()) {
+        deleteMedia(fileName);
+        deleted.add(fileName);
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * Signals that the media with the given name was stored or changed outside this repository, so any state kept for
+   * it must be dropped.
+   *
+   * @param fileName The name of the media changed
+   */
+  default void invalidate(String fileName) {
+  }
 }
@@ -0,0 +1,158 @@
+package jp.mediahub.repository.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+import jp.mediahub.messages.Media;
+import jp.mediahub.repository.MediaPage;
+import jp.mediahub.repository.MediaRepository;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Decorator of {@link MediaRepository} caching the media metadata looked up by name.
+ * <p>
+ * The cache is bounded in size, evicting with Caffeine's W-TinyLFU policy, and its entries expire after a fixed time.
+ * Media not found are cached as well, for a shorter time, as uploads look up their name before writing.
+ * <p>
+ * Entries are invalidated when the media is deleted, or stored through {@link #invalidate(String)}. Changes made by
+ * other instances are only seen once the entry expires, unless the {@link MediaCacheInvalidationListener} is enabled.
+ * <p>
+ * Hit, miss and eviction counters are exported over JMX.
+ *
+ * @author Renato Raeffray
+ */
+@ManagedResource(objectName = "jp.mediahub:type=MediaRepository,name=metadataCache")
+public class CachingMediaRepository implements MediaRepository {
+
+  private final MediaRepository delegate;
+
+  private final Cache<String, Optional<Media>> cache;
+
+  public CachingMediaRepository(MediaRepository delegate, long maximumSize, Duration ttl, Duration negativeTtl) {
+    this.delegate = delegate;
+    this.cache = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfter(new Expiry<String, Optional<Media>>() {
+          @Override
+          public long expireAfterCreate(String fileName, Optional<Media> media, long currentTime) {
+            return media.isPresent() ? ttl.toNanos() : negativeTtl.toNanos();
+          }
+
+          @Override
+          public long expireAfterUpdate(String fileName, Optional<Media> media, long currentTime,
+              long currentDuration) {
+            return expireAfterCreate(fileName, media, currentTime);
+          }
+
+          @Override
+          public long expireAfterRead(String fileName, Optional<Media> media, long currentTime,
+              long currentDuration) {
+            return currentDuration;
+          }
+        })
+        .recordStats()
+        .build();
+  }
+
+  @Override
+  public Optional<List<Media>> getAllMedias() {
+    return delegate.getAllMedias();
+  }
+
+  @Override
+  public Optional<Media> findMedia(String fileName) {
+    return cache.get(fileName, delegate::findMedia);
+  }
+
+  /**
+   * The names missed are looked up together, those not found are cached as well.
+   */
+  @Override
+  public List<Media> findMedias(Collection<String> fileNames) {
+    return cache.getAll(fileNames, missed -> {
+          final Map<String, Optional<Media>> loaded = new HashMap<>();
+          missed.forEach(fileName -> loaded.put(fileName, Optional.empty()));
+          delegate.findMedias(List.copyOf(missed))
+              .forEach(media -> loaded.put(media.getOriginalName(), Optional.of(media)));
+          return loaded;
+        })
+        .values()
+        .stream()
+        .flatMap(Optional::stream)
+        .toList();
+  }
+
+  @Override
+  public MediaPage findMediaPage(String resourceOwnerId, String pageToken, int pageSize) {
+    return delegate.findMediaPage(resourceOwnerId, pageToken, pageSize);
+  }
+
+  @Override
+  public Stream<Media> streamMedias(String resourceOwnerId) {
+    return delegate.streamMedias(resourceOwnerId);
+  }
+
+  @Override
+  public void deleteMedia(String fileName) {
+    try {
+      delegate.deleteMedia(fileName);
+    } finally {
+      cache.invalidate(fileName);
+    }
+  }
+
+  @Override
+  public List<String> deleteMedias(Collection<String> fileNames) {
+    try {
+      return delegate.deleteMedias(fileNames);
+    } finally {
+      cache.invalidateAll(fileNames);
+    }
+  }
+
+  @Override
+  public void invalidate(String fileName) {
+    cache.invalidate(fileName);
+    delegate.invalidate(fileName);
+  }
+
+  @ManagedOperation(description = "Drops every cached entry")
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  @ManagedAttribute(description = "Number of cached entries")
+  public long getSize() {
+    return cache.estimatedSize();
+  }
+
+  @ManagedAttribute(description = "Number of lookups served by the cache")
+  public long getHitCount() {
+    return cache.stats().hitCount();
+  }
+
+  @ManagedAttribute(description = "Number of lookups that went to the database")
+  public long getMissCount() {
+    return cache.stats().missCount();
+  }
+
+  @ManagedAttribute(description = "Ratio of lookups served by the cache")
+  public double getHitRate() {
+    return cache.stats().hitRate();
+  }
+
+  @ManagedAttribute(description = "Number of entries evicted by size or expiration")
+  public long getEvictionCount() {
+    return cache.stats().evictionCount();
+  }
+
+}
@@ -1,14 +1,46 @@
 package jp.mediahub.repository.impl;
 
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.gridfs.GridFSBucket;
 import com.mongodb.client.gridfs.GridFSFindIterable;
 import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import io.grpc.Status;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import jp.mediahub.repository.MediaContentStore;
+import jp.mediahub.repository.MediaPage;
 import jp.mediahub.repository.MediaRepository;
 import jp.mediahub.messages.Media;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.gridfs.GridFsTemplate;
@@ -18,6 +50,15 @@ import org.springframework.stereotype.Component;
  *
  * Repository class for managing {@link Media} objects in a MongoDB GridFS. This class provides methods for storing,
  * retrieving, and deleting media files in the GridFS.
+ * <p>
+ * Several names may share the same content: one file owns the chunks and counts its references in
+ * <code>metadata.refCount</code>, the others only point to it through <code>metadata.blobId</code>. Deleting a name
+ * releases one reference, the chunks are only deleted with the last one: the counter of the owner only drops to 0,
+ * atomically, when no other name is counted, and the uploads never reference a content whose counter is 0.
+ * <p>
+ * Batches of names are looked up with a single <code>$in</code> query, and deleted with a fixed number of bulk
+ * operations, the owners still referenced by other names excepted. The files a deletion is about to delete are claimed
+ * by it in <code>metadata.deleting</code>, so a reference is released once.
  *
  * @author Renato Raeffray
  */
@@ -27,12 +68,73 @@ public class DefaultMediaRepository implements MediaRepository {
   @Autowired
   private GridFsTemplate gridFsTemplate;
 
+  @Autowired
+  private GridFSBucket gridFSBucket;
+
+  @Autowired
+  private MongoTemplate mongoTemplate;
+
+  /**
+   * How long a deletion waits for the references counted by uploads to be inserted.
+   */
+  public static final long REFERENCE_WAIT_MILLIS = 5_000;
+
+  /**
+   * How long after being counted a reference not confirmed by its upload is not counted anymore, and after being
+   * claimed a file not deleted by the deletion claiming it is claimable again.
+   */
+  public static final long PENDING_REFERENCE_TIMEOUT_MILLIS = 60_000;
+
+  public static final String PENDING_SINCE_KEY = "since";
+
+  private static final long MAX_PAUSE_MILLIS = 100;
+
+  // describe the content shared, kept by an owner taking over the name of a reference
+  private static final Set<String> CONTENT_KEYS = Set.of(CONTENT_HASH_KEY, REF_COUNT_KEY, PENDING_REFERENCES_KEY,
+      CONTENT_ENCODING_KEY, CONTENT_LENGTH_KEY, IDENTITY_HASH_KEY, DELETING_KEY);
+
+  // only present when the content of the media is stored outside GridFS
+  @Autowired(required = false)
+  private MediaContentStore mediaContentStore;
+
+  public DefaultMediaRepository() {
+  }
+
+  /**
+   * A repository of the GridFS bucket of another database, e.g. a shard, see {@link jp.mediahub.shard.MediaShards}.
+   */
+  public DefaultMediaRepository(GridFsTemplate gridFsTemplate, GridFSBucket gridFSBucket, MongoTemplate mongoTemplate) {
+    this.gridFsTemplate = gridFsTemplate;
+    this.gridFSBucket = gridFSBucket;
+    this.mongoTemplate = mongoTemplate;
+  }
+
+  // the only fields needed to build a Media, listing fetches nothing else
+  private static final Bson MEDIA_PROJECTION = Projections.include(FILENAME_KEY, "length", CONTENT_HASH_PATH,
+      IDENTITY_HASH_PATH, CONTENT_LENGTH_PATH);
+
+  // _id breaks the ties between revisions of the same name, so the keyset is unique
+  private static final Bson NAME_ORDER = Sorts.ascending(FILENAME_KEY, "_id");
+
+  private static Function<Document, Media> buildMediaFromDocument = document ->
+      buildMediaFromMetadata(document.getString(FILENAME_KEY), ((Number) document.get("length")).longValue(),
+          document.get("metadata", new Document()));
+
   private static Function<GridFSFile, Media> buildMedia = gridfile ->
-      Media.newBuilder()
-          .setOriginalName(gridfile.getFilename())
-          .setHash(gridfile.getMetadata().getString(CONTENT_HASH_KEY))
-          .setSize(gridfile.getLength())
-          .build();
+      buildMediaFromMetadata(gridfile.getFilename(), gridfile.getLength(), gridfile.getMetadata());
+
+  // a media stored compressed is described by its content before the compression
+  private static Media buildMediaFromMetadata(String fileName, long length, Document metadata) {
+    final Document fileMetadata = metadata == null ? new Document() : metadata;
+    final String identityHash = fileMetadata.getString(IDENTITY_HASH_KEY);
+    final Number contentLength = fileMetadata.get(CONTENT_LENGTH_KEY, Number.class);
+    return Media.newBuilder()
+        .setOriginalName(fileName)
+        // files stored before the hashes, or by other GridFS clients, have none
+        .setHash(identityHash != null ? identityHash : fileMetadata.get(CONTENT_HASH_KEY, ""))
+        .setSize(contentLength != null ? contentLength.longValue() : length)
+        .build();
+  }
 
   /**
    * This class retrieves all the media files stored in the MongoDB GridFS and returns them as a List of {@link Media}
@@ -68,14 +170,386 @@ public class DefaultMediaRepository implements MediaRepository {
     return Optional.of(buildMedia.apply(gridFileFound));
   }
 
+  /**
+   * Finds a page of media files stored in the MongoDB GridFS, using the name and id of the last file of the previous
+   * page as the starting key, so every page is an index range scan whatever its position.
+   *
+   * @param resourceOwnerId the owner of the medias, or an empty string for every owner
+   * @param pageToken the token returned with the previous page, or an empty string for the first page
+   * @param pageSize the maximum number of medias in the page
+   * @return the page found
+   */
+  @Override
+  public MediaPage findMediaPage(String resourceOwnerId, String pageToken, int pageSize) {
+    // one more than the page size tells whether there is a next page
+    final List<Document> files = findFilePage(resourceOwnerId, pageToken, pageSize + 1);
+    final List<Media> medias = files.stream().limit(pageSize).map(DefaultMediaRepository::toMedia).toList();
+    return new MediaPage(medias, files.size() > pageSize ? pageToken(files.get(pageSize - 1)) : "");
+  }
+
+  /**
+   * Finds the file documents of a page, ordered by name and id, with the fields needed to build their {@link Media}.
+   *
+   * @param resourceOwnerId the owner of the medias, or an empty string for every owner
+   * @param pageToken the token of the last file of the previous page, or an empty string for the first page
+   * @param limit the maximum number of files found
+   * @return the file documents of the page
+   */
+  public List<Document> findFilePage(String resourceOwnerId, String pageToken, int limit) {
+    final Bson filter = pageToken.isEmpty()
+        ? ownerFilter(resourceOwnerId)
+        : Filters.and(ownerFilter(resourceOwnerId), after(pageToken));
+    return filesCollection().find(filter)
+        .projection(MEDIA_PROJECTION)
+        .sort(NAME_ORDER)
+        .limit(limit)
+        .into(new ArrayList<>(limit));
+  }
+
+  /**
+   * Streams the media files stored in the MongoDB GridFS, the cursor fetches them in batches as the stream is
+   * consumed.
+   *
+   * @param resourceOwnerId the owner of the medias, or an empty string for every owner
+   * @return a stream of medias, closing it closes the cursor
+   */
+  @Override
+  public Stream<Media> streamMedias(String resourceOwnerId) {
+    final FindIterable<Document> documents = filesCollection().find(ownerFilter(resourceOwnerId))
+        .projection(MEDIA_PROJECTION)
+        .sort(NAME_ORDER);
+    final MongoCursor<Document> cursor = documents.cursor();
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED), false)
+        .onClose(cursor::close)
+        .map(buildMediaFromDocument);
+  }
+
   /**
    * Delete a media stored in the MongoDB GridFS
+   * <p>
+   * When the name being deleted owns chunks still referenced by other names, the owner file is handed over to one of
+   * them instead: it takes the name of the reference, which is removed, so the chunks are kept without being copied.
+   * The files of the name are looked up until none is left, a concurrent deletion may hand an owner over to the name.
    *
    * @param fileName The name of file to be deleted
    */
   @Override
   public void deleteMedia(String fileName) {
-    final Query query = new Query(Criteria.where(FILENAME_KEY).is(fileName));
-    gridFsTemplate.delete(query);
+    final MongoCollection<Document> files = filesCollection();
+    Document file;
+    while ((file = files.find(Filters.eq(FILENAME_KEY, fileName)).first()) != null) {
+      deleteFile(files, file);
+    }
+  }
+
+  /**
+   * Finds the latest revision of each name with a single query.
+   *
+   * @param fileNames the names of the medias
+   * @return the medias found, the names not found being left out
+   */
+  @Override
+  public List<Media> findMedias(Collection<String> fileNames) {
+    final Map<String, Media> medias = new LinkedHashMap<>();
+    for (Document document : filesCollection().find(Filters.in(FILENAME_KEY, new LinkedHashSet<>(fileNames)))
+        .projection(MEDIA_PROJECTION)
+        .sort(Sorts.descending("uploadDate"))) {
+      medias.putIfAbsent(document.getString(FILENAME_KEY), buildMediaFromDocument.apply(document));
+    }
+    return new ArrayList<>(medias.values());
+  }
+
+  /**
+   * Deletes the files of the given names found by a single query, with a fixed number of bulk operations whatever their
+   * number:
+   * <ul>
+   *   <li>the inline files are deleted by a single <code>deleteMany</code></li>
+   *   <li>the references are claimed by a single <code>updateMany</code>, marking them with a claim of this call in
+   *   <code>metadata.deleting</code>, then deleted by a single <code>deleteMany</code> on the claim, and their owners
+   *   released by a single unordered <code>bulkWrite</code>. The references claimed by another deletion, or handed over
+   *   to their owner meanwhile, are not released twice</li>
+   *   <li>the owners counting only their own name are claimed the same way, their counter dropping from 1 to 0, then
+   *   deleted with their chunks by a <code>deleteMany</code> each</li>
+   * </ul>
+   * The claimed ids are only looked up when another deletion claimed some of them first. The owners still referenced
+   * once the references of the batch released are handed over one at a time, as {@link #deleteMedia(String)} does.
+   *
+   * @param fileNames the names of the medias
+   * @return the names of the medias deleted, the others were not found
+   */
+  @Override
+  public List<String> deleteMedias(Collection<String> fileNames) {
+    final MongoCollection<Document> files = filesCollection();
+    final Set<String> deleted = new LinkedHashSet<>();
+    final List<ObjectId> inlineIds = new ArrayList<>();
+    final List<ObjectId> ownerIds = new ArrayList<>();
+    final Map<ObjectId, ObjectId> referenceBlobIds = new LinkedHashMap<>();
+    for (Document file : files.find(Filters.in(FILENAME_KEY, new LinkedHashSet<>(fileNames)))) {
+      deleted.add(file.getString(FILENAME_KEY));
+      final Document metadata = file.get("metadata", new Document());
+      final ObjectId id = file.getObjectId("_id");
+      final ObjectId blobId = metadata.getObjectId(BLOB_ID_KEY);
+      if (metadata.containsKey(INLINE_CONTENT_KEY)) {
+        inlineIds.add(id);
+      } else if (blobId == null) {
+        ownerIds.add(id);
+      } else {
+        referenceBlobIds.put(id, blobId);
+      }
+    }
+    if (!inlineIds.isEmpty()) {
+      files.deleteMany(Filters.in("_id", inlineIds));
+    }
+    if (!referenceBlobIds.isEmpty()) {
+      deleteReferences(files, referenceBlobIds);
+    }
+    if (ownerIds.isEmpty()) {
+      return new ArrayList<>(deleted);
+    }
+    // files stored before the deduplication have no counter, they are referenced by their own name only
+    files.updateMany(Filters.and(Filters.in("_id", ownerIds), Filters.exists(REF_COUNT_PATH, false)),
+        Updates.set(REF_COUNT_PATH, 1));
+    // as in deleteOwner, only the call dropping the counter to 0 deletes the content
+    final ObjectId claim = new ObjectId();
+    files.updateMany(Filters.and(Filters.in("_id", ownerIds), Filters.eq(REF_COUNT_PATH, 1)),
+        Updates.combine(Updates.set(REF_COUNT_PATH, 0), Updates.set(DELETING_PATH, claim)));
+    final List<Document> releasedOwners = files.find(Filters.and(Filters.in("_id", ownerIds),
+        Filters.eq(DELETING_PATH, claim))).into(new ArrayList<>());
+    if (!releasedOwners.isEmpty()) {
+      final List<ObjectId> releasedIds = releasedOwners.stream().map(owner -> owner.getObjectId("_id")).toList();
+      files.deleteMany(Filters.in("_id", releasedIds));
+      chunksCollection().deleteMany(Filters.in("files_id", releasedIds));
+      if (mediaContentStore != null) {
+        releasedOwners.forEach(mediaContentStore::release);
+      }
+    }
+    final Set<ObjectId> releasedIds = releasedOwners.stream()
+        .map(owner -> owner.getObjectId("_id"))
+        .collect(Collectors.toSet());
+    ownerIds.stream()
+        .filter(ownerId -> !releasedIds.contains(ownerId))
+        .forEach(ownerId -> deleteOwner(files, ownerId));
+    return new ArrayList<>(deleted);
+  }
+
+  // deletes the references this call claims, then releases them on their owners, in a single bulk write
+  private void deleteReferences(MongoCollection<Document> files, Map<ObjectId, ObjectId> referenceBlobIds) {
+    final ObjectId claim = new ObjectId();
+    final long claimedCount = files.updateMany(
+        Filters.and(Filters.in("_id", referenceBlobIds.keySet()), claimable()),
+        Updates.set(DELETING_PATH, claim)).getModifiedCount();
+    if (claimedCount == 0) {
+      return;
+    }
+    final Map<ObjectId, ObjectId> claimed = new LinkedHashMap<>(referenceBlobIds);
+    if (claimedCount < referenceBlobIds.size()) {
+      // deleted or claimed by another call meanwhile
+      final Set<ObjectId> claimedIds = new HashSet<>();
+      files.find(Filters.and(Filters.in("_id", referenceBlobIds.keySet()), Filters.eq(DELETING_PATH, claim)))
+          .projection(Projections.include("_id"))
+          .forEach(reference -> claimedIds.add(reference.getObjectId("_id")));
+      claimed.keySet().retainAll(claimedIds);
+    }
+    files.deleteMany(Filters.and(Filters.in("_id", claimed.keySet()), Filters.eq(DELETING_PATH, claim)));
+    final List<WriteModel<Document>> releasedReferences = new ArrayList<>(claimed.size());
+    claimed.forEach((id, blobId) -> releasedReferences.add(
+        new UpdateOneModel<>(Filters.eq(blobId), releaseReference(id))));
+    files.bulkWrite(releasedReferences, new BulkWriteOptions().ordered(false));
+  }
+
+  /**
+   * @return the filter of the references no other deletion claimed, or whose deletion stopped before completing
+   */
+  static Bson claimable() {
+    final Date expiry = new Date(System.currentTimeMillis() - PENDING_REFERENCE_TIMEOUT_MILLIS);
+    return Filters.or(Filters.exists(DELETING_PATH, false), Filters.lt(DELETING_PATH, new ObjectId(expiry)));
+  }
+
+  private void deleteFile(MongoCollection<Document> files, Document file) {
+    final Document metadata = file.get("metadata", new Document());
+    final ObjectId blobId = metadata.getObjectId(BLOB_ID_KEY);
+    if (metadata.containsKey(INLINE_CONTENT_KEY)) {
+      // the content goes away with the document, there are no chunks
+      files.deleteOne(Filters.eq(file.getObjectId("_id")));
+      return;
+    }
+    if (blobId != null) {
+      // a reference: only the name goes away, the owner still counts its own, unless another deletion claimed it
+      if (files.deleteOne(Filters.and(Filters.eq(file.getObjectId("_id")), claimable())).getDeletedCount() > 0) {
+        files.updateOne(Filters.eq(blobId), releaseReference(file.getObjectId("_id")));
+      }
+      return;
+    }
+    deleteOwner(files, file.getObjectId("_id"));
+  }
+
+  /**
+   * @param referenceId the id of a reference deleted
+   * @return the update of its owner no longer counting it, whether its upload confirmed it or not
+   */
+  public static Bson releaseReference(ObjectId referenceId) {
+    return Updates.combine(Updates.inc(REF_COUNT_PATH, -1),
+        Updates.pull(PENDING_REFERENCES_PATH, new Document("_id", referenceId)));
+  }
+
+  /**
+   * Deletes the name of the owner of a content. Its counter drops from 1, its own name, to 0 and the content is
+   * deleted, or the owner takes the name and the description of one of its references.
+   * <p>
+   * A reference counted by an upload but not inserted yet is waited for, with a growing pause between the lookups, up
+   * to {@link #REFERENCE_WAIT_MILLIS}. The references pending for longer than {@link #PENDING_REFERENCE_TIMEOUT_MILLIS}
+   * are not counted anymore, their upload having stopped. Past the wait, the deletion fails, to be retried.
+   */
+  private void deleteOwner(MongoCollection<Document> files, ObjectId ownerId) {
+    // files stored before the deduplication have no counter, they are referenced by their own name only
+    files.updateOne(Filters.and(Filters.eq(ownerId), Filters.exists(REF_COUNT_PATH, false)),
+        Updates.set(REF_COUNT_PATH, 1));
+    final long deadline = System.currentTimeMillis() + REFERENCE_WAIT_MILLIS;
+    long pauseMillis = 1;
+    while (true) {
+      // a counter of 0 is the deletion of another call, which is completed
+      final Document released = files.findOneAndUpdate(
+          Filters.and(Filters.eq(ownerId), Filters.lte(REF_COUNT_PATH, 1)), Updates.set(REF_COUNT_PATH, 0));
+      if (released != null) {
+        deleteContent(files, released);
+        return;
+      }
+      // the references claimed by a deletion are released by it
+      final Document reference = files.findOneAndDelete(Filters.and(Filters.eq(BLOB_ID_PATH, ownerId), claimable()));
+      final Document owner = files.find(Filters.eq(ownerId)).first();
+      if (reference != null) {
+        if (owner != null) {
+          files.updateOne(Filters.eq(ownerId), handOver(owner, reference));
+        }
+        return;
+      }
+      if (owner == null) {
+        return;
+      }
+      if (releaseExpiredReferences(files, owner)) {
+        continue;
+      }
+      if (System.currentTimeMillis() > deadline) {
+        throw Status.UNAVAILABLE
+            .withDescription(String.format("Media [%s] is being referenced by an upload, retry its deletion",
+                owner.getString(FILENAME_KEY)))
+            .asRuntimeException();
+      }
+      pause(pauseMillis);
+      pauseMillis = Math.min(pauseMillis * 2, MAX_PAUSE_MILLIS);
+    }
+  }
+
+  /**
+   * The update of an owner taking over the name of one of its references: it is described as the reference, but its
+   * content, which it keeps counting.
+   */
+  static Bson handOver(Document owner, Document reference) {
+    final Document ownerMetadata = owner.get("metadata", new Document());
+    final Document referenceMetadata = reference.get("metadata", new Document());
+    final List<Bson> updates = new ArrayList<>();
+    updates.add(Updates.set(FILENAME_KEY, reference.getString(FILENAME_KEY)));
+    updates.add(Updates.set("uploadDate", reference.getDate("uploadDate")));
+    updates.add(releaseReference(reference.getObjectId("_id")));
+    referenceMetadata.forEach((key, value) -> {
+      if (!CONTENT_KEYS.contains(key) && !BLOB_ID_KEY.equals(key)) {
+        updates.add(Updates.set("metadata." + key, value));
+      }
+    });
+    ownerMetadata.keySet().stream()
+        .filter(key -> !CONTENT_KEYS.contains(key) && !referenceMetadata.containsKey(key))
+        .forEach(key -> updates.add(Updates.unset("metadata." + key)));
+    return Updates.combine(updates);
+  }
+
+  // the references counted by uploads that stopped before confirming them are not counted anymore
+  private boolean releaseExpiredReferences(MongoCollection<Document> files, Document owner) {
+    final Date expiry = new Date(System.currentTimeMillis() - PENDING_REFERENCE_TIMEOUT_MILLIS);
+    boolean released = false;
+    for (Document pending : owner.get("metadata", new Document())
+        .getList(PENDING_REFERENCES_KEY, Document.class, List.of())) {
+      if (pending.getDate(PENDING_SINCE_KEY).after(expiry)) {
+        continue;
+      }
+      final ObjectId referenceId = pending.getObjectId("_id");
+      // inserted, the reference is taken over or released with its deletion
+      if (files.find(Filters.eq(referenceId)).first() != null) {
+        continue;
+      }
+      // an upload inserting it afterwards finds it is not counted anymore and deletes it
+      released |= files.updateOne(Filters.and(Filters.eq(owner.getObjectId("_id")),
+              Filters.eq(PENDING_REFERENCES_PATH + "._id", referenceId)), releaseReference(referenceId))
+          .getModifiedCount() > 0;
+    }
+    return released;
+  }
+
+  private static void pause(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Status.CANCELLED.withDescription("Deletion interrupted").asRuntimeException();
+    }
+  }
+
+  // the counter of the owner is 0, no upload references the content anymore
+  private void deleteContent(MongoCollection<Document> files, Document owner) {
+    files.deleteOne(Filters.eq(owner.getObjectId("_id")));
+    chunksCollection().deleteMany(Filters.eq("files_id", owner.getObjectId("_id")));
+    if (mediaContentStore != null) {
+      mediaContentStore.release(owner);
+    }
+  }
+
+  private MongoCollection<Document> filesCollection() {
+    return mongoTemplate.getCollection(gridFSBucket.getBucketName() + ".files");
+  }
+
+  private MongoCollection<Document> chunksCollection() {
+    return mongoTemplate.getCollection(gridFSBucket.getBucketName() + ".chunks");
+  }
+
+  private static Bson ownerFilter(String resourceOwnerId) {
+    return resourceOwnerId.isEmpty()
+        ? new Document()
+        : Filters.eq(RESOURCE_OWNER_ID_PATH, resourceOwnerId);
+  }
+
+  /**
+   * @param file a file document found by {@link #findFilePage(String, String, int)}
+   * @return its media
+   */
+  public static Media toMedia(Document file) {
+    return buildMediaFromDocument.apply(file);
+  }
+
+  /**
+   * @param last the last file document of a page
+   * @return the token of the page following it
+   */
+  public static String pageToken(Document last) {
+    final String key = last.getObjectId("_id").toHexString() + ":" + last.getString(FILENAME_KEY);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @param pageToken the token of the last file of the previous page
+   * @return the filter of the files following it in the order of the name index, by name then id
+   */
+  static Bson after(String pageToken) {
+    final String[] key = decodePageToken(pageToken);
+    return Filters.or(
+        Filters.gt(FILENAME_KEY, key[1]),
+        Filters.and(Filters.eq(FILENAME_KEY, key[1]), Filters.gt("_id", new ObjectId(key[0]))));
+  }
+
+  static String[] decodePageToken(String pageToken) {
+    final String key = new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8);
+    final int separator = key.indexOf(':');
+    if (separator < 0 || !ObjectId.isValid(key.substring(0, separator))) {
+      throw new IllegalArgumentException("Invalid page token");
+    }
+    return new String[]{key.substring(0, separator), key.substring(separator + 1)};
   }
 }
@@ -0,0 +1,154 @@
+package jp.mediahub.repository.impl;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.FullDocumentBeforeChange;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import jp.mediahub.repository.MediaRepository;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the {@link CachingMediaRepository} of this instance consistent with the changes made by the other instances,
+ * by watching a MongoDB change stream on the files collection of every shard, each on its own thread, as the shards
+ * may be in other clusters.
+ * <p>
+ * Inserted and updated files invalidate their name. Deleted files only carry their name when the collection records
+ * pre-images, otherwise the whole cache is dropped, as it is when a stream has to be reopened. Change streams
+ * require a replica set.
+ *
+ * @author Renato Raeffray
+ */
+public class MediaCacheInvalidationListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MediaCacheInvalidationListener.class);
+
+  private static final long RETRY_DELAY_MILLIS = 5000;
+
+  private final CachingMediaRepository cachingMediaRepository;
+
+  private final List<Watch> watches = new ArrayList<>();
+
+  private volatile boolean running;
+
+  /**
+   * @param filesCollections the files collection of every shard, by name of the shard
+   * @param cachingMediaRepository the cache invalidated
+   */
+  public MediaCacheInvalidationListener(Map<String, MongoCollection<Document>> filesCollections,
+      CachingMediaRepository cachingMediaRepository) {
+    this.cachingMediaRepository = cachingMediaRepository;
+    filesCollections.forEach((shardId, filesCollection) -> watches.add(new Watch(shardId, filesCollection)));
+  }
+
+  @PostConstruct
+  public void start() {
+    running = true;
+    for (Watch watch : watches) {
+      watch.thread = new Thread(watch, "media-cache-invalidation-" + watch.shardId);
+      watch.thread.setDaemon(true);
+      watch.thread.start();
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    running = false;
+    for (Watch watch : watches) {
+      final MongoChangeStreamCursor<ChangeStreamDocument<Document>> current = watch.cursor;
+      if (current != null) {
+        current.close();
+      }
+      watch.thread.interrupt();
+    }
+  }
+
+  /**
+   * The change stream of the files collection of a shard, resumed after the last change applied.
+   */
+  private class Watch implements Runnable {
+
+    private final String shardId;
+
+    private final MongoCollection<Document> filesCollection;
+
+    private volatile MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+
+    private BsonDocument resumeToken;
+
+    private Thread thread;
+
+    Watch(String shardId, MongoCollection<Document> filesCollection) {
+      this.shardId = shardId;
+      this.filesCollection = filesCollection;
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          watch();
+        } catch (MongoException | IllegalStateException e) {
+          if (!running) {
+            return;
+          }
+          LOGGER.warn("Media cache change stream of shard [{}] interrupted, retrying in [{}] ms", shardId,
+              RETRY_DELAY_MILLIS, e);
+          // changes may have been missed while the stream was down
+          cachingMediaRepository.invalidateAll();
+          try {
+            Thread.sleep(RETRY_DELAY_MILLIS);
+          } catch (InterruptedException ie) {
+            return;
+          }
+        }
+      }
+    }
+
+    private void watch() {
+      var changeStream = filesCollection.watch()
+          .fullDocument(FullDocument.UPDATE_LOOKUP)
+          .fullDocumentBeforeChange(FullDocumentBeforeChange.WHEN_AVAILABLE);
+      if (resumeToken != null) {
+        changeStream = changeStream.resumeAfter(resumeToken);
+      }
+      try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> changes = changeStream.cursor()) {
+        this.cursor = changes;
+        while (running && changes.hasNext()) {
+          final ChangeStreamDocument<Document> change = changes.next();
+          resumeToken = change.getResumeToken();
+          apply(change);
+        }
+      }
+    }
+  }
+
+  // a file may be renamed when the owner of shared content is deleted, both names are dropped then
+  private void apply(ChangeStreamDocument<Document> change) {
+    final String fileName = fileName(change.getFullDocument());
+    final String previousFileName = fileName(change.getFullDocumentBeforeChange());
+    if (fileName == null && previousFileName == null) {
+      cachingMediaRepository.invalidateAll();
+      return;
+    }
+    if (fileName != null) {
+      cachingMediaRepository.invalidate(fileName);
+    }
+    if (previousFileName != null) {
+      cachingMediaRepository.invalidate(previousFileName);
+    }
+  }
+
+  private static String fileName(Document document) {
+    return document == null ? null : document.getString(MediaRepository.FILENAME_KEY);
+  }
+}
@@ -0,0 +1,365 @@
+package jp.mediahub.repository.impl;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import jp.mediahub.exception.ChangeTokenExpiredException;
+import jp.mediahub.messages.Media;
+import jp.mediahub.messages.MediaChange;
+import jp.mediahub.repository.MediaRepository;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Log of the media stored and deleted, so clients synchronize their listing from the changes since the last one they
+ * received, rather than listing every media again.
+ * <p>
+ * Every change is a document of the changes collection whose <code>_id</code> is its sequence: the one following the
+ * latest change, an insert conflicting with another instance being retried with the next one. The sequence is dense,
+ * and a change is only visible once the previous ones are, so reading the changes after a sequence never misses one.
+ * The change token given to the clients is the sequence of the change.
+ * <p>
+ * The changes older than the retention are pruned, the latest one excepted, so the sequence never goes back. A token
+ * older than the changes kept, or beyond the latest one, e.g. after the collection was dropped, is expired: the client
+ * has to list every media again, see {@link ChangeTokenExpiredException}.
+ * <p>
+ * The changes are recorded right after the media are stored or deleted. A change that could not be recorded does not fail
+ * the call, the media being stored or deleted already: it is kept in memory and recorded again on every poll, the
+ * changes made meanwhile by this instance being recorded after it. It is lost if the instance stops before.
+ * <p>
+ * The changes are polled every <code>pollMillis</code>, and right after a change of this instance, by a single thread
+ * publishing them to the {@link Listener}s, the watches of the clients, so the watches never query the log but to
+ * catch up. The media stored are looked up once per batch published, in the repository of the storage, not its cache.
+ *
+ * @author Renato Raeffray
+ */
+public class MediaChangeLog {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MediaChangeLog.class);
+
+  private static final String SEQUENCE_KEY = "_id";
+
+  private static final String TYPE_KEY = "type";
+
+  public static final String RECORDED_AT_KEY = "recordedAt";
+
+  private static final int PUBLISH_BATCH_SIZE = 1000;
+
+  /**
+   * Receives the changes published, in order, from the thread of the log.
+   */
+  public interface Listener {
+
+    void onChanges(List<MediaChange> changes);
+  }
+
+  private final MongoCollection<Document> changesCollection;
+
+  private final MediaRepository mediaRepository;
+
+  private final Duration retention;
+
+  private final long pollMillis;
+
+  private final Set<Listener> listeners = new CopyOnWriteArraySet<>();
+
+  // the changes not recorded yet, in order
+  private final Queue<Change> unrecorded = new ConcurrentLinkedQueue<>();
+
+  private record Change(MediaChange.Type type, String fileName) {
+  }
+
+  private ScheduledExecutorService publisher;
+
+  // the sequence of the last change published, only accessed by the publisher
+  private long lastPublished;
+
+  public MediaChangeLog(MongoCollection<Document> changesCollection, MediaRepository mediaRepository,
+      Duration retention, long pollMillis) {
+    this.changesCollection = changesCollection;
+    this.mediaRepository = mediaRepository;
+    this.retention = retention;
+    this.pollMillis = pollMillis;
+  }
+
+  /**
+   * @return a log recording nothing, for the streams used outside the service, e.g. benchmarks
+   */
+  public static MediaChangeLog noop() {
+    return new MediaChangeLog(null, null, Duration.ZERO, 0);
+  }
+
+  @PostConstruct
+  public void start() {
+    if (changesCollection == null) {
+      return;
+    }
+    lastPublished = latestSequence();
+    publisher = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("media-change-publisher-"));
+    publisher.scheduleWithFixedDelay(this::publish, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (publisher != null) {
+      publisher.shutdownNow();
+    }
+  }
+
+  /**
+   * Records the media stored, once committed.
+   *
+   * @param fileName the name of the media
+   */
+  public void recordStored(String fileName) {
+    record(MediaChange.Type.STORED, List.of(fileName));
+  }
+
+  /**
+   * Records the media deleted.
+   *
+   * @param fileNames the names of the media
+   */
+  public void recordDeleted(Collection<String> fileNames) {
+    record(MediaChange.Type.DELETED, new ArrayList<>(new LinkedHashSet<>(fileNames)));
+  }
+
+  // the media are already stored or deleted, the changes not recorded are recorded again later
+  private void record(MediaChange.Type type, List<String> fileNames) {
+    if (changesCollection == null || fileNames.isEmpty()) {
+      return;
+    }
+    final List<Change> changes = fileNames.stream().map(fileName -> new Change(type, fileName)).toList();
+    final boolean recorded;
+    if (unrecorded.isEmpty()) {
+      final int inserted = insert(changes);
+      unrecorded.addAll(changes.subList(inserted, changes.size()));
+      recorded = inserted > 0;
+    } else {
+      // after the changes not recorded yet
+      unrecorded.addAll(changes);
+      recorded = recordUnrecorded();
+    }
+    if (recorded && !listeners.isEmpty()) {
+      publisher.execute(this::publish);
+    }
+  }
+
+  // records the changes kept in memory, in order, returns whether any was
+  private synchronized boolean recordUnrecorded() {
+    final List<Change> changes = List.copyOf(unrecorded);
+    final int inserted = insert(changes);
+    for (int i = 0; i < inserted; i++) {
+      unrecorded.poll();
+    }
+    return inserted > 0;
+  }
+
+  // inserts the changes after the latest one, returns how many were, in order, before one failed
+  private int insert(List<Change> changes) {
+    int recorded = 0;
+    try {
+      while (recorded < changes.size()) {
+        final long next = latestSequence() + 1;
+        final Date now = new Date();
+        final List<Document> documents = new ArrayList<>();
+        for (int i = recorded; i < changes.size(); i++) {
+          documents.add(new Document(SEQUENCE_KEY, next + i - recorded)
+              .append(TYPE_KEY, changes.get(i).type().name())
+              .append(MediaRepository.FILENAME_KEY, changes.get(i).fileName())
+              .append(RECORDED_AT_KEY, now));
+        }
+        try {
+          changesCollection.insertMany(documents);
+          recorded = changes.size();
+        } catch (MongoBulkWriteException e) {
+          if (e.getWriteErrors().stream().anyMatch(error -> error.getCategory() != ErrorCategory.DUPLICATE_KEY)) {
+            throw e;
+          }
+          // another instance took the next sequence, the changes after those inserted take the following ones
+          recorded += e.getWriteResult().getInsertedCount();
+        }
+      }
+    } catch (MongoException e) {
+      LOGGER.error("Changes {} could not be recorded, recording them again in [{}] ms",
+          changes.subList(recorded, changes.size()), pollMillis, e);
+    }
+    return recorded;
+  }
+
+  /**
+   * @return the token of the latest change, reading the changes after it returns those to come
+   */
+  public String currentToken() {
+    return token(latestSequence());
+  }
+
+  /**
+   * Reads the changes following the one of the token, the media stored being looked up with a single query.
+   *
+   * @param changeToken the token of the last change read
+   * @param limit the maximum number of changes read
+   * @return the changes following the one of the token, in order
+   * @throws IllegalArgumentException if the token is not valid
+   * @throws ChangeTokenExpiredException if the changes following the token are not kept anymore
+   */
+  public List<MediaChange> readChanges(String changeToken, int limit) {
+    final long sequence = sequence(changeToken);
+    // the change of the token itself tells it is still kept
+    final List<Document> documents = changesCollection.find(Filters.gte(SEQUENCE_KEY, sequence))
+        .sort(Sorts.ascending(SEQUENCE_KEY))
+        .limit(limit + 1)
+        .into(new ArrayList<>(limit + 1));
+    final long first = documents.isEmpty() ? 0 : documents.get(0).getLong(SEQUENCE_KEY);
+    if (expired(sequence, first)) {
+      throw new ChangeTokenExpiredException(String.format("Change token [%s] expired, list the media again",
+          changeToken));
+    }
+    if (sequence > 0) {
+      documents.remove(0);
+    }
+    return toChanges(documents.size() > limit ? documents.subList(0, limit) : documents);
+  }
+
+  public void subscribe(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void unsubscribe(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Removes the changes older than the retention, but the latest one.
+   */
+  @Scheduled(fixedDelayString = "${app.media.changes.prune-interval-seconds}", timeUnit = TimeUnit.SECONDS)
+  public void prune() {
+    final long latest = latestSequence();
+    final long pruned = changesCollection.deleteMany(Filters.and(
+        Filters.lt(RECORDED_AT_KEY, new Date(System.currentTimeMillis() - retention.toMillis())),
+        Filters.lt(SEQUENCE_KEY, latest))).getDeletedCount();
+    if (pruned > 0) {
+      LOGGER.info("[{}] media changes pruned", pruned);
+    }
+  }
+
+  // runs on the publisher only
+  private void publish() {
+    try {
+      if (!unrecorded.isEmpty()) {
+        recordUnrecorded();
+      }
+      // read before checking the listeners: a watch subscribing later catches up from the log, this change included
+      final long latest = latestSequence();
+      if (listeners.isEmpty()) {
+        lastPublished = latest;
+        return;
+      }
+      List<Document> documents;
+      do {
+        documents = changesCollection.find(Filters.gt(SEQUENCE_KEY, lastPublished))
+            .sort(Sorts.ascending(SEQUENCE_KEY))
+            .limit(PUBLISH_BATCH_SIZE)
+            .into(new ArrayList<>());
+        if (documents.isEmpty()) {
+          return;
+        }
+        final List<MediaChange> changes = toChanges(documents);
+        for (Listener listener : listeners) {
+          listener.onChanges(changes);
+        }
+        lastPublished = documents.get(documents.size() - 1).getLong(SEQUENCE_KEY);
+      } while (documents.size() == PUBLISH_BATCH_SIZE);
+    } catch (RuntimeException e) {
+      LOGGER.warn("Media changes could not be published, retrying in [{}] ms", pollMillis, e);
+    }
+  }
+
+  private List<MediaChange> toChanges(List<Document> documents) {
+    final List<String> storedNames = documents.stream()
+        .filter(document -> MediaChange.Type.STORED.name().equals(document.getString(TYPE_KEY)))
+        .map(document -> document.getString(MediaRepository.FILENAME_KEY))
+        .toList();
+    final Map<String, Media> medias = storedNames.isEmpty() ? Map.of()
+        : mediaRepository.findMedias(storedNames).stream()
+            .collect(Collectors.toMap(Media::getOriginalName, Function.identity(), (first, second) -> first));
+    final List<MediaChange> changes = new ArrayList<>(documents.size());
+    for (Document document : documents) {
+      final MediaChange.Type type = MediaChange.Type.valueOf(document.getString(TYPE_KEY));
+      final String fileName = document.getString(MediaRepository.FILENAME_KEY);
+      final MediaChange.Builder change = MediaChange.newBuilder()
+          .setType(type)
+          .setOriginalName(fileName)
+          .setChangeToken(token(document.getLong(SEQUENCE_KEY)));
+      if (type == MediaChange.Type.STORED && medias.containsKey(fileName)) {
+        change.setMedia(medias.get(fileName));
+      }
+      changes.add(change.build());
+    }
+    return changes;
+  }
+
+  private long latestSequence() {
+    final Document latest = changesCollection.find()
+        .projection(Projections.include(SEQUENCE_KEY))
+        .sort(Sorts.descending(SEQUENCE_KEY))
+        .first();
+    return latest == null ? 0 : latest.getLong(SEQUENCE_KEY);
+  }
+
+  /**
+   * @param sequence the sequence of a token
+   * @param first the sequence of the first change kept from it, 0 if none
+   * @return whether the changes following the token are not all kept: the change of the token is pruned, or was never
+   *     recorded, or, for the token of an empty log, the first changes are pruned
+   */
+  static boolean expired(long sequence, long first) {
+    return sequence > 0 ? first != sequence : first > 1;
+  }
+
+  /**
+   * @param changeToken a change token
+   * @return the sequence of the change
+   * @throws IllegalArgumentException if the token is not valid
+   */
+  public static long sequence(String changeToken) {
+    try {
+      final long sequence = Long.parseLong(changeToken);
+      if (sequence >= 0) {
+        return sequence;
+      }
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new IllegalArgumentException("Invalid change token");
+  }
+
+  public static String token(long sequence) {
+    return Long.toString(sequence);
+  }
+}
@@ -0,0 +1,30 @@
+package jp.mediahub.server;
+
+/**
+ * How the gRPC server runs the calls of the service, their handlers and stream callbacks.
+ *
+ * @author Renato Raeffray
+ */
+public enum CallExecutorMode {
+
+  /**
+   * The default of gRPC: an unbounded cached pool, growing a thread per blocked call.
+   */
+  CACHED,
+
+  /**
+   * A fixed pool of platform threads, the calls beyond it wait in its queue.
+   */
+  BOUNDED,
+
+  /**
+   * A virtual thread per task, a call blocked on the storage only holds a virtual thread. Needs Java 21, the server
+   * falls back to {@link #BOUNDED} on older runtimes.
+   */
+  VIRTUAL,
+
+  /**
+   * The calls run on the Netty event loops. Only for handlers that never block, e.g. over an in-memory storage.
+   */
+  DIRECT
+}
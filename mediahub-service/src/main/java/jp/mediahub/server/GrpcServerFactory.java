@@ -0,0 +1,202 @@
+package jp.mediahub.server;
+
+import io.grpc.Metadata;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.ServerChannel;
+import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import jp.mediahub.metrics.MediaMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Builds the gRPC servers of the service with the {@link GrpcServerSettings}: the executor running the calls, the
+ * Netty event loops, the flow control window, the message and call limits, and the keepalive policy.
+ * <p>
+ * The executor and the event loops are created once and shared by the servers built, {@link #shutdown()} releases them
+ * once the servers are terminated. The queue of the {@link CallExecutorMode#BOUNDED} executor is exported as
+ * <code>mediahub.executor.queued</code>.
+ * <p>
+ * That queue is bounded. Once it is full, a new call is closed right away with RESOURCE_EXHAUSTED, on the transport
+ * thread, without running its handler, and the events of the calls already running are handled on the transport
+ * thread, as the {@link CallExecutorMode#DIRECT} executor does, rather than dropped. The
+ * {@link CallExecutorMode#VIRTUAL} executor fails the startup on a runtime without virtual threads.
+ *
+ * @author Renato Raeffray
+ */
+public class GrpcServerFactory {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GrpcServerFactory.class);
+
+  // set while a task the bounded executor could not queue runs on the transport thread
+  private static final ThreadLocal<Boolean> OVERLOADED = new ThreadLocal<>();
+
+  private final GrpcServerSettings settings;
+
+  private final CallExecutorMode executorMode;
+
+  private final ExecutorService executor;
+
+  private final EventLoopGroup bossGroup;
+
+  private final EventLoopGroup workerGroup;
+
+  private final Class<? extends ServerChannel> channelType;
+
+  public GrpcServerFactory(GrpcServerSettings settings, MediaMetrics metrics) {
+    this.settings = settings;
+    if (settings.executorMode() == CallExecutorMode.VIRTUAL && !virtualThreadsAvailable()) {
+      throw new IllegalStateException(String.format("The virtual executor needs Java 21, the runtime is Java %s: "
+          + "set app.grpc.executor.mode to bounded or cached", Runtime.version().feature()));
+    }
+    this.executorMode = settings.executorMode();
+    this.executor = switch (executorMode) {
+      case BOUNDED -> boundedExecutor(settings.executorThreads(), settings.executorQueueSize(), metrics);
+      case VIRTUAL -> virtualThreadExecutor();
+      case CACHED, DIRECT -> null;
+    };
+    if (settings.bossThreads() > 0 || settings.workerThreads() > 0) {
+      // Netty needs the boss and worker groups and the channel type together
+      final boolean epoll = Epoll.isAvailable();
+      // as gRPC does, a single thread accepts the connections unless told otherwise
+      this.bossGroup = eventLoopGroup(epoll, Math.max(1, settings.bossThreads()), "grpc-boss-");
+      this.workerGroup = eventLoopGroup(epoll, settings.workerThreads(), "grpc-worker-");
+      this.channelType = epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    } else {
+      this.bossGroup = null;
+      this.workerGroup = null;
+      this.channelType = null;
+    }
+    LOGGER.info("gRPC calls run by the [{}] executor", executorMode);
+  }
+
+  /**
+   * @param port the port to listen to, 0 for any free port
+   * @return a server builder configured with the settings, the services still have to be added
+   */
+  public NettyServerBuilder newServerBuilder(int port) {
+    final NettyServerBuilder builder = NettyServerBuilder.forPort(port)
+        .maxInboundMessageSize(settings.maxInboundMessageSize())
+        .keepAliveTime(settings.keepAliveTimeSeconds(), TimeUnit.SECONDS)
+        .keepAliveTimeout(settings.keepAliveTimeoutSeconds(), TimeUnit.SECONDS)
+        .permitKeepAliveTime(settings.permitKeepAliveTimeSeconds(), TimeUnit.SECONDS)
+        .permitKeepAliveWithoutCalls(settings.permitKeepAliveWithoutCalls());
+    if (settings.flowControlWindow() > 0) {
+      builder.flowControlWindow(settings.flowControlWindow());
+    }
+    if (settings.maxConcurrentCallsPerConnection() > 0) {
+      builder.maxConcurrentCallsPerConnection(settings.maxConcurrentCallsPerConnection());
+    }
+    if (bossGroup != null) {
+      builder.bossEventLoopGroup(bossGroup).workerEventLoopGroup(workerGroup).channelType(channelType);
+    }
+    return configureExecutor(builder);
+  }
+
+  /**
+   * Applies the call executor alone, e.g. to an in-process server.
+   */
+  public <T extends ServerBuilder<T>> T configureExecutor(T builder) {
+    switch (executorMode) {
+      case DIRECT -> builder.directExecutor();
+      case BOUNDED -> builder.executor(executor).intercept(new OverloadInterceptor());
+      case VIRTUAL -> builder.executor(executor);
+      case CACHED -> {
+      }
+    }
+    return builder;
+  }
+
+  public CallExecutorMode getExecutorMode() {
+    return executorMode;
+  }
+
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+    if (bossGroup != null) {
+      bossGroup.shutdownGracefully();
+      workerGroup.shutdownGracefully();
+    }
+  }
+
+  private static ExecutorService boundedExecutor(int threads, int queueSize, MediaMetrics metrics) {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueSize), new CustomizableThreadFactory("grpc-call-"), (task, pool) -> {
+          if (pool.isShutdown()) {
+            throw new RejectedExecutionException("The gRPC call executor is shut down");
+          }
+          // a new call is refused by the OverloadInterceptor, the others go on
+          OVERLOADED.set(Boolean.TRUE);
+          try {
+            task.run();
+          } finally {
+            OVERLOADED.remove();
+          }
+        });
+    metrics.monitor("grpc-call", executor);
+    return executor;
+  }
+
+  /**
+   * Closes the calls started while the bounded executor is full, before any other interceptor or handler runs.
+   */
+  private static class OverloadInterceptor implements ServerInterceptor {
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+        ServerCallHandler<ReqT, RespT> next) {
+      if (OVERLOADED.get() == null) {
+        return next.startCall(call, headers);
+      }
+      call.close(Status.RESOURCE_EXHAUSTED.withDescription("The server is at its call capacity, retry later"),
+          new Metadata());
+      return new ServerCall.Listener<>() {
+      };
+    }
+  }
+
+  /**
+   * @return whether the runtime provides virtual threads, looked up reflectively as the service is built for Java 17
+   */
+  public static boolean virtualThreadsAvailable() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  private static ExecutorService virtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Could not create the virtual thread executor", e);
+    }
+  }
+
+  private static EventLoopGroup eventLoopGroup(boolean epoll, int threads, String prefix) {
+    final ThreadFactory threadFactory = new DefaultThreadFactory(prefix, true);
+    return epoll ? new EpollEventLoopGroup(threads, threadFactory) : new NioEventLoopGroup(threads, threadFactory);
+  }
+}
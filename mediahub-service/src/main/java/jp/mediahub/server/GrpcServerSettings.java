@@ -0,0 +1,38 @@
+package jp.mediahub.server;
+
+/**
+ * The settings of the gRPC server, see <code>app.grpc</code> in <code>application.yaml</code>.
+ *
+ * @param executorMode how the calls are run
+ * @param executorThreads threads of the {@link CallExecutorMode#BOUNDED} executor
+ * @param executorQueueSize tasks the {@link CallExecutorMode#BOUNDED} executor queues, past which new calls are refused
+ * @param bossThreads threads accepting the connections, 0 for one
+ * @param workerThreads threads serving the connections, 0 for two per core. The event loops of gRPC are used when
+ * neither is set
+ * @param flowControlWindow HTTP/2 flow control window in bytes, 0 to let gRPC tune it to the bandwidth-delay product
+ * @param maxInboundMessageSize largest message accepted, in bytes
+ * @param maxConcurrentCallsPerConnection calls a client may have in flight on one connection, 0 for no limit
+ * @param keepAliveTimeSeconds idle time before the server pings a client
+ * @param keepAliveTimeoutSeconds time the server waits for the answer to a ping before closing the connection
+ * @param permitKeepAliveTimeSeconds shortest interval accepted between the pings of a client
+ * @param permitKeepAliveWithoutCalls whether a client may ping while it has no call in flight
+ * @author Renato Raeffray
+ */
+public record GrpcServerSettings(CallExecutorMode executorMode, int executorThreads, int executorQueueSize,
+    int bossThreads, int workerThreads, int flowControlWindow, int maxInboundMessageSize, int maxConcurrentCallsPerConnection,
+    long keepAliveTimeSeconds, long keepAliveTimeoutSeconds, long permitKeepAliveTimeSeconds,
+    boolean permitKeepAliveWithoutCalls) {
+
+  /**
+   * @return the defaults of <code>application.yaml</code>
+   */
+  public static GrpcServerSettings defaults() {
+    return new GrpcServerSettings(CallExecutorMode.BOUNDED, 64, 1024, 0, 0, 0, 4194304, 0, 7200, 20, 300, false);
+  }
+
+  public GrpcServerSettings withExecutor(CallExecutorMode executorMode, int executorThreads) {
+    return new GrpcServerSettings(executorMode, executorThreads, executorQueueSize, bossThreads, workerThreads,
+        flowControlWindow, maxInboundMessageSize, maxConcurrentCallsPerConnection, keepAliveTimeSeconds, keepAliveTimeoutSeconds,
+        permitKeepAliveTimeSeconds, permitKeepAliveWithoutCalls);
+  }
+}
@@ -1,9 +1,10 @@
 package jp.mediahub.server;
 
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
 import io.grpc.protobuf.services.ProtoReflectionService;
 import java.io.IOException;
+import jp.mediahub.metrics.MetricsServerInterceptor;
 import jp.mediahub.service.GRPCMediaServiceAPI;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -11,13 +12,13 @@ import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.ComponentScan;
-import org.springframework.context.annotation.EnableAspectJAutoProxy;
 
 /**
  * Main class for the Woven Storage Server application.
  * <p>
- * Annotated with {@link EnableAspectJAutoProxy} is used to enable AspectJ support in the Spring application, used to
- * assess performance in certain methods
+ * Every call to the media service goes through the {@link MetricsServerInterceptor}, measuring its latency and
+ * throughput. The server itself is built by the {@link GrpcServerFactory}, with the executor and transport settings of
+ * <code>app.grpc</code>
  * <p>
  * This class also implements the {@link CommandLineRunner} interface, allowing it to run the GRPCserver after the
  * Spring Boot application has been fully started.
@@ -27,7 +28,6 @@ import org.springframework.context.annotation.EnableAspectJAutoProxy;
  *
  */
 @SpringBootApplication
-@EnableAspectJAutoProxy
 @ComponentScan("jp.mediahub")
 public class MediaHubServer implements CommandLineRunner {
 
@@ -37,6 +37,12 @@ public class MediaHubServer implements CommandLineRunner {
   @Autowired
   private GRPCMediaServiceAPI mediaServiceApi;
 
+  @Autowired
+  private MetricsServerInterceptor metricsServerInterceptor;
+
+  @Autowired
+  private GrpcServerFactory grpcServerFactory;
+
   public static void main(String... args) throws IOException, InterruptedException {
     SpringApplication.run(MediaHubServer.class, args);
   }
@@ -44,10 +50,10 @@ public class MediaHubServer implements CommandLineRunner {
   @Override
   public void run(String... args) throws Exception {
 
-    Server server = ServerBuilder
-        .forPort(RPC_SERVER_PORT)
+    Server server = grpcServerFactory
+        .newServerBuilder(RPC_SERVER_PORT)
         .addService(ProtoReflectionService.newInstance())
-        .addService(mediaServiceApi)
+        .addService(ServerInterceptors.intercept(mediaServiceApi, metricsServerInterceptor))
         .build();
 
     server.start();
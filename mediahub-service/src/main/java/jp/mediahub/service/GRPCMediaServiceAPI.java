@@ -1,27 +1,70 @@
 package jp.mediahub.service;
 
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
-import jp.mediahub.timing.annotation.LogExecutionTime;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import jp.mediahub.exception.ChangeTokenExpiredException;
+import jp.mediahub.exception.InvalidRangeException;
+import jp.mediahub.messages.BundleChunk;
 import jp.mediahub.messages.DeleteMediaRequest;
 import jp.mediahub.messages.DeleteMediaResponse;
+import jp.mediahub.messages.DeleteMediasRequest;
+import jp.mediahub.messages.DeleteMediasResponse;
+import jp.mediahub.messages.FindMediasRequest;
+import jp.mediahub.messages.FindMediasResponse;
+import jp.mediahub.messages.GetMediaBundleRequest;
 import jp.mediahub.repository.MediaRepository;
 import jp.mediahub.messages.CreateMediaResponse;
 import jp.mediahub.messages.GetMediaRequest;
+import jp.mediahub.messages.ListMediaPageRequest;
+import jp.mediahub.messages.ListMediaPageResponse;
 import jp.mediahub.messages.ListMediaRequest;
 import jp.mediahub.messages.ListMediaResponse;
 import jp.mediahub.messages.Media;
+import jp.mediahub.messages.MediaChange;
+import jp.mediahub.messages.MediaChangesRequest;
+import jp.mediahub.messages.MediaChangesResponse;
 import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.messages.MultipartPart;
+import jp.mediahub.messages.MultipartPartReceipt;
+import jp.mediahub.messages.MultipartUpload;
+import jp.mediahub.messages.OpenMultipartUploadRequest;
+import jp.mediahub.messages.OpenUploadSessionRequest;
+import jp.mediahub.messages.UploadPart;
+import jp.mediahub.messages.UploadSession;
+import jp.mediahub.messages.UploadSessionRequest;
+import jp.mediahub.metrics.MediaMetrics;
 import jp.mediahub.services.MediaServiceGrpc.MediaServiceImplBase;
+import jp.mediahub.repository.MediaPage;
+import jp.mediahub.repository.impl.MediaChangeLog;
+import jp.mediahub.stream.ChunkSizing;
+import jp.mediahub.stream.MediaBundleStreaming;
+import jp.mediahub.stream.MediaChangeStreaming;
 import jp.mediahub.stream.MediaDownloadStreaming;
+import jp.mediahub.stream.MediaListStreaming;
 import jp.mediahub.stream.MediaUploadStreaming;
+import jp.mediahub.stream.MultipartPartStreaming;
+import jp.mediahub.stream.UploadSessionStreaming;
+import jp.mediahub.stream.buffer.BufferPool;
+import jp.mediahub.stream.buffer.MemoryBudget;
 import jp.mediahub.stream.container.MediaContainer;
+import jp.mediahub.stream.reactive.ReactiveGridFsStore;
+import jp.mediahub.stream.reactive.ReactiveMediaDownloadStreaming;
+import jp.mediahub.stream.reactive.ReactiveMediaUploadStreaming;
+import jp.mediahub.stream.session.UploadSessionManager;
+import jp.mediahub.stream.session.UploadSessionState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
@@ -44,11 +87,58 @@ public class GRPCMediaServiceAPI extends MediaServiceImplBase {
   @Value("${app.media.buffer.size}")
   private int mediaBufferSize;
 
+  @Value("${app.media.download.chunk.min-size}")
+  private int minChunkSize;
+
+  @Value("${app.media.download.chunk.max-size}")
+  private int maxChunkSize;
+
+  @Value("${app.media.download.chunk.target-millis}")
+  private long chunkTargetMillis;
+
+  @Value("${app.media.upload.queue.size}")
+  private int uploadQueueSize;
+
+  @Value("${app.media.list.page-size.default}")
+  private int defaultPageSize;
+
+  @Value("${app.media.list.page-size.max}")
+  private int maxPageSize;
+
+  @Value("${app.media.batch.max-names}")
+  private int maxBatchNames;
+
   @Autowired
   private MediaRepository mediaRepository;
 
+  @Autowired
+  private MediaChangeLog mediaChangeLog;
+
+  @Autowired
+  private ExecutorService uploadWriterExecutor;
+
+  @Autowired
+  private MediaMetrics mediaMetrics;
+
+  @Autowired
+  private BufferPool bufferPool;
+
+  @Autowired
+  private MemoryBudget memoryBudget;
+
+  // sessions write straight to GridFS, they are not available over other storages
+  @Autowired(required = false)
+  private UploadSessionManager uploadSessionManager;
+
+  // only with the reactive driver, see ReactiveGridFsConfiguration
+  @Autowired(required = false)
+  private ReactiveGridFsStore reactiveGridFsStore;
+
+  @Autowired(required = false)
+  @Qualifier("reactiveFallbackExecutor")
+  private ExecutorService reactiveFallbackExecutor;
+
   @Override
-  @LogExecutionTime
   public void listMedias(ListMediaRequest request, StreamObserver<ListMediaResponse> responseObserver) {
 
     final Optional<List<Media>> maybeAllMedias = mediaRepository.getAllMedias();
@@ -65,19 +155,119 @@ public class GRPCMediaServiceAPI extends MediaServiceImplBase {
     });
   }
 
+  @Override
+  public void listMediaPage(ListMediaPageRequest request, StreamObserver<ListMediaPageResponse> responseObserver) {
+    if (request.getPageSize() < 0) {
+      responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("Negative page size").asRuntimeException());
+      return;
+    }
+    final int pageSize = request.getPageSize() == 0 ? defaultPageSize : Math.min(request.getPageSize(), maxPageSize);
+    try {
+      final MediaPage page = mediaRepository.findMediaPage(request.getResourceOwnerId(), request.getPageToken(),
+          pageSize);
+      responseObserver.onNext(ListMediaPageResponse
+          .newBuilder()
+          .addAllMedias(page.medias())
+          .setNextPageToken(page.nextPageToken())
+          .build());
+      responseObserver.onCompleted();
+    } catch (IllegalArgumentException e) {
+      responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
+
+  @Override
+  public void streamMedias(ListMediaRequest request, StreamObserver<Media> responseObserver) {
+    new MediaListStreaming((ServerCallStreamObserver<Media>) responseObserver, mediaRepository)
+        .start(request.getResourceOwnerId());
+  }
+
+  /**
+   * Returns the media stored and deleted after the change token of the client. A client synchronizes its listing by
+   * getting the current token, listing every media, then polling the changes from that token.
+   */
+  @Override
+  public void getMediaChanges(MediaChangesRequest request, StreamObserver<MediaChangesResponse> responseObserver) {
+    if (request.getMaxChanges() < 0) {
+      responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("Negative max changes").asRuntimeException());
+      return;
+    }
+    final int maxChanges = request.getMaxChanges() == 0
+        ? defaultPageSize
+        : Math.min(request.getMaxChanges(), maxPageSize);
+    try {
+      final String changeToken = request.getChangeToken().isEmpty()
+          ? mediaChangeLog.currentToken()
+          : request.getChangeToken();
+      final List<MediaChange> changes = mediaChangeLog.readChanges(changeToken, maxChanges);
+      responseObserver.onNext(MediaChangesResponse.newBuilder()
+          .addAllChanges(changes)
+          .setNextChangeToken(changes.isEmpty() ? changeToken : changes.get(changes.size() - 1).getChangeToken())
+          .build());
+      responseObserver.onCompleted();
+    } catch (ChangeTokenExpiredException e) {
+      responseObserver.onError(Status.FAILED_PRECONDITION.withDescription(e.getMessage()).asRuntimeException());
+    } catch (IllegalArgumentException e) {
+      responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
+
+  @Override
+  public void watchMediaChanges(MediaChangesRequest request, StreamObserver<MediaChange> responseObserver) {
+    try {
+      new MediaChangeStreaming((ServerCallStreamObserver<MediaChange>) responseObserver, mediaChangeLog,
+          defaultPageSize).start(request.getChangeToken());
+    } catch (IllegalArgumentException e) {
+      responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
+
   @Override
   public StreamObserver<MediaChunk> createStreamMedia(StreamObserver<CreateMediaResponse> responseObserver) {
-    return new MediaUploadStreaming(responseObserver, mediaContainer, mediaRepository);
+    final MemoryBudget.Reservation reservation;
+    try {
+      reservation = memoryBudget.reserve(uploadReservationBytes());
+    } catch (StatusRuntimeException e) {
+      responseObserver.onError(e);
+      return discardingObserver();
+    }
+    if (reactiveGridFsStore != null && reactiveGridFsStore.storesUploads()) {
+      final ReactiveMediaUploadStreaming uploadStreaming = new ReactiveMediaUploadStreaming(
+          (ServerCallStreamObserver<CreateMediaResponse>) responseObserver, reactiveGridFsStore, mediaRepository,
+          mediaChangeLog, uploadQueueSize, reservation);
+      uploadStreaming.start();
+      return uploadStreaming;
+    }
+    final MediaUploadStreaming uploadStreaming = new MediaUploadStreaming(
+        (ServerCallStreamObserver<CreateMediaResponse>) responseObserver, mediaContainer, mediaRepository,
+        mediaChangeLog, uploadWriterExecutor, uploadQueueSize, mediaMetrics, reservation);
+    uploadStreaming.start();
+    return uploadStreaming;
   }
 
   @Override
-  @LogExecutionTime
   public void getStreamMedia(GetMediaRequest request, StreamObserver<MediaChunk> responseObserver) {
-    final MediaDownloadStreaming streamObserver = new MediaDownloadStreaming((ServerCallStreamObserver)responseObserver,
-        mediaContainer, mediaBufferSize);
+    final MemoryBudget.Reservation reservation;
+    try {
+      reservation = memoryBudget.reserve(mediaBufferSize);
+    } catch (StatusRuntimeException e) {
+      responseObserver.onError(e);
+      return;
+    }
+    final Supplier<MediaDownloadStreaming> downloadFactory = () -> new MediaDownloadStreaming(
+        (ServerCallStreamObserver<MediaChunk>) responseObserver, mediaContainer,
+        new ChunkSizing(minChunkSize, mediaBufferSize, maxChunkSize, chunkTargetMillis), mediaMetrics, reservation);
+    if (reactiveGridFsStore != null) {
+      new ReactiveMediaDownloadStreaming((ServerCallStreamObserver<MediaChunk>) responseObserver, reactiveGridFsStore,
+          mediaBufferSize, mediaMetrics, reservation, downloadFactory, reactiveFallbackExecutor).start(request);
+      return;
+    }
+    final MediaDownloadStreaming streamObserver = downloadFactory.get();
     try {
       LOGGER.debug("Media Buffer Size [{}]", mediaBufferSize);
-      streamObserver.read(request.getOriginalName());
+      streamObserver.start(request);
+    } catch (InvalidRangeException e) {
+      responseObserver.onError(Status.OUT_OF_RANGE.withDescription(e.getMessage()).asRuntimeException());
     } catch (Exception e) {
       if(((ServerCallStreamObserver<MediaChunk>) responseObserver).isCancelled()){
         responseObserver
@@ -90,16 +280,271 @@ public class GRPCMediaServiceAPI extends MediaServiceImplBase {
   }
 
   @Override
-  @LogExecutionTime
   public void deleteMedia(DeleteMediaRequest request, StreamObserver<DeleteMediaResponse> responseObserver) {
 
     final Optional<Media> maybeMedia = mediaRepository.findMedia(request.getOriginalName());
 
     maybeMedia.ifPresentOrElse(media -> {
-      mediaRepository.deleteMedia(media.getOriginalName());
+      try {
+        mediaRepository.deleteMedia(media.getOriginalName());
+      } catch (StatusRuntimeException e) {
+        // UNAVAILABLE while an upload references its content
+        responseObserver.onError(e);
+        return;
+      }
+      mediaChangeLog.recordDeleted(List.of(media.getOriginalName()));
       responseObserver.onNext(DeleteMediaResponse.newBuilder().setSuccess(true).build());
       responseObserver.onCompleted();
     }, () -> responseObserver.onError(Status.NOT_FOUND.asRuntimeException()));
 
   }
+
+  @Override
+  public void findMedias(FindMediasRequest request, StreamObserver<FindMediasResponse> responseObserver) {
+    if (batchTooLarge(request.getOriginalNamesCount(), responseObserver)) {
+      return;
+    }
+    final List<Media> medias = mediaRepository.findMedias(request.getOriginalNamesList());
+    responseObserver.onNext(FindMediasResponse.newBuilder()
+        .addAllMedias(medias)
+        .addAllMissingNames(missingNames(request.getOriginalNamesList(),
+            medias.stream().map(Media::getOriginalName).collect(Collectors.toSet())))
+        .build());
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void deleteMedias(DeleteMediasRequest request, StreamObserver<DeleteMediasResponse> responseObserver) {
+    if (batchTooLarge(request.getOriginalNamesCount(), responseObserver)) {
+      return;
+    }
+    final List<String> deletedNames;
+    try {
+      deletedNames = mediaRepository.deleteMedias(request.getOriginalNamesList());
+    } catch (StatusRuntimeException e) {
+      // UNAVAILABLE while an upload references the content of one of them
+      responseObserver.onError(e);
+      return;
+    }
+    mediaChangeLog.recordDeleted(deletedNames);
+    responseObserver.onNext(DeleteMediasResponse.newBuilder()
+        .addAllDeletedNames(deletedNames)
+        .addAllMissingNames(missingNames(request.getOriginalNamesList(), new HashSet<>(deletedNames)))
+        .build());
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void getMediaBundle(GetMediaBundleRequest request, StreamObserver<BundleChunk> responseObserver) {
+    if (batchTooLarge(request.getOriginalNamesCount(), responseObserver)) {
+      return;
+    }
+    final MemoryBudget.Reservation reservation;
+    try {
+      reservation = memoryBudget.reserve(mediaBufferSize);
+    } catch (StatusRuntimeException e) {
+      responseObserver.onError(e);
+      return;
+    }
+    try {
+      new MediaBundleStreaming((ServerCallStreamObserver<BundleChunk>) responseObserver, mediaContainer,
+          mediaRepository, mediaBufferSize, mediaMetrics, reservation).start(request);
+    } catch (RuntimeException e) {
+      LOGGER.error("Bundle download could not start", e);
+      responseObserver.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
+
+  private boolean batchTooLarge(int nameCount, StreamObserver<?> responseObserver) {
+    if (nameCount <= maxBatchNames) {
+      return false;
+    }
+    responseObserver.onError(Status.INVALID_ARGUMENT
+        .withDescription(String.format("[%d] names requested, at most [%d] are accepted", nameCount, maxBatchNames))
+        .asRuntimeException());
+    return true;
+  }
+
+  // the names requested not found, once each, in the order requested
+  private static List<String> missingNames(List<String> requested, Set<String> found) {
+    return requested.stream()
+        .distinct()
+        .filter(name -> !found.contains(name))
+        .toList();
+  }
+
+  @Override
+  public void openUploadSession(OpenUploadSessionRequest request, StreamObserver<UploadSession> responseObserver) {
+    if (sessionsUnavailable(responseObserver)) {
+      return;
+    }
+    if (request.getOriginalName().isEmpty() || request.getTotalSize() < 0) {
+      responseObserver.onError(
+          Status.INVALID_ARGUMENT.withDescription("A name and a non negative size are required").asRuntimeException());
+      return;
+    }
+    final Optional<Media> maybeMedia = mediaRepository.findMedia(request.getOriginalName());
+    if (maybeMedia.isPresent()) {
+      responseObserver.onError(Status.ALREADY_EXISTS
+          .withDescription(String.format("Media already exists: fileName: [%s], hash: [%s]",
+              maybeMedia.get().getOriginalName(), maybeMedia.get().getHash()))
+          .asRuntimeException());
+      return;
+    }
+    responseObserver.onNext(uploadSessionManager.open(request).toUploadSession(false));
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void getUploadSession(UploadSessionRequest request, StreamObserver<UploadSession> responseObserver) {
+    if (sessionsUnavailable(responseObserver)) {
+      return;
+    }
+    uploadSessionManager.find(request.getSessionId()).ifPresentOrElse(session -> {
+      responseObserver.onNext(session.toUploadSession(false));
+      responseObserver.onCompleted();
+    }, () -> responseObserver.onError(Status.NOT_FOUND.asRuntimeException()));
+  }
+
+  @Override
+  public StreamObserver<UploadPart> uploadSessionParts(StreamObserver<UploadSession> responseObserver) {
+    if (sessionsUnavailable(responseObserver)) {
+      return discardingObserver();
+    }
+    final MemoryBudget.Reservation reservation;
+    try {
+      reservation = memoryBudget.reserve(uploadReservationBytes());
+    } catch (StatusRuntimeException e) {
+      responseObserver.onError(e);
+      return discardingObserver();
+    }
+    final UploadSessionStreaming sessionStreaming = new UploadSessionStreaming(
+        (ServerCallStreamObserver<UploadSession>) responseObserver, uploadSessionManager, mediaRepository,
+        uploadWriterExecutor, uploadQueueSize, mediaMetrics, bufferPool, reservation);
+    sessionStreaming.start();
+    return sessionStreaming;
+  }
+
+  @Override
+  public void openMultipartUpload(OpenMultipartUploadRequest request,
+      StreamObserver<MultipartUpload> responseObserver) {
+    if (sessionsUnavailable(responseObserver)) {
+      return;
+    }
+    if (request.getOriginalName().isEmpty() || request.getTotalSize() < 0 || request.getPartSize() < 0) {
+      responseObserver.onError(Status.INVALID_ARGUMENT
+          .withDescription("A name and a non negative size and part size are required").asRuntimeException());
+      return;
+    }
+    final Optional<Media> maybeMedia = mediaRepository.findMedia(request.getOriginalName());
+    if (maybeMedia.isPresent()) {
+      responseObserver.onError(Status.ALREADY_EXISTS
+          .withDescription(String.format("Media already exists: fileName: [%s], hash: [%s]",
+              maybeMedia.get().getOriginalName(), maybeMedia.get().getHash()))
+          .asRuntimeException());
+      return;
+    }
+    responseObserver.onNext(uploadSessionManager.openMultipart(request).toMultipartUpload());
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void getMultipartUpload(UploadSessionRequest request, StreamObserver<MultipartUpload> responseObserver) {
+    if (sessionsUnavailable(responseObserver)) {
+      return;
+    }
+    findMultipartUpload(request, responseObserver).ifPresent(session -> {
+      responseObserver.onNext(session.toMultipartUpload());
+      responseObserver.onCompleted();
+    });
+  }
+
+  @Override
+  public StreamObserver<MultipartPart> uploadMultipartPart(StreamObserver<MultipartPartReceipt> responseObserver) {
+    if (sessionsUnavailable(responseObserver)) {
+      return discardingObserver();
+    }
+    final MemoryBudget.Reservation reservation;
+    try {
+      reservation = memoryBudget.reserve(uploadReservationBytes());
+    } catch (StatusRuntimeException e) {
+      responseObserver.onError(e);
+      return discardingObserver();
+    }
+    final MultipartPartStreaming partStreaming = new MultipartPartStreaming(
+        (ServerCallStreamObserver<MultipartPartReceipt>) responseObserver, uploadSessionManager, uploadWriterExecutor,
+        uploadQueueSize, mediaMetrics, bufferPool, reservation);
+    partStreaming.start();
+    return partStreaming;
+  }
+
+  @Override
+  public void completeMultipartUpload(UploadSessionRequest request, StreamObserver<Media> responseObserver) {
+    if (sessionsUnavailable(responseObserver)) {
+      return;
+    }
+    findMultipartUpload(request, responseObserver).ifPresent(session -> {
+      try {
+        responseObserver.onNext(uploadSessionManager.completeMultipart(session));
+        responseObserver.onCompleted();
+      } catch (StatusRuntimeException e) {
+        responseObserver.onError(e);
+      }
+    });
+  }
+
+  @Override
+  public void abortMultipartUpload(UploadSessionRequest request, StreamObserver<MultipartUpload> responseObserver) {
+    if (sessionsUnavailable(responseObserver)) {
+      return;
+    }
+    findMultipartUpload(request, responseObserver).ifPresent(session -> {
+      uploadSessionManager.discard(session);
+      responseObserver.onNext(session.toMultipartUpload());
+      responseObserver.onCompleted();
+    });
+  }
+
+  private Optional<UploadSessionState> findMultipartUpload(UploadSessionRequest request,
+      StreamObserver<?> responseObserver) {
+    final Optional<UploadSessionState> session = uploadSessionManager.find(request.getSessionId())
+        .filter(UploadSessionState::isMultipart);
+    if (session.isEmpty()) {
+      responseObserver.onError(Status.NOT_FOUND
+          .withDescription(String.format("No multipart upload [%s]", request.getSessionId()))
+          .asRuntimeException());
+    }
+    return session;
+  }
+
+  // an upload holds up to a queue of chunks, expected to be about the size of the download buffer
+  private long uploadReservationBytes() {
+    return (long) uploadQueueSize * mediaBufferSize;
+  }
+
+  // ignores the messages of a call already answered
+  private static <T> StreamObserver<T> discardingObserver() {
+    return new StreamObserver<>() {
+      @Override
+      public void onNext(T message) {
+      }
+
+      @Override
+      public void onError(Throwable t) {
+      }
+
+      @Override
+      public void onCompleted() {
+      }
+    };
+  }
+
+  private boolean sessionsUnavailable(StreamObserver<?> responseObserver) {
+    if (uploadSessionManager == null) {
+      responseObserver.onError(
+          Status.UNIMPLEMENTED.withDescription("Upload sessions are not available").asRuntimeException());
+      return true;
+    }
+    return false;
+  }
 }
@@ -0,0 +1,28 @@
+package jp.mediahub.shard;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.GridFSBucket;
+import jp.mediahub.repository.impl.DefaultMediaRepository;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+/**
+ * One of the GridFS buckets the media are spread across, in its own database, possibly of another cluster.
+ *
+ * @param id the name of the shard, placing the media on the ring: it must not change once media are stored
+ * @param gridFSBucket the bucket of the shard
+ * @param mongoTemplate the template of the database of the shard
+ * @param repository the repository of the media of the shard
+ * @author Renato Raeffray
+ */
+public record MediaShard(String id, GridFSBucket gridFSBucket, MongoTemplate mongoTemplate,
+                         DefaultMediaRepository repository) {
+
+  public MongoCollection<Document> filesCollection() {
+    return mongoTemplate.getCollection(gridFSBucket.getBucketName() + ".files");
+  }
+
+  public MongoCollection<Document> chunksCollection() {
+    return mongoTemplate.getCollection(gridFSBucket.getBucketName() + ".chunks");
+  }
+}
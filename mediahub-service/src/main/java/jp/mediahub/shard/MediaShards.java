@@ -0,0 +1,114 @@
+package jp.mediahub.shard;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The shards the media are spread across, placed by consistent hashing of their name.
+ * <p>
+ * Every shard takes <code>virtualNodes</code> points on a ring of 64 bits hashes, a media belonging to the shard of
+ * the first point at or after the hash of its name. Adding a shard only moves the media falling right before its
+ * points, about <code>1 / shards</code> of them, all taken from the shards already there, see
+ * {@link ShardRebalancer}. Until they are moved, those media are found by probing the other shards, in ring order.
+ * <p>
+ * The version of the ring identifies the shards and their points, it changes only when the media have to be moved.
+ *
+ * @author Renato Raeffray
+ */
+public class MediaShards {
+
+  private final List<MediaShard> shards;
+
+  private final NavigableMap<Long, MediaShard> ring = new TreeMap<>();
+
+  private final String version;
+
+  public MediaShards(List<MediaShard> shards, int virtualNodes) {
+    this.shards = List.copyOf(shards);
+    for (MediaShard shard : shards) {
+      for (int node = 0; node < virtualNodes; node++) {
+        ring.put(hash(shard.id() + "#" + node), shard);
+      }
+    }
+    // the points of the ring, whatever the order the shards are configured in
+    final StringBuilder points = new StringBuilder();
+    ring.forEach((point, shard) -> points.append(point).append('=').append(shard.id()).append(','));
+    this.version = HexFormat.of().toHexDigits(hash(points.toString()));
+  }
+
+  /**
+   * @param mediaName the name of a media
+   * @return the shard the media belongs to
+   */
+  public MediaShard ownerOf(String mediaName) {
+    final Map.Entry<Long, MediaShard> point = ring.ceilingEntry(hash(mediaName));
+    return point != null ? point.getValue() : ring.firstEntry().getValue();
+  }
+
+  /**
+   * @param mediaName the name of a media
+   * @return every shard, the one the media belongs to first, then the others in ring order
+   */
+  public List<MediaShard> probeOrder(String mediaName) {
+    final Set<MediaShard> order = new LinkedHashSet<>();
+    final long hash = hash(mediaName);
+    order.addAll(ring.tailMap(hash, true).values());
+    order.addAll(ring.headMap(hash, false).values());
+    return new ArrayList<>(order);
+  }
+
+  /**
+   * @return every shard, in the order configured
+   */
+  public List<MediaShard> all() {
+    return shards;
+  }
+
+  /**
+   * @return the first shard configured, the one storing the upload sessions
+   */
+  public MediaShard primary() {
+    return shards.get(0);
+  }
+
+  /**
+   * @return the version of the ring, the same for the same shards and virtual nodes
+   */
+  public String version() {
+    return version;
+  }
+
+  /**
+   * @param mediaNames names of media
+   * @return the names, grouped by the shard they belong to
+   */
+  public Map<MediaShard, List<String>> groupByOwner(Collection<String> mediaNames) {
+    final Map<MediaShard, List<String>> groups = new LinkedHashMap<>();
+    for (String mediaName : new LinkedHashSet<>(mediaNames)) {
+      groups.computeIfAbsent(ownerOf(mediaName), shard -> new ArrayList<>()).add(mediaName);
+    }
+    return groups;
+  }
+
+  // the first 64 bits of the MD5, spread evenly whatever the names look like
+  private static long hash(String key) {
+    try {
+      final byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      return ByteBuffer.wrap(digest).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package jp.mediahub.shard;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import jp.mediahub.repository.MediaRepository;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Moves the media stored on a shard they do not belong to, e.g. once a shard is added, or when stored by an upload
+ * session, which always writes to the primary shard, while the service keeps serving them.
+ * <p>
+ * Every <code>intervalSeconds</code>, on its own thread, the version of the ring is compared to the one of the last
+ * pass, kept in the state collection. Only when it changed are the media of every shard scanned, otherwise only those
+ * the upload sessions stored on the primary shard since the last pass. A pass with media not moved is run again.
+ * <p>
+ * Each media is copied document by document, its file document and its chunks, or those of the content it
+ * references, so it is described on the shard it belongs to exactly as it was, whatever the algorithm of its hash or
+ * the encoding of its content. The copy holds its own chunks, it is not deduplicated against the content already
+ * stored there. The file document is inserted once the chunks are, then the media is deleted from the shard it was
+ * stored on. Meanwhile, it is found on both, listings showing it twice. A media deleted during its copy is deleted
+ * from the shard it was copied to as well.
+ *
+ * @author Renato Raeffray
+ */
+public class ShardRebalancer {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ShardRebalancer.class);
+
+  private static final String STATE_ID = "ring";
+
+  private static final String VERSION_KEY = "version";
+
+  private static final String SCANNED_UNTIL_KEY = "scannedUntil";
+
+  private static final String UPLOAD_DATE_KEY = "uploadDate";
+
+  // the upload date is taken before the file document is inserted, the media of the last minute are scanned again
+  private static final long INSERT_MARGIN_MILLIS = 60_000;
+
+  private static final int COPY_BATCH_CHUNKS = 16;
+
+  private final MediaShards shards;
+
+  private final MediaRepository mediaRepository;
+
+  private final MongoCollection<Document> stateCollection;
+
+  private final long intervalSeconds;
+
+  private ScheduledExecutorService executor;
+
+  public ShardRebalancer(MediaShards shards, MediaRepository mediaRepository,
+      MongoCollection<Document> stateCollection, long intervalSeconds) {
+    this.shards = shards;
+    this.mediaRepository = mediaRepository;
+    this.stateCollection = stateCollection;
+    this.intervalSeconds = intervalSeconds;
+  }
+
+  @PostConstruct
+  public void start() {
+    // the passes of an unchanged ring look the media of the upload sessions up by date
+    shards.primary().filesCollection().createIndex(Indexes.ascending(UPLOAD_DATE_KEY));
+    executor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("shard-rebalancer-"));
+    executor.scheduleWithFixedDelay(this::rebalance, 0, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Moves every media found on a shard it does not belong to: on every shard if the ring changed since the last pass,
+   * otherwise on the primary shard among the media stored since then.
+   */
+  public void rebalance() {
+    try {
+      final Date passStart = new Date();
+      final Document state = stateCollection.find(Filters.eq(STATE_ID)).first();
+      final boolean ringChanged = state == null || !shards.version().equals(state.getString(VERSION_KEY));
+      int failed = 0;
+      if (ringChanged) {
+        LOGGER.info("Ring version [{}] not rebalanced yet, scanning every shard", shards.version());
+        for (MediaShard source : shards.all()) {
+          failed += rebalance(source, new Document());
+        }
+      } else {
+        final Date scannedUntil = state.getDate(SCANNED_UNTIL_KEY);
+        failed += rebalance(shards.primary(),
+            Filters.gte(UPLOAD_DATE_KEY, new Date(scannedUntil.getTime() - INSERT_MARGIN_MILLIS)));
+      }
+      if (failed > 0) {
+        // the same media are scanned by the next pass
+        return;
+      }
+      stateCollection.replaceOne(Filters.eq(STATE_ID), new Document("_id", STATE_ID)
+          .append(VERSION_KEY, shards.version())
+          .append(SCANNED_UNTIL_KEY, passStart), new ReplaceOptions().upsert(true));
+    } catch (RuntimeException e) {
+      LOGGER.error("Shards could not be rebalanced, retrying in [{}] s", intervalSeconds, e);
+    }
+  }
+
+  // moves the media of the source matching the filter, returns how many could not be moved
+  private int rebalance(MediaShard source, Bson filter) {
+    int moved = 0;
+    int failed = 0;
+    String previousName = null;
+    for (Document file : source.filesCollection().find(filter)
+        .projection(Projections.include(MediaRepository.FILENAME_KEY))
+        .sort(Sorts.ascending(MediaRepository.FILENAME_KEY))) {
+      final String mediaName = file.getString(MediaRepository.FILENAME_KEY);
+      // revisions of a name are moved together, as its latest
+      if (mediaName.equals(previousName)) {
+        continue;
+      }
+      previousName = mediaName;
+      final MediaShard target = shards.ownerOf(mediaName);
+      if (target.equals(source)) {
+        continue;
+      }
+      try {
+        move(mediaName, source, target);
+        moved++;
+      } catch (RuntimeException e) {
+        failed++;
+        LOGGER.error("Media [{}] could not be moved from shard [{}] to [{}]", mediaName, source.id(), target.id(), e);
+      }
+    }
+    if (moved > 0) {
+      LOGGER.info("[{}] media moved from shard [{}] to the shards they belong to", moved, source.id());
+    }
+    return failed;
+  }
+
+  private void move(String mediaName, MediaShard source, MediaShard target) {
+    if (target.repository().findMedia(mediaName).isEmpty()) {
+      final Document file = source.filesCollection().find(Filters.eq(MediaRepository.FILENAME_KEY, mediaName))
+          .sort(Sorts.descending(UPLOAD_DATE_KEY))
+          .first();
+      if (file == null) {
+        return;
+      }
+      copy(file, source, target);
+      if (source.repository().findMedia(mediaName).isEmpty()) {
+        // deleted during the copy
+        target.repository().deleteMedia(mediaName);
+        mediaRepository.invalidate(mediaName);
+        return;
+      }
+    }
+    source.repository().deleteMedia(mediaName);
+    mediaRepository.invalidate(mediaName);
+    LOGGER.debug("Media [{}] moved from shard [{}] to [{}]", mediaName, source.id(), target.id());
+  }
+
+  private void copy(Document file, MediaShard source, MediaShard target) {
+    final ObjectId blobId = file.get("metadata", new Document()).getObjectId(MediaRepository.BLOB_ID_KEY);
+    final Object contentId = blobId != null ? blobId : file.get("_id");
+    final ObjectId copyId = new ObjectId();
+    try {
+      final List<Document> chunks = new ArrayList<>(COPY_BATCH_CHUNKS);
+      for (Document chunk : source.chunksCollection().find(Filters.eq("files_id", contentId))
+          .sort(Sorts.ascending("n"))
+          .batchSize(COPY_BATCH_CHUNKS)) {
+        chunks.add(copyChunk(chunk, copyId));
+        if (chunks.size() == COPY_BATCH_CHUNKS) {
+          target.chunksCollection().insertMany(chunks);
+          chunks.clear();
+        }
+      }
+      if (!chunks.isEmpty()) {
+        target.chunksCollection().insertMany(chunks);
+      }
+      // visible once complete
+      target.filesCollection().insertOne(copyFile(file, copyId));
+    } catch (RuntimeException e) {
+      target.chunksCollection().deleteMany(Filters.eq("files_id", copyId));
+      throw e;
+    }
+  }
+
+  /**
+   * @param file the file document of a media, an owner of its content, a reference or an inline one
+   * @param copyId the id of the copy
+   * @return the file document of the copy, described as the original but owning the chunks copied, counted by its
+   *     own name only
+   */
+  static Document copyFile(Document file, ObjectId copyId) {
+    final Document metadata = new Document(file.get("metadata", new Document()));
+    // the references pending on the original are counted by it only, as its deletion claims it only
+    metadata.remove(MediaRepository.PENDING_REFERENCES_KEY);
+    metadata.remove(MediaRepository.DELETING_KEY);
+    if (metadata.remove(MediaRepository.BLOB_ID_KEY) != null
+        || metadata.containsKey(MediaRepository.REF_COUNT_KEY)) {
+      metadata.put(MediaRepository.REF_COUNT_KEY, 1);
+    }
+    final Document copy = new Document(file);
+    copy.put("_id", copyId);
+    copy.put("metadata", metadata);
+    return copy;
+  }
+
+  /**
+   * @param chunk a chunk of the content of a media
+   * @param copyId the id of the file document of the copy
+   * @return the same chunk, of the copy
+   */
+  static Document copyChunk(Document chunk, ObjectId copyId) {
+    final Document copy = new Document(chunk);
+    copy.put("_id", new ObjectId());
+    copy.put("files_id", copyId);
+    return copy;
+  }
+}
@@ -0,0 +1,66 @@
+package jp.mediahub.shard;
+
+import com.mongodb.MongoGridFSException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Function;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.stream.container.DownloadStream;
+import jp.mediahub.stream.container.MediaContainer;
+import jp.mediahub.stream.container.UploadStream;
+
+/**
+ * {@link MediaContainer} routing every media to the container of the shard it belongs to, see {@link MediaShards}.
+ * <p>
+ * Uploads always go to the shard the media belongs to, so the writes of a single bucket are spread across the shards.
+ * Downloads open the media on that shard first, then on the others, where it may still be until the
+ * {@link ShardRebalancer} moves it.
+ *
+ * @author Renato Raeffray
+ */
+public class ShardedMediaContainer implements MediaContainer {
+
+  private final MediaShards shards;
+
+  // shard id -> the container storing its media
+  private final Map<String, MediaContainer> containers;
+
+  public ShardedMediaContainer(MediaShards shards, Map<String, MediaContainer> containers) {
+    this.shards = shards;
+    this.containers = Map.copyOf(containers);
+  }
+
+  @Override
+  public UploadStream openStreamForUpload(MediaChunk media) {
+    return containerOf(shards.ownerOf(media.getOriginalName())).openStreamForUpload(media);
+  }
+
+  @Override
+  public DownloadStream openStreamForDownload(String mediaName, long offset) {
+    return probe(mediaName, container -> container.openStreamForDownload(mediaName, offset));
+  }
+
+  @Override
+  public DownloadStream openEncodedStreamForDownload(String mediaName, Collection<String> acceptedEncodings) {
+    return probe(mediaName, container -> container.openEncodedStreamForDownload(mediaName, acceptedEncodings));
+  }
+
+  private MediaContainer containerOf(MediaShard shard) {
+    return containers.get(shard.id());
+  }
+
+  // the media not found on any shard fails as it does on the shard it belongs to
+  private DownloadStream probe(String mediaName, Function<MediaContainer, DownloadStream> open) {
+    MongoGridFSException notFound = null;
+    for (MediaShard shard : shards.probeOrder(mediaName)) {
+      try {
+        return open.apply(containerOf(shard));
+      } catch (MongoGridFSException e) {
+        if (notFound == null) {
+          notFound = e;
+        }
+      }
+    }
+    throw notFound;
+  }
+}
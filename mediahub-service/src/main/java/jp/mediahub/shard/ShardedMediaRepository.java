@@ -0,0 +1,182 @@
+package jp.mediahub.shard;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import jp.mediahub.messages.Media;
+import jp.mediahub.repository.MediaPage;
+import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.repository.impl.DefaultMediaRepository;
+import org.bson.Document;
+
+/**
+ * Repository of the media spread across the {@link MediaShards}.
+ * <p>
+ * A media is looked up on the shard it belongs to first, then on the others, where it may still be until the
+ * {@link ShardRebalancer} moves it. Batches are grouped by shard, one query per shard, and deletions go to every
+ * shard. Listings query every shard and merge their results by name, in the order MongoDB sorts them, so the page
+ * tokens are the ones of a single shard: each shard resumes after the name and id of the last media of the page.
+ *
+ * @author Renato Raeffray
+ */
+public class ShardedMediaRepository implements MediaRepository {
+
+  // the order of the name index of every shard: names by their UTF-8 bytes, then ids
+  private static final Comparator<Document> NAME_ORDER = Comparator
+      .comparing((Document file) -> file.getString(FILENAME_KEY).getBytes(StandardCharsets.UTF_8),
+          Arrays::compareUnsigned)
+      .thenComparing(file -> file.getObjectId("_id"));
+
+  private static final Comparator<Media> MEDIA_ORDER = Comparator
+      .comparing((Media media) -> media.getOriginalName().getBytes(StandardCharsets.UTF_8), Arrays::compareUnsigned);
+
+  private final MediaShards shards;
+
+  public ShardedMediaRepository(MediaShards shards) {
+    this.shards = shards;
+  }
+
+  @Override
+  public Optional<List<Media>> getAllMedias() {
+    final List<Media> medias = new ArrayList<>();
+    for (MediaShard shard : shards.all()) {
+      shard.repository().getAllMedias().ifPresent(medias::addAll);
+    }
+    return Optional.of(medias);
+  }
+
+  @Override
+  public Optional<Media> findMedia(String fileName) {
+    for (MediaShard shard : shards.probeOrder(fileName)) {
+      final Optional<Media> media = shard.repository().findMedia(fileName);
+      if (media.isPresent()) {
+        return media;
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Looks the names up on the shards they belong to, then the names not found there on the other shards.
+   */
+  @Override
+  public List<Media> findMedias(Collection<String> fileNames) {
+    final Map<String, Media> medias = new LinkedHashMap<>();
+    shards.groupByOwner(fileNames).forEach((shard, names) ->
+        shard.repository().findMedias(names).forEach(media -> medias.put(media.getOriginalName(), media)));
+    final Set<String> missing = new LinkedHashSet<>(fileNames);
+    missing.removeAll(medias.keySet());
+    for (MediaShard shard : shards.all()) {
+      if (missing.isEmpty()) {
+        break;
+      }
+      for (Media media : shard.repository().findMedias(missing)) {
+        medias.put(media.getOriginalName(), media);
+        missing.remove(media.getOriginalName());
+      }
+    }
+    final List<Media> found = new ArrayList<>();
+    for (String fileName : new LinkedHashSet<>(fileNames)) {
+      if (medias.containsKey(fileName)) {
+        found.add(medias.get(fileName));
+      }
+    }
+    return found;
+  }
+
+  @Override
+  public MediaPage findMediaPage(String resourceOwnerId, String pageToken, int pageSize) {
+    final List<Document> files = new ArrayList<>();
+    // one more than the page size on each shard tells whether there is a next page
+    for (MediaShard shard : shards.all()) {
+      files.addAll(shard.repository().findFilePage(resourceOwnerId, pageToken, pageSize + 1));
+    }
+    files.sort(NAME_ORDER);
+    final List<Media> medias = files.stream().limit(pageSize).map(DefaultMediaRepository::toMedia).toList();
+    return new MediaPage(medias, files.size() > pageSize
+        ? DefaultMediaRepository.pageToken(files.get(pageSize - 1))
+        : "");
+  }
+
+  /**
+   * Merges the streams of every shard, each backed by its own cursor, reading one media ahead on each.
+   */
+  @Override
+  public Stream<Media> streamMedias(String resourceOwnerId) {
+    final List<Stream<Media>> streams = new ArrayList<>();
+    for (MediaShard shard : shards.all()) {
+      streams.add(shard.repository().streamMedias(resourceOwnerId));
+    }
+    final Iterator<Media> merged = new MergingIterator(streams.stream().map(Stream::iterator).toList());
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED), false)
+        .onClose(() -> streams.forEach(Stream::close));
+  }
+
+  @Override
+  public void deleteMedia(String fileName) {
+    for (MediaShard shard : shards.probeOrder(fileName)) {
+      shard.repository().deleteMedia(fileName);
+    }
+  }
+
+  @Override
+  public List<String> deleteMedias(Collection<String> fileNames) {
+    final Set<String> deleted = new LinkedHashSet<>();
+    for (MediaShard shard : shards.all()) {
+      deleted.addAll(shard.repository().deleteMedias(fileNames));
+    }
+    return new ArrayList<>(deleted);
+  }
+
+  // a k-way merge of iterators sorted by name
+  private static class MergingIterator implements Iterator<Media> {
+
+    private final PriorityQueue<Head> heads = new PriorityQueue<>(
+        Comparator.comparing((Head head) -> head.media, MEDIA_ORDER));
+
+    MergingIterator(List<Iterator<Media>> iterators) {
+      for (Iterator<Media> iterator : iterators) {
+        advance(iterator);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !heads.isEmpty();
+    }
+
+    @Override
+    public Media next() {
+      final Head head = heads.poll();
+      if (head == null) {
+        throw new NoSuchElementException();
+      }
+      advance(head.iterator);
+      return head.media;
+    }
+
+    private void advance(Iterator<Media> iterator) {
+      if (iterator.hasNext()) {
+        heads.add(new Head(iterator.next(), iterator));
+      }
+    }
+
+    private record Head(Media media, Iterator<Media> iterator) {
+    }
+  }
+}
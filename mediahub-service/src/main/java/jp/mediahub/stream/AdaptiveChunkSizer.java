@@ -0,0 +1,111 @@
+package jp.mediahub.stream;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes the chunks of one download, within the bounds of its {@link ChunkSizing}.
+ * <p>
+ * A download sends chunks in rounds, each one starting when gRPC reports the transport ready and ending when it is not
+ * anymore. The bytes sent in a round, over the time until the next one starts, measure how fast the client drains the
+ * stream, network and flow control included. The chunk size follows that throughput, so a chunk takes about
+ * <code>targetMillis</code> to be received: a fast client on the LAN gets large chunks, amortizing the per-message cost,
+ * a slow one gets small chunks, holding less memory. A round sending many chunks before the transport pushes back also
+ * doubles the size, as the throughput measured lags behind.
+ * <p>
+ * A media, or range, fitting in the largest chunk is sent in a single one. Otherwise the chunks end on the storage
+ * blocks of the media, e.g. its GridFS chunks, so every chunk is read from whole blocks.
+ *
+ * @author Renato Raeffray
+ */
+public class AdaptiveChunkSizer {
+
+  // a round sending as many chunks never saw the transport push back
+  private static final int EAGER_ROUND_CHUNKS = 4;
+
+  // weight of the last round in the throughput
+  private static final double SMOOTHING = 0.5;
+
+  private final ChunkSizing sizing;
+
+  private final int blockSize;
+
+  private final long targetNanos;
+
+  private int size;
+
+  // bytes per nanosecond, 0 until measured
+  private double throughput;
+
+  private long roundStart;
+
+  private long roundBytes;
+
+  private int roundChunks;
+
+  private boolean started;
+
+  public AdaptiveChunkSizer(ChunkSizing sizing, int blockSize) {
+    this.sizing = sizing;
+    this.blockSize = blockSize;
+    this.targetNanos = TimeUnit.MILLISECONDS.toNanos(sizing.targetMillis());
+    this.size = clamp(sizing.initialSize());
+  }
+
+  /**
+   * Called when the transport is ready again, adapts the size to the round that just ended.
+   *
+   * @param now the current {@link System#nanoTime()}
+   */
+  public void roundStarted(long now) {
+    if (roundBytes > 0 && !sizing.isFixed()) {
+      final long elapsed = Math.max(1, now - roundStart);
+      final double roundThroughput = (double) roundBytes / elapsed;
+      throughput = throughput == 0 ? roundThroughput : SMOOTHING * roundThroughput + (1 - SMOOTHING) * throughput;
+      long adapted = (long) (throughput * targetNanos);
+      if (roundChunks >= EAGER_ROUND_CHUNKS) {
+        adapted = Math.max(adapted, 2L * size);
+      }
+      size = clamp(adapted);
+    }
+    roundStart = now;
+    roundBytes = 0;
+    roundChunks = 0;
+  }
+
+  /**
+   * @param position absolute position of the next byte read
+   * @param remaining bytes left in the current range
+   * @return the length of the next chunk
+   */
+  public int next(long position, long remaining) {
+    if (!started && remaining <= sizing.maxSize()) {
+      return (int) remaining;
+    }
+    int length = (int) Math.min(size, remaining);
+    if (blockSize > 0 && length >= blockSize && length < remaining) {
+      final long end = position + length;
+      final long alignedEnd = end - end % blockSize;
+      if (alignedEnd > position) {
+        length = (int) (alignedEnd - position);
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Records a chunk sent.
+   */
+  public void sent(int length) {
+    started = true;
+    roundBytes += length;
+    roundChunks++;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  private int clamp(long length) {
+    return (int) Math.max(sizing.minSize(), Math.min(sizing.maxSize(), length));
+  }
+}
@@ -0,0 +1,26 @@
+package jp.mediahub.stream;
+
+/**
+ * Bounds of the chunks sent by the downloads, see <code>app.media.download.chunk</code> in
+ * <code>application.yaml</code>.
+ *
+ * @param minSize smallest chunk, sent to the slowest clients
+ * @param initialSize chunk sent before the throughput of the client is known
+ * @param maxSize largest chunk, it must stay below the max inbound message size of the clients (4 MB by default)
+ * @param targetMillis time the client should take to receive a chunk, the chunks are sized to its throughput
+ * accordingly
+ * @author Renato Raeffray
+ */
+public record ChunkSizing(int minSize, int initialSize, int maxSize, long targetMillis) {
+
+  /**
+   * @return chunks of a single size, whatever the client and the media
+   */
+  public static ChunkSizing fixed(int size) {
+    return new ChunkSizing(size, size, size, 0);
+  }
+
+  public boolean isFixed() {
+    return minSize == maxSize;
+  }
+}
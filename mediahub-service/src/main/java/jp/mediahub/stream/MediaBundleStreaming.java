@@ -0,0 +1,227 @@
+package jp.mediahub.stream;
+
+import com.google.protobuf.UnsafeByteOperations;
+import com.mongodb.MongoGridFSException;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import jp.mediahub.messages.BundleChunk;
+import jp.mediahub.messages.GetMediaBundleRequest;
+import jp.mediahub.messages.Media;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.metrics.MediaMetrics;
+import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.stream.buffer.MemoryBudget;
+import jp.mediahub.stream.container.DownloadStream;
+import jp.mediahub.stream.container.MediaContainer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams several media in a single call, one after the other in the order requested, each in one or more
+ * {@link BundleChunk}: the first one carries the {@link Media}, the last one is flagged as such, and a media not found
+ * is sent as a single piece flagged as missing.
+ * <p>
+ * The metadata of the whole bundle is fetched with a single query to the {@link MediaRepository}, the content of each
+ * media being then read from the {@link MediaContainer}. As {@link MediaDownloadStreaming} does, the bundle is driven
+ * by the gRPC flow control, only one media is open at a time and each piece, of at most <code>chunkSize</code> bytes, is
+ * read into an array of its own, wrapped by the message without copying it.
+ *
+ * @author Renato Raeffray
+ */
+public class MediaBundleStreaming implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MediaBundleStreaming.class);
+
+  private final ServerCallStreamObserver<BundleChunk> observer;
+
+  private final MediaContainer mediaContainer;
+
+  private final MediaRepository mediaRepository;
+
+  private final int chunkSize;
+
+  private final MediaMetrics metrics;
+
+  private final MemoryBudget.Reservation reservation;
+
+  private List<String> names;
+
+  private List<String> acceptEncodings;
+
+  private Map<String, Media> medias;
+
+  // position in the request of the media being sent
+  private int index;
+
+  private Media media;
+
+  private DownloadStream stream;
+
+  private long position;
+
+  private boolean finished;
+
+  public MediaBundleStreaming(ServerCallStreamObserver<BundleChunk> observer, MediaContainer mediaContainer,
+      MediaRepository mediaRepository, int chunkSize, MediaMetrics metrics, MemoryBudget.Reservation reservation) {
+    this.observer = observer;
+    this.mediaContainer = mediaContainer;
+    this.mediaRepository = mediaRepository;
+    this.chunkSize = chunkSize;
+    this.metrics = metrics;
+    this.reservation = reservation;
+  }
+
+  /**
+   * Looks up the media of the bundle and registers the handlers that stream them to the observer. It must be called
+   * from the service method, before it returns.
+   *
+   * @param request the request naming the media of the bundle
+   */
+  public void start(GetMediaBundleRequest request) {
+    this.names = request.getOriginalNamesList();
+    this.acceptEncodings = request.getAcceptEncodingsList();
+    try {
+      this.medias = mediaRepository.findMedias(names).stream()
+          .collect(Collectors.toMap(Media::getOriginalName, Function.identity(), (first, second) -> first));
+    } catch (RuntimeException e) {
+      finish();
+      throw e;
+    }
+
+    observer.setOnCancelHandler(this::cancel);
+    observer.setOnReadyHandler(this);
+  }
+
+  /**
+   * Sends pieces while the transport is ready. Called by gRPC, serialized with the other call events, every time the
+   * stream becomes ready again.
+   */
+  @Override
+  public void run() {
+    if (finished) {
+      return;
+    }
+    try {
+      while (observer.isReady() && index < names.size()) {
+        if (stream == null) {
+          open();
+        } else {
+          sendPiece();
+        }
+      }
+      if (index >= names.size()) {
+        finish();
+        observer.onCompleted();
+      }
+    } catch (IOException | RuntimeException e) {
+      LOGGER.error("Bundle download failed at media [{}]", index < names.size() ? names.get(index) : null, e);
+      finish();
+      observer.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
+
+  // opens the next media, or sends it right away when it is missing or empty
+  private void open() throws IOException {
+    final String name = names.get(index);
+    media = medias.get(name);
+    if (media != null) {
+      try {
+        stream = acceptEncodings.isEmpty()
+            ? mediaContainer.openStreamForDownload(name, 0)
+            : mediaContainer.openEncodedStreamForDownload(name, acceptEncodings);
+      } catch (MongoGridFSException e) {
+        // deleted since it was looked up
+        LOGGER.debug("Media [{}] of the bundle not found", name, e);
+        media = null;
+      }
+    }
+    if (media == null) {
+      observer.onNext(BundleChunk.newBuilder()
+          .setIndex(index)
+          .setMedia(Media.newBuilder().setOriginalName(name))
+          .setMissing(true)
+          .setLast(true)
+          .build());
+      index++;
+      return;
+    }
+    position = 0;
+    if (stream.getStreamLength() == 0) {
+      observer.onNext(BundleChunk.newBuilder()
+          .setIndex(index)
+          .setMedia(media)
+          .setChunk(MediaChunk.newBuilder()
+              .setContentType(stream.getContentType())
+              .setContentEncoding(stream.getContentEncoding()))
+          .setLast(true)
+          .build());
+      closeMedia();
+    }
+  }
+
+  private void sendPiece() throws IOException {
+    final long length = stream.getStreamLength();
+    final long readStart = System.nanoTime();
+    final byte[] content = new byte[(int) Math.min(chunkSize, length - position)];
+    final int bytesRead = stream.readChunk(content, 0, content.length);
+    metrics.containerRead().record(System.nanoTime() - readStart, TimeUnit.NANOSECONDS);
+    if (bytesRead < 0) {
+      throw new IOException(
+          String.format("Media [%s] ended at [%d] of [%d] bytes", media.getOriginalName(), position, length));
+    }
+    final BundleChunk.Builder piece = BundleChunk.newBuilder()
+        .setIndex(index)
+        // the array is not written to anymore, the message owns it
+        .setChunk(MediaChunk.newBuilder()
+            .setContent(UnsafeByteOperations.unsafeWrap(content, 0, bytesRead))
+            .setTotalSize(length)
+            .setOffset(position)
+            .setContentType(stream.getContentType())
+            .setContentEncoding(stream.getContentEncoding()));
+    if (position == 0) {
+      piece.setMedia(media);
+    }
+    position += bytesRead;
+    piece.setLast(position >= length);
+    observer.onNext(piece.build());
+    metrics.downloadChunkSize().record(bytesRead);
+    if (position >= length) {
+      closeMedia();
+    }
+  }
+
+  private void closeMedia() throws IOException {
+    final DownloadStream closed = stream;
+    stream = null;
+    media = null;
+    index++;
+    closed.close();
+  }
+
+  private void cancel() {
+    LOGGER.debug("Bundle download was canceled by the client");
+    finish();
+  }
+
+  private void finish() {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    reservation.release();
+    if (stream == null) {
+      return;
+    }
+    try {
+      stream.close();
+    } catch (IOException e) {
+      LOGGER.warn("Could not close the bundle stream of [{}]", names.get(index), e);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package jp.mediahub.stream;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import jp.mediahub.exception.ChangeTokenExpiredException;
+import jp.mediahub.messages.MediaChange;
+import jp.mediahub.repository.impl.MediaChangeLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MediaChangeStreaming class is responsible for pushing the changes of the {@link MediaChangeLog} to the observer as
+ * they are recorded, one message per change, starting right after the change token of the client.
+ * <p>
+ * The watch first catches up, reading the changes after its token from the log a batch at a time, then receives the
+ * changes published by the log. As listings do, the changes are only sent while the transport is ready: at most
+ * <code>batchSize</code> changes are kept for a client not reading them, the watch catching up from the log again
+ * once the client reads, rather than holding more.
+ *
+ * @author Renato Raeffray
+ */
+public class MediaChangeStreaming implements Runnable, MediaChangeLog.Listener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MediaChangeStreaming.class);
+
+  private final ServerCallStreamObserver<MediaChange> observer;
+
+  private final MediaChangeLog changeLog;
+
+  private final int batchSize;
+
+  private final Deque<MediaChange> pending = new ArrayDeque<>();
+
+  // the last change sent, and the last one queued
+  private long sentSequence;
+
+  private long queuedSequence;
+
+  // the changes after the last one queued are read from the log, rather than taken from those published
+  private boolean catchingUp = true;
+
+  private boolean finished;
+
+  public MediaChangeStreaming(ServerCallStreamObserver<MediaChange> observer, MediaChangeLog changeLog,
+      int batchSize) {
+    this.observer = observer;
+    this.changeLog = changeLog;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Registers the handlers that stream the changes to the observer, and subscribes to the log. It must be called from
+   * the service method, before it returns.
+   *
+   * @param changeToken the token of the last change received, or an empty string to start after the latest change
+   * @throws IllegalArgumentException if the token is not valid
+   */
+  public synchronized void start(String changeToken) {
+    sentSequence = MediaChangeLog.sequence(changeToken.isEmpty() ? changeLog.currentToken() : changeToken);
+    queuedSequence = sentSequence;
+    observer.setOnCancelHandler(this::finish);
+    observer.setOnReadyHandler(this);
+    changeLog.subscribe(this);
+  }
+
+  /**
+   * Sends the changes while the transport is ready, catching up from the log if needed. Called by gRPC every time the
+   * stream becomes ready again.
+   */
+  @Override
+  public synchronized void run() {
+    if (finished) {
+      return;
+    }
+    try {
+      while (observer.isReady()) {
+        if (pending.isEmpty()) {
+          if (!catchingUp || !catchUp()) {
+            return;
+          }
+        }
+        final MediaChange change = pending.poll();
+        observer.onNext(change);
+        sentSequence = MediaChangeLog.sequence(change.getChangeToken());
+      }
+    } catch (ChangeTokenExpiredException e) {
+      finish();
+      observer.onError(Status.FAILED_PRECONDITION.withDescription(e.getMessage()).asRuntimeException());
+    } catch (RuntimeException e) {
+      LOGGER.error("Watch of the media changes failed", e);
+      finish();
+      observer.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
+
+  // reads the next changes from the log, the watch only takes those published once it read them all
+  private boolean catchUp() {
+    final List<MediaChange> changes = changeLog.readChanges(MediaChangeLog.token(queuedSequence), batchSize);
+    if (changes.isEmpty()) {
+      catchingUp = false;
+      return false;
+    }
+    changes.forEach(this::queue);
+    return true;
+  }
+
+  @Override
+  public synchronized void onChanges(List<MediaChange> changes) {
+    if (finished || catchingUp) {
+      return;
+    }
+    for (MediaChange change : changes) {
+      if (MediaChangeLog.sequence(change.getChangeToken()) <= queuedSequence) {
+        continue;
+      }
+      if (pending.size() >= batchSize) {
+        // the client does not read, the changes not sent are read again from the log once it does
+        pending.clear();
+        queuedSequence = sentSequence;
+        catchingUp = true;
+        return;
+      }
+      queue(change);
+    }
+    run();
+  }
+
+  private void queue(MediaChange change) {
+    pending.add(change);
+    queuedSequence = MediaChangeLog.sequence(change.getChangeToken());
+  }
+
+  private void finish() {
+    if (!finished) {
+      finished = true;
+      pending.clear();
+      changeLog.unsubscribe(this);
+    }
+  }
+}
@@ -1,85 +1,261 @@
 package jp.mediahub.stream;
 
-import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import io.grpc.Status;
 import io.grpc.stub.ServerCallStreamObserver;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jp.mediahub.exception.InvalidRangeException;
+import jp.mediahub.messages.ByteRange;
+import jp.mediahub.messages.GetMediaRequest;
+import jp.mediahub.metrics.MediaMetrics;
+import jp.mediahub.stream.buffer.MemoryBudget;
 import jp.mediahub.stream.container.DownloadStream;
 import jp.mediahub.messages.MediaChunk;
 import jp.mediahub.stream.container.MediaContainer;
-import org.apache.tika.Tika;
-import org.apache.tika.detect.TypeDetector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * MediaDownloadStreamHandler class is responsible for reading media files from MongoDB gridFSBucket and streaming it to
  * the observer.
+ * <p>
+ * The download is driven by the gRPC flow control: this class is registered as the onReady handler of the observer,
+ * and a new block is only read from the container while the transport reports {@link ServerCallStreamObserver#isReady()}.
+ * Once the transport buffers are full the handler returns, releasing the calling thread, and gRPC invokes it again when
+ * the client has consumed the pending data. This keeps the memory held for each download bounded to about one chunk,
+ * no matter how slow the client is.
+ * <p>
+ * A download may be limited to one or more byte ranges of the media, sent in the order requested. Every chunk carries
+ * its offset in the media. Moving forward to the next range skips in the container stream, which jumps straight to the
+ * storage block holding it, moving backward reopens the stream at the new offset.
+ * <p>
+ * Every chunk carries the media type of the content, if known. A whole media stored compressed with an encoding the
+ * client accepts is sent as stored, its chunks carrying the encoding, the total size and the offsets being those of
+ * the compressed content. Otherwise it is decompressed on the way, see
+ * {@link jp.mediahub.stream.container.CompressingMediaContainer}.
+ * <p>
+ * The size of the chunks adapts to the client and the media, as described in {@link AdaptiveChunkSizer}, as long as the
+ * memory budget allows it: the reservation of the download covers the initial chunk size, it is extended when the
+ * chunks grow and given back once the download ends. Each chunk is read into an array of its own, which the message
+ * wraps without copying it, the transport holding it until sent: no buffer is reused, as none could be handed back
+ * while the in-process transport still refers to it. The time spent reading from the container and the chunk sizes are
+ * recorded in the {@link MediaMetrics}.
  *
  * @author Renato Raeffray
  *
  */
-public class MediaDownloadStreaming {
+public class MediaDownloadStreaming implements Runnable {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(MediaDownloadStreaming.class);
 
-  private final int mediaBufferSize;
+  // smallest chunk the reservation is extended to
+  private static final int MIN_BUFFER_SIZE = 4096;
+
+  private final ChunkSizing chunkSizing;
 
   private MediaContainer mediaContainer;
 
   private ServerCallStreamObserver<MediaChunk> observer;
 
-  private final Tika typeDetector = new Tika(new TypeDetector());
+  private final MediaMetrics metrics;
+
+  private final MemoryBudget.Reservation reservation;
+
+  private String mediaName;
+
+  private DownloadStream stream;
+
+  private AdaptiveChunkSizer sizer;
+
+  // bytes of the reservation, the chunks never exceed them
+  private long reservedBytes;
+
+  private long fileLength;
+
+  private List<ByteRange> ranges;
+
+  private int rangeIndex;
+
+  // absolute position of the next byte read from the stream
+  private long position;
+
+  private long rangeEnd;
+
+  private boolean finished;
 
   public MediaDownloadStreaming(ServerCallStreamObserver<MediaChunk> observer, MediaContainer mediaContainer,
-      int mediaBufferSize) {
+      ChunkSizing chunkSizing, MediaMetrics metrics, MemoryBudget.Reservation reservation) {
     this.mediaContainer = mediaContainer;
+    this.metrics = metrics;
+    this.reservation = reservation;
     this.observer = observer;
-    this.mediaBufferSize = mediaBufferSize;
+    this.chunkSizing = chunkSizing;
+    this.reservedBytes = chunkSizing.initialSize();
   }
 
   /**
-   * Reads the media file with the given name from the MongoDB gridFSBucket and streams it to the observer.
+   * Opens the media file requested from the MongoDB gridFSBucket and registers the handlers that stream it to the
+   * observer.
+   * <p>
+   * This method returns right after the stream is opened, the chunks are sent by {@link #run()} whenever gRPC signals
+   * that the transport is ready. It must be called from the service method, before it returns.
    *
-   * @param mediaName the name of the media file to be read
+   * @param request the request naming the media file to be read, and optionally the ranges to be read
+   * @throws InvalidRangeException if a range starts beyond the end of the media
    */
-  public void read(String mediaName) {
+  public void start(GetMediaRequest request) {
+    open(request);
+
+    observer.setOnCancelHandler(this::cancel);
+    observer.setOnReadyHandler(this);
+  }
 
-    final DownloadStream stream = mediaContainer.openStreamForDownload(mediaName);
+  /**
+   * Opens the media file requested, without registering any handler: the caller registered its own, which invoke
+   * {@link #run()} and {@link #cancel()}, e.g. once the service method returned.
+   *
+   * @param request the request naming the media file to be read, and optionally the ranges to be read
+   * @throws InvalidRangeException if a range starts beyond the end of the media
+   */
+  public void open(GetMediaRequest request) {
+    this.mediaName = request.getOriginalName();
+    this.ranges = request.getRangesCount() > 0
+        ? request.getRangesList()
+        : List.of(ByteRange.newBuilder().setOffset(request.getOffset()).setLength(request.getLength()).build());
     try {
+      this.stream = request.getAcceptEncodingsCount() > 0 && isWholeMedia(request)
+          ? mediaContainer.openEncodedStreamForDownload(mediaName, request.getAcceptEncodingsList())
+          : mediaContainer.openStreamForDownload(mediaName, ranges.get(0).getOffset());
+      this.fileLength = stream.getStreamLength();
+      for (ByteRange range : ranges) {
+        if (range.getOffset() < 0 || range.getLength() < 0 || range.getOffset() > fileLength) {
+          throw new InvalidRangeException(String.format("Range [%d, %d] not satisfiable for media [%s] of [%d] bytes",
+              range.getOffset(), range.getLength(), mediaName, fileLength));
+        }
+      }
+    } catch (RuntimeException e) {
+      finish();
+      throw e;
+    }
+    this.position = ranges.get(0).getOffset();
+    this.rangeEnd = rangeEnd(ranges.get(0));
+    this.sizer = new AdaptiveChunkSizer(chunkSizing, stream.getBlockSize());
+  }
 
-      long fileLength = stream.getStreamLength();
-
-      byte[] buffer = new byte[mediaBufferSize];
-
-      int bytesRead;
-      long totalBytesRead = 0;
-
-      while (totalBytesRead < fileLength) {
-        if(!observer.isCancelled()) {
-          bytesRead = stream.read(buffer, 0, mediaBufferSize);
-          observer.onNext(MediaChunk
-              .newBuilder()
-              .setContent(ByteString.copyFrom(buffer, 0, bytesRead))
-              .setTotalSize(fileLength)
-              .build());
-          totalBytesRead += bytesRead;
-        } else {
-          LOGGER.debug("Download was canceled by the client");
-          stream.close();
-          throw new RuntimeException("Canceled");
+  /**
+   * Sends chunks while the transport is ready. Called by gRPC, serialized with the other call events, every time the
+   * stream becomes ready again.
+   */
+  @Override
+  public void run() {
+    if (finished || sizer == null) {
+      return;
+    }
+    sizer.roundStarted(System.nanoTime());
+    try {
+      while (observer.isReady() && rangeIndex < ranges.size()) {
+        if (position >= rangeEnd) {
+          nextRange();
+          continue;
+        }
+        final int length = fit(sizer.next(position, rangeEnd - position));
+        final long readStart = System.nanoTime();
+        final byte[] content = new byte[length];
+        final int bytesRead = stream.readChunk(content, 0, length);
+        metrics.containerRead().record(System.nanoTime() - readStart, TimeUnit.NANOSECONDS);
+        if (bytesRead < 0) {
+          throw new IOException(
+              String.format("Media [%s] ended at [%d] of [%d] bytes", mediaName, position, fileLength));
         }
+        // the array is not written to anymore, the message owns it
+        observer.onNext(MediaChunk
+            .newBuilder()
+            .setContent(UnsafeByteOperations.unsafeWrap(content, 0, bytesRead))
+            .setTotalSize(fileLength)
+            .setOffset(position)
+            .setContentType(stream.getContentType())
+            .setContentEncoding(stream.getContentEncoding())
+            .build());
+        position += bytesRead;
+        sizer.sent(bytesRead);
+        metrics.downloadChunkSize().record(bytesRead);
+      }
+      if (rangeIndex >= ranges.size()) {
+        finish();
+        observer.onCompleted();
       }
+    } catch (IOException | RuntimeException e) {
+      LOGGER.error("Download of [{}] failed at [{}]", mediaName, position, e);
+      finish();
+      observer.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
+
+  /**
+   * Fits a chunk in the memory reserved for the download, extending the reservation when the chunks grow.
+   *
+   * @return the length of the chunk fitting in the reservation
+   */
+  private int fit(int length) {
+    if (length <= reservedBytes) {
+      return length;
+    }
+    // by powers of two, so the reservation is not extended for every chunk
+    final long capacity = Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+    if (reservation.tryExtend(capacity - reservedBytes)) {
+      reservedBytes = capacity;
+    }
+    return (int) Math.min(length, reservedBytes);
+  }
+
+  private void nextRange() throws IOException {
+    rangeIndex++;
+    if (rangeIndex >= ranges.size()) {
+      return;
+    }
+    final ByteRange range = ranges.get(rangeIndex);
+    if (range.getOffset() >= position) {
+      stream.skipFully(range.getOffset() - position);
+    } else {
+      stream.close();
+      stream = mediaContainer.openStreamForDownload(mediaName, range.getOffset());
+    }
+    position = range.getOffset();
+    rangeEnd = rangeEnd(range);
+  }
+
+  private static boolean isWholeMedia(GetMediaRequest request) {
+    return request.getRangesCount() == 0 && request.getOffset() == 0 && request.getLength() == 0;
+  }
+
+  // a length of 0 reads up to the end of the media
+  private long rangeEnd(ByteRange range) {
+    return range.getLength() == 0 ? fileLength : Math.min(fileLength, range.getOffset() + range.getLength());
+  }
+
+  /**
+   * Ends the download canceled by the client, releasing what it holds.
+   */
+  public void cancel() {
+    LOGGER.debug("Download was canceled by the client");
+    finish();
+  }
+
+  private void finish() {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    reservation.release();
+    if (stream == null) {
+      return;
+    }
+    try {
       stream.close();
-      observer.onCompleted();
     } catch (IOException e) {
-      try {
-        stream.close();
-      } catch (IOException ex) {
-        throw new RuntimeException(ex);
-      } finally{
-        observer.onError(Status.UNKNOWN.asRuntimeException());
-      }
+      LOGGER.warn("Could not close the download stream of [{}]", mediaName, e);
     }
   }
 }
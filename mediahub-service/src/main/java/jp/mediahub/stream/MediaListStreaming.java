@@ -0,0 +1,83 @@
+package jp.mediahub.stream;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.util.Iterator;
+import java.util.stream.Stream;
+import jp.mediahub.messages.Media;
+import jp.mediahub.repository.MediaRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MediaListStreaming class is responsible for streaming the medias found in the {@link MediaRepository} to the
+ * observer, one message per media, as the database cursor advances.
+ * <p>
+ * As downloads do, the listing is driven by the gRPC flow control: the cursor is only advanced while the transport is
+ * ready, so neither the server nor the client ever holds the whole listing.
+ *
+ * @author Renato Raeffray
+ */
+public class MediaListStreaming implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MediaListStreaming.class);
+
+  private final ServerCallStreamObserver<Media> observer;
+
+  private final MediaRepository mediaRepository;
+
+  private Stream<Media> medias;
+
+  private Iterator<Media> cursor;
+
+  private boolean finished;
+
+  public MediaListStreaming(ServerCallStreamObserver<Media> observer, MediaRepository mediaRepository) {
+    this.observer = observer;
+    this.mediaRepository = mediaRepository;
+  }
+
+  /**
+   * Opens the cursor over the medias of the given owner and registers the handlers that stream them to the observer.
+   * It must be called from the service method, before it returns.
+   *
+   * @param resourceOwnerId the owner of the medias, or an empty string for every owner
+   */
+  public void start(String resourceOwnerId) {
+    this.medias = mediaRepository.streamMedias(resourceOwnerId);
+    this.cursor = medias.iterator();
+
+    observer.setOnCancelHandler(this::finish);
+    observer.setOnReadyHandler(this);
+  }
+
+  /**
+   * Sends medias while the transport is ready. Called by gRPC every time the stream becomes ready again.
+   */
+  @Override
+  public void run() {
+    if (finished) {
+      return;
+    }
+    try {
+      while (observer.isReady() && cursor.hasNext()) {
+        observer.onNext(cursor.next());
+      }
+      if (!cursor.hasNext()) {
+        finish();
+        observer.onCompleted();
+      }
+    } catch (RuntimeException e) {
+      LOGGER.error("Listing of medias failed", e);
+      finish();
+      observer.onError(Status.UNKNOWN.withDescription(e.getMessage()).asRuntimeException());
+    }
+  }
+
+  private void finish() {
+    if (!finished) {
+      finished = true;
+      medias.close();
+    }
+  }
+}
@@ -1,118 +1,156 @@
 package jp.mediahub.stream;
 
 import io.grpc.Status;
-import io.grpc.stub.StreamObserver;
+import io.grpc.stub.ServerCallStreamObserver;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executor;
+import jp.mediahub.exception.ContentHashMismatchException;
 import jp.mediahub.exception.ResourceAlreadyExistException;
+import jp.mediahub.metrics.MediaMetrics;
+import jp.mediahub.stream.buffer.MemoryBudget;
 import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.repository.impl.MediaChangeLog;
 import jp.mediahub.messages.CreateMediaResponse;
 import jp.mediahub.messages.Media;
 import jp.mediahub.messages.MediaChunk;
 import jp.mediahub.stream.container.MediaContainer;
+import jp.mediahub.stream.container.UploadStream;
+import org.apache.tika.Tika;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
 
 /**
  * This class that handles the streaming of media chunks and uploads them to MongoDB GridFS.
  * <p>
- * Implements the StreamObserver interface and overrides its methods onNext, onError and onCompleted.
+ * The chunks are queued and written by a writer task, as described in {@link QueuedUploadObserver}, the gRPC threads
+ * never wait for the container.
  * <p>
- * In the onNext method, the class detects the content type of the media chunk and opens an upload stream to GridFS. The
- * media chunk is then written to the stream.
+ * On the first chunk, the writer verifies whether the media already exists, detects the media type of the content
+ * unless the client declared it, and opens an upload stream to GridFS. The media type is stored with the media, the
+ * container compressing the compressible ones. Every
+ * batch of queued chunks is then written to the stream, without copying their content. The stream computes the SHA-256
+ * of the content as it is written, the upload is rejected with DATA_LOSS if it does not match the hash declared by the
+ * client.
  * <p>
- * In the onError method, the class sets an error status with the error message and
+ * If the client interrupts the upload, the partially written media is discarded and
  * <p>
- * in the onCompleted method, the class closes the stream and sends a successful response to the observer.
+ * once the client completes the upload, the writer closes the stream and sends a successful response to the observer.
  *
  * @author Renato Raeffray
  */
-public class MediaUploadStreaming implements StreamObserver<MediaChunk> {
+public class MediaUploadStreaming extends QueuedUploadObserver<MediaChunk, CreateMediaResponse> {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(MediaUploadStreaming.class);
 
-  private final MediaContainer container;
+  // bytes of the first chunk looked at by the detection, the magic numbers are well within them
+  private static final int DETECTION_BYTES = 64 * 1024;
+
+  // thread safe, its detectors are loaded once
+  private static final Tika TYPE_DETECTOR = new Tika();
 
-  private OutputStream uploadStream;
+  private final MediaContainer container;
 
-  private final StreamObserver<CreateMediaResponse> observer;
+  private UploadStream uploadStream;
 
   private String fileName;
 
-  @Autowired
   private final MediaRepository mediaRepository;
 
-//  private Function<Map<String, String>, GridFSUploadOptions> createMetadata = documentMap ->
-//      new GridFSUploadOptions().metadata(new Document(documentMap));
+  private final MediaChangeLog mediaChangeLog;
 
-  public MediaUploadStreaming(StreamObserver<CreateMediaResponse> observer, MediaContainer container,
-      MediaRepository mediaRepository) {
+  public MediaUploadStreaming(ServerCallStreamObserver<CreateMediaResponse> observer, MediaContainer container,
+      MediaRepository mediaRepository, MediaChangeLog mediaChangeLog, Executor writerExecutor, int queueSize,
+      MediaMetrics metrics, MemoryBudget.Reservation reservation) {
+    super(observer, writerExecutor, queueSize, metrics, reservation);
     this.container = container;
-    this.observer = observer;
     this.mediaRepository = mediaRepository;
+    this.mediaChangeLog = mediaChangeLog;
   }
 
   @Override
-  public void onNext(MediaChunk chunk) {
-    try {
+  protected void write(List<MediaChunk> batch) throws IOException {
+    for (MediaChunk chunk : batch) {
       // check and setup on the first chunk
       if (uploadStream == null) {
-        final String originalName = chunk.getOriginalName();
-
-        // Verify whether media already exists
-        final Optional<Media> maybeMedia = mediaRepository.findMedia(originalName);
-        maybeMedia.ifPresent(media -> {
-          {
-            throw new ResourceAlreadyExistException(
-                String.format("Media already exists: fileName: [%s], hash: [%s]", media.getOriginalName(),
-                    media.getHash()));
-          }
-        });
-        this.fileName = originalName;
-        this.uploadStream = container.openStreamForUpload(chunk);
+        open(chunk);
       }
+      chunk.getContent().writeTo(uploadStream);
+    }
+  }
 
-      this.uploadStream.write(chunk.getContent().toByteArray());
+  private void open(MediaChunk chunk) {
+    final String originalName = chunk.getOriginalName();
 
-    } catch (ResourceAlreadyExistException e) {
-      observer.onError(Status.ALREADY_EXISTS.withDescription(e.getMessage()).asRuntimeException());
-    } catch (Exception e) {
-      observer.onError(Status.UNKNOWN.asRuntimeException());
-    }
+    // Verify whether media already exists
+    final Optional<Media> maybeMedia = mediaRepository.findMedia(originalName);
+    maybeMedia.ifPresent(media -> {
+      {
+        throw new ResourceAlreadyExistException(
+            String.format("Media already exists: fileName: [%s], hash: [%s]", media.getOriginalName(),
+                media.getHash()));
+      }
+    });
+    this.fileName = originalName;
+    this.uploadStream = container.openStreamForUpload(chunk.toBuilder()
+        .setContentType(chunk.getContentType().isEmpty() ? detectContentType(chunk) : chunk.getContentType())
+        // set by the containers only
+        .clearContentEncoding()
+        .build());
   }
 
-  @Override
-  public void onError(Throwable t) {
-    this.observer.onError(Status.UNKNOWN.withDescription(t.getMessage()).asRuntimeException());
+  /**
+   * @param chunk the first chunk of a media
+   * @return the media type detected from the beginning of the content and the name of the media
+   */
+  public static String detectContentType(MediaChunk chunk) {
+    final byte[] prefix = chunk.getContent().substring(0, Math.min(chunk.getContent().size(), DETECTION_BYTES))
+        .toByteArray();
+    return TYPE_DETECTOR.detect(prefix, chunk.getOriginalName());
   }
 
   @Override
-  public void onCompleted() {
+  protected void complete() throws IOException {
     LOGGER.info("File [{}] Received", this.fileName);
+    if (this.uploadStream == null) {
+      throw Status.INVALID_ARGUMENT.withDescription("No media content received").asRuntimeException();
+    }
+    final Optional<Media> media = this.mediaRepository.findMedia(fileName);
+    if (media.isPresent()) {
+      final String message = String.format(
+          "A media was with same name was saved in middle of upload process: hash [%s]. Current file discharged",
+          media.get().getHash());
+
+      LOGGER.info(message);
+      throw Status.ALREADY_EXISTS.withDescription(message).asRuntimeException();
+    }
+    this.uploadStream.flush();
+    this.uploadStream.close();
+    this.mediaRepository.invalidate(fileName);
+    this.mediaChangeLog.recordStored(fileName);
+
+    observer.onNext(CreateMediaResponse.newBuilder().setSuccess(true).build());
+    observer.onCompleted();
+  }
+
+  @Override
+  protected void abort() {
     if (this.uploadStream != null) {
-      final Optional<Media> media = this.mediaRepository.findMedia(fileName);
-      media.ifPresentOrElse(m -> {
-        final String message = String.format(
-            "A media was with same name was saved in middle of upload process: hash [%s]. Current file discharged",
-            m.getHash());
-
-        LOGGER.info(message);
-        observer.onError(Status.ALREADY_EXISTS.withDescription(message).asRuntimeException());
-
-      }, () -> {
-        try {
-          this.uploadStream.flush();
-          this.uploadStream.close();
-
-          observer.onNext(CreateMediaResponse.newBuilder().setSuccess(true).build());
-          observer.onCompleted();
-
-        } catch (IOException e) {
-          throw new RuntimeException(e);
-        }
-      });
+      this.uploadStream.abort();
+    }
+  }
+
+  @Override
+  protected Status toStatus(Exception e) {
+    if (e instanceof ResourceAlreadyExistException) {
+      return Status.ALREADY_EXISTS.withDescription(e.getMessage());
+    }
+    if (e instanceof ContentHashMismatchException) {
+      LOGGER.info(e.getMessage());
+      return Status.DATA_LOSS.withDescription(e.getMessage());
     }
+    LOGGER.error("Upload of [{}] failed", this.fileName, e);
+    return Status.UNKNOWN;
   }
 }
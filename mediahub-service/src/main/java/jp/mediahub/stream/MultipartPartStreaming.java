@@ -0,0 +1,197 @@
+package jp.mediahub.stream;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import jp.mediahub.messages.MultipartPart;
+import jp.mediahub.messages.MultipartPartReceipt;
+import jp.mediahub.metrics.MediaMetrics;
+import jp.mediahub.stream.buffer.BufferPool;
+import jp.mediahub.stream.buffer.MemoryBudget;
+import jp.mediahub.stream.container.UploadStream;
+import jp.mediahub.stream.session.UploadSessionManager;
+import jp.mediahub.stream.session.UploadSessionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives one part of a multipart upload, opened beforehand by {@link UploadSessionManager}.
+ * <p>
+ * Each call carries a single part, its pieces sent in order. The parts of a media are independent of each other: they
+ * start on a chunk boundary, so each call writes its own chunks to the storage, and any number of parts may be sent at
+ * the same time, over as many calls or connections. The content is gathered in chunks of the size of the session,
+ * taken from the {@link BufferPool}, and written as each batch of pieces is received.
+ * <p>
+ * The part is recorded with its SHA-256 once every byte of it was written, and answered with a receipt. A part
+ * interrupted, or sent again, is not taken as stored until it is received in full, its chunks are then overwritten.
+ *
+ * @author Renato Raeffray
+ */
+public class MultipartPartStreaming extends QueuedUploadObserver<MultipartPart, MultipartPartReceipt> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MultipartPartStreaming.class);
+
+  private final UploadSessionManager sessionManager;
+
+  private final BufferPool bufferPool;
+
+  private UploadSessionState session;
+
+  private int partNumber;
+
+  private long partLength;
+
+  private String declaredHash;
+
+  private MessageDigest digest;
+
+  // bytes of the part received so far
+  private long received;
+
+  // index in the media of the next chunk written
+  private int nextChunkIndex;
+
+  private byte[] pendingChunk;
+
+  private int pendingLength;
+
+  public MultipartPartStreaming(ServerCallStreamObserver<MultipartPartReceipt> observer,
+      UploadSessionManager sessionManager, Executor writerExecutor, int queueSize, MediaMetrics metrics,
+      BufferPool bufferPool, MemoryBudget.Reservation reservation) {
+    super(observer, writerExecutor, queueSize, metrics, reservation);
+    this.sessionManager = sessionManager;
+    this.bufferPool = bufferPool;
+  }
+
+  @Override
+  protected void write(List<MultipartPart> batch) {
+    final List<byte[]> chunks = new ArrayList<>();
+    final int firstIndex = nextChunkIndex;
+    try {
+      for (MultipartPart piece : batch) {
+        if (session == null) {
+          open(piece);
+        } else if (!session.getSessionId().equals(piece.getSessionId()) || partNumber != piece.getPartNumber()) {
+          throw Status.INVALID_ARGUMENT.withDescription("Pieces of several parts sent in the same call")
+              .asRuntimeException();
+        }
+        if (received + piece.getContent().size() > partLength) {
+          throw Status.INVALID_ARGUMENT
+              .withDescription(String.format("Part [%d] exceeds its size [%d]", partNumber, partLength))
+              .asRuntimeException();
+        }
+        append(piece.getContent(), chunks);
+      }
+      if (!chunks.isEmpty()) {
+        sessionManager.writeChunks(session, firstIndex, chunks);
+      }
+    } finally {
+      // the full chunks were encoded by the driver once written, or dropped on a failure
+      chunks.forEach(bufferPool::release);
+    }
+  }
+
+  private void open(MultipartPart piece) {
+    this.session = sessionManager.find(piece.getSessionId())
+        .filter(UploadSessionState::isMultipart)
+        .orElseThrow(() -> Status.NOT_FOUND
+            .withDescription(String.format("No multipart upload [%s]", piece.getSessionId()))
+            .asRuntimeException());
+    this.partNumber = piece.getPartNumber();
+    if (partNumber < 0 || partNumber >= session.getPartCount()) {
+      throw Status.INVALID_ARGUMENT
+          .withDescription(String.format("Part [%d] out of the [%d] parts of the media", partNumber,
+              session.getPartCount()))
+          .asRuntimeException();
+    }
+    this.partLength = session.getPartLength(partNumber);
+    this.declaredHash = UploadStream.normalizeHash(piece.getHash());
+    this.digest = UploadStream.newDigest();
+    this.nextChunkIndex = (int) (session.getPartOffset(partNumber) / session.getChunkSize());
+    this.pendingChunk = bufferPool.acquire(session.getChunkSize());
+    sessionManager.startPart(session, partNumber);
+  }
+
+  private void append(ByteString content, List<byte[]> chunks) {
+    int copied = 0;
+    while (copied < content.size()) {
+      final int length = Math.min(pendingChunk.length - pendingLength, content.size() - copied);
+      content.copyTo(pendingChunk, copied, pendingLength, length);
+      digest.update(pendingChunk, pendingLength, length);
+      pendingLength += length;
+      copied += length;
+      received += length;
+      if (pendingLength == pendingChunk.length) {
+        chunks.add(pendingChunk);
+        nextChunkIndex++;
+        pendingChunk = bufferPool.acquire(session.getChunkSize());
+        pendingLength = 0;
+      }
+    }
+  }
+
+  @Override
+  protected void complete() {
+    try {
+      completePart();
+    } finally {
+      releasePendingChunk();
+    }
+  }
+
+  private void completePart() {
+    if (session == null) {
+      throw Status.INVALID_ARGUMENT.withDescription("No part received").asRuntimeException();
+    }
+    if (received < partLength) {
+      throw Status.FAILED_PRECONDITION
+          .withDescription(String.format("Part [%d] ended at [%d] of [%d] bytes", partNumber, received, partLength))
+          .asRuntimeException();
+    }
+    if (pendingLength > 0) {
+      sessionManager.writeChunks(session, nextChunkIndex, List.of(Arrays.copyOf(pendingChunk, pendingLength)));
+    }
+    final String hash = UploadStream.formatHash(digest);
+    if (!declaredHash.isEmpty() && !declaredHash.equals(hash)) {
+      throw Status.DATA_LOSS
+          .withDescription(String.format("Content hash mismatch for part [%d] of media [%s]: declared [%s], "
+              + "received [%s]", partNumber, session.getFileName(), declaredHash, hash))
+          .asRuntimeException();
+    }
+    final UploadSessionState.Part part = new UploadSessionState.Part(partNumber, partLength, hash);
+    sessionManager.commitPart(session, part);
+    LOGGER.debug("Part [{}] of upload session [{}] stored", partNumber, session.getSessionId());
+
+    observer.onNext(part.toReceipt());
+    observer.onCompleted();
+  }
+
+  /**
+   * The chunks written are kept, they are overwritten when the part is sent again.
+   */
+  @Override
+  protected void abort() {
+    if (session != null) {
+      LOGGER.debug("Part [{}] of upload session [{}] interrupted at [{}] bytes", partNumber, session.getSessionId(),
+          received);
+    }
+    releasePendingChunk();
+  }
+
+  private void releasePendingChunk() {
+    bufferPool.release(pendingChunk);
+    pendingChunk = null;
+  }
+
+  @Override
+  protected Status toStatus(Exception e) {
+    LOGGER.error("Part [{}] of upload session [{}] failed", partNumber,
+        session == null ? null : session.getSessionId(), e);
+    return Status.UNKNOWN;
+  }
+}
@@ -0,0 +1,218 @@
+package jp.mediahub.stream;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jp.mediahub.metrics.MediaMetrics;
+import jp.mediahub.stream.buffer.MemoryBudget;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class of the client streaming observers writing what they receive to the storage.
+ * <p>
+ * None of the gRPC callbacks touches the storage: they only enqueue the messages in a bounded queue, which is drained
+ * by a writer task running on a shared executor. The inbound flow control is manual, the client is only allowed to
+ * send as many messages as there is room in the queue, and more are requested once the writer has consumed them.
+ * <p>
+ * Subclasses write the batches drained from the queue in {@link #write(List)}, answer the client once every message was
+ * written in {@link #complete()}, and discard what was partially written in {@link #abort()}. A
+ * {@link StatusRuntimeException} thrown by them is sent as is to the client, other exceptions are mapped by
+ * {@link #toStatus(Exception)}.
+ * <p>
+ * The memory reserved for the upload is released once it ends, whatever the outcome. The messages queued and the time
+ * spent writing them are recorded in the {@link MediaMetrics}.
+ *
+ * @param <T> the type of the messages received
+ * @param <R> the type of the response
+ * @author Renato Raeffray
+ */
+public abstract class QueuedUploadObserver<T, R> implements StreamObserver<T> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueuedUploadObserver.class);
+
+  protected final ServerCallStreamObserver<R> observer;
+
+  private final Executor writerExecutor;
+
+  private final MediaMetrics metrics;
+
+  private final MemoryBudget.Reservation reservation;
+
+  private final int queueSize;
+
+  private final BlockingQueue<T> queue;
+
+  private final AtomicBoolean writerScheduled = new AtomicBoolean();
+
+  private volatile boolean completed;
+
+  private volatile boolean cancelled;
+
+  private volatile Status failure;
+
+  // only accessed by the writer
+  private boolean finished;
+
+  protected QueuedUploadObserver(ServerCallStreamObserver<R> observer, Executor writerExecutor, int queueSize,
+      MediaMetrics metrics, MemoryBudget.Reservation reservation) {
+    this.observer = observer;
+    this.writerExecutor = writerExecutor;
+    this.metrics = metrics;
+    this.reservation = reservation;
+    this.queueSize = queueSize;
+    this.queue = new ArrayBlockingQueue<>(queueSize);
+  }
+
+  /**
+   * Switches the call to manual inbound flow control and requests the first messages. It must be called from the
+   * service method, before this observer is returned to gRPC.
+   */
+  public void start() {
+    observer.disableAutoRequest();
+    observer.request(queueSize);
+  }
+
+  /**
+   * Writes a batch of messages drained from the queue. Runs on the writer executor, never concurrently.
+   *
+   * @param batch the messages, in the order received, never empty
+   * @throws Exception if the messages could not be written, the upload is then aborted
+   */
+  protected abstract void write(List<T> batch) throws Exception;
+
+  /**
+   * Called once every message sent by the client was written, it must send the response to the observer.
+   *
+   * @throws Exception if the upload could not be completed, it is then aborted
+   */
+  protected abstract void complete() throws Exception;
+
+  /**
+   * Discards what was written so far, called when the client cancels the call or the upload fails.
+   */
+  protected abstract void abort();
+
+  /**
+   * Maps the exceptions thrown while writing or completing to the status sent to the client.
+   *
+   * @param e the exception thrown
+   * @return the status sent to the client
+   */
+  protected Status toStatus(Exception e) {
+    LOGGER.error("Upload failed", e);
+    return Status.UNKNOWN;
+  }
+
+  @Override
+  public void onNext(T message) {
+    // never fails while the client honours the flow control, as no more than queueSize messages are ever requested
+    if (queue.offer(message)) {
+      metrics.uploadQueued(1);
+    } else {
+      failure = Status.RESOURCE_EXHAUSTED.withDescription("Upload queue overflowed");
+      LOGGER.error("Upload queue overflowed, the client ignored the flow control");
+    }
+    scheduleWriter();
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    LOGGER.info("Upload interrupted by the client: [{}]", t.getMessage());
+    this.cancelled = true;
+    scheduleWriter();
+  }
+
+  @Override
+  public void onCompleted() {
+    this.completed = true;
+    scheduleWriter();
+  }
+
+  private void scheduleWriter() {
+    if (writerScheduled.compareAndSet(false, true)) {
+      writerExecutor.execute(this::drain);
+    }
+  }
+
+  private void drain() {
+    try {
+      if (!finished) {
+        process();
+      }
+    } finally {
+      writerScheduled.set(false);
+    }
+    // an event may have arrived after the queue was drained but before the flag was cleared
+    if (!finished && (!queue.isEmpty() || completed || cancelled || failure != null)) {
+      scheduleWriter();
+    }
+  }
+
+  private void process() {
+    try {
+      if (cancelled) {
+        discard();
+        return;
+      }
+      if (failure != null) {
+        fail(failure);
+        return;
+      }
+      // read before draining: once onCompleted was seen, every message is already in the queue
+      final boolean lastBatch = this.completed;
+
+      final List<T> batch = new ArrayList<>(queueSize);
+      queue.drainTo(batch);
+      if (!batch.isEmpty()) {
+        metrics.uploadQueued(-batch.size());
+        final long start = System.nanoTime();
+        write(batch);
+        metrics.containerWrite().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
+
+      if (lastBatch && queue.isEmpty()) {
+        this.finished = true;
+        try {
+          complete();
+        } finally {
+          reservation.release();
+        }
+      } else if (!batch.isEmpty()) {
+        observer.request(batch.size());
+      }
+
+    } catch (StatusRuntimeException e) {
+      fail(e.getStatus());
+    } catch (Exception e) {
+      fail(toStatus(e));
+    }
+  }
+
+  private void fail(Status status) {
+    discard();
+    observer.onError(status.asRuntimeException());
+  }
+
+  private void discard() {
+    this.finished = true;
+    final List<T> discarded = new ArrayList<>();
+    this.queue.drainTo(discarded);
+    metrics.uploadQueued(-discarded.size());
+    try {
+      abort();
+    } catch (RuntimeException e) {
+      LOGGER.warn("Could not discard the partial upload", e);
+    } finally {
+      reservation.release();
+    }
+  }
+}
@@ -0,0 +1,234 @@
+package jp.mediahub.stream;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import jp.mediahub.messages.UploadPart;
+import jp.mediahub.metrics.MediaMetrics;
+import jp.mediahub.messages.UploadSession;
+import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.stream.buffer.BufferPool;
+import jp.mediahub.stream.buffer.MemoryBudget;
+import jp.mediahub.stream.container.UploadStream;
+import jp.mediahub.stream.session.UploadSessionManager;
+import jp.mediahub.stream.session.UploadSessionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives the parts of a resumable upload, opened beforehand by {@link UploadSessionManager}.
+ * <p>
+ * The parts must be sent in order, starting at most at the committed offset of the session. The bytes already stored
+ * are skipped, so a client resuming after a disconnection may resend from any offset before it. The content is
+ * gathered in chunks of the size of the session, each full chunk being committed with the batch of parts it belongs
+ * to. The chunks are taken from the {@link BufferPool}, and given back once committed.
+ * <p>
+ * When the client half-closes the call before the end of the media, the session is answered with its committed
+ * offset, the bytes received after it are dropped and must be resent. Once every byte was received, the hash of the
+ * content is verified, the media is made visible and the session is answered as completed. An empty part at the end of
+ * the media completes a session whose content was already fully committed.
+ *
+ * @author Renato Raeffray
+ */
+public class UploadSessionStreaming extends QueuedUploadObserver<UploadPart, UploadSession> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(UploadSessionStreaming.class);
+
+  private final UploadSessionManager sessionManager;
+
+  private final MediaRepository mediaRepository;
+
+  private final BufferPool bufferPool;
+
+  private UploadSessionState session;
+
+  // digest of the content up to position, null if the session resumed without its digest
+  private MessageDigest digest;
+
+  // digest of the content up to the end of the last full chunk
+  private MessageDigest chunkDigest;
+
+  // absolute position of the next byte expected
+  private long position;
+
+  private byte[] pendingChunk;
+
+  private int pendingLength;
+
+  public UploadSessionStreaming(ServerCallStreamObserver<UploadSession> observer, UploadSessionManager sessionManager,
+      MediaRepository mediaRepository, Executor writerExecutor, int queueSize, MediaMetrics metrics,
+      BufferPool bufferPool, MemoryBudget.Reservation reservation) {
+    super(observer, writerExecutor, queueSize, metrics, reservation);
+    this.sessionManager = sessionManager;
+    this.mediaRepository = mediaRepository;
+    this.bufferPool = bufferPool;
+  }
+
+  @Override
+  protected void write(List<UploadPart> batch) {
+    final List<byte[]> chunks = new ArrayList<>();
+    try {
+      for (UploadPart part : batch) {
+        if (session == null) {
+          resume(part.getSessionId());
+        } else if (!session.getSessionId().equals(part.getSessionId())) {
+          throw Status.INVALID_ARGUMENT.withDescription("Parts of several sessions sent in the same call")
+              .asRuntimeException();
+        }
+        final long partEnd = part.getOffset() + part.getContent().size();
+        if (part.getOffset() < 0 || part.getOffset() > position) {
+          throw Status.FAILED_PRECONDITION
+              .withDescription(String.format("Part at [%d] does not follow offset [%d]", part.getOffset(), position))
+              .asRuntimeException();
+        }
+        if (partEnd > session.getTotalSize()) {
+          throw Status.INVALID_ARGUMENT
+              .withDescription(String.format("Part ends at [%d], beyond the size of the media [%d]", partEnd,
+                  session.getTotalSize()))
+              .asRuntimeException();
+        }
+        if (partEnd > position) {
+          append(part.getContent().substring((int) (position - part.getOffset())), chunks);
+        }
+      }
+      if (!chunks.isEmpty()) {
+        sessionManager.commitChunks(session, chunks, chunkDigest);
+      }
+    } finally {
+      // the full chunks were encoded by the driver once committed, or dropped on a failure
+      chunks.forEach(bufferPool::release);
+    }
+  }
+
+  private void resume(String sessionId) {
+    // multipart sessions take their parts through MultipartPartStreaming
+    this.session = sessionManager.find(sessionId)
+        .filter(state -> !state.isMultipart())
+        .orElseThrow(() -> Status.NOT_FOUND
+            .withDescription(String.format("No upload session [%s]", sessionId))
+            .asRuntimeException());
+    this.position = session.getCommittedOffset();
+    this.digest = position == 0
+        ? UploadStream.newDigest()
+        : sessionManager.findDigest(sessionId, position).orElse(null);
+    this.chunkDigest = digest;
+    this.pendingChunk = bufferPool.acquire(session.getChunkSize());
+  }
+
+  private void append(ByteString content, List<byte[]> chunks) {
+    int copied = 0;
+    while (copied < content.size()) {
+      final int length = Math.min(pendingChunk.length - pendingLength, content.size() - copied);
+      content.copyTo(pendingChunk, copied, pendingLength, length);
+      if (digest != null) {
+        digest.update(pendingChunk, pendingLength, length);
+      }
+      pendingLength += length;
+      copied += length;
+      position += length;
+      if (pendingLength == pendingChunk.length) {
+        chunks.add(pendingChunk);
+        chunkDigest = copy(digest);
+        pendingChunk = bufferPool.acquire(session.getChunkSize());
+        pendingLength = 0;
+      }
+    }
+  }
+
+  @Override
+  protected void complete() throws IOException {
+    try {
+      completeSession();
+    } finally {
+      releasePendingChunk();
+    }
+  }
+
+  private void completeSession() throws IOException {
+    if (session == null) {
+      throw Status.INVALID_ARGUMENT.withDescription("No part received").asRuntimeException();
+    }
+    if (position < session.getTotalSize()) {
+      LOGGER.debug("Upload session [{}] paused at [{}] of [{}] bytes", session.getSessionId(),
+          session.getCommittedOffset(), session.getTotalSize());
+      observer.onNext(session.toUploadSession(false));
+      observer.onCompleted();
+      return;
+    }
+    if (pendingLength > 0) {
+      sessionManager.commitChunks(session, List.of(Arrays.copyOf(pendingChunk, pendingLength)), digest);
+    }
+    final String contentHash = digest != null
+        ? UploadStream.formatHash(digest)
+        : sessionManager.computeContentHash(session);
+    session = sessionManager.claim(session);
+    try {
+      completeClaimed(contentHash);
+    } catch (RuntimeException e) {
+      sessionManager.release(session);
+      throw e;
+    }
+  }
+
+  private void completeClaimed(String contentHash) {
+    if (!session.getDeclaredHash().isEmpty() && !session.getDeclaredHash().equals(contentHash)) {
+      sessionManager.discard(session);
+      throw Status.DATA_LOSS
+          .withDescription(String.format("Content hash mismatch for media [%s]: declared [%s], received [%s]",
+              session.getFileName(), session.getDeclaredHash(), contentHash))
+          .asRuntimeException();
+    }
+    if (mediaRepository.findMedia(session.getFileName()).isPresent()) {
+      sessionManager.discard(session);
+      throw Status.ALREADY_EXISTS
+          .withDescription(String.format("A media named [%s] was saved during the upload session",
+              session.getFileName()))
+          .asRuntimeException();
+    }
+    sessionManager.complete(session, contentHash);
+    LOGGER.info("File [{}] Received through session [{}]", session.getFileName(), session.getSessionId());
+
+    observer.onNext(session.toUploadSession(true));
+    observer.onCompleted();
+  }
+
+  /**
+   * The committed chunks are kept, the client resumes the session from its committed offset.
+   */
+  @Override
+  protected void abort() {
+    if (session != null) {
+      LOGGER.debug("Upload session [{}] interrupted, committed up to [{}]", session.getSessionId(),
+          session.getCommittedOffset());
+    }
+    releasePendingChunk();
+  }
+
+  private void releasePendingChunk() {
+    bufferPool.release(pendingChunk);
+    pendingChunk = null;
+  }
+
+  @Override
+  protected Status toStatus(Exception e) {
+    LOGGER.error("Upload session [{}] failed", session == null ? null : session.getSessionId(), e);
+    return Status.UNKNOWN;
+  }
+
+  private static MessageDigest copy(MessageDigest digest) {
+    if (digest == null) {
+      return null;
+    }
+    try {
+      return (MessageDigest) digest.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalStateException("The digest can not be copied", e);
+    }
+  }
+}
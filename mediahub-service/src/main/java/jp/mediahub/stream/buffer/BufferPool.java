@@ -0,0 +1,104 @@
+package jp.mediahub.stream.buffer;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of the byte arrays used by the uploads, so the buffers of a burst of uploads or upload sessions are reused
+ * instead of allocated for each call and promoted by the GC. The downloads do not use it: their chunks are wrapped by
+ * the messages sent, which the transport may hold after the call returns.
+ * <p>
+ * The buffers are pooled by size class, one class per length requested: the service only uses a few lengths, the
+ * buffer size and the chunk sizes of the media, and callers such as the GridFS chunks need arrays of the exact
+ * length. Each class is a lock-free queue. The buffers released while the pool already retains
+ * <code>maxRetainedBytes</code> are left to the GC.
+ * <p>
+ * A buffer must not be used after it was released, nor released twice.
+ *
+ * @author Renato Raeffray
+ */
+public class BufferPool {
+
+  private final long maxRetainedBytes;
+
+  private final Map<Integer, Queue<byte[]>> sizeClasses = new ConcurrentHashMap<>();
+
+  private final AtomicLong retainedBytes = new AtomicLong();
+
+  private final AtomicLong bytesInUse = new AtomicLong();
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  public BufferPool(long maxRetainedBytes) {
+    this.maxRetainedBytes = maxRetainedBytes;
+  }
+
+  /**
+   * @param length the exact length of the buffer
+   * @return a buffer of the given length, its content is undefined
+   */
+  public byte[] acquire(int length) {
+    bytesInUse.addAndGet(length);
+    final byte[] buffer = sizeClass(length).poll();
+    if (buffer != null) {
+      retainedBytes.addAndGet(-length);
+      hits.increment();
+      return buffer;
+    }
+    misses.increment();
+    return new byte[length];
+  }
+
+  /**
+   * Gives a buffer acquired from this pool back.
+   *
+   * @param buffer the buffer, may be null
+   */
+  public void release(byte[] buffer) {
+    if (buffer == null) {
+      return;
+    }
+    bytesInUse.addAndGet(-buffer.length);
+    if (retainedBytes.addAndGet(buffer.length) > maxRetainedBytes) {
+      retainedBytes.addAndGet(-buffer.length);
+      return;
+    }
+    sizeClass(buffer.length).offer(buffer);
+  }
+
+  private Queue<byte[]> sizeClass(int length) {
+    return sizeClasses.computeIfAbsent(length, key -> new ConcurrentLinkedQueue<>());
+  }
+
+  /**
+   * @return the bytes of the buffers held by the pool, ready to be reused
+   */
+  public long getRetainedBytes() {
+    return retainedBytes.get();
+  }
+
+  /**
+   * @return the bytes of the buffers acquired and not released yet
+   */
+  public long getBytesInUse() {
+    return bytesInUse.get();
+  }
+
+  public long getMaxRetainedBytes() {
+    return maxRetainedBytes;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+}
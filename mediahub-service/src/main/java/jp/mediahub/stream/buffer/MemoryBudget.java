@@ -0,0 +1,181 @@
+package jp.mediahub.stream.buffer;
+
+import io.grpc.Status;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the memory held by the transfers in flight, over the whole process.
+ * <p>
+ * Every transfer reserves the bytes it may hold before it starts, e.g. its download buffer or its queue of upload
+ * chunks, and releases them once it ends. When the budget is used up, new transfers are rejected right away with
+ * RESOURCE_EXHAUSTED, so a burst of transfers fails fast instead of exhausting the heap.
+ * <p>
+ * Optionally, up to <code>maxWaiting</code> transfers wait in arrival order for up to <code>admissionWaitMillis</code>
+ * before being rejected. A waiting transfer holds the gRPC thread of its call, which the calls releasing the memory may
+ * need: the queue suits the executors not bounded in threads, it is disabled by default.
+ * <p>
+ * The budget is accounted in KiB, a transfer reserving more than the whole budget reserves the whole budget.
+ *
+ * @author Renato Raeffray
+ */
+public class MemoryBudget {
+
+  private static final int UNIT = 1024;
+
+  private final long budgetBytes;
+
+  private final int totalUnits;
+
+  private final long admissionWaitMillis;
+
+  private final int maxWaiting;
+
+  private final Semaphore units;
+
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  private final LongAdder rejections = new LongAdder();
+
+  public MemoryBudget(long budgetBytes) {
+    this(budgetBytes, 0, 0);
+  }
+
+  public MemoryBudget(long budgetBytes, long admissionWaitMillis, int maxWaiting) {
+    this.budgetBytes = budgetBytes;
+    this.totalUnits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, budgetBytes / UNIT));
+    this.admissionWaitMillis = admissionWaitMillis;
+    this.maxWaiting = maxWaiting;
+    // the waiting transfers are served in arrival order, those arriving meanwhile queue behind them
+    this.units = new Semaphore(totalUnits, true);
+  }
+
+  /**
+   * Reserves memory for a transfer, right away or, if the queue is enabled and not full, once it is released.
+   *
+   * @param bytes the bytes the transfer may hold
+   * @return the reservation, to be released once the transfer ends
+   * @throws io.grpc.StatusRuntimeException RESOURCE_EXHAUSTED if the memory is not available in time
+   */
+  public Reservation reserve(long bytes) {
+    final int requested = Math.min(totalUnits, Math.max(1, toUnits(bytes)));
+    if (!acquire(requested)) {
+      rejections.increment();
+      throw Status.RESOURCE_EXHAUSTED
+          .withDescription("The server is at its transfer memory budget, retry later")
+          .asRuntimeException();
+    }
+    return new Reservation(this, requested);
+  }
+
+  private boolean acquire(int requested) {
+    try {
+      // the timed acquisition honours the order of the waiting transfers, even without waiting
+      if (units.tryAcquire(requested, 0, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+      if (admissionWaitMillis <= 0) {
+        return false;
+      }
+      if (waiting.incrementAndGet() > maxWaiting) {
+        waiting.decrementAndGet();
+        return false;
+      }
+      try {
+        return units.tryAcquire(requested, admissionWaitMillis, TimeUnit.MILLISECONDS);
+      } finally {
+        waiting.decrementAndGet();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Reserves memory for an optional use, e.g. reading ahead, only if it is available right away.
+   *
+   * @param bytes the bytes it may hold
+   * @return the reservation, to be released once done, none if the memory is not available
+   */
+  public Reservation tryReserve(long bytes) {
+    final int requested = Math.min(totalUnits, Math.max(1, toUnits(bytes)));
+    return units.tryAcquire(requested) ? new Reservation(this, requested) : null;
+  }
+
+  /**
+   * @return the bytes reserved by the transfers in flight
+   */
+  public long getReservedBytes() {
+    return (long) (totalUnits - units.availablePermits()) * UNIT;
+  }
+
+  public long getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  /**
+   * @return the transfers waiting for memory
+   */
+  public int getWaiting() {
+    return waiting.get();
+  }
+
+  public long getRejections() {
+    return rejections.sum();
+  }
+
+  private static int toUnits(long bytes) {
+    return (int) Math.min(Integer.MAX_VALUE, (bytes + UNIT - 1) / UNIT);
+  }
+
+  /**
+   * Memory reserved by a transfer. Releasing it more than once has no effect.
+   */
+  public static class Reservation {
+
+    /**
+     * A reservation of nothing, for the transfers running outside of any budget.
+     */
+    public static final Reservation NONE = new Reservation(null, 0);
+
+    private final MemoryBudget budget;
+
+    // guarded by this, as released, so an extension is either released with the reservation or refused
+    private int units;
+
+    private boolean released;
+
+    private Reservation(MemoryBudget budget, int units) {
+      this.budget = budget;
+      this.units = units;
+    }
+
+    /**
+     * Reserves more memory for the transfer, only if it is available right away, ahead of the waiting transfers.
+     *
+     * @param bytes the bytes to add to the reservation
+     * @return whether they were reserved, always true outside of any budget
+     */
+    public synchronized boolean tryExtend(long bytes) {
+      if (budget == null) {
+        return true;
+      }
+      final int extension = toUnits(bytes);
+      if (released || !budget.units.tryAcquire(extension)) {
+        return false;
+      }
+      units += extension;
+      return true;
+    }
+
+    public synchronized void release() {
+      if (budget != null && !released) {
+        released = true;
+        budget.units.release(units);
+      }
+    }
+  }
+}
@@ -0,0 +1,406 @@
+package jp.mediahub.stream.container;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import jp.mediahub.messages.Media;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.repository.MediaRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decorator of {@link MediaContainer} sharing one storage read between the concurrent downloads of the same media.
+ * <p>
+ * The downloads of a content, identified by its hash as looked up through the {@link MediaRepository}, join a flight:
+ * a single stream of the delegate whose blocks are kept in a window of the last <code>windowBytes</code> read. Each
+ * download, a subscriber of the flight, copies the blocks from the window at its own pace. The subscriber reaching the
+ * end of the window reads the next block from the storage for all the others, those needing it meanwhile wait for that
+ * read instead of issuing their own.
+ * <p>
+ * The window never waits for the slow subscribers: the oldest block is dropped once the window is full, and a
+ * subscriber needing it, or skipping beyond the window, leaves the flight and reads the delegate on its own from its
+ * position. A download that can not join the current flight of its media, e.g. starting at the beginning of the media
+ * while the flight is far beyond it, starts a new one, which the next downloads join. Media without a hash are never
+ * coalesced, and at most <code>maxFlights</code> flights are kept, the downloads past them reading the delegate on their
+ * own, so the windows hold at most <code>maxFlights * windowBytes</code>.
+ * <p>
+ * The subscribers that joined a flight, the storage reads they were saved, and those that fell back to reading on their
+ * own are counted, see {@link jp.mediahub.metrics.MediaMetrics}.
+ *
+ * @author Renato Raeffray
+ */
+public class CoalescingMediaContainer implements MediaContainer {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CoalescingMediaContainer.class);
+
+  // blocks read from the media not stored in blocks, e.g. files
+  private static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+  private final MediaContainer delegate;
+
+  private final MediaRepository mediaRepository;
+
+  private final long windowBytes;
+
+  private final int maxFlights;
+
+  // content hash -> the flight the next downloads join
+  private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+  private final AtomicInteger flightCount = new AtomicInteger();
+
+  private final AtomicLong coalescedReaders = new AtomicLong();
+
+  private final AtomicLong storageReads = new AtomicLong();
+
+  private final AtomicLong storageReadsSaved = new AtomicLong();
+
+  private final AtomicLong fallbacks = new AtomicLong();
+
+  public CoalescingMediaContainer(MediaContainer delegate, MediaRepository mediaRepository, long windowBytes,
+      int maxFlights) {
+    this.delegate = delegate;
+    this.mediaRepository = mediaRepository;
+    this.windowBytes = windowBytes;
+    this.maxFlights = maxFlights;
+  }
+
+  @Override
+  public UploadStream openStreamForUpload(MediaChunk media) {
+    return delegate.openStreamForUpload(media);
+  }
+
+  /**
+   * The media sent as stored are read from the delegate, they are neither shared nor copied.
+   */
+  @Override
+  public DownloadStream openEncodedStreamForDownload(String mediaName, Collection<String> acceptedEncodings) {
+    return delegate.openEncodedStreamForDownload(mediaName, acceptedEncodings);
+  }
+
+  @Override
+  public DownloadStream openStreamForDownload(String mediaName, long offset) {
+    final String hash = mediaRepository.findMedia(mediaName).map(Media::getHash).orElse("");
+    if (hash.isEmpty()) {
+      return delegate.openStreamForDownload(mediaName, offset);
+    }
+    final Flight current = flights.get(hash);
+    if (current != null && current.join(offset)) {
+      coalescedReaders.incrementAndGet();
+      return current.subscribe(offset);
+    }
+    if (flightCount.incrementAndGet() > maxFlights) {
+      flightCount.decrementAndGet();
+      return delegate.openStreamForDownload(mediaName, offset);
+    }
+    final DownloadStream source;
+    try {
+      source = delegate.openStreamForDownload(mediaName, offset);
+    } catch (RuntimeException e) {
+      flightCount.decrementAndGet();
+      throw e;
+    }
+    final Flight flight = new Flight(hash, mediaName, source, offset);
+    flights.put(hash, flight);
+    return flight.subscribe(offset);
+  }
+
+  public int getFlights() {
+    return flightCount.get();
+  }
+
+  public long getCoalescedReaders() {
+    return coalescedReaders.get();
+  }
+
+  public long getStorageReads() {
+    return storageReads.get();
+  }
+
+  public long getStorageReadsSaved() {
+    return storageReadsSaved.get();
+  }
+
+  public long getFallbacks() {
+    return fallbacks.get();
+  }
+
+  private record Block(long offset, byte[] data, int length, Subscriber reader) {
+
+    long end() {
+      return offset + length;
+    }
+  }
+
+  /**
+   * The shared read of a media, every field is guarded by the flight itself.
+   */
+  private class Flight {
+
+    private final String hash;
+
+    private final String mediaName;
+
+    private final DownloadStream source;
+
+    private final long length;
+
+    private final int blockSize;
+
+    private final int maxBlocks;
+
+    private final ArrayDeque<Block> window = new ArrayDeque<>();
+
+    // array of the last block dropped, reused by the next read
+    private byte[] spare;
+
+    private long windowStart;
+
+    // position of the source
+    private long windowEnd;
+
+    private boolean reading;
+
+    private int subscribers = 1;
+
+    private boolean ended;
+
+    Flight(String hash, String mediaName, DownloadStream source, long offset) {
+      this.hash = hash;
+      this.mediaName = mediaName;
+      this.source = source;
+      this.length = source.getStreamLength();
+      this.blockSize = source.getBlockSize() > 0 ? source.getBlockSize() : DEFAULT_BLOCK_SIZE;
+      this.maxBlocks = (int) Math.max(1, windowBytes / blockSize);
+      this.windowStart = offset;
+      this.windowEnd = offset;
+    }
+
+    synchronized boolean join(long offset) {
+      if (ended || offset < windowStart || offset > windowEnd) {
+        return false;
+      }
+      subscribers++;
+      return true;
+    }
+
+    DownloadStream subscribe(long offset) {
+      return new DownloadStream(new Subscriber(this, offset), length, source.getBlockSize())
+          .describedAs(source.getContentType(), source.getContentEncoding(), source.getContentLength());
+    }
+
+    /**
+     * Copies the bytes at the position of the subscriber from the window, reading the next block from the storage if
+     * the subscriber is at the end of the window.
+     *
+     * @return the number of bytes copied, or -1 if the position is out of the window
+     */
+    int read(Subscriber subscriber, byte[] buffer, int offset, int len) throws IOException {
+      final long position = subscriber.position;
+      synchronized (this) {
+        while (true) {
+          if (ended || position < windowStart || position > windowEnd) {
+            return -1;
+          }
+          if (position < windowEnd) {
+            return copy(subscriber, buffer, offset, len);
+          }
+          if (!reading) {
+            reading = true;
+            break;
+          }
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the shared read of " + mediaName);
+          }
+        }
+      }
+      readBlock(subscriber);
+      return read(subscriber, buffer, offset, len);
+    }
+
+    private int copy(Subscriber subscriber, byte[] buffer, int offset, int len) {
+      final long position = subscriber.position;
+      for (Block block : window) {
+        if (position < block.end()) {
+          final int blockOffset = (int) (position - block.offset());
+          final int copied = Math.min(len, block.length() - blockOffset);
+          System.arraycopy(block.data(), blockOffset, buffer, offset, copied);
+          if (block.reader() != subscriber && subscriber.lastBlockServed != block.offset()) {
+            storageReadsSaved.incrementAndGet();
+          }
+          subscriber.lastBlockServed = block.offset();
+          return copied;
+        }
+      }
+      throw new IllegalStateException("Position " + position + " not in the window");
+    }
+
+    // only the subscriber that set reading runs it, the source is read outside the lock
+    private void readBlock(Subscriber subscriber) throws IOException {
+      byte[] data;
+      long position;
+      synchronized (this) {
+        data = spare != null ? spare : new byte[blockSize];
+        spare = null;
+        position = windowEnd;
+      }
+      int bytesRead = -1;
+      try {
+        bytesRead = source.readChunk(data, 0, (int) Math.min(blockSize, length - position));
+        storageReads.incrementAndGet();
+      } finally {
+        synchronized (this) {
+          reading = false;
+          if (bytesRead > 0) {
+            window.addLast(new Block(position, data, bytesRead, subscriber));
+            windowEnd += bytesRead;
+            while (window.size() > maxBlocks) {
+              spare = window.removeFirst().data();
+              windowStart = window.getFirst().offset();
+            }
+          } else {
+            // the storage failed, the subscribers go on reading on their own
+            end();
+          }
+          notifyAll();
+        }
+      }
+    }
+
+    void leave() {
+      synchronized (this) {
+        if (--subscribers > 0) {
+          return;
+        }
+        end();
+      }
+      try {
+        source.close();
+      } catch (IOException e) {
+        LOGGER.warn("Could not close the shared read of [{}]", mediaName, e);
+      }
+    }
+
+    // no subscriber joins it anymore, the last one leaving closes the source
+    private void end() {
+      if (!ended) {
+        ended = true;
+        flights.remove(hash, this);
+        flightCount.decrementAndGet();
+        window.clear();
+        spare = null;
+      }
+    }
+  }
+
+  /**
+   * A download reading from a flight, or on its own once it fell out of the window.
+   */
+  private class Subscriber extends InputStream {
+
+    private final Flight flight;
+
+    private final long length;
+
+    private long position;
+
+    private long lastBlockServed = -1;
+
+    private DownloadStream ownStream;
+
+    private boolean left;
+
+    private boolean closed;
+
+    Subscriber(Flight flight, long offset) {
+      this.flight = flight;
+      this.length = flight.length;
+      this.position = Math.min(Math.max(offset, 0), length);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] single = new byte[1];
+      return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= length) {
+        return -1;
+      }
+      int bytesRead = -1;
+      if (ownStream == null) {
+        bytesRead = flight.read(this, buffer, offset, len);
+        if (bytesRead < 0) {
+          fallBack();
+        }
+      }
+      if (ownStream != null) {
+        bytesRead = ownStream.read(buffer, offset, len);
+      }
+      if (bytesRead > 0) {
+        position += bytesRead;
+      }
+      return bytesRead;
+    }
+
+    /**
+     * Moves the position only, the next read finds it in the window or reads on its own.
+     */
+    @Override
+    public long skip(long bytesToSkip) throws IOException {
+      if (bytesToSkip <= 0) {
+        return 0;
+      }
+      final long skipped = Math.min(bytesToSkip, length - position);
+      if (ownStream != null) {
+        ownStream.skipFully(skipped);
+      }
+      position += skipped;
+      return skipped;
+    }
+
+    private void fallBack() {
+      LOGGER.debug("Download of [{}] left the shared read at [{}]", flight.mediaName, position);
+      fallbacks.incrementAndGet();
+      leaveFlight();
+      ownStream = delegate.openStreamForDownload(flight.mediaName, position);
+    }
+
+    private void leaveFlight() {
+      if (!left) {
+        left = true;
+        flight.leave();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      leaveFlight();
+      if (ownStream != null) {
+        ownStream.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package jp.mediahub.stream.container;
+
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.List;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.repository.MediaRepository;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decorator of {@link MediaContainer} storing the media of the compressible types compressed with a
+ * {@link ContentCodec}, e.g. text, JSON or raw formats, the already compressed ones, e.g. JPEG or MP4, being stored as
+ * they are.
+ * <p>
+ * The media type is the one detected on upload, see {@link jp.mediahub.stream.MediaUploadStreaming}. The content is
+ * compressed as it is written to the delegate, the hash declared by the client being verified against the content
+ * before the compression. The file document records the encoding, and once the upload is committed, the hash and the
+ * length of the content before the compression, under <code>metadata.identityHash</code> and
+ * <code>metadata.contentLength</code>: <code>metadata.contentHash</code> and <code>length</code> keep describing the
+ * bytes stored, as the delegate addresses them. Compressed media are not deduplicated on upload.
+ * <p>
+ * Downloads are decompressed as they are read, a download starting beyond the beginning of a compressed media
+ * decompressing the content before it. Clients accepting the encoding of a media read it as stored instead, through
+ * {@link #openEncodedStreamForDownload(String, Collection)}.
+ *
+ * @author Renato Raeffray
+ */
+public class CompressingMediaContainer implements MediaContainer {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CompressingMediaContainer.class);
+
+  private static final int SKIP_BUFFER_SIZE = 64 * 1024;
+
+  private final MediaContainer delegate;
+
+  private final MongoCollection<Document> filesCollection;
+
+  private final ContentCodec codec;
+
+  private final int level;
+
+  // media types, or families of types such as text/*
+  private final List<String> compressibleTypes;
+
+  public CompressingMediaContainer(MediaContainer delegate, MongoCollection<Document> filesCollection,
+      ContentCodec codec, int level, List<String> compressibleTypes) {
+    this.delegate = delegate;
+    this.filesCollection = filesCollection;
+    this.codec = codec;
+    this.level = level;
+    this.compressibleTypes = compressibleTypes.stream().map(String::trim).map(String::toLowerCase).toList();
+  }
+
+  @Override
+  public UploadStream openStreamForUpload(MediaChunk media) {
+    if (!isCompressible(media.getContentType())) {
+      return delegate.openStreamForUpload(media);
+    }
+    // the delegate verifies nothing, the hash declared is the one of the content before the compression
+    final UploadStream storedStream = delegate.openStreamForUpload(media.toBuilder()
+        .clearHash()
+        .setContentEncoding(codec.getEncoding())
+        .build());
+    final OutputStream encoder;
+    try {
+      encoder = codec.encode(storedStream, level);
+    } catch (IOException e) {
+      storedStream.abort();
+      throw new UncheckedIOException(e);
+    }
+    return new UploadStream(encoder, media.getHash(), storedStream::abort,
+        uploadStream -> describe(media.getOriginalName(), storedStream, uploadStream));
+  }
+
+  // the encoder closed the stored stream, the delegate committed the file document
+  private void describe(String mediaName, UploadStream storedStream, UploadStream uploadStream) {
+    filesCollection.updateOne(Filters.and(
+            Filters.eq(MediaRepository.FILENAME_KEY, mediaName),
+            Filters.eq(MediaRepository.CONTENT_HASH_PATH, storedStream.getContentHash())),
+        Updates.combine(
+            Updates.set(MediaRepository.IDENTITY_HASH_PATH, uploadStream.getContentHash()),
+            Updates.set(MediaRepository.CONTENT_LENGTH_PATH, uploadStream.getLength())));
+    LOGGER.debug("Media [{}] stored with [{}], [{}] bytes out of [{}]", mediaName, codec.getEncoding(),
+        storedStream.getLength(), uploadStream.getLength());
+  }
+
+  @Override
+  public DownloadStream openStreamForDownload(String mediaName, long offset) {
+    DownloadStream stored = delegate.openStreamForDownload(mediaName, offset);
+    if (stored.getContentEncoding().isEmpty()) {
+      return stored;
+    }
+    // the offset is in the content before the compression, it is reached by decompressing from the beginning
+    if (offset > 0) {
+      closeQuietly(mediaName, stored);
+      stored = delegate.openStreamForDownload(mediaName, 0);
+    }
+    final DownloadStream decoded = decode(mediaName, stored);
+    try {
+      skip(decoded, Math.min(offset, decoded.getStreamLength()));
+    } catch (IOException e) {
+      closeQuietly(mediaName, decoded);
+      throw new UncheckedIOException(e);
+    }
+    return decoded;
+  }
+
+  @Override
+  public DownloadStream openEncodedStreamForDownload(String mediaName, Collection<String> acceptedEncodings) {
+    final DownloadStream stored = delegate.openStreamForDownload(mediaName, 0);
+    final String encoding = stored.getContentEncoding();
+    if (encoding.isEmpty() || acceptedEncodings.stream().anyMatch(encoding::equalsIgnoreCase)) {
+      return stored;
+    }
+    return decode(mediaName, stored);
+  }
+
+  private DownloadStream decode(String mediaName, DownloadStream stored) {
+    final long contentLength = stored.getContentLength();
+    if (contentLength < 0) {
+      closeQuietly(mediaName, stored);
+      throw new MongoGridFSException(String.format("Media [%s] is still being stored", mediaName));
+    }
+    try {
+      return new DownloadStream(ContentCodec.of(stored.getContentEncoding()).decode(stored), contentLength)
+          .describedAs(stored.getContentType(), "", contentLength);
+    } catch (IOException e) {
+      closeQuietly(mediaName, stored);
+      throw new UncheckedIOException(e);
+    } catch (IllegalArgumentException e) {
+      closeQuietly(mediaName, stored);
+      throw e;
+    }
+  }
+
+  /**
+   * @param contentType the media type, with or without parameters
+   * @return whether the content of this type is stored compressed
+   */
+  public boolean isCompressible(String contentType) {
+    if (contentType.isEmpty()) {
+      return false;
+    }
+    final int parameters = contentType.indexOf(';');
+    final String type = (parameters < 0 ? contentType : contentType.substring(0, parameters)).trim().toLowerCase();
+    for (String compressibleType : compressibleTypes) {
+      final boolean matches = compressibleType.endsWith("/*")
+          ? type.startsWith(compressibleType.substring(0, compressibleType.length() - 1))
+          : type.equals(compressibleType);
+      if (matches) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // the decoder skips a few hundred bytes at a time, larger reads skip faster
+  private static void skip(DownloadStream stream, long bytesToSkip) throws IOException {
+    final byte[] skipped = new byte[(int) Math.min(SKIP_BUFFER_SIZE, Math.max(bytesToSkip, 1))];
+    long remaining = bytesToSkip;
+    while (remaining > 0) {
+      final int bytesRead = stream.read(skipped, 0, (int) Math.min(skipped.length, remaining));
+      if (bytesRead < 0) {
+        throw new IOException(String.format("Could not skip [%d] bytes, end of stream reached", remaining));
+      }
+      remaining -= bytesRead;
+    }
+  }
+
+  private static void closeQuietly(String mediaName, DownloadStream stream) {
+    try {
+      stream.close();
+    } catch (IOException e) {
+      LOGGER.warn("Could not close the stream of [{}]", mediaName, e);
+    }
+  }
+}
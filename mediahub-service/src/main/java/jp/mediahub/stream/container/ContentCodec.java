@@ -0,0 +1,110 @@
+package jp.mediahub.stream.container;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The codecs the media may be stored compressed with, named as the clients accept them, e.g. <code>gzip</code>.
+ *
+ * @author Renato Raeffray
+ */
+public enum ContentCodec {
+
+  /**
+   * zlib stream, as the HTTP <code>deflate</code> encoding
+   */
+  DEFLATE("deflate") {
+    @Override
+    public OutputStream encode(OutputStream stream, int level) {
+      final Deflater deflater = new Deflater(level);
+      return new DeflaterOutputStream(stream, deflater, BUFFER_SIZE) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            deflater.end();
+          }
+        }
+      };
+    }
+
+    @Override
+    public InputStream decode(InputStream stream) {
+      final Inflater inflater = new Inflater();
+      return new InflaterInputStream(stream, inflater, BUFFER_SIZE) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            inflater.end();
+          }
+        }
+      };
+    }
+  },
+
+  GZIP("gzip") {
+    @Override
+    public OutputStream encode(OutputStream stream, int level) throws IOException {
+      return new GZIPOutputStream(stream, BUFFER_SIZE) {
+        {
+          def.setLevel(level);
+        }
+      };
+    }
+
+    @Override
+    public InputStream decode(InputStream stream) throws IOException {
+      return new GZIPInputStream(stream, BUFFER_SIZE);
+    }
+  };
+
+  // the content is written and read by chunks of this size, about the size of the chunks sent
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final String encoding;
+
+  ContentCodec(String encoding) {
+    this.encoding = encoding;
+  }
+
+  /**
+   * @param stream the stream the compressed content is written to, closed once the content is
+   * @param level the compression level, from 1 (fastest) to 9 (smallest)
+   * @return the stream compressing the content written
+   */
+  public abstract OutputStream encode(OutputStream stream, int level) throws IOException;
+
+  /**
+   * @param stream the stream of the compressed content
+   * @return the stream of the content decompressed as it is read
+   */
+  public abstract InputStream decode(InputStream stream) throws IOException;
+
+  public String getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * @param encoding the name of the encoding, e.g. gzip
+   * @return the codec of the encoding
+   * @throws IllegalArgumentException if no codec has this name
+   */
+  public static ContentCodec of(String encoding) {
+    for (ContentCodec codec : values()) {
+      if (codec.encoding.equalsIgnoreCase(encoding)) {
+        return codec;
+      }
+    }
+    throw new IllegalArgumentException(String.format("Unknown content encoding [%s]", encoding));
+  }
+}
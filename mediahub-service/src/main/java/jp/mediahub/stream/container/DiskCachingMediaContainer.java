@@ -0,0 +1,301 @@
+package jp.mediahub.stream.container;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import jp.mediahub.messages.Media;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.repository.MediaRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Decorator of {@link MediaContainer} keeping a copy of the media downloaded on the local disk.
+ * <p>
+ * The copies are addressed by the content hash of the media, looked up through the {@link MediaRepository}: a media
+ * replaced under the same name has a new hash, so its previous copy is never served, and media sharing their content
+ * share their copy. Media without a hash are never cached.
+ * <p>
+ * A download missing the cache is served by the delegate, while a copy is written in the background, once per content
+ * no matter how many downloads missed it. The copy is written to a temporary file, verified against the hash and only
+ * then moved to its final name, so a partial or corrupted copy is never served. Hits are read by a
+ * {@link FileChannelInputStream}, straight into the buffer of the outgoing chunks.
+ * <p>
+ * The copies are bounded by a byte budget, Caffeine's W-TinyLFU policy deciding which ones to evict, and an evicted
+ * copy is deleted from the disk. Downloads already reading it are not affected, as the file stays readable until they
+ * close it. The copies found in the directory at start up are indexed again.
+ * <p>
+ * Hit, miss, fill and bytes served counters are exported over JMX.
+ *
+ * @author Renato Raeffray
+ */
+@ManagedResource(objectName = "jp.mediahub:type=MediaContainer,name=diskCache")
+public class DiskCachingMediaContainer implements MediaContainer {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DiskCachingMediaContainer.class);
+
+  private static final Pattern HEX_DIGEST = Pattern.compile("[0-9a-f]{64}");
+
+  private static final String PARTIAL_SUFFIX = ".part";
+
+  private final MediaContainer delegate;
+
+  private final MediaRepository mediaRepository;
+
+  private final Path directory;
+
+  private final long maxMediaBytes;
+
+  private final Executor fillExecutor;
+
+  // content digest -> length of the copy
+  private final Cache<String, Long> copies;
+
+  private final Set<String> fillsInProgress = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong bytesServed = new AtomicLong();
+
+  private final AtomicLong fillCount = new AtomicLong();
+
+  private final AtomicLong fillFailureCount = new AtomicLong();
+
+  public DiskCachingMediaContainer(MediaContainer delegate, MediaRepository mediaRepository, Path directory,
+      long maxBytes, long maxMediaBytes, Executor fillExecutor) throws IOException {
+    this.delegate = delegate;
+    this.mediaRepository = mediaRepository;
+    this.directory = Files.createDirectories(directory);
+    this.maxMediaBytes = maxMediaBytes;
+    this.fillExecutor = fillExecutor;
+    // weighed in KiB, so the budget is not bound by the int weights of Caffeine
+    this.copies = Caffeine.newBuilder()
+        .maximumWeight(Math.max(1, maxBytes / 1024))
+        .weigher((String digest, Long length) -> (int) Math.min(Integer.MAX_VALUE, length / 1024 + 1))
+        .removalListener((String digest, Long length, RemovalCause cause) -> {
+          if (digest != null && cause != RemovalCause.REPLACED) {
+            deleteCopy(digest);
+          }
+        })
+        .recordStats()
+        .build();
+    indexExistingCopies();
+  }
+
+  @Override
+  public UploadStream openStreamForUpload(MediaChunk media) {
+    return delegate.openStreamForUpload(media);
+  }
+
+  /**
+   * The media sent as stored are read from the delegate, they are neither shared nor copied.
+   */
+  @Override
+  public DownloadStream openEncodedStreamForDownload(String mediaName, Collection<String> acceptedEncodings) {
+    return delegate.openEncodedStreamForDownload(mediaName, acceptedEncodings);
+  }
+
+  @Override
+  public DownloadStream openStreamForDownload(String mediaName, long offset) {
+    final Optional<Media> media = mediaRepository.findMedia(mediaName);
+    final String digest = media.map(m -> toDigest(m.getHash())).orElse(null);
+    if (digest == null) {
+      return delegate.openStreamForDownload(mediaName, offset);
+    }
+    final Long length = copies.getIfPresent(digest);
+    if (length != null && length == media.get().getSize()) {
+      try {
+        return new DownloadStream(new CopyInputStream(FileChannel.open(copyOf(digest), StandardOpenOption.READ),
+            offset), length);
+      } catch (NoSuchFileException e) {
+        copies.invalidate(digest);
+      } catch (IOException e) {
+        LOGGER.warn("Could not read the disk copy of [{}]", mediaName, e);
+        copies.invalidate(digest);
+      }
+    } else if (media.get().getSize() <= maxMediaBytes) {
+      scheduleFill(mediaName, digest, media.get().getSize());
+    }
+    return delegate.openStreamForDownload(mediaName, offset);
+  }
+
+  private void scheduleFill(String mediaName, String digest, long length) {
+    if (!fillsInProgress.add(digest)) {
+      return;
+    }
+    try {
+      fillExecutor.execute(() -> {
+        try {
+          fill(mediaName, digest, length);
+        } finally {
+          fillsInProgress.remove(digest);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      fillsInProgress.remove(digest);
+    }
+  }
+
+  private void fill(String mediaName, String digest, long length) {
+    final Path partial = directory.resolve(digest + PARTIAL_SUFFIX);
+    try {
+      final MessageDigest messageDigest = UploadStream.newDigest();
+      long copied;
+      try (DownloadStream source = delegate.openStreamForDownload(mediaName);
+          OutputStream target = new DigestOutputStream(Files.newOutputStream(partial), messageDigest)) {
+        copied = source.transferTo(target);
+      }
+      final String copiedDigest = UploadStream.formatHash(messageDigest);
+      if (copied != length || !copiedDigest.equals(digest + " " + UploadStream.HASH_ALGORITHM)) {
+        // the media was replaced while it was copied, or the stored content does not match its hash
+        LOGGER.warn("Disk copy of [{}] discarded: [{}] bytes with hash [{}], expected [{}] bytes with hash [{}]",
+            mediaName, copied, copiedDigest, length, digest);
+        Files.deleteIfExists(partial);
+        fillFailureCount.incrementAndGet();
+        return;
+      }
+      Files.move(partial, copyOf(digest), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      copies.put(digest, length);
+      fillCount.incrementAndGet();
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Could not copy [{}] to the disk cache", mediaName, e);
+      fillFailureCount.incrementAndGet();
+      try {
+        Files.deleteIfExists(partial);
+      } catch (IOException ignored) {
+        // removed at the next start up
+      }
+    }
+  }
+
+  private void indexExistingCopies() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      files.forEach(file -> {
+        final String name = file.getFileName().toString();
+        try {
+          if (HEX_DIGEST.matcher(name).matches()) {
+            copies.put(name, Files.size(file));
+          } else if (name.endsWith(PARTIAL_SUFFIX)) {
+            Files.deleteIfExists(file);
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    }
+  }
+
+  private void deleteCopy(String digest) {
+    try {
+      Files.deleteIfExists(copyOf(digest));
+    } catch (IOException e) {
+      LOGGER.warn("Could not delete the disk copy [{}]", digest, e);
+    }
+  }
+
+  private Path copyOf(String digest) {
+    return directory.resolve(digest);
+  }
+
+  // the hex digest of a "<hex> sha256" hash, which names the copy, or null if the media can not be cached
+  private static String toDigest(String hash) {
+    final String normalized = UploadStream.normalizeHash(hash);
+    if (!normalized.endsWith(" " + UploadStream.HASH_ALGORITHM)) {
+      return null;
+    }
+    final String digest = normalized.substring(0, normalized.indexOf(' '));
+    return HEX_DIGEST.matcher(digest).matches() ? digest : null;
+  }
+
+  @ManagedOperation(description = "Drops and deletes every copy")
+  public void invalidateAll() {
+    copies.invalidateAll();
+  }
+
+  @ManagedAttribute(description = "Number of media copied on the disk")
+  public long getSize() {
+    return copies.estimatedSize();
+  }
+
+  @ManagedAttribute(description = "Number of downloads served from the disk")
+  public long getHitCount() {
+    return copies.stats().hitCount();
+  }
+
+  @ManagedAttribute(description = "Number of downloads served by the delegate container")
+  public long getMissCount() {
+    return copies.stats().missCount();
+  }
+
+  @ManagedAttribute(description = "Ratio of downloads served from the disk")
+  public double getHitRate() {
+    return copies.stats().hitRate();
+  }
+
+  @ManagedAttribute(description = "Number of bytes served from the disk instead of the delegate container")
+  public long getBytesServed() {
+    return bytesServed.get();
+  }
+
+  @ManagedAttribute(description = "Number of media copied to the disk")
+  public long getFillCount() {
+    return fillCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of copies that failed or were discarded")
+  public long getFillFailureCount() {
+    return fillFailureCount.get();
+  }
+
+  @ManagedAttribute(description = "Number of copies evicted to stay within the byte budget")
+  public long getEvictionCount() {
+    return copies.stats().evictionCount();
+  }
+
+  /**
+   * Counts the bytes read from a copy.
+   */
+  private class CopyInputStream extends FileChannelInputStream {
+
+    CopyInputStream(FileChannel channel, long offset) throws IOException {
+      super(channel, offset);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      final int bytesRead = super.read(buffer, offset, length);
+      if (bytesRead > 0) {
+        bytesServed.addAndGet(bytesRead);
+      }
+      return bytesRead;
+    }
+
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+      final long transferred = super.transferTo(out);
+      bytesServed.addAndGet(transferred);
+      return transferred;
+    }
+  }
+}
@@ -2,13 +2,23 @@ package jp.mediahub.stream.container;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import jp.mediahub.repository.MediaRepository;
+import org.bson.Document;
 
 /**
  * A custom InputStream class for handling media file download.
  * Extends the standard {@link InputStream} class and adds a field to store the length of the stream.
  *
- * The {@link #read()} method is overridden to read the underlying input stream.
- * A getter method {@link #getStreamLength()} is provided to retrieve the length of the stream.
+ * The {@link #read()}, {@link #read(byte[], int, int)}, {@link #skip(long)}, {@link #available()},
+ * {@link #transferTo(OutputStream)} and {@link #close()} methods are overridden to delegate to the underlying input
+ * stream, so bulk reads are served by the container stream itself instead of the byte-by-byte default of
+ * {@link InputStream}.
+ * A getter method {@link #getStreamLength()} is provided to retrieve the length of the stream, and
+ * {@link #getBlockSize()} the size of the blocks the container stores it in, if any.
+ *
+ * The media type and the encoding of the content, as recorded in the metadata of the media, are carried along, so a
+ * media stored compressed is decoded, or sent as stored, by {@link CompressingMediaContainer}.
  *
  * @author Renato Raeffray
  *
@@ -17,22 +27,153 @@ import java.io.InputStream;
 public class DownloadStream extends InputStream {
 
   public DownloadStream(InputStream stream, Long streamLength) {
+    this(stream, streamLength, 0);
+  }
+
+  public DownloadStream(InputStream stream, Long streamLength, int blockSize) {
     this.stream = stream;
     this.streamLength = streamLength;
+    this.blockSize = blockSize;
   }
 
   private Long streamLength;
 
+  private int blockSize;
+
   private InputStream stream;
 
+  private String contentType = "";
+
+  private String contentEncoding = "";
+
+  // length of the content once decoded, the stream length when not encoded
+  private long contentLength = -1;
+
   @Override
   public int read() throws IOException {
     return stream.read();
   }
 
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    return stream.read(buffer, offset, length);
+  }
+
+  /**
+   * Reads from the underlying stream until <code>length</code> bytes were read or the end of the stream is reached.
+   * <p>
+   * Container streams usually return at most the remainder of their current storage block (e.g. a GridFS chunk) on
+   * each call, this method keeps reading so every outgoing chunk is filled up to the requested size.
+   *
+   * @param buffer the buffer into which the data is read
+   * @param offset the start offset in the buffer
+   * @param length the maximum number of bytes to read
+   * @return the number of bytes read, or -1 if the end of the stream was reached before any byte was read
+   * @throws IOException if an I/O error occurs
+   */
+  public int readChunk(byte[] buffer, int offset, int length) throws IOException {
+    int totalRead = 0;
+    while (totalRead < length) {
+      final int bytesRead = stream.read(buffer, offset + totalRead, length - totalRead);
+      if (bytesRead < 0) {
+        break;
+      }
+      totalRead += bytesRead;
+    }
+    return totalRead == 0 && length > 0 ? -1 : totalRead;
+  }
+
+  /**
+   * Skips exactly <code>bytesToSkip</code> bytes, container streams move straight to the new position when they can.
+   *
+   * @param bytesToSkip the number of bytes to skip
+   * @throws IOException if the end of the stream is reached before, or an I/O error occurs
+   */
+  public void skipFully(long bytesToSkip) throws IOException {
+    long remaining = bytesToSkip;
+    while (remaining > 0) {
+      final long skipped = stream.skip(remaining);
+      if (skipped <= 0) {
+        throw new IOException(String.format("Could not skip [%d] bytes, end of stream reached", remaining));
+      }
+      remaining -= skipped;
+    }
+  }
+
+  @Override
+  public long skip(long bytesToSkip) throws IOException {
+    return stream.skip(bytesToSkip);
+  }
+
+  @Override
+  public int available() throws IOException {
+    return stream.available();
+  }
+
+  @Override
+  public long transferTo(OutputStream out) throws IOException {
+    return stream.transferTo(out);
+  }
+
+  @Override
+  public void close() throws IOException {
+    stream.close();
+  }
+
   public Long getStreamLength() {
     return this.streamLength;
   }
 
+  /**
+   * Describes the content from the metadata of the file document of the media.
+   *
+   * @param metadata the metadata, may be null
+   * @return this stream
+   */
+  public DownloadStream describedBy(Document metadata) {
+    if (metadata != null) {
+      final Number length = metadata.get(MediaRepository.CONTENT_LENGTH_KEY, Number.class);
+      describedAs(metadata.get(MediaRepository.CONTENT_TYPE_KEY, ""),
+          metadata.get(MediaRepository.CONTENT_ENCODING_KEY, ""), length == null ? -1 : length.longValue());
+    }
+    return this;
+  }
+
+  public DownloadStream describedAs(String contentType, String contentEncoding, long contentLength) {
+    this.contentType = contentType;
+    this.contentEncoding = contentEncoding;
+    this.contentLength = contentLength;
+    return this;
+  }
+
+  /**
+   * @return the media type of the content, or an empty string if unknown
+   */
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * @return the encoding of the stream, e.g. gzip, or an empty string if the content is read as is
+   */
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  /**
+   * @return the length of the content once decoded, or -1 if unknown
+   */
+  public long getContentLength() {
+    return contentEncoding.isEmpty() ? streamLength : contentLength;
+  }
+
+  /**
+   * @return the size of the storage blocks of the media, e.g. the chunk size of a GridFS file, or 0 if the container
+   * does not store it in blocks
+   */
+  public int getBlockSize() {
+    return this.blockSize;
+  }
+
 
 }
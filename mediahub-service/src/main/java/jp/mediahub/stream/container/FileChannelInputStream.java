@@ -0,0 +1,83 @@
+package jp.mediahub.stream.container;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * An InputStream reading a file with positional {@link FileChannel} reads, starting at any offset.
+ * <p>
+ * Reads go straight into the buffer of the caller, skipping only moves the position, and {@link #transferTo(OutputStream)}
+ * lets the channel move the bytes to the target, without a copy through the heap when the kernel supports it.
+ *
+ * @author Renato Raeffray
+ */
+public class FileChannelInputStream extends InputStream {
+
+  private final FileChannel channel;
+
+  private final long length;
+
+  // absolute position of the next byte returned
+  private long position;
+
+  public FileChannelInputStream(FileChannel channel, long offset) throws IOException {
+    this.channel = channel;
+    this.length = channel.size();
+    this.position = Math.min(Math.max(offset, 0), length);
+  }
+
+  @Override
+  public int read() throws IOException {
+    final byte[] single = new byte[1];
+    return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (position >= length) {
+      return -1;
+    }
+    final int bytesRead = channel.read(ByteBuffer.wrap(buffer, offset, len), position);
+    if (bytesRead > 0) {
+      position += bytesRead;
+    }
+    return bytesRead;
+  }
+
+  @Override
+  public long skip(long bytesToSkip) {
+    final long skipped = Math.max(0, Math.min(bytesToSkip, length - position));
+    position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return (int) Math.min(Integer.MAX_VALUE, length - position);
+  }
+
+  @Override
+  public long transferTo(OutputStream out) throws IOException {
+    final long start = position;
+    while (position < length) {
+      final long transferred = channel.transferTo(position, length - position, Channels.newChannel(out));
+      if (transferred <= 0) {
+        break;
+      }
+      position += transferred;
+    }
+    return position - start;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,200 @@
+package jp.mediahub.stream.container;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import io.grpc.Status;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.stream.Stream;
+import jp.mediahub.repository.MediaContentStore;
+import jp.mediahub.repository.MediaRepository;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the content of the media as files, addressed by their content hash, under a directory tree sharded by the
+ * first bytes of the hash: <code>ab/cd/abcd...</code>. The sharding keeps the directories small no matter how many
+ * media are stored, and media sharing their content share their file.
+ * <p>
+ * Uploads are written to a temporary file, outside the tree, which is atomically renamed to its final path once its
+ * hash is known and verified, so a partial content is never visible. A media is at most <code>maxMediaBytes</code>
+ * long, whatever the size announced by the client. The file documents of the media stored here are
+ * marked with <code>metadata.storage</code>, a content file is deleted with the last of them.
+ * <p>
+ * Renaming a content and registering its file document, or deleting the last document and its content, are serialized
+ * per content hash. This is only guaranteed within one instance, instances sharing a mounted directory may race when
+ * the same content is uploaded and deleted at once.
+ *
+ * @author Renato Raeffray
+ */
+public class FileSystemBlobStore implements MediaContentStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemBlobStore.class);
+
+  public static final String STORAGE_KEY = "storage";
+
+  public static final String STORAGE_PATH = "metadata." + STORAGE_KEY;
+
+  public static final String STORAGE = "filesystem";
+
+  private static final String TEMPORARY_DIRECTORY = "tmp";
+
+  private static final int LOCK_STRIPES = 64;
+
+  private final Path root;
+
+  private final Path temporaryDirectory;
+
+  private final MongoCollection<Document> filesCollection;
+
+  private final long maxMediaBytes;
+
+  private final Object[] locks = new Object[LOCK_STRIPES];
+
+  public FileSystemBlobStore(Path root, MongoCollection<Document> filesCollection, long maxMediaBytes)
+      throws IOException {
+    this.root = Files.createDirectories(root);
+    this.temporaryDirectory = Files.createDirectories(root.resolve(TEMPORARY_DIRECTORY));
+    this.filesCollection = filesCollection;
+    this.maxMediaBytes = maxMediaBytes;
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      locks[i] = new Object();
+    }
+    removeTemporaryFiles();
+  }
+
+  /**
+   * Creates a temporary file for an upload.
+   *
+   * @param expectedLength the length announced by the client, 0 if unknown
+   * @return the channel writing the temporary file, and its path
+   * @throws io.grpc.StatusRuntimeException INVALID_ARGUMENT if the length exceeds the largest media accepted
+   */
+  public TemporaryContent createTemporary(long expectedLength) throws IOException {
+    checkLength(expectedLength);
+    final Path path = temporaryDirectory.resolve(UUID.randomUUID().toString());
+    return new TemporaryContent(path,
+        FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+  }
+
+  /**
+   * @param length the length of a media, announced or written so far
+   * @throws io.grpc.StatusRuntimeException INVALID_ARGUMENT if the length exceeds the largest media accepted
+   */
+  public void checkLength(long length) {
+    if (length > maxMediaBytes) {
+      throw Status.INVALID_ARGUMENT
+          .withDescription(String.format("Media of [%d] bytes, at most [%d] are accepted", length, maxMediaBytes))
+          .asRuntimeException();
+    }
+  }
+
+  /**
+   * @param contentHash the hash of the content, in the <code>&lt;hex&gt; sha256</code> format
+   * @return whether the content is stored
+   */
+  public boolean contains(String contentHash) {
+    return Files.exists(pathOf(contentHash));
+  }
+
+  /**
+   * Moves a temporary file to the path of its content, then registers the media. If the content was already stored, the
+   * temporary file simply replaces it.
+   *
+   * @param temporary the temporary file, closed
+   * @param contentHash the verified hash of its content
+   * @param register registers the file document of the media
+   */
+  public void commit(Path temporary, String contentHash, Runnable register) {
+    final Path path = pathOf(contentHash);
+    synchronized (lockOf(contentHash)) {
+      try {
+        Files.createDirectories(path.getParent());
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        deleteQuietly(temporary);
+        throw new UncheckedIOException(e);
+      }
+      register.run();
+    }
+  }
+
+  /**
+   * Registers a media whose content is already stored.
+   *
+   * @param contentHash the hash of the content
+   * @param register registers the file document of the media
+   * @throws IllegalStateException if the content was deleted in the meantime
+   */
+  public void reference(String contentHash, Runnable register) {
+    synchronized (lockOf(contentHash)) {
+      if (!contains(contentHash)) {
+        throw new IllegalStateException(String.format("Content [%s] was removed during the upload", contentHash));
+      }
+      register.run();
+    }
+  }
+
+  /**
+   * Opens the content for reading.
+   */
+  public FileChannel open(String contentHash) throws IOException {
+    return FileChannel.open(pathOf(contentHash), StandardOpenOption.READ);
+  }
+
+  @Override
+  public void release(Document file) {
+    final Document metadata = file.get("metadata", new Document());
+    if (!STORAGE.equals(metadata.getString(STORAGE_KEY))) {
+      return;
+    }
+    final String contentHash = metadata.getString(MediaRepository.CONTENT_HASH_KEY);
+    synchronized (lockOf(contentHash)) {
+      final boolean referenced = filesCollection.find(Filters.and(
+          Filters.eq(MediaRepository.CONTENT_HASH_PATH, contentHash),
+          Filters.eq(STORAGE_PATH, STORAGE))).first() != null;
+      if (!referenced) {
+        deleteQuietly(pathOf(contentHash));
+      }
+    }
+  }
+
+  public void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      LOGGER.warn("Could not delete [{}]", path, e);
+    }
+  }
+
+  private Path pathOf(String contentHash) {
+    final String digest = UploadStream.normalizeHash(contentHash).split(" ")[0];
+    if (digest.length() < 4 || !digest.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+      throw new IllegalArgumentException(String.format("Invalid content hash [%s]", contentHash));
+    }
+    return root.resolve(digest.substring(0, 2)).resolve(digest.substring(2, 4)).resolve(digest);
+  }
+
+  private Object lockOf(String contentHash) {
+    return locks[Math.floorMod(contentHash.hashCode(), LOCK_STRIPES)];
+  }
+
+  private void removeTemporaryFiles() throws IOException {
+    try (Stream<Path> files = Files.list(temporaryDirectory)) {
+      files.forEach(this::deleteQuietly);
+    }
+  }
+
+  /**
+   * A temporary file being written by an upload.
+   */
+  public record TemporaryContent(Path path, FileChannel channel) {
+  }
+}
@@ -0,0 +1,175 @@
+package jp.mediahub.stream.container;
+
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Date;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.repository.MediaRepository;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Filesystem implementation of {@link MediaContainer}, the content of the media being kept by a
+ * {@link FileSystemBlobStore}.
+ * <p>
+ * The file documents are still inserted in the GridFS files collection, shaped as GridFS expects them but without
+ * chunks, so the media are listed and looked up through the {@link MediaRepository} like the others. An upload
+ * declaring a content already stored is only verified, its bytes are not written.
+ * <p>
+ * Uploads are written with {@link FileChannel} writes, up to the largest media the {@link FileSystemBlobStore}
+ * accepts. Downloads are served by a {@link FileChannelInputStream}. Media stored in GridFS, before the backend
+ * was switched or through an upload session, are still read from the GridFS container. With an
+ * {@link InlineContentStore}, the small media are stored in their file document, and served from it.
+ *
+ * @author Renato Raeffray
+ */
+public class FileSystemMediaContainer implements MediaContainer {
+
+  private final FileSystemBlobStore blobStore;
+
+  private final MongoCollection<Document> filesCollection;
+
+  private final MediaContainer gridFsContainer;
+
+  private final InlineContentStore inlineContentStore;
+
+  public FileSystemMediaContainer(FileSystemBlobStore blobStore, MongoCollection<Document> filesCollection,
+      MediaContainer gridFsContainer) {
+    this(blobStore, filesCollection, gridFsContainer, null);
+  }
+
+  public FileSystemMediaContainer(FileSystemBlobStore blobStore, MongoCollection<Document> filesCollection,
+      MediaContainer gridFsContainer, InlineContentStore inlineContentStore) {
+    this.inlineContentStore = inlineContentStore;
+    this.blobStore = blobStore;
+    this.filesCollection = filesCollection;
+    this.gridFsContainer = gridFsContainer;
+  }
+
+  @Override
+  public UploadStream openStreamForUpload(MediaChunk media) {
+    if (inlineContentStore != null && inlineContentStore.accepts(media)) {
+      return inlineContentStore.openStreamForUpload(media, () -> openStoredStreamForUpload(media));
+    }
+    return openStoredStreamForUpload(media);
+  }
+
+  private UploadStream openStoredStreamForUpload(MediaChunk media) {
+    final String declaredHash = UploadStream.normalizeHash(media.getHash());
+    if (!declaredHash.isEmpty() && blobStore.contains(declaredHash)) {
+      return new UploadStream(OutputStream.nullOutputStream(), declaredHash, () -> {
+      }, uploadStream -> blobStore.reference(declaredHash, () -> insertFile(media, uploadStream)));
+    }
+    final FileSystemBlobStore.TemporaryContent temporary;
+    try {
+      temporary = blobStore.createTemporary(media.getTotalSize());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    final ContentOutputStream contentStream = new ContentOutputStream(temporary.channel(), blobStore);
+    return new UploadStream(contentStream, declaredHash, () -> {
+      contentStream.closeQuietly();
+      blobStore.deleteQuietly(temporary.path());
+    }, uploadStream -> blobStore.commit(temporary.path(), uploadStream.getContentHash(),
+        () -> insertFile(media, uploadStream)));
+  }
+
+  @Override
+  public DownloadStream openStreamForDownload(String mediaName, long offset) {
+    final Document file = filesCollection.find(Filters.eq(MediaRepository.FILENAME_KEY, mediaName))
+        .sort(Sorts.descending("uploadDate"))
+        .first();
+    if (file == null) {
+      throw new MongoGridFSException(String.format("No file found with the filename: %s", mediaName));
+    }
+    final Document metadata = file.get("metadata", new Document());
+    final DownloadStream inlineStream = InlineContentStore.openStreamForDownload(metadata, offset);
+    if (inlineStream != null) {
+      return inlineStream;
+    }
+    if (!FileSystemBlobStore.STORAGE.equals(metadata.getString(FileSystemBlobStore.STORAGE_KEY))) {
+      return gridFsContainer.openStreamForDownload(mediaName, offset);
+    }
+    try {
+      final FileChannel channel = blobStore.open(metadata.getString(MediaRepository.CONTENT_HASH_KEY));
+      return new DownloadStream(new FileChannelInputStream(channel, offset), ((Number) file.get("length")).longValue())
+          .describedBy(metadata);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void insertFile(MediaChunk media, UploadStream uploadStream) {
+    final Document metadata = MongoDbMediaContainer.fileMetadata(media);
+    filesCollection.insertOne(new Document()
+        .append("_id", new ObjectId())
+        .append(MediaRepository.FILENAME_KEY, media.getOriginalName())
+        .append("length", uploadStream.getLength())
+        // no chunks, the content is a single file
+        .append("chunkSize", 0)
+        .append("uploadDate", new Date())
+        .append("metadata", metadata
+            .append(MediaRepository.CONTENT_HASH_KEY, uploadStream.getContentHash())
+            .append(FileSystemBlobStore.STORAGE_KEY, FileSystemBlobStore.STORAGE)));
+  }
+
+  /**
+   * Writes the temporary file of an upload, failing once it exceeds the largest media accepted. Closing it forces the
+   * bytes written to the device before the file is renamed.
+   */
+  private static class ContentOutputStream extends OutputStream {
+
+    private final FileChannel channel;
+
+    private final FileSystemBlobStore blobStore;
+
+    private long position;
+
+    ContentOutputStream(FileChannel channel, FileSystemBlobStore blobStore) {
+      this.channel = channel;
+      this.blobStore = blobStore;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+      blobStore.checkLength(position + length);
+      final ByteBuffer source = ByteBuffer.wrap(buffer, offset, length);
+      while (source.hasRemaining()) {
+        position += channel.write(source, position);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!channel.isOpen()) {
+        return;
+      }
+      try {
+        channel.force(false);
+      } finally {
+        channel.close();
+      }
+    }
+
+    void closeQuietly() {
+      try {
+        channel.close();
+      } catch (IOException ignored) {
+        // the file is deleted anyway
+      }
+    }
+  }
+}
@@ -0,0 +1,324 @@
+package jp.mediahub.stream.container;
+
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import jp.mediahub.stream.buffer.MemoryBudget;
+import org.bson.Document;
+import org.bson.types.Binary;
+
+/**
+ * An InputStream reading the chunks of a GridFS file straight from the chunks collection, starting at any offset.
+ * <p>
+ * The chunk holding a position is computed from the chunk size, so opening the stream at an offset, or skipping
+ * forward past the current chunk, queries the chunks from index <code>n</code> on instead of reading and discarding
+ * the bytes before it. The data of each chunk is read in place from the decoded document, without being copied.
+ * <p>
+ * With a prefetch depth, the chunks are read ahead in batches of <code>prefetchDepth</code> chunks, each one fetched by
+ * a single range query on <code>n</code>. Once a batch is taken, the next one is fetched in the background on the
+ * prefetch executor, so the storage round trip overlaps with sending the current batch to the client. A batch not
+ * started by the executor when it is needed is fetched by the reader itself. Closing the stream, e.g. once the client
+ * cancelled the download, cancels the batch pending; skipping away from it discards it.
+ * <p>
+ * The chunks read ahead, the current batch and the next one, are reserved against the {@link MemoryBudget}. When the
+ * budget cannot cover them right away, the stream reads through a single cursor instead. The reservation is released
+ * once the stream is closed and no fetch is running anymore: a fetch already sent to the storage is not interrupted,
+ * as the driver would close its pooled connection, it completes and its chunks are dropped.
+ *
+ * @author Renato Raeffray
+ */
+public class GridFsChunkStream extends InputStream {
+
+  private static final String FILES_ID_KEY = "files_id";
+
+  private static final String CHUNK_INDEX_KEY = "n";
+
+  private static final String DATA_KEY = "data";
+
+  private final MongoCollection<Document> chunksCollection;
+
+  private final Object filesId;
+
+  private final long length;
+
+  private final int chunkSize;
+
+  private final int numberOfChunks;
+
+  private final int prefetchDepth;
+
+  private final Executor prefetchExecutor;
+
+  private final MemoryBudget.Reservation prefetchReservation;
+
+  // guards closed and fetching, so the reservation is released once both the reader and the fetches are done
+  private final Object lock = new Object();
+
+  private boolean fetching;
+
+  private MongoCursor<Document> cursor;
+
+  // chunks of the current batch not read yet, when prefetching
+  private Deque<Document> batch;
+
+  // the batch following the current one, fetched in the background
+  private FutureTask<Deque<Document>> pendingBatch;
+
+  private int pendingBatchIndex;
+
+  // absolute position of the next byte returned
+  private long position;
+
+  // index of the chunk the cursor returns next
+  private int nextChunkIndex;
+
+  private byte[] chunk;
+
+  private int chunkOffset;
+
+  private boolean closed;
+
+  public GridFsChunkStream(MongoCollection<Document> chunksCollection, Object filesId, long length, int chunkSize,
+      long offset) {
+    this(chunksCollection, filesId, length, chunkSize, offset, 0, null, null);
+  }
+
+  /**
+   * @param prefetchDepth chunks fetched ahead by each batch, 0 to read the chunks through a single cursor instead
+   * @param prefetchExecutor runs the background fetches
+   * @param memoryBudget covers the chunks read ahead, none to read them ahead outside of any budget
+   */
+  public GridFsChunkStream(MongoCollection<Document> chunksCollection, Object filesId, long length, int chunkSize,
+      long offset, int prefetchDepth, Executor prefetchExecutor, MemoryBudget memoryBudget) {
+    final MemoryBudget.Reservation reservation = prefetchDepth <= 0 || memoryBudget == null
+        ? MemoryBudget.Reservation.NONE
+        : memoryBudget.tryReserve(2L * prefetchDepth * chunkSize);
+    this.prefetchReservation = reservation == null ? MemoryBudget.Reservation.NONE : reservation;
+    this.prefetchDepth = reservation == null ? 0 : prefetchDepth;
+    this.prefetchExecutor = prefetchExecutor;
+    this.chunksCollection = chunksCollection;
+    this.filesId = filesId;
+    this.length = length;
+    this.chunkSize = chunkSize;
+    this.numberOfChunks = (int) Math.ceil((double) length / chunkSize);
+    this.position = Math.min(Math.max(offset, 0), length);
+  }
+
+  @Override
+  public int read() throws IOException {
+    final byte[] single = new byte[1];
+    return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int len) throws IOException {
+    checkClosed();
+    if (len == 0) {
+      return 0;
+    }
+    if (position >= length) {
+      return -1;
+    }
+    if (chunk == null || chunkOffset >= chunk.length) {
+      nextChunk();
+    }
+    final int bytesRead = Math.min(len, chunk.length - chunkOffset);
+    System.arraycopy(chunk, chunkOffset, buffer, offset, bytesRead);
+    chunkOffset += bytesRead;
+    position += bytesRead;
+    return bytesRead;
+  }
+
+  /**
+   * Skips within the current chunk, or moves the cursor straight to the chunk holding the new position.
+   */
+  @Override
+  public long skip(long bytesToSkip) throws IOException {
+    checkClosed();
+    if (bytesToSkip <= 0) {
+      return 0;
+    }
+    final long skipped = Math.min(bytesToSkip, length - position);
+    if (chunk != null && chunkOffset + skipped <= chunk.length) {
+      chunkOffset += (int) skipped;
+    } else {
+      discardCursor();
+    }
+    position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    checkClosed();
+    return chunk == null ? 0 : chunk.length - chunkOffset;
+  }
+
+  @Override
+  public void close() {
+    if (!closed) {
+      discardCursor();
+      discardPendingBatch();
+      batch = null;
+      synchronized (lock) {
+        closed = true;
+        if (!fetching) {
+          prefetchReservation.release();
+        }
+      }
+    }
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  private void nextChunk() {
+    final Document document = prefetchDepth > 0 ? nextPrefetchedChunk() : nextCursorChunk();
+    final int index = document.getInteger(CHUNK_INDEX_KEY);
+    if (index != nextChunkIndex) {
+      throw new MongoGridFSException(
+          String.format("Could not find file chunk for file_id: %s at chunk index %d.", filesId, nextChunkIndex));
+    }
+    final byte[] data = document.get(DATA_KEY, Binary.class).getData();
+    final int expectedSize = index == numberOfChunks - 1
+        ? (int) (length - (long) index * chunkSize)
+        : chunkSize;
+    if (data.length != expectedSize) {
+      throw new MongoGridFSException(
+          String.format("Chunk size data length is not the expected size. The size was %d for file_id: %s chunk "
+              + "index %d it should be %d bytes.", data.length, filesId, index, expectedSize));
+    }
+    nextChunkIndex++;
+    chunk = data;
+    chunkOffset = (int) (position - (long) index * chunkSize);
+  }
+
+  private Document nextCursorChunk() {
+    final int chunkIndex = (int) (position / chunkSize);
+    if (cursor == null) {
+      cursor = chunksCollection.find(Filters.and(
+              Filters.eq(FILES_ID_KEY, filesId),
+              Filters.gte(CHUNK_INDEX_KEY, chunkIndex)))
+          .sort(Sorts.ascending(CHUNK_INDEX_KEY))
+          .cursor();
+      nextChunkIndex = chunkIndex;
+    }
+    if (!cursor.hasNext()) {
+      throw new MongoGridFSException(
+          String.format("Could not find file chunk for file_id: %s at chunk index %d.", filesId, nextChunkIndex));
+    }
+    return cursor.next();
+  }
+
+  private Document nextPrefetchedChunk() {
+    final int chunkIndex = (int) (position / chunkSize);
+    // skipping forward may leave chunks of the batch behind
+    while (batch != null && !batch.isEmpty() && batch.peek().getInteger(CHUNK_INDEX_KEY) < chunkIndex) {
+      batch.poll();
+    }
+    if (batch == null || batch.isEmpty()) {
+      if (pendingBatch == null || pendingBatchIndex != chunkIndex) {
+        discardPendingBatch();
+        pendingBatch = new FutureTask<>(() -> fetchBatch(chunkIndex));
+        pendingBatchIndex = chunkIndex;
+      }
+      batch = await(pendingBatch);
+      pendingBatch = null;
+      if (chunkIndex + prefetchDepth < numberOfChunks) {
+        prefetch(chunkIndex + prefetchDepth);
+      }
+    }
+    nextChunkIndex = chunkIndex;
+    if (batch.isEmpty()) {
+      throw new MongoGridFSException(
+          String.format("Could not find file chunk for file_id: %s at chunk index %d.", filesId, nextChunkIndex));
+    }
+    return batch.poll();
+  }
+
+  private void prefetch(int chunkIndex) {
+    pendingBatch = new FutureTask<>(() -> fetchBatch(chunkIndex));
+    pendingBatchIndex = chunkIndex;
+    try {
+      prefetchExecutor.execute(pendingBatch);
+    } catch (RejectedExecutionException e) {
+      // fetched by the reader when needed
+    }
+  }
+
+  private Deque<Document> fetchBatch(int chunkIndex) {
+    synchronized (lock) {
+      if (closed) {
+        return new ArrayDeque<>();
+      }
+      fetching = true;
+    }
+    try {
+      return chunksCollection.find(Filters.and(
+              Filters.eq(FILES_ID_KEY, filesId),
+              Filters.gte(CHUNK_INDEX_KEY, chunkIndex),
+              Filters.lt(CHUNK_INDEX_KEY, chunkIndex + prefetchDepth)))
+          .sort(Sorts.ascending(CHUNK_INDEX_KEY))
+          .batchSize(prefetchDepth)
+          .into(new ArrayDeque<>(prefetchDepth));
+    } finally {
+      synchronized (lock) {
+        fetching = false;
+        // closed meanwhile, the chunks fetched are dropped
+        if (closed) {
+          prefetchReservation.release();
+        }
+      }
+    }
+  }
+
+  // runs the fetch in place if the executor did not start it yet
+  private Deque<Document> await(FutureTask<Deque<Document>> fetch) {
+    fetch.run();
+    try {
+      return fetch.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      throw new MongoGridFSException(String.format("Could not read the chunks of file_id: %s", filesId), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MongoGridFSException(String.format("Interrupted reading the chunks of file_id: %s", filesId));
+    }
+  }
+
+  private void discardPendingBatch() {
+    if (pendingBatch != null) {
+      // not interrupted, an interrupted driver closes its connection: a fetch running releases the reservation itself
+      pendingBatch.cancel(false);
+      pendingBatch = null;
+    }
+  }
+
+  private void discardCursor() {
+    if (cursor != null) {
+      cursor.close();
+      cursor = null;
+    }
+    chunk = null;
+    chunkOffset = 0;
+  }
+
+  private void checkClosed() throws IOException {
+    if (closed) {
+      throw new IOException("The InputStream has been closed");
+    }
+  }
+}
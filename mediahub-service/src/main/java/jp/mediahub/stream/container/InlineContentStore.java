@@ -0,0 +1,157 @@
+package jp.mediahub.stream.container;
+
+import com.mongodb.client.MongoCollection;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Date;
+import java.util.function.Supplier;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.repository.MediaRepository;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+/**
+ * Stores the content of the small media inline, in their file document, under <code>metadata.inlineContent</code>.
+ * <p>
+ * A media announced with a size up to <code>maxBytes</code> is buffered in memory as it is uploaded, and stored with a
+ * single insert of its file document, without chunks. Its download is served from the file document the containers
+ * look up anyway, so it costs one indexed read. Should the client send more than <code>maxBytes</code>, the content
+ * spills to the regular upload of the container, which then stores it as any other media.
+ * <p>
+ * Inline media are listed, looked up and deleted through the {@link MediaRepository} like the others. They are never
+ * deduplicated, their content being smaller than a reference would save.
+ *
+ * @author Renato Raeffray
+ */
+public class InlineContentStore {
+
+  private final MongoCollection<Document> filesCollection;
+
+  private final int maxBytes;
+
+  public InlineContentStore(MongoCollection<Document> filesCollection, int maxBytes) {
+    this.filesCollection = filesCollection;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return whether the media is small enough to be stored inline, as announced by the client
+   */
+  public boolean accepts(MediaChunk media) {
+    return media.getTotalSize() > 0 && media.getTotalSize() <= maxBytes;
+  }
+
+  /**
+   * Opens an upload storing the media inline.
+   *
+   * @param media the first chunk of the media
+   * @param storedUpload opens the regular upload of the container, if the content exceeds <code>maxBytes</code>
+   * @return the upload stream
+   */
+  public UploadStream openStreamForUpload(MediaChunk media, Supplier<UploadStream> storedUpload) {
+    final InlineOutputStream content = new InlineOutputStream((int) media.getTotalSize(), storedUpload);
+    return new UploadStream(content, media.getHash(), content::abort,
+        uploadStream -> content.commit(media, uploadStream));
+  }
+
+  /**
+   * Opens the inline content of a media.
+   *
+   * @param metadata the metadata of the file document of the media
+   * @param offset the position of the first byte read
+   * @return the stream reading the content, or null if the media is not stored inline
+   */
+  public static DownloadStream openStreamForDownload(Document metadata, long offset) {
+    final Binary content = metadata == null ? null : metadata.get(MediaRepository.INLINE_CONTENT_KEY, Binary.class);
+    if (content == null) {
+      return null;
+    }
+    final byte[] data = content.getData();
+    final int start = (int) Math.min(Math.max(offset, 0), data.length);
+    return new DownloadStream(new ByteArrayInputStream(data, start, data.length - start), (long) data.length)
+        .describedBy(metadata);
+  }
+
+  private void insertFile(MediaChunk media, byte[] data, String contentHash) {
+    filesCollection.insertOne(fileDocument(media, data, contentHash));
+  }
+
+  /**
+   * @param media the first chunk of the media
+   * @param data the whole content
+   * @param contentHash the hash of the content
+   * @return the file document of the media, holding its content
+   */
+  public static Document fileDocument(MediaChunk media, byte[] data, String contentHash) {
+    final Document metadata = MongoDbMediaContainer.fileMetadata(media);
+    return new Document()
+        .append("_id", new ObjectId())
+        .append(MediaRepository.FILENAME_KEY, media.getOriginalName())
+        .append("length", (long) data.length)
+        // no chunks, the content is in the document
+        .append("chunkSize", 0)
+        .append("uploadDate", new Date())
+        .append("metadata", metadata
+            .append(MediaRepository.CONTENT_HASH_KEY, contentHash)
+            .append(MediaRepository.INLINE_CONTENT_KEY, new Binary(data)));
+  }
+
+  /**
+   * Buffers the content, up to <code>maxBytes</code>, then hands it over to the regular upload.
+   */
+  private class InlineOutputStream extends OutputStream {
+
+    private final Supplier<UploadStream> storedUpload;
+
+    private ByteArrayOutputStream buffer;
+
+    private UploadStream spilled;
+
+    InlineOutputStream(int expectedLength, Supplier<UploadStream> storedUpload) {
+      this.buffer = new ByteArrayOutputStream(expectedLength);
+      this.storedUpload = storedUpload;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+      if (spilled == null && buffer.size() + length > maxBytes) {
+        spilled = storedUpload.get();
+        buffer.writeTo(spilled);
+        buffer = null;
+      }
+      if (spilled != null) {
+        spilled.write(data, offset, length);
+      } else {
+        buffer.write(data, offset, length);
+      }
+    }
+
+    void commit(MediaChunk media, UploadStream uploadStream) {
+      if (spilled == null) {
+        insertFile(media, buffer.toByteArray(), uploadStream.getContentHash());
+        return;
+      }
+      try {
+        spilled.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    void abort() {
+      if (spilled != null) {
+        spilled.abort();
+      }
+      buffer = null;
+    }
+  }
+}
@@ -1,6 +1,6 @@
 package jp.mediahub.stream.container;
 
-import java.io.OutputStream;
+import java.util.Collection;
 import jp.mediahub.messages.MediaChunk;
 
 /**
@@ -10,16 +10,46 @@ import jp.mediahub.messages.MediaChunk;
  * downloading {@link DownloadStream}.
  * <p>
  * {@link #openStreamForUpload(MediaChunk)} method allows to open a stream for write the MediaChunk to the container.
+ * The returned {@link UploadStream} commits the media on close, or discards it on abort.
  * <p>
- * {@link #openStreamForDownload(String)} method allows to open a stream for reading the MediaChunk from the container.
+ * {@link #openStreamForDownload(String, long)} method allows to open a stream for reading the MediaChunk from the
+ * container, starting at any offset of the media.
+ * <p>
+ * {@link #openEncodedStreamForDownload(String, Collection)} method allows to read a whole media as stored, encoded, when
+ * the client decodes it itself.
  *
  * @author Renato Raeffray
  *
  */
 public interface MediaContainer {
 
-  OutputStream openStreamForUpload(MediaChunk media);
+  UploadStream openStreamForUpload(MediaChunk media);
+
+  default DownloadStream openStreamForDownload(String mediaName) {
+    return openStreamForDownload(mediaName, 0);
+  }
+
+  /**
+   * Opens a stream positioned at the given offset of the media. Implementations are expected to move straight to the
+   * offset, rather than reading the bytes before it. {@link DownloadStream#getStreamLength()} is still the length of
+   * the whole media.
+   *
+   * @param mediaName the name of the media
+   * @param offset the position of the first byte read
+   * @return a stream reading the media from the offset
+   */
+  DownloadStream openStreamForDownload(String mediaName, long offset);
 
-  DownloadStream openStreamForDownload(String mediaName);
+  /**
+   * Opens a stream reading the whole media as stored, if it is stored encoded with one of the encodings accepted,
+   * decoded otherwise. {@link DownloadStream#getContentEncoding()} tells which one was opened.
+   *
+   * @param mediaName the name of the media
+   * @param acceptedEncodings the encodings the client decodes itself, e.g. gzip
+   * @return a stream reading the media from its beginning
+   */
+  default DownloadStream openEncodedStreamForDownload(String mediaName, Collection<String> acceptedEncodings) {
+    return openStreamForDownload(mediaName, 0);
+  }
 
 }
@@ -1,40 +1,232 @@
 package jp.mediahub.stream.container;
 
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.gridfs.GridFSBucket;
-import com.mongodb.client.gridfs.GridFSDownloadStream;
+import com.mongodb.client.gridfs.GridFSUploadStream;
+import com.mongodb.client.gridfs.model.GridFSFile;
 import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
 import java.io.OutputStream;
+import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 import jp.mediahub.repository.impl.DefaultMediaRepository;
 import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.stream.buffer.MemoryBudget;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 
 /**
  * MongoDB's implementation of {@link MediaContainer}
+ * <p>
+ * The content is addressed by its hash: the first upload of a content writes the chunks, and becomes the owner of the
+ * blob. A later upload declaring the same content hash is only verified, its bytes are not written, and a file
+ * document referencing the owner through <code>metadata.blobId</code> is inserted instead. An upload declaring no hash
+ * writes its chunks, then once its hash computed, references the owner of the same content if there is one and deletes
+ * them. The owner keeps in <code>metadata.refCount</code> how many names share its chunks, a counter of 0 being deleted
+ * with its chunks. A reference is counted before being inserted, pending in <code>metadata.pendingReferences</code>
+ * until it is, so a deletion of the owner meanwhile waits for it.
+ * <p>
+ * Downloads read the chunks collection directly through a {@link GridFsChunkStream}, which can start at any offset,
+ * and reads ahead <code>prefetchDepth</code> chunks at a time on the prefetch executor when the depth is positive and
+ * the memory budget covers them.
+ * <p>
+ * With an {@link InlineContentStore}, the small media are stored in their file document instead, and their download is
+ * served from the file document looked up, without reading any chunk.
  *
  * */
 public class MongoDbMediaContainer implements MediaContainer {
 
-  public MongoDbMediaContainer(GridFSBucket gridFSBucket) {
+  public MongoDbMediaContainer(GridFSBucket gridFSBucket, MongoCollection<Document> filesCollection,
+      MongoCollection<Document> chunksCollection) {
+    this(gridFSBucket, filesCollection, chunksCollection, 0, null, null, null);
+  }
+
+  public MongoDbMediaContainer(GridFSBucket gridFSBucket, MongoCollection<Document> filesCollection,
+      MongoCollection<Document> chunksCollection, int prefetchDepth, Executor prefetchExecutor,
+      MemoryBudget memoryBudget, InlineContentStore inlineContentStore) {
+    this.inlineContentStore = inlineContentStore;
+    this.prefetchDepth = prefetchDepth;
+    this.prefetchExecutor = prefetchExecutor;
+    this.memoryBudget = memoryBudget;
     this.gridFSBucket = gridFSBucket;
+    this.filesCollection = filesCollection;
+    this.chunksCollection = chunksCollection;
   }
 
-  private Function<Map<String, String>, GridFSUploadOptions> createMetadata = documentMap ->
+  private Function<Map<String, Object>, GridFSUploadOptions> createMetadata = documentMap ->
       new GridFSUploadOptions().metadata(new Document(documentMap));
 
+
   private GridFSBucket gridFSBucket;
 
+  private MongoCollection<Document> filesCollection;
+
+  private MongoCollection<Document> chunksCollection;
+
+  private final int prefetchDepth;
+
+  private final Executor prefetchExecutor;
+
+  private final MemoryBudget memoryBudget;
+
+  private final InlineContentStore inlineContentStore;
+
   @Override
-  public OutputStream openStreamForUpload(MediaChunk media) {
-    return gridFSBucket.openUploadStream(media.getOriginalName(),
-        createMetadata.apply(Map.of(DefaultMediaRepository.CONTENT_HASH_KEY, media.getHash())));
+  public UploadStream openStreamForUpload(MediaChunk media) {
+    if (inlineContentStore != null && inlineContentStore.accepts(media)) {
+      return inlineContentStore.openStreamForUpload(media, () -> openStoredStreamForUpload(media));
+    }
+    return openStoredStreamForUpload(media);
+  }
+
+  private UploadStream openStoredStreamForUpload(MediaChunk media) {
+    final String declaredHash = UploadStream.normalizeHash(media.getHash());
+    if (!declaredHash.isEmpty()) {
+      final GridFSFile blob = findBlob(declaredHash);
+      if (blob != null) {
+        return new UploadStream(OutputStream.nullOutputStream(), declaredHash, () -> {
+        }, uploadStream -> insertReference(media, blob, uploadStream));
+      }
+    }
+    final Document metadata = fileMetadata(media)
+        .append(DefaultMediaRepository.CONTENT_HASH_KEY, declaredHash)
+        .append(DefaultMediaRepository.REF_COUNT_KEY, 1);
+    final GridFSUploadStream gridFSUploadStream = gridFSBucket.openUploadStream(media.getOriginalName(),
+        createMetadata.apply(metadata));
+    return new UploadStream(gridFSUploadStream, declaredHash, gridFSUploadStream::abort, uploadStream -> {
+      if (uploadStream.getDeclaredHash().isEmpty()) {
+        commitUndeclared(media, gridFSUploadStream.getObjectId(), uploadStream);
+      }
+    });
   }
 
+  // the chunks just written are kept only if no other file owns the same content
+  private void commitUndeclared(MediaChunk media, ObjectId fileId, UploadStream uploadStream) {
+    final GridFSFile blob = media.getContentEncoding().isEmpty() ? findBlob(uploadStream.getContentHash()) : null;
+    if (blob != null) {
+      try {
+        insertReference(media, blob, uploadStream);
+        // not found as an owner while its hash is unset, nothing references it
+        filesCollection.deleteOne(Filters.eq(fileId));
+        chunksCollection.deleteMany(Filters.eq("files_id", fileId));
+        return;
+      } catch (MongoGridFSException e) {
+        // the owner was deleted meanwhile, the chunks written are kept
+      }
+    }
+    filesCollection.updateOne(Filters.eq(fileId),
+        Updates.set(DefaultMediaRepository.CONTENT_HASH_PATH, uploadStream.getContentHash()));
+  }
+
+  /**
+   * Opens the latest revision of the media, reading its chunks, or the chunks of the content it references, straight
+   * from the chunks collection starting at the chunk holding the offset.
+   */
   @Override
-  public DownloadStream openStreamForDownload(String mediaName) {
-    final GridFSDownloadStream gridFSDownloadStream = gridFSBucket.openDownloadStream(mediaName);
-    return new DownloadStream(gridFSDownloadStream, gridFSDownloadStream.getGridFSFile().getLength());
+  public DownloadStream openStreamForDownload(String mediaName, long offset) {
+    final GridFSFile file = gridFSBucket.find(Filters.eq(DefaultMediaRepository.FILENAME_KEY, mediaName))
+        .sort(new Document("uploadDate", -1))
+        .first();
+    if (file == null) {
+      throw new MongoGridFSException(String.format("No file found with the filename: %s", mediaName));
+    }
+    final DownloadStream inlineStream = InlineContentStore.openStreamForDownload(file.getMetadata(), offset);
+    if (inlineStream != null) {
+      return inlineStream;
+    }
+    final ObjectId blobId = file.getMetadata() == null ? null
+        : file.getMetadata().getObjectId(DefaultMediaRepository.BLOB_ID_KEY);
+    final GridFsChunkStream chunkStream = new GridFsChunkStream(chunksCollection,
+        blobId != null ? blobId : file.getId(), file.getLength(), file.getChunkSize(), offset, prefetchDepth,
+        prefetchExecutor, memoryBudget);
+    return new DownloadStream(chunkStream, file.getLength(), file.getChunkSize()).describedBy(file.getMetadata());
+  }
+
+  // the owner of a content is the file holding the chunks, references and files stored elsewhere or inline never do,
+  // nor are the compressed ones shared, nor those being deleted
+  private GridFSFile findBlob(String contentHash) {
+    return gridFSBucket.find(Filters.and(
+            Filters.eq(DefaultMediaRepository.CONTENT_HASH_PATH, contentHash),
+            Filters.ne(DefaultMediaRepository.REF_COUNT_PATH, 0),
+            Filters.exists(DefaultMediaRepository.BLOB_ID_PATH, false),
+            Filters.exists(FileSystemBlobStore.STORAGE_PATH, false),
+            Filters.exists(DefaultMediaRepository.INLINE_CONTENT_PATH, false),
+            Filters.exists(DefaultMediaRepository.CONTENT_ENCODING_PATH, false)))
+        .first();
+  }
+
+  /**
+   * The metadata every file document starts with: the owner, the media type and the encoding of the content, if any.
+   */
+  public static Document fileMetadata(MediaChunk media) {
+    final Document metadata = new Document();
+    if (!media.getResourceOwnerId().isEmpty()) {
+      metadata.append(DefaultMediaRepository.RESOURCE_OWNER_ID_KEY, media.getResourceOwnerId());
+    }
+    if (!media.getContentType().isEmpty()) {
+      metadata.append(DefaultMediaRepository.CONTENT_TYPE_KEY, media.getContentType());
+    }
+    if (!media.getContentEncoding().isEmpty()) {
+      metadata.append(DefaultMediaRepository.CONTENT_ENCODING_KEY, media.getContentEncoding());
+    }
+    return metadata;
+  }
+
+  /**
+   * Counts a reference to the owner, then inserts it. Until inserted, the reference is pending on the owner, with the
+   * date it was counted, so a deletion of the owner waits for it, and after a while stops counting it. The counter is
+   * given back if the reference cannot be inserted.
+   */
+  private void insertReference(MediaChunk media, GridFSFile blob, UploadStream uploadStream) {
+    final String mediaName = media.getOriginalName();
+    final ObjectId referenceId = new ObjectId();
+    final Document pending = new Document("_id", referenceId)
+        .append(DefaultMediaRepository.PENDING_SINCE_KEY, new Date());
+    // files stored before the deduplication have no counter, they are referenced by their own name only
+    filesCollection.updateOne(
+        Filters.and(Filters.eq(blob.getObjectId()), Filters.exists(DefaultMediaRepository.REF_COUNT_PATH, false)),
+        Updates.set(DefaultMediaRepository.REF_COUNT_PATH, 1));
+    // a counter of 0 is being deleted, with its chunks
+    final Document owner = filesCollection.findOneAndUpdate(
+        Filters.and(Filters.eq(blob.getObjectId()), Filters.gt(DefaultMediaRepository.REF_COUNT_PATH, 0)),
+        Updates.combine(Updates.inc(DefaultMediaRepository.REF_COUNT_PATH, 1),
+            Updates.push(DefaultMediaRepository.PENDING_REFERENCES_PATH, pending)));
+    if (owner == null) {
+      throw contentRemoved(uploadStream, mediaName);
+    }
+    try {
+      filesCollection.insertOne(new Document()
+          .append("_id", referenceId)
+          .append(DefaultMediaRepository.FILENAME_KEY, mediaName)
+          .append("length", uploadStream.getLength())
+          .append("chunkSize", blob.getChunkSize())
+          .append("uploadDate", new Date())
+          .append("metadata", fileMetadata(media)
+              .append(DefaultMediaRepository.CONTENT_HASH_KEY, uploadStream.getContentHash())
+              .append(DefaultMediaRepository.BLOB_ID_KEY, blob.getObjectId())));
+    } catch (RuntimeException e) {
+      filesCollection.updateOne(Filters.and(Filters.eq(blob.getObjectId()),
+              Filters.eq(DefaultMediaRepository.PENDING_REFERENCES_PATH + "._id", referenceId)),
+          DefaultMediaRepository.releaseReference(referenceId));
+      throw e;
+    }
+    final boolean confirmed = filesCollection.updateOne(Filters.and(Filters.eq(blob.getObjectId()),
+            Filters.eq(DefaultMediaRepository.PENDING_REFERENCES_PATH + "._id", referenceId)),
+        Updates.pull(DefaultMediaRepository.PENDING_REFERENCES_PATH, new Document("_id", referenceId)))
+        .getModifiedCount() > 0;
+    // no longer pending: released by its deletion, or not counted anymore by a deletion of the owner
+    if (!confirmed && filesCollection.deleteOne(Filters.eq(referenceId)).getDeletedCount() > 0) {
+      throw contentRemoved(uploadStream, mediaName);
+    }
+  }
+
+  private static MongoGridFSException contentRemoved(UploadStream uploadStream, String mediaName) {
+    return new MongoGridFSException(
+        String.format("Content [%s] was removed during the upload of [%s]", uploadStream.getContentHash(), mediaName));
   }
 
 }
@@ -0,0 +1,166 @@
+package jp.mediahub.stream.container;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.function.Consumer;
+import jp.mediahub.exception.ContentHashMismatchException;
+
+/**
+ * A custom OutputStream class for handling media file upload.
+ * Extends the standard {@link OutputStream} class, delegating the writes to the container stream, and adds the ability
+ * to discard everything written so far.
+ *
+ * Every byte written is also fed to a SHA-256 digest, so the content hash of the media is known once the upload is
+ * done, without reading it back.
+ *
+ * {@link #close()} verifies the content hash against the one declared by the client and commits the media to the
+ * container, whereas {@link #abort()} drops the partially written media.
+ *
+ * @author Renato Raeffray
+ *
+ */
+public class UploadStream extends OutputStream {
+
+  public static final String HASH_ALGORITHM = "sha256";
+
+  public UploadStream(OutputStream stream, String declaredHash, Runnable abortAction) {
+    this(stream, declaredHash, abortAction, uploadStream -> {
+    });
+  }
+
+  public UploadStream(OutputStream stream, String declaredHash, Runnable abortAction,
+      Consumer<UploadStream> commitAction) {
+    this.stream = stream;
+    this.declaredHash = normalizeHash(declaredHash);
+    this.abortAction = abortAction;
+    this.commitAction = commitAction;
+    this.digest = newDigest();
+  }
+
+  private OutputStream stream;
+
+  private String declaredHash;
+
+  private Runnable abortAction;
+
+  private Consumer<UploadStream> commitAction;
+
+  private MessageDigest digest;
+
+  private String contentHash;
+
+  private long length;
+
+  private boolean closed;
+
+  @Override
+  public void write(int b) throws IOException {
+    stream.write(b);
+    digest.update((byte) b);
+    length++;
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    stream.write(buffer, offset, length);
+    digest.update(buffer, offset, length);
+    this.length += length;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    stream.flush();
+  }
+
+  /**
+   * Commits the media to the container.
+   *
+   * @throws ContentHashMismatchException if the client declared a content hash and it does not match the content
+   * received, the media is discarded in this case
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    if (contentHash == null) {
+      this.contentHash = formatHash(digest);
+    }
+    if (!declaredHash.isEmpty() && !declaredHash.equals(contentHash)) {
+      abort();
+      throw new ContentHashMismatchException(
+          String.format("Content hash mismatch: declared [%s], received [%s]", declaredHash, contentHash));
+    }
+    stream.close();
+    closed = true;
+    commitAction.accept(this);
+  }
+
+  /**
+   * Discards the media written so far, the media is not committed to the container.
+   */
+  public void abort() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    abortAction.run();
+  }
+
+  /**
+   * @return the content hash declared by the client, in the <code>&lt;hex&gt; sha256</code> format, or an empty
+   * string if none was declared
+   */
+  public String getDeclaredHash() {
+    return declaredHash;
+  }
+
+  /**
+   * @return the hash computed over the content written, available once the stream is closed
+   */
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Normalizes a hash as sent by the clients, <code>&lt;hex&gt; sha256</code>, tolerating a missing algorithm suffix
+   * and upper case digits.
+   *
+   * @param hash the hash sent by the client
+   * @return the normalized hash, or an empty string if no hash was sent
+   */
+  public static String normalizeHash(String hash) {
+    if (hash == null || hash.isBlank()) {
+      return "";
+    }
+    final String[] parts = hash.trim().split("\\s+");
+    final String algorithm = parts.length > 1 ? parts[1].toLowerCase() : HASH_ALGORITHM;
+    return parts[0].toLowerCase() + " " + algorithm;
+  }
+
+  /**
+   * Completes the digest and formats it as the clients do, <code>&lt;hex&gt; sha256</code>.
+   *
+   * @param digest a SHA-256 digest, reset by this call
+   * @return the formatted hash
+   */
+  public static String formatHash(MessageDigest digest) {
+    return HexFormat.of().formatHex(digest.digest()) + " " + HASH_ALGORITHM;
+  }
+
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
@@ -0,0 +1,134 @@
+package jp.mediahub.stream.reactive;
+
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.InsertOneResult;
+import com.mongodb.client.result.UpdateResult;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.gridfs.GridFSBucket;
+import com.mongodb.reactivestreams.client.gridfs.GridFSDownloadPublisher;
+import com.mongodb.reactivestreams.client.gridfs.GridFSUploadPublisher;
+import java.nio.ByteBuffer;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.stream.container.InlineContentStore;
+import jp.mediahub.stream.container.MongoDbMediaContainer;
+import jp.mediahub.stream.container.UploadStream;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.reactivestreams.Publisher;
+
+/**
+ * The GridFS bucket of the media, accessed through the reactive streams driver: every operation returns a
+ * {@link Publisher} and no thread waits for MongoDB.
+ * <p>
+ * It reads and writes the documents the way {@link MongoDbMediaContainer} and {@link InlineContentStore} do, so the
+ * media stored by either driver are served by the other. It only stores the media itself when neither compression
+ * nor the file system backend are configured, see {@link #storesUploads()}, the uploads going through the
+ * {@link jp.mediahub.stream.container.MediaContainer} otherwise. Its uploads are not deduplicated, each writes its
+ * chunks and owns its content, which the later uploads through the container may reference.
+ *
+ * @author Renato Raeffray
+ */
+public class ReactiveGridFsStore {
+
+  private final GridFSBucket gridFSBucket;
+
+  private final MongoCollection<Document> filesCollection;
+
+  private final int inlineMaxBytes;
+
+  private final boolean storesUploads;
+
+  private final boolean holdsEveryMedia;
+
+  public ReactiveGridFsStore(GridFSBucket gridFSBucket, MongoCollection<Document> filesCollection, int inlineMaxBytes,
+      boolean storesUploads, boolean holdsEveryMedia) {
+    this.gridFSBucket = gridFSBucket;
+    this.filesCollection = filesCollection;
+    this.inlineMaxBytes = inlineMaxBytes;
+    this.storesUploads = storesUploads;
+    this.holdsEveryMedia = holdsEveryMedia;
+  }
+
+  /**
+   * @param mediaName the name of the media
+   * @return the file document of the latest revision of the media, none if it does not exist
+   */
+  public Publisher<Document> findFile(String mediaName) {
+    return filesCollection.find(Filters.eq(MediaRepository.FILENAME_KEY, mediaName))
+        .sort(Sorts.descending("uploadDate"))
+        .first();
+  }
+
+  /**
+   * Reads the chunks of a media, or of the content it references.
+   *
+   * @param file the file document of the media
+   * @param bufferSize the size of the buffers emitted
+   * @return the publisher of the content, emitting buffers as requested
+   */
+  public GridFSDownloadPublisher openDownload(Document file, int bufferSize) {
+    final Document metadata = file.get("metadata", Document.class);
+    final ObjectId blobId = metadata == null ? null : metadata.getObjectId(MediaRepository.BLOB_ID_KEY);
+    return gridFSBucket.downloadToPublisher(blobId != null ? blobId : file.getObjectId("_id"))
+        .bufferSizeBytes(bufferSize);
+  }
+
+  /**
+   * @return whether the uploads are stored through this store
+   */
+  public boolean storesUploads() {
+    return storesUploads;
+  }
+
+  /**
+   * @return whether every media is stored in this bucket, rather than spread across shards
+   */
+  public boolean holdsEveryMedia() {
+    return holdsEveryMedia;
+  }
+
+  /**
+   * @return whether the media is small enough to be stored inline, as announced by the client
+   */
+  public boolean acceptsInline(MediaChunk media) {
+    return media.getTotalSize() > 0 && media.getTotalSize() <= inlineMaxBytes;
+  }
+
+  public int getInlineMaxBytes() {
+    return inlineMaxBytes;
+  }
+
+  /**
+   * Stores the media in chunks, as its content is emitted. The upload is discarded if the content fails.
+   *
+   * @param media the first chunk of the media
+   * @param content the content, requested by the driver as it writes the chunks
+   * @return the upload, storing the media once subscribed
+   */
+  public GridFSUploadPublisher<ObjectId> openUpload(MediaChunk media, Publisher<ByteBuffer> content) {
+    final Document metadata = MongoDbMediaContainer.fileMetadata(media)
+        .append(MediaRepository.CONTENT_HASH_KEY, UploadStream.normalizeHash(media.getHash()))
+        .append(MediaRepository.REF_COUNT_KEY, 1);
+    return gridFSBucket.uploadFromPublisher(media.getOriginalName(), content,
+        new GridFSUploadOptions().metadata(metadata));
+  }
+
+  /**
+   * @param fileId the file document of a media uploaded without a declared hash
+   * @param contentHash the hash of its content
+   */
+  public Publisher<UpdateResult> setContentHash(ObjectId fileId, String contentHash) {
+    return filesCollection.updateOne(Filters.eq(fileId), Updates.set(MediaRepository.CONTENT_HASH_PATH, contentHash));
+  }
+
+  /**
+   * Stores a media inline, in a single file document.
+   */
+  public Publisher<InsertOneResult> insertInline(MediaChunk media, byte[] data, String contentHash) {
+    return filesCollection.insertOne(InlineContentStore.fileDocument(media, data, contentHash));
+  }
+}
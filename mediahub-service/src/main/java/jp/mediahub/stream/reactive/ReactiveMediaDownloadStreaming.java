@@ -0,0 +1,332 @@
+package jp.mediahub.stream.reactive;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import jp.mediahub.exception.InvalidRangeException;
+import jp.mediahub.messages.GetMediaRequest;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.metrics.MediaMetrics;
+import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.stream.MediaDownloadStreaming;
+import jp.mediahub.stream.buffer.MemoryBudget;
+import jp.mediahub.stream.container.FileSystemBlobStore;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams a whole media read through the {@link ReactiveGridFsStore}, without ever holding a thread while MongoDB
+ * answers.
+ * <p>
+ * The file document is looked up asynchronously, then the content is subscribed to, one buffer of
+ * <code>chunkSize</code> bytes being requested from the driver at a time, and only while the transport reports
+ * {@link ServerCallStreamObserver#isReady()}: the next buffer is requested by the onReady handler once the client
+ * has consumed the pending data. The chunks are sent from the threads of the driver or of gRPC, whichever completes
+ * the demand, every event of the download being serialized by this object. The media stored inline are sent from
+ * their file document.
+ * <p>
+ * The downloads the driver does not serve as stored, i.e. ranges, media on the file system and compressed media the
+ * client does not accept as they are, fall back to a {@link MediaDownloadStreaming}, run on the fallback executor so
+ * the event loops never wait for the storage. The reservation of the download is handed over to it. So do the media
+ * not found when the bucket does not hold every media, see {@link jp.mediahub.shard.MediaShards}.
+ *
+ * @author Renato Raeffray
+ */
+public class ReactiveMediaDownloadStreaming implements Runnable, Subscriber<ByteBuffer> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReactiveMediaDownloadStreaming.class);
+
+  private final ServerCallStreamObserver<MediaChunk> observer;
+
+  private final ReactiveGridFsStore store;
+
+  private final int chunkSize;
+
+  private final MediaMetrics metrics;
+
+  private final MemoryBudget.Reservation reservation;
+
+  private final Supplier<MediaDownloadStreaming> fallbackFactory;
+
+  private final Executor fallbackExecutor;
+
+  // onReady events not yet handled by the fallback, they run once for all of those arrived meanwhile
+  private final AtomicInteger fallbackRuns = new AtomicInteger();
+
+  private GetMediaRequest request;
+
+  private String mediaName;
+
+  private String contentType = "";
+
+  private String contentEncoding = "";
+
+  private long fileLength;
+
+  private long position;
+
+  private Subscription subscription;
+
+  // a buffer was requested from the driver and not received yet
+  private boolean requested;
+
+  private byte[] inlineContent;
+
+  private MediaDownloadStreaming fallback;
+
+  private boolean fallbackOpened;
+
+  private volatile boolean fallbackCanceled;
+
+  private boolean finished;
+
+  public ReactiveMediaDownloadStreaming(ServerCallStreamObserver<MediaChunk> observer, ReactiveGridFsStore store,
+      int chunkSize, MediaMetrics metrics, MemoryBudget.Reservation reservation,
+      Supplier<MediaDownloadStreaming> fallbackFactory, Executor fallbackExecutor) {
+    this.observer = observer;
+    this.store = store;
+    this.chunkSize = chunkSize;
+    this.metrics = metrics;
+    this.reservation = reservation;
+    this.fallbackFactory = fallbackFactory;
+    this.fallbackExecutor = fallbackExecutor;
+  }
+
+  /**
+   * Registers the handlers of the download and looks up the media, the content being sent once it is found. It must
+   * be called from the service method, before it returns, and never blocks.
+   *
+   * @param request the request naming the media, and optionally the ranges to be read
+   */
+  public synchronized void start(GetMediaRequest request) {
+    this.request = request;
+    this.mediaName = request.getOriginalName();
+    observer.setOnCancelHandler(this::cancel);
+    observer.setOnReadyHandler(this);
+    if (request.getRangesCount() > 0 || request.getOffset() != 0 || request.getLength() != 0) {
+      fallBack();
+      return;
+    }
+    ResultSubscriber.subscribe(store.findFile(mediaName), this::found);
+  }
+
+  private synchronized void found(Document file, Throwable error) {
+    if (finished) {
+      return;
+    }
+    if (error != null) {
+      fail(error);
+      return;
+    }
+    if (file == null && !store.holdsEveryMedia()) {
+      // the media may be stored on another shard
+      fallBack();
+      return;
+    }
+    if (file == null) {
+      finish();
+      observer.onError(Status.NOT_FOUND
+          .withDescription(String.format("No file found with the filename: %s", mediaName))
+          .asRuntimeException());
+      return;
+    }
+    final Document metadata = file.get("metadata", new Document());
+    contentType = metadata.get(MediaRepository.CONTENT_TYPE_KEY, "");
+    contentEncoding = metadata.get(MediaRepository.CONTENT_ENCODING_KEY, "");
+    if (metadata.containsKey(FileSystemBlobStore.STORAGE_KEY) || !contentEncoding.isEmpty()
+        && request.getAcceptEncodingsList().stream().noneMatch(contentEncoding::equalsIgnoreCase)) {
+      fallBack();
+      return;
+    }
+    fileLength = ((Number) file.get("length")).longValue();
+    final Binary inline = metadata.get(MediaRepository.INLINE_CONTENT_KEY, Binary.class);
+    if (inline != null) {
+      inlineContent = inline.getData();
+      fileLength = inlineContent.length;
+      sendInline();
+    } else if (fileLength == 0) {
+      complete();
+    } else {
+      store.openDownload(file, chunkSize).subscribe(this);
+    }
+  }
+
+  /**
+   * Requests the next chunk, or sends the next pieces of an inline media, while the transport is ready. Called by
+   * gRPC every time the stream becomes ready again.
+   */
+  @Override
+  public synchronized void run() {
+    if (finished) {
+      return;
+    }
+    if (fallback != null) {
+      scheduleFallback();
+    } else if (inlineContent != null) {
+      sendInline();
+    } else {
+      requestIfReady();
+    }
+  }
+
+  @Override
+  public synchronized void onSubscribe(Subscription subscription) {
+    this.subscription = subscription;
+    if (finished) {
+      subscription.cancel();
+      return;
+    }
+    requestIfReady();
+  }
+
+  @Override
+  public synchronized void onNext(ByteBuffer content) {
+    requested = false;
+    if (finished) {
+      return;
+    }
+    final int length = content.remaining();
+    // wrapped without a copy: the driver emits a new buffer for each chunk and never writes to it once emitted
+    observer.onNext(chunk(UnsafeByteOperations.unsafeWrap(content)));
+    position += length;
+    metrics.downloadChunkSize().record(length);
+    requestIfReady();
+  }
+
+  @Override
+  public synchronized void onError(Throwable t) {
+    if (!finished) {
+      fail(t);
+    }
+  }
+
+  @Override
+  public synchronized void onComplete() {
+    if (finished) {
+      return;
+    }
+    if (position != fileLength) {
+      fail(new IllegalStateException(
+          String.format("Media [%s] ended at [%d] of [%d] bytes", mediaName, position, fileLength)));
+      return;
+    }
+    complete();
+  }
+
+  private void requestIfReady() {
+    if (subscription != null && !requested && observer.isReady()) {
+      requested = true;
+      subscription.request(1);
+    }
+  }
+
+  private void sendInline() {
+    while (observer.isReady() && position < fileLength) {
+      final int length = (int) Math.min(chunkSize, fileLength - position);
+      observer.onNext(chunk(UnsafeByteOperations.unsafeWrap(inlineContent, (int) position, length)));
+      position += length;
+      metrics.downloadChunkSize().record(length);
+    }
+    if (position >= fileLength) {
+      complete();
+    }
+  }
+
+  private MediaChunk chunk(ByteString content) {
+    return MediaChunk.newBuilder()
+        .setContent(content)
+        .setTotalSize(fileLength)
+        .setOffset(position)
+        .setContentType(contentType)
+        .setContentEncoding(contentEncoding)
+        .build();
+  }
+
+  // from now on the events are forwarded to the blocking download, which owns the reservation
+  private void fallBack() {
+    LOGGER.debug("Download of [{}] falls back to the blocking storage", mediaName);
+    fallback = fallbackFactory.get();
+    scheduleFallback();
+  }
+
+  private void scheduleFallback() {
+    if (fallbackRuns.getAndIncrement() == 0) {
+      fallbackExecutor.execute(this::runFallback);
+    }
+  }
+
+  // runs on the fallback executor, never concurrently
+  private void runFallback() {
+    int runs;
+    do {
+      runs = fallbackRuns.get();
+      if (fallbackCanceled) {
+        fallback.cancel();
+        return;
+      }
+      if (!fallbackOpened) {
+        fallbackOpened = true;
+        if (!openFallback()) {
+          return;
+        }
+      }
+      fallback.run();
+    } while (fallbackRuns.addAndGet(-runs) > 0);
+  }
+
+  private boolean openFallback() {
+    try {
+      fallback.open(request);
+      return true;
+    } catch (InvalidRangeException e) {
+      observer.onError(Status.OUT_OF_RANGE.withDescription(e.getMessage()).asRuntimeException());
+    } catch (RuntimeException e) {
+      observer.onError((observer.isCancelled() ? Status.CANCELLED : Status.UNKNOWN)
+          .withDescription(e.getMessage()).asRuntimeException());
+    }
+    return false;
+  }
+
+  private synchronized void cancel() {
+    LOGGER.debug("Download was canceled by the client");
+    if (fallback != null) {
+      finished = true;
+      fallbackCanceled = true;
+      scheduleFallback();
+      return;
+    }
+    finish();
+  }
+
+  private void complete() {
+    finish();
+    observer.onCompleted();
+  }
+
+  private void fail(Throwable t) {
+    LOGGER.error("Download of [{}] failed at [{}]", mediaName, position, t);
+    finish();
+    observer.onError(Status.UNKNOWN.withDescription(t.getMessage()).asRuntimeException());
+  }
+
+  private void finish() {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    inlineContent = null;
+    reservation.release();
+    if (subscription != null) {
+      subscription.cancel();
+    }
+  }
+}
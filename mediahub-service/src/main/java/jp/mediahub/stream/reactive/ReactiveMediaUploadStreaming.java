@@ -0,0 +1,369 @@
+package jp.mediahub.stream.reactive;
+
+import com.mongodb.reactivestreams.client.gridfs.GridFSUploadPublisher;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import jp.mediahub.exception.ContentHashMismatchException;
+import jp.mediahub.messages.CreateMediaResponse;
+import jp.mediahub.messages.MediaChunk;
+import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.repository.impl.MediaChangeLog;
+import jp.mediahub.stream.MediaUploadStreaming;
+import jp.mediahub.stream.buffer.MemoryBudget;
+import jp.mediahub.stream.container.UploadStream;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores an uploaded media through the {@link ReactiveGridFsStore}, the content received being the
+ * {@link Publisher} the driver writes the chunks from.
+ * <p>
+ * The inbound flow control is manual and driven by the driver: a message is only requested from the client for each
+ * buffer the driver requested, with at most <code>queueSize</code> requested ahead, so the upload holds about as much
+ * memory as a {@link MediaUploadStreaming}, without any writer thread. The existence of the media is checked
+ * asynchronously on the first chunk, the media type detected as {@link MediaUploadStreaming} does.
+ * <p>
+ * The content is hashed as it is received. Once the client completes the upload, a mismatch with the hash it declared
+ * fails the content, which makes the driver discard the chunks written, and the upload is rejected with DATA_LOSS.
+ * The media announced with a size up to the inline limit are buffered and stored in their file document, spilling to
+ * chunks should the client send more. Media uploaded through this path are not deduplicated.
+ * <p>
+ * Every event of the upload, whether from gRPC or the driver, is serialized by this object.
+ *
+ * @author Renato Raeffray
+ */
+public class ReactiveMediaUploadStreaming implements StreamObserver<MediaChunk>, Publisher<ByteBuffer>, Subscription {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReactiveMediaUploadStreaming.class);
+
+  private final ServerCallStreamObserver<CreateMediaResponse> observer;
+
+  private final ReactiveGridFsStore store;
+
+  private final MediaRepository mediaRepository;
+
+  private final MediaChangeLog mediaChangeLog;
+
+  private final int queueSize;
+
+  private final MemoryBudget.Reservation reservation;
+
+  private final MessageDigest digest = UploadStream.newDigest();
+
+  // the first chunk, with the media type
+  private MediaChunk media;
+
+  private String declaredHash;
+
+  private String contentHash;
+
+  // content received and not yet taken by the driver
+  private final Deque<ByteBuffer> pending = new ArrayDeque<>();
+
+  // content of a media stored inline, until it spills
+  private ByteArrayOutputStream inlineContent;
+
+  private GridFSUploadPublisher<ObjectId> upload;
+
+  private Subscriber<? super ByteBuffer> content;
+
+  private long demand;
+
+  // messages requested from the client and not received yet
+  private int requested;
+
+  private boolean lookingUp;
+
+  private boolean received;
+
+  private boolean contentEnded;
+
+  private boolean finished;
+
+  public ReactiveMediaUploadStreaming(ServerCallStreamObserver<CreateMediaResponse> observer,
+      ReactiveGridFsStore store, MediaRepository mediaRepository, MediaChangeLog mediaChangeLog, int queueSize,
+      MemoryBudget.Reservation reservation) {
+    this.observer = observer;
+    this.store = store;
+    this.mediaRepository = mediaRepository;
+    this.mediaChangeLog = mediaChangeLog;
+    this.queueSize = queueSize;
+    this.reservation = reservation;
+  }
+
+  /**
+   * Switches the call to manual inbound flow control and requests the first chunk. It must be called from the service
+   * method, before this observer is returned to gRPC.
+   */
+  public synchronized void start() {
+    observer.disableAutoRequest();
+    requested = 1;
+    observer.request(1);
+  }
+
+  @Override
+  public synchronized void onNext(MediaChunk chunk) {
+    if (finished) {
+      return;
+    }
+    requested--;
+    final ByteBuffer buffer = chunk.getContent().asReadOnlyByteBuffer();
+    digest.update(buffer.duplicate());
+    if (media == null) {
+      media = chunk.toBuilder()
+          .setContentType(chunk.getContentType().isEmpty()
+              ? MediaUploadStreaming.detectContentType(chunk)
+              : chunk.getContentType())
+          .clearContentEncoding()
+          .clearContent()
+          .build();
+      declaredHash = UploadStream.normalizeHash(chunk.getHash());
+      pending.add(buffer);
+      lookingUp = true;
+      ResultSubscriber.subscribe(store.findFile(media.getOriginalName()), this::checked);
+      return;
+    }
+    if (inlineContent != null) {
+      if (inlineContent.size() + buffer.remaining() <= store.getInlineMaxBytes()) {
+        inlineContent.writeBytes(toByteArray(buffer));
+        requestFromClient(queueSize);
+        return;
+      }
+      pending.add(ByteBuffer.wrap(inlineContent.toByteArray()));
+      inlineContent = null;
+      pending.add(buffer);
+      storeInChunks();
+      return;
+    }
+    pending.add(buffer);
+    drain();
+  }
+
+  private synchronized void checked(Document existing, Throwable error) {
+    lookingUp = false;
+    if (finished) {
+      return;
+    }
+    if (error != null) {
+      failed(error);
+      return;
+    }
+    if (existing != null) {
+      fail(Status.ALREADY_EXISTS.withDescription(String.format("Media already exists: fileName: [%s], hash: [%s]",
+          media.getOriginalName(), existing.get("metadata", new Document()).get(MediaRepository.CONTENT_HASH_KEY, ""))));
+      return;
+    }
+    if (store.acceptsInline(media) && pending.peek().remaining() <= store.getInlineMaxBytes()) {
+      inlineContent = new ByteArrayOutputStream((int) media.getTotalSize());
+      inlineContent.writeBytes(toByteArray(pending.poll()));
+      if (received) {
+        storeInline();
+      } else {
+        requestFromClient(queueSize);
+      }
+      return;
+    }
+    storeInChunks();
+  }
+
+  private void storeInChunks() {
+    upload = store.openUpload(media, this);
+    // the driver subscribes to the content, then requests it as it writes the chunks
+    ResultSubscriber.subscribe(upload, this::stored);
+  }
+
+  private void storeInline() {
+    if (!verified()) {
+      return;
+    }
+    final byte[] data = inlineContent.toByteArray();
+    inlineContent = null;
+    ResultSubscriber.subscribe(store.insertInline(media, data, contentHash), (result, error) -> stored(null, error));
+  }
+
+  @Override
+  public synchronized void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+    this.content = subscriber;
+    subscriber.onSubscribe(this);
+  }
+
+  /**
+   * Demand of the driver, each buffer requested lets the client send one more chunk.
+   */
+  @Override
+  public synchronized void request(long n) {
+    if (finished || contentEnded) {
+      return;
+    }
+    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+    drain();
+  }
+
+  @Override
+  public synchronized void cancel() {
+    // the driver gave up on the content, it reports why through the upload
+    contentEnded = true;
+    pending.clear();
+  }
+
+  private void drain() {
+    while (demand > 0 && !pending.isEmpty() && !contentEnded) {
+      demand--;
+      content.onNext(pending.poll());
+    }
+    if (contentEnded) {
+      return;
+    }
+    if (received && pending.isEmpty()) {
+      contentEnded = true;
+      if (verified()) {
+        content.onComplete();
+      } else {
+        content.onError(new ContentHashMismatchException(mismatch()));
+      }
+      return;
+    }
+    requestFromClient((int) Math.min(demand, queueSize));
+  }
+
+  // keeps up to the given number of messages requested from the client, counting those not taken yet
+  private void requestFromClient(int wanted) {
+    final int count = wanted - requested - pending.size();
+    if (count > 0 && !received) {
+      requested += count;
+      observer.request(count);
+    }
+  }
+
+  @Override
+  public synchronized void onCompleted() {
+    if (finished) {
+      return;
+    }
+    received = true;
+    if (media == null) {
+      fail(Status.INVALID_ARGUMENT.withDescription("No media content received"));
+      return;
+    }
+    contentHash = UploadStream.formatHash(digest);
+    LOGGER.info("File [{}] Received", media.getOriginalName());
+    if (lookingUp) {
+      return;
+    }
+    if (inlineContent != null) {
+      storeInline();
+    } else if (content != null) {
+      drain();
+    }
+  }
+
+  @Override
+  public synchronized void onError(Throwable t) {
+    LOGGER.info("Upload interrupted by the client: [{}]", t.getMessage());
+    if (finished) {
+      return;
+    }
+    finish();
+    endContent(new CancellationException("Upload interrupted by the client"));
+  }
+
+  private boolean verified() {
+    if (declaredHash.isEmpty() || declaredHash.equals(contentHash)) {
+      return true;
+    }
+    if (inlineContent != null) {
+      LOGGER.info(mismatch());
+      fail(Status.DATA_LOSS.withDescription(mismatch()));
+    }
+    return false;
+  }
+
+  private String mismatch() {
+    return String.format("Content hash mismatch: declared [%s], received [%s]", declaredHash, contentHash);
+  }
+
+  // the file document was inserted, or the upload failed
+  private synchronized void stored(ObjectId fileId, Throwable error) {
+    if (finished) {
+      return;
+    }
+    if (error != null) {
+      if (received && !declaredHash.isEmpty() && !declaredHash.equals(contentHash)) {
+        LOGGER.info(mismatch());
+        fail(Status.DATA_LOSS.withDescription(mismatch()));
+      } else {
+        failed(error);
+      }
+      return;
+    }
+    if (upload != null && declaredHash.isEmpty()) {
+      ResultSubscriber.subscribe(store.setContentHash(upload.getObjectId(), contentHash),
+          (result, updateError) -> described(updateError));
+      return;
+    }
+    succeed();
+  }
+
+  private synchronized void described(Throwable error) {
+    if (finished) {
+      return;
+    }
+    if (error != null) {
+      failed(error);
+      return;
+    }
+    succeed();
+  }
+
+  private void succeed() {
+    finish();
+    mediaRepository.invalidate(media.getOriginalName());
+    mediaChangeLog.recordStored(media.getOriginalName());
+    observer.onNext(CreateMediaResponse.newBuilder().setSuccess(true).build());
+    observer.onCompleted();
+  }
+
+  private void failed(Throwable error) {
+    LOGGER.error("Upload of [{}] failed", media == null ? null : media.getOriginalName(), error);
+    fail(Status.UNKNOWN);
+  }
+
+  private void fail(Status status) {
+    finish();
+    endContent(new CancellationException(status.getDescription()));
+    observer.onError(status.asRuntimeException());
+  }
+
+  // makes the driver discard what it wrote
+  private void endContent(Throwable cause) {
+    if (content != null && !contentEnded) {
+      contentEnded = true;
+      content.onError(cause);
+    }
+  }
+
+  private void finish() {
+    finished = true;
+    pending.clear();
+    inlineContent = null;
+    reservation.release();
+  }
+
+  private static byte[] toByteArray(ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+}
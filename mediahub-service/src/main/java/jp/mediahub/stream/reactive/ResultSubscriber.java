@@ -0,0 +1,55 @@
+package jp.mediahub.stream.reactive;
+
+import java.util.function.BiConsumer;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Subscriber of a {@link Publisher} emitting at most one result, e.g. a lookup or a write, handing the result, or the
+ * failure, to a callback once the publisher completes. The callback runs on the thread of the driver, it must not
+ * block.
+ *
+ * @param <T> the type of the result
+ * @author Renato Raeffray
+ */
+final class ResultSubscriber<T> implements Subscriber<T> {
+
+  private final BiConsumer<T, Throwable> callback;
+
+  private T result;
+
+  private ResultSubscriber(BiConsumer<T, Throwable> callback) {
+    this.callback = callback;
+  }
+
+  /**
+   * @param publisher the publisher of the result
+   * @param callback called with the result, null if none was emitted, or with the failure
+   */
+  static <T> void subscribe(Publisher<T> publisher, BiConsumer<T, Throwable> callback) {
+    publisher.subscribe(new ResultSubscriber<>(callback));
+  }
+
+  @Override
+  public void onSubscribe(Subscription subscription) {
+    subscription.request(Long.MAX_VALUE);
+  }
+
+  @Override
+  public void onNext(T next) {
+    if (result == null) {
+      result = next;
+    }
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    callback.accept(null, t);
+  }
+
+  @Override
+  public void onComplete() {
+    callback.accept(result, null);
+  }
+}
@@ -0,0 +1,459 @@
+package jp.mediahub.stream.session;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import io.grpc.Status;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import jp.mediahub.messages.Media;
+import jp.mediahub.messages.OpenMultipartUploadRequest;
+import jp.mediahub.messages.OpenUploadSessionRequest;
+import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.repository.impl.MediaChangeLog;
+import jp.mediahub.stream.container.GridFsChunkStream;
+import jp.mediahub.stream.container.UploadStream;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * Keeps the state of the resumable uploads, and writes their chunks straight to the GridFS chunks collection.
+ * <p>
+ * A session reserves a files id and the chunk size of the bucket. Every chunk is written under that id as soon as it is
+ * full, with an upsert keyed by its index, so resending a part already stored is harmless. The session document then
+ * records the offset up to which the chunks are stored: this committed offset is where a client resumes after a
+ * disconnection. Once every byte was received, the file document is inserted with the reserved id, which makes the
+ * media visible to the other calls at once.
+ * <p>
+ * The SHA-256 of the content is carried over between the calls of a session by keeping a copy of the digest at the
+ * committed offset. When it is not available, e.g. after a restart or when the session resumes on another instance,
+ * the hash is computed at the completion by reading the stored chunks back.
+ * <p>
+ * Multipart sessions receive numbered parts, each one a whole number of chunks, so the parts are written to their
+ * own chunk indexes by concurrent calls, in any order. Every part is hashed on its own as it is received, the hash of
+ * the media is the SHA-256 of the digests of its parts, in order, in the format <code>&lt;hex&gt; sha256-parts</code>.
+ * Completing the session only inserts the file document: the chunks are already where GridFS reads them.
+ * <p>
+ * A session is completed once, by the call that claims it, moving it from OPEN to COMMITTING. The other calls
+ * completing it concurrently fail with FAILED_PRECONDITION, as do the parts of a multipart session sent meanwhile.
+ * <p>
+ * The chunks are written to the bucket of the primary shard as they are received, whatever the content: the media of a
+ * session is neither deduplicated against the content already stored, nor stored inline or compressed, as those of the
+ * other uploads can be. The {@link jp.mediahub.shard.ShardRebalancer} moves it afterwards to the shard it belongs to.
+ * <p>
+ * Sessions not completed before they expire are removed, with their chunks, by {@link #removeExpiredSessions()}. Each
+ * commit extends the expiration.
+ *
+ * @author Renato Raeffray
+ */
+public class UploadSessionManager {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(UploadSessionManager.class);
+
+  private static final String FILES_ID_KEY = "files_id";
+
+  private static final String CHUNK_INDEX_KEY = "n";
+
+  private static final String DATA_KEY = "data";
+
+  /**
+   * Algorithm of the hash of the media uploaded in parts, the SHA-256 of the SHA-256 of each part.
+   */
+  public static final String MULTIPART_HASH_ALGORITHM = "sha256-parts";
+
+  // the parts of a media are made larger rather than more numerous
+  private static final int MAX_PARTS = 10000;
+
+  private final MongoCollection<Document> sessionsCollection;
+
+  private final MongoCollection<Document> filesCollection;
+
+  private final MongoCollection<Document> chunksCollection;
+
+  private final MediaRepository mediaRepository;
+
+  private final MediaChangeLog mediaChangeLog;
+
+  private final int chunkSize;
+
+  private final long defaultPartSize;
+
+  private final Duration ttl;
+
+  private final Map<String, DigestSnapshot> digests = new ConcurrentHashMap<>();
+
+  public UploadSessionManager(MongoCollection<Document> sessionsCollection, MongoCollection<Document> filesCollection,
+      MongoCollection<Document> chunksCollection, MediaRepository mediaRepository, MediaChangeLog mediaChangeLog,
+      int chunkSize, long defaultPartSize, Duration ttl) {
+    this.sessionsCollection = sessionsCollection;
+    this.filesCollection = filesCollection;
+    this.chunksCollection = chunksCollection;
+    this.mediaRepository = mediaRepository;
+    this.mediaChangeLog = mediaChangeLog;
+    this.chunkSize = chunkSize;
+    this.defaultPartSize = defaultPartSize;
+    this.ttl = ttl;
+    sessionsCollection.createIndex(Indexes.ascending(UploadSessionState.EXPIRES_AT_KEY));
+    // the index GridFS relies on, chunks are upserted by it
+    chunksCollection.createIndex(Indexes.ascending(FILES_ID_KEY, CHUNK_INDEX_KEY), new IndexOptions().unique(true));
+  }
+
+  /**
+   * Opens a session for a new media.
+   *
+   * @param request the name, size and optionally hash and owner of the media
+   * @return the state of the new session, nothing committed yet
+   */
+  public UploadSessionState open(OpenUploadSessionRequest request) {
+    final Document document = new Document()
+        .append("_id", UUID.randomUUID().toString())
+        .append(UploadSessionState.FILENAME_KEY, request.getOriginalName())
+        .append(UploadSessionState.FILES_ID_KEY, new ObjectId())
+        .append(UploadSessionState.CHUNK_SIZE_KEY, chunkSize)
+        .append(UploadSessionState.TOTAL_SIZE_KEY, request.getTotalSize())
+        .append(UploadSessionState.DECLARED_HASH_KEY, UploadStream.normalizeHash(request.getHash()))
+        .append(UploadSessionState.RESOURCE_OWNER_ID_KEY, request.getResourceOwnerId())
+        .append(UploadSessionState.COMMITTED_OFFSET_KEY, 0L)
+        .append(UploadSessionState.STATE_KEY, UploadSessionState.OPEN)
+        .append(UploadSessionState.EXPIRES_AT_KEY, expiresAt());
+    sessionsCollection.insertOne(document);
+    return new UploadSessionState(document);
+  }
+
+  /**
+   * Opens a multipart session for a new media.
+   *
+   * @param request the name, size and optionally hash, owner and part size of the media
+   * @return the state of the new session, no part stored yet
+   */
+  public UploadSessionState openMultipart(OpenMultipartUploadRequest request) {
+    final long requestedPartSize = request.getPartSize() > 0 ? request.getPartSize() : defaultPartSize;
+    final long minimumPartSize = (request.getTotalSize() + MAX_PARTS - 1) / MAX_PARTS;
+    final long chunksPerPart = Math.max(1,
+        (Math.max(requestedPartSize, minimumPartSize) + chunkSize - 1) / chunkSize);
+    final Document document = new Document()
+        .append("_id", UUID.randomUUID().toString())
+        .append(UploadSessionState.FILENAME_KEY, request.getOriginalName())
+        .append(UploadSessionState.FILES_ID_KEY, new ObjectId())
+        .append(UploadSessionState.CHUNK_SIZE_KEY, chunkSize)
+        .append(UploadSessionState.TOTAL_SIZE_KEY, request.getTotalSize())
+        .append(UploadSessionState.DECLARED_HASH_KEY, UploadStream.normalizeHash(request.getHash()))
+        .append(UploadSessionState.RESOURCE_OWNER_ID_KEY, request.getResourceOwnerId())
+        .append(UploadSessionState.COMMITTED_OFFSET_KEY, 0L)
+        .append(UploadSessionState.PART_SIZE_KEY, chunksPerPart * chunkSize)
+        .append(UploadSessionState.PARTS_KEY, new Document())
+        .append(UploadSessionState.STATE_KEY, UploadSessionState.OPEN)
+        .append(UploadSessionState.EXPIRES_AT_KEY, expiresAt());
+    sessionsCollection.insertOne(document);
+    return new UploadSessionState(document);
+  }
+
+  /**
+   * @param sessionId the id of the session
+   * @return the session, if it exists and has not expired
+   */
+  public Optional<UploadSessionState> find(String sessionId) {
+    final Document document = sessionsCollection.find(Filters.and(
+        Filters.eq(sessionId),
+        Filters.gt(UploadSessionState.EXPIRES_AT_KEY, new Date()))).first();
+    return Optional.ofNullable(document).map(UploadSessionState::new);
+  }
+
+  /**
+   * Returns a copy of the digest of the content up to the offset, if this instance committed the session up to it.
+   */
+  public Optional<MessageDigest> findDigest(String sessionId, long offset) {
+    final DigestSnapshot snapshot = digests.get(sessionId);
+    return snapshot == null || snapshot.offset() != offset ? Optional.empty() : Optional.of(copy(snapshot.digest()));
+  }
+
+  /**
+   * Stores consecutive chunks and moves the committed offset of the session past them.
+   *
+   * @param session the session
+   * @param chunks the chunks following the committed offset, all full but the last chunk of the media
+   * @param digest the digest of the content up to the end of the chunks, or null if unknown
+   */
+  public void commitChunks(UploadSessionState session, List<byte[]> chunks, MessageDigest digest) {
+    writeChunks(session, (int) (session.getCommittedOffset() / session.getChunkSize()), chunks);
+    long committedOffset = session.getCommittedOffset();
+    for (byte[] chunk : chunks) {
+      committedOffset += chunk.length;
+    }
+
+    final Date expiresAt = expiresAt();
+    sessionsCollection.updateOne(Filters.eq(session.getSessionId()), Updates.combine(
+        Updates.set(UploadSessionState.COMMITTED_OFFSET_KEY, committedOffset),
+        Updates.set(UploadSessionState.EXPIRES_AT_KEY, expiresAt)));
+    session.committed(committedOffset, expiresAt);
+    if (digest != null) {
+      digests.put(session.getSessionId(), new DigestSnapshot(committedOffset, copy(digest)));
+    } else {
+      digests.remove(session.getSessionId());
+    }
+  }
+
+  /**
+   * Stores consecutive chunks of a session, e.g. of a part of a multipart session. The chunks are upserted by index, so
+   * rewriting a chunk is harmless.
+   *
+   * @param firstIndex the index of the first chunk in the media
+   * @param chunks the chunks, all full but the last chunk of the media
+   */
+  public void writeChunks(UploadSessionState session, int firstIndex, List<byte[]> chunks) {
+    final List<WriteModel<Document>> writes = new ArrayList<>(chunks.size());
+    for (int i = 0; i < chunks.size(); i++) {
+      final int index = firstIndex + i;
+      writes.add(new ReplaceOneModel<>(
+          Filters.and(Filters.eq(FILES_ID_KEY, session.getFilesId()), Filters.eq(CHUNK_INDEX_KEY, index)),
+          new Document()
+              .append(FILES_ID_KEY, session.getFilesId())
+              .append(CHUNK_INDEX_KEY, index)
+              .append(DATA_KEY, new Binary(chunks.get(i))),
+          new ReplaceOptions().upsert(true)));
+    }
+    chunksCollection.bulkWrite(writes);
+  }
+
+  /**
+   * Forgets a part of a multipart session before it is (re)written, so that it is not taken as stored while its chunks
+   * are being replaced.
+   *
+   * @throws io.grpc.StatusRuntimeException FAILED_PRECONDITION if the session is being completed
+   */
+  public void startPart(UploadSessionState session, int partNumber) {
+    if (sessionsCollection.updateOne(open(session),
+        Updates.unset(UploadSessionState.PARTS_KEY + "." + partNumber)).getMatchedCount() == 0) {
+      throw Status.FAILED_PRECONDITION
+          .withDescription(String.format("Multipart upload [%s] is being completed", session.getSessionId()))
+          .asRuntimeException();
+    }
+  }
+
+  /**
+   * Records a part of a multipart session whose chunks are all stored, and extends the expiration of the session.
+   */
+  public void commitPart(UploadSessionState session, UploadSessionState.Part part) {
+    sessionsCollection.updateOne(Filters.eq(session.getSessionId()), Updates.combine(
+        Updates.set(UploadSessionState.PARTS_KEY + "." + part.number(), new Document()
+            .append(UploadSessionState.PART_LENGTH_KEY, part.length())
+            .append(UploadSessionState.PART_HASH_KEY, part.hash())),
+        Updates.set(UploadSessionState.EXPIRES_AT_KEY, expiresAt())));
+  }
+
+  /**
+   * Makes the media of a multipart session visible once all its parts are stored. Its hash is computed from the hashes
+   * of the parts, the content is not read back.
+   *
+   * @param session the multipart session, as last read
+   * @return the media created
+   * @throws io.grpc.StatusRuntimeException FAILED_PRECONDITION if parts are missing or another call is completing the
+   * session, DATA_LOSS if the hash declared does not match, ALREADY_EXISTS if a media of the same name was saved
+   * meanwhile
+   */
+  public Media completeMultipart(UploadSessionState lastRead) {
+    // the parts as stored when claimed, none can be written afterwards
+    final UploadSessionState session = claim(lastRead);
+    try {
+      return completeClaimed(session);
+    } catch (RuntimeException e) {
+      release(session);
+      throw e;
+    }
+  }
+
+  private Media completeClaimed(UploadSessionState session) {
+    final List<Integer> missingParts = IntStream.range(0, session.getPartCount())
+        .filter(number -> !session.getParts().containsKey(number))
+        .boxed()
+        .toList();
+    if (!missingParts.isEmpty()) {
+      throw Status.FAILED_PRECONDITION
+          .withDescription(String.format("Parts %s of the [%d] parts of media [%s] are missing",
+              missingParts.size() > 10 ? missingParts.subList(0, 10) + "..." : missingParts, session.getPartCount(),
+              session.getFileName()))
+          .asRuntimeException();
+    }
+    final String contentHash = multipartHash(session.getParts().values());
+    if (!session.getDeclaredHash().isEmpty() && !session.getDeclaredHash().equals(contentHash)) {
+      discard(session);
+      throw Status.DATA_LOSS
+          .withDescription(String.format("Content hash mismatch for media [%s]: declared [%s], received [%s]",
+              session.getFileName(), session.getDeclaredHash(), contentHash))
+          .asRuntimeException();
+    }
+    if (mediaRepository.findMedia(session.getFileName()).isPresent()) {
+      discard(session);
+      throw Status.ALREADY_EXISTS
+          .withDescription(String.format("A media named [%s] was saved during the upload session",
+              session.getFileName()))
+          .asRuntimeException();
+    }
+    complete(session, contentHash);
+    LOGGER.info("File [{}] assembled from [{}] parts of session [{}]", session.getFileName(), session.getPartCount(),
+        session.getSessionId());
+    return Media.newBuilder()
+        .setOriginalName(session.getFileName())
+        .setSize(session.getTotalSize())
+        .setHash(contentHash)
+        .build();
+  }
+
+  /**
+   * Claims a session for its completion, so that it is completed by a single call.
+   *
+   * @param session the session, as last read
+   * @return the session claimed, as stored
+   * @throws io.grpc.StatusRuntimeException FAILED_PRECONDITION if another call is completing the session, or it was
+   * completed or removed meanwhile
+   */
+  public UploadSessionState claim(UploadSessionState session) {
+    final Document document = sessionsCollection.findOneAndUpdate(open(session),
+        Updates.set(UploadSessionState.STATE_KEY, UploadSessionState.COMMITTING),
+        new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+    if (document == null) {
+      throw Status.FAILED_PRECONDITION
+          .withDescription(String.format("Upload session [%s] is being completed or no longer exists",
+              session.getSessionId()))
+          .asRuntimeException();
+    }
+    return new UploadSessionState(document);
+  }
+
+  /**
+   * @param parts the parts of a media, in order
+   * @return the SHA-256 of the concatenated digests of the parts, in the format <code>&lt;hex&gt; sha256-parts</code>
+   */
+  public static String multipartHash(Collection<UploadSessionState.Part> parts) {
+    final MessageDigest digest = UploadStream.newDigest();
+    for (UploadSessionState.Part part : parts) {
+      digest.update(HexFormat.of().parseHex(part.hash().substring(0, part.hash().indexOf(' '))));
+    }
+    return HexFormat.of().formatHex(digest.digest()) + " " + MULTIPART_HASH_ALGORITHM;
+  }
+
+  /**
+   * Computes the hash of the content stored so far, by reading its chunks back.
+   */
+  public String computeContentHash(UploadSessionState session) throws IOException {
+    final MessageDigest digest = UploadStream.newDigest();
+    final byte[] buffer = new byte[session.getChunkSize()];
+    try (InputStream stream = new GridFsChunkStream(chunksCollection, session.getFilesId(),
+        session.getCommittedOffset(), session.getChunkSize(), 0)) {
+      int bytesRead;
+      while ((bytesRead = stream.read(buffer, 0, buffer.length)) >= 0) {
+        digest.update(buffer, 0, bytesRead);
+      }
+    }
+    return UploadStream.formatHash(digest);
+  }
+
+  /**
+   * Makes the media of a fully committed session visible, by inserting its file document, and removes the session.
+   *
+   * @param session the session, committed up to its total size and claimed by {@link #claim(UploadSessionState)}
+   * @param contentHash the verified hash of the content
+   */
+  public void complete(UploadSessionState session, String contentHash) {
+    final Document metadata = new Document();
+    if (!session.getResourceOwnerId().isEmpty()) {
+      metadata.append(MediaRepository.RESOURCE_OWNER_ID_KEY, session.getResourceOwnerId());
+    }
+    metadata.append(MediaRepository.CONTENT_HASH_KEY, contentHash)
+        .append(MediaRepository.REF_COUNT_KEY, 1);
+    filesCollection.insertOne(new Document()
+        .append("_id", session.getFilesId())
+        .append(MediaRepository.FILENAME_KEY, session.getFileName())
+        .append("length", session.getTotalSize())
+        .append("chunkSize", session.getChunkSize())
+        .append("uploadDate", new Date())
+        .append("metadata", metadata));
+    sessionsCollection.deleteOne(Filters.eq(session.getSessionId()));
+    digests.remove(session.getSessionId());
+    mediaRepository.invalidate(session.getFileName());
+    mediaChangeLog.recordStored(session.getFileName());
+  }
+
+  /**
+   * Removes a session and the chunks it stored.
+   */
+  public void discard(UploadSessionState session) {
+    chunksCollection.deleteMany(Filters.eq(FILES_ID_KEY, session.getFilesId()));
+    sessionsCollection.deleteOne(Filters.eq(session.getSessionId()));
+    digests.remove(session.getSessionId());
+  }
+
+  /**
+   * Removes the sessions expired, with their chunks.
+   */
+  @Scheduled(fixedDelayString = "${app.media.upload.session.gc-interval-seconds}", timeUnit = TimeUnit.SECONDS)
+  public void removeExpiredSessions() {
+    for (Document document : sessionsCollection.find(
+        Filters.lte(UploadSessionState.EXPIRES_AT_KEY, new Date()))) {
+      final UploadSessionState session = new UploadSessionState(document);
+      if (filesCollection.find(Filters.eq(session.getFilesId())).first() != null) {
+        // completed, but not removed, the chunks are those of the media
+        sessionsCollection.deleteOne(Filters.eq(session.getSessionId()));
+        continue;
+      }
+      LOGGER.info("Upload session [{}] of [{}] expired at [{}] of [{}] bytes", session.getSessionId(),
+          session.getFileName(), session.getCommittedOffset(), session.getTotalSize());
+      discard(session);
+    }
+  }
+
+  /**
+   * Reopens a session claimed by {@link #claim(UploadSessionState)} but not completed, so that it can be completed by
+   * the next call. A session discarded meanwhile is left removed.
+   */
+  public void release(UploadSessionState session) {
+    sessionsCollection.updateOne(Filters.eq(session.getSessionId()),
+        Updates.set(UploadSessionState.STATE_KEY, UploadSessionState.OPEN));
+  }
+
+  // the session, unless claimed, the sessions stored before their state was recorded being open
+  private static Bson open(UploadSessionState session) {
+    return Filters.and(Filters.eq(session.getSessionId()),
+        Filters.ne(UploadSessionState.STATE_KEY, UploadSessionState.COMMITTING));
+  }
+
+  private Date expiresAt() {
+    return new Date(System.currentTimeMillis() + ttl.toMillis());
+  }
+
+  private static MessageDigest copy(MessageDigest digest) {
+    try {
+      return (MessageDigest) digest.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalStateException("The digest can not be copied", e);
+    }
+  }
+
+  private record DigestSnapshot(long offset, MessageDigest digest) {
+  }
+}
@@ -0,0 +1,206 @@
+package jp.mediahub.stream.session;
+
+import java.util.Date;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import jp.mediahub.messages.MultipartPartReceipt;
+import jp.mediahub.messages.MultipartUpload;
+import jp.mediahub.messages.UploadSession;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * The persisted state of an upload session, as stored by the {@link UploadSessionManager}.
+ * <p>
+ * The chunks of the media are written under {@link #getFilesId()} as they are received, the media only becomes visible
+ * once the session is completed and its file document is inserted with the same id.
+ * <p>
+ * A multipart session has a part size, a whole number of chunks: part <code>n</code> covers the chunks from
+ * <code>n * partSize / chunkSize</code>, so the parts are written independently of each other. The parts fully stored
+ * are recorded with their size and hash, {@link #getCommittedOffset()} is not used.
+ *
+ * @author Renato Raeffray
+ */
+public class UploadSessionState {
+
+  static final String FILENAME_KEY = "filename";
+  static final String FILES_ID_KEY = "filesId";
+  static final String CHUNK_SIZE_KEY = "chunkSize";
+  static final String TOTAL_SIZE_KEY = "totalSize";
+  static final String DECLARED_HASH_KEY = "declaredHash";
+  static final String RESOURCE_OWNER_ID_KEY = "resourceOwnerId";
+  static final String COMMITTED_OFFSET_KEY = "committedOffset";
+  static final String EXPIRES_AT_KEY = "expiresAt";
+  static final String PART_SIZE_KEY = "partSize";
+  static final String PARTS_KEY = "parts";
+  static final String PART_LENGTH_KEY = "length";
+  static final String PART_HASH_KEY = "hash";
+  static final String STATE_KEY = "state";
+
+  /**
+   * State of a session receiving its content.
+   */
+  static final String OPEN = "OPEN";
+
+  /**
+   * State of a session claimed by the call completing it.
+   */
+  static final String COMMITTING = "COMMITTING";
+
+  private final String sessionId;
+
+  private final String fileName;
+
+  private final ObjectId filesId;
+
+  private final int chunkSize;
+
+  private final long totalSize;
+
+  private final String declaredHash;
+
+  private final String resourceOwnerId;
+
+  private final long partSize;
+
+  // the parts stored, by number
+  private final SortedMap<Integer, Part> parts = new TreeMap<>();
+
+  private long committedOffset;
+
+  private Date expiresAt;
+
+  UploadSessionState(Document document) {
+    this.sessionId = document.getString("_id");
+    this.fileName = document.getString(FILENAME_KEY);
+    this.filesId = document.getObjectId(FILES_ID_KEY);
+    this.chunkSize = document.getInteger(CHUNK_SIZE_KEY);
+    this.totalSize = document.getLong(TOTAL_SIZE_KEY);
+    this.declaredHash = document.getString(DECLARED_HASH_KEY);
+    this.resourceOwnerId = document.getString(RESOURCE_OWNER_ID_KEY);
+    this.committedOffset = document.getLong(COMMITTED_OFFSET_KEY);
+    this.expiresAt = document.getDate(EXPIRES_AT_KEY);
+    this.partSize = document.get(PART_SIZE_KEY, 0L);
+    final Document partsDocument = document.get(PARTS_KEY, new Document());
+    partsDocument.forEach((number, part) -> {
+      final Document partDocument = (Document) part;
+      parts.put(Integer.valueOf(number), new Part(Integer.parseInt(number), partDocument.getLong(PART_LENGTH_KEY),
+          partDocument.getString(PART_HASH_KEY)));
+    });
+  }
+
+  public String getSessionId() {
+    return sessionId;
+  }
+
+  public String getFileName() {
+    return fileName;
+  }
+
+  public ObjectId getFilesId() {
+    return filesId;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public long getTotalSize() {
+    return totalSize;
+  }
+
+  public String getDeclaredHash() {
+    return declaredHash;
+  }
+
+  public String getResourceOwnerId() {
+    return resourceOwnerId;
+  }
+
+  public long getCommittedOffset() {
+    return committedOffset;
+  }
+
+  public Date getExpiresAt() {
+    return expiresAt;
+  }
+
+  public boolean isMultipart() {
+    return partSize > 0;
+  }
+
+  public long getPartSize() {
+    return partSize;
+  }
+
+  public int getPartCount() {
+    return (int) Math.max(1, (totalSize + partSize - 1) / partSize);
+  }
+
+  /**
+   * @return the first byte of the part in the media
+   */
+  public long getPartOffset(int partNumber) {
+    return partNumber * partSize;
+  }
+
+  /**
+   * @return the size of the part, the last one holding what remains of the media
+   */
+  public long getPartLength(int partNumber) {
+    return Math.min(partSize, totalSize - getPartOffset(partNumber));
+  }
+
+  /**
+   * @return the parts fully stored, by number
+   */
+  public SortedMap<Integer, Part> getParts() {
+    return parts;
+  }
+
+  void committed(long committedOffset, Date expiresAt) {
+    this.committedOffset = committedOffset;
+    this.expiresAt = expiresAt;
+  }
+
+  public UploadSession toUploadSession(boolean completed) {
+    return UploadSession.newBuilder()
+        .setSessionId(sessionId)
+        .setOriginalName(fileName)
+        .setTotalSize(totalSize)
+        .setCommittedOffset(committedOffset)
+        .setExpiresAt(expiresAt.getTime())
+        .setCompleted(completed)
+        .build();
+  }
+
+  public MultipartUpload toMultipartUpload() {
+    final MultipartUpload.Builder builder = MultipartUpload.newBuilder()
+        .setSessionId(sessionId)
+        .setOriginalName(fileName)
+        .setTotalSize(totalSize)
+        .setPartSize(partSize)
+        .setPartCount(getPartCount())
+        .setExpiresAt(expiresAt.getTime());
+    parts.values().forEach(part -> builder.addParts(part.toReceipt()));
+    return builder.build();
+  }
+
+  /**
+   * A part of a multipart session, fully stored.
+   *
+   * @param number the number of the part
+   * @param length its size
+   * @param hash the SHA-256 of its content, in the <code>&lt;hex&gt; sha256</code> format
+   */
+  public record Part(int number, long length, String hash) {
+
+    public MultipartPartReceipt toReceipt() {
+      return MultipartPartReceipt.newBuilder()
+          .setPartNumber(number)
+          .setSize(length)
+          .setHash(hash)
+          .build();
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package jp.mediahub.repository.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.mongodb.MongoClientSettings;
+import java.util.List;
+import jp.mediahub.repository.MediaRepository;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class DefaultMediaRepositoryTest {
+
+  @Test
+  public void pageTokenCarriesTheKeyOfTheLastFile() {
+    final ObjectId id = new ObjectId();
+    final String mediaName = "albums/2024:summer/\u00e9t\u00e9.jpg";
+
+    final String pageToken = DefaultMediaRepository.pageToken(file(id, mediaName));
+
+    assertArrayEquals(new String[]{id.toHexString(), mediaName}, DefaultMediaRepository.decodePageToken(pageToken));
+    // passed as is in URLs
+    assertFalse(pageToken.matches(".*[+/=].*"));
+  }
+
+  @Test
+  public void invalidPageTokensAreRejected() {
+    // not Base64, then "no-separator" and "not-an-id:a.jpg" encoded
+    for (String pageToken : List.of("!!", "bm8tc2VwYXJhdG9y", "bm90LWFuLWlkOmEuanBn")) {
+      try {
+        DefaultMediaRepository.decodePageToken(pageToken);
+        throw new AssertionError("accepted " + pageToken);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void nextPageStartsAfterTheLastFileByNameThenId() {
+    final ObjectId id = new ObjectId();
+    final String pageToken = DefaultMediaRepository.pageToken(file(id, "b.jpg"));
+
+    // the revisions of the last name stored after it follow, as the name index sorts them
+    assertEquals(render(new Document("$or", List.of(
+            new Document(MediaRepository.FILENAME_KEY, new Document("$gt", "b.jpg")),
+            new Document("$and", List.of(
+                new Document(MediaRepository.FILENAME_KEY, "b.jpg"),
+                new Document("_id", new Document("$gt", id))))))),
+        render(DefaultMediaRepository.after(pageToken)));
+  }
+
+  private static Document file(ObjectId id, String mediaName) {
+    return new Document("_id", id)
+        .append(MediaRepository.FILENAME_KEY, mediaName)
+        .append("length", 1L)
+        .append("metadata", new Document());
+  }
+
+  private static BsonDocument render(Bson filter) {
+    return filter.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+  }
+}
@@ -0,0 +1,54 @@
+package jp.mediahub.repository.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import org.junit.Test;
+
+public class MediaChangeLogTest {
+
+  @Test
+  public void tokenCarriesTheSequenceOfTheChange() {
+    for (long sequence : new long[]{0, 1, 42, Long.MAX_VALUE}) {
+      assertEquals(sequence, MediaChangeLog.sequence(MediaChangeLog.token(sequence)));
+    }
+  }
+
+  @Test
+  public void invalidTokensAreRejected() {
+    for (String changeToken : List.of("", "-1", "abc", "1.5", "99999999999999999999")) {
+      try {
+        MediaChangeLog.sequence(changeToken);
+        throw new AssertionError("accepted " + changeToken);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void tokenOfAKeptChangeIsValid() {
+    assertFalse(MediaChangeLog.expired(42, 42));
+  }
+
+  @Test
+  public void tokenOfAPrunedChangeExpires() {
+    assertTrue(MediaChangeLog.expired(42, 50));
+  }
+
+  @Test
+  public void tokenBeyondTheLatestChangeExpires() {
+    // e.g. once the log was dropped
+    assertTrue(MediaChangeLog.expired(42, 0));
+    assertTrue(MediaChangeLog.expired(42, 43));
+  }
+
+  @Test
+  public void tokenOfAnEmptyLogExpiresOnceItsFirstChangesArePruned() {
+    assertFalse(MediaChangeLog.expired(0, 0));
+    assertFalse(MediaChangeLog.expired(0, 1));
+    assertTrue(MediaChangeLog.expired(0, 2));
+  }
+}
@@ -0,0 +1,80 @@
+package jp.mediahub.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class MediaShardsTest {
+
+  private static final int VIRTUAL_NODES = 128;
+
+  private static final int MEDIA_COUNT = 20_000;
+
+  @Test
+  public void addingAShardOnlyMovesMediaToIt() {
+    final MediaShards before = new MediaShards(shards("primary", "shard1", "shard2"), VIRTUAL_NODES);
+    final MediaShards after = new MediaShards(shards("primary", "shard1", "shard2", "shard3"), VIRTUAL_NODES);
+    int moved = 0;
+    for (int i = 0; i < MEDIA_COUNT; i++) {
+      final String mediaName = "media-" + i + ".jpg";
+      final MediaShard owner = before.ownerOf(mediaName);
+      final MediaShard newOwner = after.ownerOf(mediaName);
+      if (!owner.id().equals(newOwner.id())) {
+        assertEquals("shard3", newOwner.id());
+        moved++;
+      }
+    }
+    // about a quarter of the media
+    assertTrue("moved " + moved, moved > MEDIA_COUNT / 8 && moved < MEDIA_COUNT * 3 / 8);
+  }
+
+  @Test
+  public void probeOrderStartsWithTheOwnerAndListsEveryShardOnce() {
+    final MediaShards shards = new MediaShards(shards("primary", "shard1", "shard2"), VIRTUAL_NODES);
+    final List<MediaShard> order = shards.probeOrder("media.jpg");
+    assertEquals(shards.ownerOf("media.jpg"), order.get(0));
+    assertEquals(3, order.size());
+    assertEquals(3, order.stream().distinct().count());
+  }
+
+  @Test
+  public void versionChangesWithTheShardsOnly() {
+    final String version = new MediaShards(shards("primary", "shard1"), VIRTUAL_NODES).version();
+    assertEquals(version, new MediaShards(shards("primary", "shard1"), VIRTUAL_NODES).version());
+    assertEquals(version, new MediaShards(shards("shard1", "primary"), VIRTUAL_NODES).version());
+    assertNotEquals(version, new MediaShards(shards("primary", "shard1", "shard2"), VIRTUAL_NODES).version());
+    assertNotEquals(version, new MediaShards(shards("primary", "shard1"), VIRTUAL_NODES * 2).version());
+  }
+
+  @Test
+  public void groupByOwnerKeepsTheOrderOfTheNames() {
+    final MediaShards shards = new MediaShards(shards("primary", "shard1", "shard2"), VIRTUAL_NODES);
+    final List<String> mediaNames = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      mediaNames.add("media-" + i);
+    }
+    final Map<MediaShard, List<String>> groups = shards.groupByOwner(mediaNames);
+    final List<String> grouped = new ArrayList<>();
+    groups.forEach((shard, names) -> {
+      names.forEach(name -> assertEquals(shard, shards.ownerOf(name)));
+      grouped.addAll(names);
+    });
+    assertEquals(mediaNames.size(), grouped.size());
+    for (List<String> names : groups.values()) {
+      assertEquals(names.stream().sorted((a, b) -> mediaNames.indexOf(a) - mediaNames.indexOf(b)).toList(), names);
+    }
+  }
+
+  static List<MediaShard> shards(String... ids) {
+    final List<MediaShard> shards = new ArrayList<>();
+    for (String id : ids) {
+      shards.add(new MediaShard(id, null, null, null));
+    }
+    return shards;
+  }
+}
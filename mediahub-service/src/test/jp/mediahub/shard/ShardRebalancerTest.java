@@ -0,0 +1,104 @@
+package jp.mediahub.shard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Date;
+import java.util.List;
+import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.stream.session.UploadSessionManager;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class ShardRebalancerTest {
+
+  private static final String MULTIPART_HASH = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08 "
+      + UploadSessionManager.MULTIPART_HASH_ALGORITHM;
+
+  @Test
+  public void multipartMediaOnTheWrongShardIsCopiedWithItsHash() {
+    final MediaShards shards = new MediaShards(MediaShardsTest.shards("primary", "shard1", "shard2"), 128);
+    // an upload session stores on the primary shard whatever the media
+    String mediaName = null;
+    for (int i = 0; mediaName == null; i++) {
+      if (!shards.ownerOf("part-" + i).equals(shards.primary())) {
+        mediaName = "part-" + i;
+      }
+    }
+    final Document file = new Document("_id", new ObjectId())
+        .append(MediaRepository.FILENAME_KEY, mediaName)
+        .append("length", 3L * 5 * 1024 * 1024)
+        .append("chunkSize", 1024 * 1024)
+        .append("uploadDate", new Date(1_700_000_000_000L))
+        .append("metadata", new Document(MediaRepository.CONTENT_HASH_KEY, MULTIPART_HASH)
+            .append(MediaRepository.REF_COUNT_KEY, 1));
+    final ObjectId copyId = new ObjectId();
+
+    final Document copy = ShardRebalancer.copyFile(file, copyId);
+
+    assertEquals(copyId, copy.getObjectId("_id"));
+    assertEquals(mediaName, copy.getString(MediaRepository.FILENAME_KEY));
+    assertEquals(file.get("length"), copy.get("length"));
+    assertEquals(file.get("chunkSize"), copy.get("chunkSize"));
+    assertEquals(file.getDate("uploadDate"), copy.getDate("uploadDate"));
+    final Document metadata = copy.get("metadata", Document.class);
+    assertEquals(MULTIPART_HASH, metadata.getString(MediaRepository.CONTENT_HASH_KEY));
+    assertEquals(1, metadata.getInteger(MediaRepository.REF_COUNT_KEY).intValue());
+    // the original is left as it is, it is deleted once the copy inserted
+    assertNotEquals(copyId, file.getObjectId("_id"));
+    assertEquals(MULTIPART_HASH, file.get("metadata", Document.class).getString(MediaRepository.CONTENT_HASH_KEY));
+  }
+
+  @Test
+  public void referenceIsCopiedAsTheOwnerOfItsContent() {
+    final Document file = new Document("_id", new ObjectId())
+        .append(MediaRepository.FILENAME_KEY, "copy.jpg")
+        .append("length", 10L)
+        .append("metadata", new Document(MediaRepository.CONTENT_HASH_KEY, "ab sha256")
+            .append(MediaRepository.BLOB_ID_KEY, new ObjectId()));
+
+    final Document metadata = ShardRebalancer.copyFile(file, new ObjectId()).get("metadata", Document.class);
+
+    assertFalse(metadata.containsKey(MediaRepository.BLOB_ID_KEY));
+    assertEquals(1, metadata.getInteger(MediaRepository.REF_COUNT_KEY).intValue());
+    assertEquals("ab sha256", metadata.getString(MediaRepository.CONTENT_HASH_KEY));
+    // the reference on the shard it was stored on still counts
+    assertEquals(List.of(MediaRepository.CONTENT_HASH_KEY, MediaRepository.BLOB_ID_KEY),
+        List.copyOf(file.get("metadata", Document.class).keySet()));
+  }
+
+  @Test
+  public void inlineMediaIsCopiedWithoutCounter() {
+    final Document file = new Document("_id", new ObjectId())
+        .append(MediaRepository.FILENAME_KEY, "small.txt")
+        .append("length", 2L)
+        .append("chunkSize", 0)
+        .append("metadata", new Document(MediaRepository.CONTENT_HASH_KEY, "cd sha256")
+            .append(MediaRepository.INLINE_CONTENT_KEY, new Binary(new byte[]{1, 2})));
+
+    final Document metadata = ShardRebalancer.copyFile(file, new ObjectId()).get("metadata", Document.class);
+
+    assertFalse(metadata.containsKey(MediaRepository.REF_COUNT_KEY));
+    assertArrayEquals(new byte[]{1, 2}, metadata.get(MediaRepository.INLINE_CONTENT_KEY, Binary.class).getData());
+  }
+
+  @Test
+  public void chunkIsCopiedToTheCopy() {
+    final Document chunk = new Document("_id", new ObjectId())
+        .append("files_id", new ObjectId())
+        .append("n", 3)
+        .append("data", new Binary(new byte[]{4, 5, 6}));
+    final ObjectId copyId = new ObjectId();
+
+    final Document copy = ShardRebalancer.copyChunk(chunk, copyId);
+
+    assertNotEquals(chunk.getObjectId("_id"), copy.getObjectId("_id"));
+    assertEquals(copyId, copy.getObjectId("files_id"));
+    assertEquals(3, copy.getInteger("n").intValue());
+    assertArrayEquals(new byte[]{4, 5, 6}, copy.get("data", Binary.class).getData());
+  }
+}
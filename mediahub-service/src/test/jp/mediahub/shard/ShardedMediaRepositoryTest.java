@@ -0,0 +1,112 @@
+package jp.mediahub.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import jp.mediahub.messages.Media;
+import jp.mediahub.repository.MediaPage;
+import jp.mediahub.repository.MediaRepository;
+import jp.mediahub.repository.impl.DefaultMediaRepository;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class ShardedMediaRepositoryTest {
+
+  // as the name index of every shard sorts them
+  private static final Comparator<Document> NAME_ORDER = Comparator
+      .comparing((Document file) -> file.getString(MediaRepository.FILENAME_KEY).getBytes(StandardCharsets.UTF_8),
+          Arrays::compareUnsigned)
+      .thenComparing(file -> file.getObjectId("_id"));
+
+  @Test
+  public void streamMediasMergesTheShardsByName() {
+    final ShardedMediaRepository repository = repository(
+        List.of("a.jpg", "c.jpg", "z.jpg", "\u00e9t\u00e9.jpg"),
+        List.of("b.jpg", "d.jpg"),
+        List.of(),
+        List.of("Z.jpg", "c.jpg"));
+    try (Stream<Media> medias = repository.streamMedias("")) {
+      // by UTF-8 bytes, upper case first and accented letters last, a media on two shards listed twice
+      assertEquals(List.of("Z.jpg", "a.jpg", "b.jpg", "c.jpg", "c.jpg", "d.jpg", "z.jpg", "\u00e9t\u00e9.jpg"),
+          medias.map(Media::getOriginalName).toList());
+    }
+  }
+
+  @Test
+  public void pagesWalkTheMediaOfEveryShardOnce() {
+    final List<String> first = new ArrayList<>();
+    final List<String> second = new ArrayList<>();
+    final List<String> third = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      final String mediaName = String.format("media-%02d.jpg", i);
+      (i % 3 == 0 ? first : i % 5 == 0 ? second : third).add(mediaName);
+    }
+    final ShardedMediaRepository repository = repository(first, second, third);
+    final List<String> listed = new ArrayList<>();
+    String pageToken = "";
+    int pages = 0;
+    do {
+      final MediaPage page = repository.findMediaPage("", pageToken, 4);
+      assertTrue(page.medias().size() <= 4);
+      page.medias().forEach(media -> listed.add(media.getOriginalName()));
+      pageToken = page.nextPageToken();
+      pages++;
+    } while (!pageToken.isEmpty());
+    final List<String> expected = Stream.of(first, second, third).flatMap(List::stream).sorted().toList();
+    assertEquals(expected, listed);
+    assertEquals(7, pages);
+  }
+
+  @SafeVarargs
+  private static ShardedMediaRepository repository(List<String>... shardMedias) {
+    final List<MediaShard> shards = new ArrayList<>();
+    for (int i = 0; i < shardMedias.length; i++) {
+      shards.add(new MediaShard("shard" + i, null, null, new InMemoryRepository(shardMedias[i])));
+    }
+    return new ShardedMediaRepository(new MediaShards(shards, 16));
+  }
+
+  /**
+   * The file documents of a shard, listed as the name index of the shard would.
+   */
+  private static class InMemoryRepository extends DefaultMediaRepository {
+
+    private final List<Document> files = new ArrayList<>();
+
+    InMemoryRepository(List<String> mediaNames) {
+      for (String mediaName : mediaNames) {
+        files.add(new Document("_id", new ObjectId())
+            .append(MediaRepository.FILENAME_KEY, mediaName)
+            .append("length", 1L)
+            .append("metadata", new Document()));
+      }
+      files.sort(NAME_ORDER);
+    }
+
+    @Override
+    public List<Document> findFilePage(String resourceOwnerId, String pageToken, int limit) {
+      Stream<Document> page = files.stream();
+      if (!pageToken.isEmpty()) {
+        final String key = new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8);
+        final int separator = key.indexOf(':');
+        final Document last = new Document("_id", new ObjectId(key.substring(0, separator)))
+            .append(MediaRepository.FILENAME_KEY, key.substring(separator + 1));
+        page = page.filter(file -> NAME_ORDER.compare(file, last) > 0);
+      }
+      return page.limit(limit).toList();
+    }
+
+    @Override
+    public Stream<Media> streamMedias(String resourceOwnerId) {
+      return files.stream().map(DefaultMediaRepository::toMedia);
+    }
+  }
+}
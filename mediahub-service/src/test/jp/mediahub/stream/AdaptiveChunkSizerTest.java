@@ -0,0 +1,99 @@
+package jp.mediahub.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class AdaptiveChunkSizerTest {
+
+  private static final int KB = 1024;
+
+  private static final int BLOCK_SIZE = 255 * KB;
+
+  private static final ChunkSizing SIZING = new ChunkSizing(16 * KB, 64 * KB, 1024 * KB, 100);
+
+  @Test
+  public void mediaFittingInTheLargestChunkIsSentInOne() {
+    final AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(SIZING, BLOCK_SIZE);
+    assertEquals(700 * KB, sizer.next(0, 700 * KB));
+    assertEquals(64 * KB, sizer.next(0, 2048 * KB));
+  }
+
+  @Test
+  public void sizeFollowsTheThroughputOfTheClient() {
+    final AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(SIZING, 0);
+    sizer.roundStarted(0);
+    // 64 KB in 10 ms, 640 KB in the 100 ms targeted
+    sizer.sent(64 * KB);
+    sizer.roundStarted(millis(10));
+    assertEquals(640 * KB, sizer.getSize());
+    // 64 KB in a second weighs half of the throughput
+    sizer.sent(64 * KB);
+    sizer.roundStarted(millis(1010));
+    assertEquals((int) ((64 * KB / 1e9 + 64 * KB / 1e7) / 2 * 1e8), sizer.getSize());
+  }
+
+  @Test
+  public void slowClientShrinksTheSizeToTheSmallest() {
+    final AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(SIZING, 0);
+    long now = 0;
+    sizer.roundStarted(now);
+    for (int round = 0; round < 10; round++) {
+      sizer.sent(KB);
+      now += millis(1000);
+      sizer.roundStarted(now);
+    }
+    assertEquals(16 * KB, sizer.getSize());
+  }
+
+  @Test
+  public void eagerRoundDoublesTheSize() {
+    final AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(SIZING, 0);
+    sizer.roundStarted(0);
+    for (int chunk = 0; chunk < 4; chunk++) {
+      sizer.sent(KB);
+    }
+    // the throughput measured asks for the smallest chunks
+    sizer.roundStarted(millis(1000));
+    assertEquals(128 * KB, sizer.getSize());
+  }
+
+  @Test
+  public void fixedSizeIsNotAdapted() {
+    final AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(ChunkSizing.fixed(32 * KB), 0);
+    sizer.roundStarted(0);
+    sizer.sent(32 * KB);
+    sizer.roundStarted(millis(1));
+    assertEquals(32 * KB, sizer.getSize());
+    assertEquals(32 * KB, sizer.next(0, 1024 * KB));
+  }
+
+  @Test
+  public void chunksEndOnTheBlocksOfTheMedia() {
+    final AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(new ChunkSizing(16 * KB, 1024 * KB, 1024 * KB, 100),
+        BLOCK_SIZE);
+    final long mediaSize = 10L * 1024 * KB + 123;
+    long position = 100_000;
+    while (position < mediaSize) {
+      final int length = sizer.next(position, mediaSize - position);
+      sizer.sent(length);
+      assertTrue(length <= 1024 * KB);
+      position += length;
+      assertTrue("ends at " + position, position == mediaSize || position % BLOCK_SIZE == 0);
+    }
+    assertEquals(mediaSize, position);
+  }
+
+  @Test
+  public void chunkSmallerThanABlockIsNotAligned() {
+    final AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(SIZING, BLOCK_SIZE);
+    sizer.sent(KB);
+    assertEquals(64 * KB, sizer.next(100_000, 2048 * KB));
+  }
+
+  private static long millis(long millis) {
+    return TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+}
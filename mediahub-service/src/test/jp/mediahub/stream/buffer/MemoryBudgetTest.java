@@ -0,0 +1,117 @@
+package jp.mediahub.stream.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class MemoryBudgetTest {
+
+  private static final int KB = 1024;
+
+  @Test
+  public void reservationsAreRoundedUpToWholeUnits() {
+    final MemoryBudget budget = new MemoryBudget(10 * KB);
+    final MemoryBudget.Reservation first = budget.reserve(1);
+    final MemoryBudget.Reservation second = budget.reserve(KB + 1);
+    assertEquals(3 * KB, budget.getReservedBytes());
+    first.release();
+    second.release();
+    assertEquals(0, budget.getReservedBytes());
+  }
+
+  @Test
+  public void oversizedReservationTakesTheWholeBudget() {
+    final MemoryBudget budget = new MemoryBudget(4 * KB);
+    final MemoryBudget.Reservation reservation = budget.reserve(1024 * KB);
+    assertEquals(4 * KB, budget.getReservedBytes());
+    assertExhausted(budget);
+    assertEquals(1, budget.getRejections());
+    assertNull(budget.tryReserve(1));
+    reservation.release();
+    assertNotNull(budget.tryReserve(1));
+  }
+
+  @Test
+  public void releasingTwiceReleasesOnce() {
+    final MemoryBudget budget = new MemoryBudget(2 * KB);
+    final MemoryBudget.Reservation first = budget.reserve(KB);
+    final MemoryBudget.Reservation second = budget.reserve(KB);
+    first.release();
+    first.release();
+    assertEquals(KB, budget.getReservedBytes());
+    budget.reserve(KB);
+    assertExhausted(budget);
+    second.release();
+  }
+
+  @Test
+  public void extensionIsReleasedWithTheReservation() {
+    final MemoryBudget budget = new MemoryBudget(4 * KB);
+    final MemoryBudget.Reservation reservation = budget.reserve(KB);
+    assertTrue(reservation.tryExtend(2 * KB));
+    assertEquals(3 * KB, budget.getReservedBytes());
+    assertFalse(reservation.tryExtend(2 * KB));
+    assertEquals(3 * KB, budget.getReservedBytes());
+    reservation.release();
+    assertEquals(0, budget.getReservedBytes());
+  }
+
+  @Test
+  public void releasedReservationIsNotExtended() {
+    final MemoryBudget budget = new MemoryBudget(4 * KB);
+    final MemoryBudget.Reservation reservation = budget.reserve(KB);
+    reservation.release();
+    assertFalse(reservation.tryExtend(KB));
+    assertEquals(0, budget.getReservedBytes());
+  }
+
+  @Test
+  public void reservationOutsideOfAnyBudgetAlwaysExtends() {
+    assertTrue(MemoryBudget.Reservation.NONE.tryExtend(Long.MAX_VALUE));
+    MemoryBudget.Reservation.NONE.release();
+  }
+
+  @Test
+  public void queuedTransferIsAdmittedOnceMemoryIsReleased() throws Exception {
+    final MemoryBudget budget = new MemoryBudget(KB, TimeUnit.SECONDS.toMillis(10), 1);
+    final MemoryBudget.Reservation first = budget.reserve(KB);
+    final CompletableFuture<MemoryBudget.Reservation> queued = CompletableFuture.supplyAsync(() -> budget.reserve(KB));
+    while (budget.getWaiting() == 0) {
+      Thread.sleep(1);
+    }
+    // the queue is full
+    assertExhausted(budget);
+    first.release();
+    queued.get(10, TimeUnit.SECONDS).release();
+    assertEquals(0, budget.getWaiting());
+    assertEquals(0, budget.getReservedBytes());
+  }
+
+  @Test
+  public void queuedTransferIsRejectedOnceItsWaitIsOver() {
+    final MemoryBudget budget = new MemoryBudget(KB, 20, 1);
+    budget.reserve(KB);
+    final long start = System.nanoTime();
+    assertExhausted(budget);
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    assertEquals(0, budget.getWaiting());
+  }
+
+  private static void assertExhausted(MemoryBudget budget) {
+    try {
+      budget.reserve(1);
+      fail("reserved past the budget");
+    } catch (StatusRuntimeException e) {
+      assertEquals(Status.Code.RESOURCE_EXHAUSTED, e.getStatus().getCode());
+    }
+  }
+}
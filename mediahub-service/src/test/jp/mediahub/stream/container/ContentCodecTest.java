@@ -0,0 +1,82 @@
+package jp.mediahub.stream.container;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.junit.Test;
+
+public class ContentCodecTest {
+
+  private static final byte[] TEXT = "{\"media\": \"report.json\", \"size\": 1024}\n".repeat(5000)
+      .getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void contentIsDecodedAsItWasEncoded() throws IOException {
+    final byte[] random = new byte[300 * 1024];
+    new Random(42).nextBytes(random);
+    for (ContentCodec codec : ContentCodec.values()) {
+      for (int level : new int[]{1, 6, 9}) {
+        for (byte[] content : new byte[][]{TEXT, random, new byte[0]}) {
+          assertArrayEquals(codec + " at level " + level, content, decode(codec, encode(codec, level, content)));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void contentIsEncodedAsTheClientsDecodeIt() throws IOException {
+    assertArrayEquals(TEXT, new GZIPInputStream(
+        new ByteArrayInputStream(encode(ContentCodec.GZIP, 6, TEXT))).readAllBytes());
+    assertArrayEquals(TEXT, new InflaterInputStream(
+        new ByteArrayInputStream(encode(ContentCodec.DEFLATE, 6, TEXT))).readAllBytes());
+  }
+
+  @Test
+  public void levelTradesSpeedForSize() throws IOException {
+    for (ContentCodec codec : ContentCodec.values()) {
+      final int fastest = encode(codec, 1, TEXT).length;
+      final int smallest = encode(codec, 9, TEXT).length;
+      assertTrue(codec + " " + smallest + " > " + fastest, smallest <= fastest);
+      assertTrue(codec + " " + fastest, fastest < TEXT.length / 10);
+    }
+  }
+
+  @Test
+  public void codecIsFoundByItsEncoding() {
+    assertEquals(ContentCodec.GZIP, ContentCodec.of("gzip"));
+    assertEquals(ContentCodec.DEFLATE, ContentCodec.of("Deflate"));
+    try {
+      ContentCodec.of("br");
+      throw new AssertionError("found a codec for br");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static byte[] encode(ContentCodec codec, int level, byte[] content) throws IOException {
+    final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    try (OutputStream stream = codec.encode(encoded, level)) {
+      // written in pieces, as the uploads write their chunks
+      for (int offset = 0; offset < content.length; offset += 10_000) {
+        stream.write(content, offset, Math.min(10_000, content.length - offset));
+      }
+    }
+    return encoded.toByteArray();
+  }
+
+  private static byte[] decode(ContentCodec codec, byte[] encoded) throws IOException {
+    try (InputStream stream = codec.decode(new ByteArrayInputStream(encoded))) {
+      return stream.readAllBytes();
+    }
+  }
+}